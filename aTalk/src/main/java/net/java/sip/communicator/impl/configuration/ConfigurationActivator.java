@@ -53,6 +53,9 @@ public class ConfigurationActivator implements BundleActivator
     public void stop(BundleContext bundleContext)
             throws Exception
     {
+        ConfigurationService configurationService = LibJitsi.getConfigurationService();
+        if (configurationService != null)
+            configurationService.storeConfiguration();
     }
 
     /**
@@ -22,14 +22,19 @@ import org.atalk.persistance.DatabaseBackend;
 import org.atalk.service.osgi.OSGiService;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import timber.log.Timber;
 
 /**
  * Implements a <code>ConfigurationStore</code> which stores property name-value associations in an
- * SQLite database.
+ * SQLite database. The properties and account properties tables are loaded in one pass on first
+ * use and kept in memory, sorted by name, so that the reads, including the lookups of absent
+ * properties and the prefix queries, do not access the database.
  *
  * @author Lyubomir Marinov
  * @author Eng Chong Meng
@@ -44,7 +49,18 @@ public class SQLiteConfigurationStore extends DatabaseConfigurationStore
      * aTalk backend SQLite database
      */
     private final SQLiteOpenHelper openHelper;
-    private static SQLiteDatabase mDB = null;
+
+    /**
+     * The values of the properties in table TABLE_NAME by name; <code>null</code> until loaded.
+     * Shared by all instances, which are backed by the same database.
+     */
+    private static volatile ConcurrentSkipListMap<String, String> configTable;
+
+    /**
+     * The values of the properties in table AccountID.TBL_PROPERTIES by accountUuid and name
+     * joined with a dot; loaded together with {@link #configTable}.
+     */
+    private static volatile ConcurrentSkipListMap<String, String> accountTable;
 
     /**
      * Initializes a new <code>SQLiteConfigurationStore</code> instance.
@@ -61,92 +77,137 @@ public class SQLiteConfigurationStore extends DatabaseConfigurationStore
     }
 
     /**
-     * Overrides {@link HashtableConfigurationStore#getProperty(String)}. If this
-     * <code>ConfigurationStore</code> contains a value associated with the specified property name,
-     * returns it. Otherwise, searches for a system property with the specified name and returns
-     * its value. If property name starts with "acc", the look up the value in table
-     * AccountID.TBL_PROPERTIES for the specified accountUuid, otherwise use table TABLE_NAME
-     *
-     * @param name the name of the property to get the value of
-     * @return the value in this <code>ConfigurationStore</code> of the property with the specified
-     * name; <code>null</code> if the property with the specified name does not have an association
-     * with a value in this <code>ConfigurationStore</code>
-     * @see ConfigurationStore#getProperty(String)
+     * Loads the properties and account properties tables into {@link #configTable} and
+     * {@link #accountTable}, unless already loaded.
      */
-    @Override
-    public Object getProperty(String name)
+    private void ensureLoaded()
     {
-        Cursor cursor = null;
-        Object value = properties.get(name);
-        if (value == null) {
-            String[] columns = {COLUMN_VALUE};
-            synchronized (openHelper) {
-                mDB = openHelper.getReadableDatabase();
-                if (name.startsWith(AccountID.ACCOUNT_UUID_PREFIX)) {
-                    int idx = name.indexOf(".");
-                    if (idx == -1) {
-                        value = name;  // just return the accountUuid
-                    }
-                    else {
-                        String[] args = {name.substring(0, idx), name.substring(idx + 1)};
-                        cursor = mDB.query(AccountID.TBL_PROPERTIES, columns,
-                                AccountID.ACCOUNT_UUID + "=? AND " + COLUMN_NAME + "=?",
-                                args, null, null, null, "1");
-                    }
-                }
-                else {
-                    cursor = mDB.query(TABLE_NAME, columns,
-                            COLUMN_NAME + "=?", new String[]{name}, null, null, null, "1");
+        if (configTable != null)
+            return;
+
+        synchronized (openHelper) {
+            if (configTable != null)
+                return;
+
+            SQLiteDatabase mDB = openHelper.getReadableDatabase();
+            ConcurrentSkipListMap<String, String> config = new ConcurrentSkipListMap<>();
+            try (Cursor cursor = mDB.query(TABLE_NAME, new String[]{COLUMN_NAME, COLUMN_VALUE},
+                    null, null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    String value = cursor.getString(1);
+                    if (value != null)
+                        config.put(cursor.getString(0), value);
                 }
-                if (cursor != null) {
-                    try {
-                        if ((cursor.getCount() == 1) && cursor.moveToFirst())
-                            value = cursor.getString(0);
-                    } finally {
-                        cursor.close();
-                    }
+            }
+
+            ConcurrentSkipListMap<String, String> accounts = new ConcurrentSkipListMap<>();
+            try (Cursor cursor = mDB.query(AccountID.TBL_PROPERTIES,
+                    new String[]{AccountID.ACCOUNT_UUID, COLUMN_NAME, COLUMN_VALUE},
+                    null, null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    String value = cursor.getString(2);
+                    if (value != null)
+                        accounts.put(cursor.getString(0) + "." + cursor.getString(1), value);
                 }
             }
-            if (value == null)
-                value = System.getProperty(name);
+            Timber.d("Loaded %d properties and %d account properties", config.size(), accounts.size());
+
+            // configTable last, as it tells whether the tables are loaded.
+            accountTable = accounts;
+            configTable = config;
+        }
+    }
+
+    /**
+     * Overrides {@link DatabaseConfigurationStore#loadProperty(String)}. Gets the value of the
+     * property with the specified name from the loaded tables. If property name starts with "acc",
+     * the look up the value in table AccountID.TBL_PROPERTIES for the specified accountUuid,
+     * otherwise use table TABLE_NAME. As the whole tables are loaded, an absent property is known
+     * to be absent without a database query.
+     *
+     * @param name the name of the property to get the value of
+     * @return the value in the database of the property with the specified name; <code>null</code>
+     * if the property with the specified name does not have an association with a value in the database
+     */
+    @Override
+    protected Object loadProperty(String name)
+    {
+        ensureLoaded();
+        if (name.startsWith(AccountID.ACCOUNT_UUID_PREFIX)) {
+            if (name.indexOf('.') == -1)
+                return name;  // just return the accountUuid
+            return accountTable.get(name);
         }
-        return value;
+        return configTable.get(name);
     }
 
     /**
      * Overrides {@link HashtableConfigurationStore#getPropertyNames(String)}. Gets the names of
-     * the properties which have values associated in this <code>ConfigurationStore</code>.
+     * the properties which start with a specific prefix, including the changes not written to the
+     * database yet. If the prefix starts with "acc", gets the names of the properties of the
+     * specified accountUuid, without the accountUuid.
      *
+     * @param name the prefix of the names to get, or an accountUuid
      * @return an array of <code>String</code>s which specify the names of the properties that have
-     * values associated in this <code>ConfigurationStore</code>; an empty array if this instance
-     * contains no property values
+     * values associated in this <code>ConfigurationStore</code>, in ascending order; an empty array
+     * if this instance contains no such property values
      * @see ConfigurationStore#getPropertyNames(String)
      */
     @Override
     public String[] getPropertyNames(String name)
     {
-        List<String> propertyNames = new ArrayList<>();
-        String tableName;
+        ensureLoaded();
+        Set<String> propertyNames = new TreeSet<>();
+        boolean accountProperties = name.startsWith(AccountID.ACCOUNT_UUID_PREFIX);
+        String prefix = name;
 
-        synchronized (openHelper) {
-            mDB = openHelper.getReadableDatabase();
-            if (name.startsWith(AccountID.ACCOUNT_UUID_PREFIX)) {
-                tableName = AccountID.TBL_PROPERTIES;
-            }
-            else {
-                tableName = TABLE_NAME;
-            }
+        if (accountProperties) {
+            if (name.indexOf('.') == -1)
+                prefix = name + ".";
+            int idx = prefix.indexOf('.');
+            for (String key : startingWith(accountTable, prefix).keySet())
+                propertyNames.add(key.substring(idx + 1));
+        }
+        else {
+            propertyNames.addAll(startingWith(configTable, prefix).keySet());
+        }
 
-            try (Cursor cursor = mDB.query(tableName, new String[]{COLUMN_NAME},
-                    null, null, null, null, COLUMN_NAME + " ASC")) {
-                while (cursor.moveToNext()) {
-                    propertyNames.add(cursor.getString(0));
-                }
-            }
+        // Read your writes: apply the changes not written yet to the names in the database.
+        for (Map.Entry<String, Object> change : getPendingChanges().entrySet()) {
+            String propertyName = change.getKey();
+            if (!propertyName.startsWith(prefix)
+                    || (accountProperties != propertyName.startsWith(AccountID.ACCOUNT_UUID_PREFIX)))
+                continue;
+
+            if (accountProperties)
+                propertyName = propertyName.substring(propertyName.indexOf('.') + 1);
+            if (change.getValue() != null)
+                propertyNames.add(propertyName);
+            else
+                propertyNames.remove(propertyName);
         }
         return propertyNames.toArray(new String[0]);
     }
 
+    /**
+     * Gets the range of a sorted table whose keys start with a specific prefix.
+     *
+     * @param table the sorted table
+     * @param prefix the prefix
+     * @return a view of the entries of <code>table</code> whose keys start with <code>prefix</code>
+     */
+    private static NavigableMap<String, String> startingWith(NavigableMap<String, String> table, String prefix)
+    {
+        int length = prefix.length();
+        if (length == 0)
+            return table;
+
+        char last = prefix.charAt(length - 1);
+        if (last == Character.MAX_VALUE)
+            return table.tailMap(prefix, true);
+        return table.subMap(prefix, true, prefix.substring(0, length - 1) + (char) (last + 1), false);
+    }
+
     /**
      * Removes all property name-value associations currently present in this
      * <code>ConfigurationStore</code> instance and de-serializes new property name-value
@@ -154,86 +215,159 @@ public class SQLiteConfigurationStore extends DatabaseConfigurationStore
      *
      * @throws IOException if there is an input error while reading from the underlying database (storage)
      */
-
+    @Override
     protected void reloadConfiguration()
             throws IOException
     {
-        // TODO Auto-generated method stub
+        // The tables are loaded again on the next read.
+        synchronized (openHelper) {
+            configTable = null;
+            accountTable = null;
+        }
     }
 
     /**
-     * Overrides {@link HashtableConfigurationStore#removeProperty(String)}. Removes the value
-     * association in this <code>ConfigurationStore</code> of the property with a specific name. If
-     * the property with the specified name is not associated with a value in this
-     * <code>ConfigurationStore</code>, does nothing.
+     * Overrides {@link DatabaseConfigurationStore#removeProperty(String)}. The removal of an
+     * account, i.e. of a name with only the accountUuid, is written through, as the accounts table
+     * is also read directly by the <code>AccountManager</code>.
      *
      * @param name the name of the property which is to have its value association in this
      * <code>ConfigurationStore</code> removed
      * @see ConfigurationStore#removeProperty(String)
      */
+    @Override
     public void removeProperty(String name)
     {
         super.removeProperty(name);
+        if (name.startsWith(AccountID.ACCOUNT_UUID_PREFIX) && (name.indexOf('.') == -1))
+            flush();
+    }
+
+    /**
+     * Implements {@link DatabaseConfigurationStore#writeChanges(Map)}. Writes a batch of property
+     * changes in a single transaction. A property whose name starts with "acc" is stored in
+     * AccountID.TBL_PROPERTIES for its accountUuid, and removing an accountUuid alone removes its
+     * account; other properties are stored in table TABLE_NAME.
+     *
+     * @param changes the changes to write by property name; the value of a property to be removed is <code>null</code>
+     */
+    @Override
+    protected void writeChanges(Map<String, Object> changes)
+    {
         synchronized (openHelper) {
-            mDB = openHelper.getWritableDatabase();
-            if (name.startsWith(AccountID.ACCOUNT_UUID_PREFIX)) {
-                int idx = name.indexOf(".");
-                // remove user account if only accountUuid is specified
-                if (idx == -1) {
-                    String[] args = {name};
-                    mDB.delete(AccountID.TABLE_NAME, AccountID.ACCOUNT_UUID + "=?", args);
-                }
-                // Otherwise, remove the accountProperty from the AccountID.TBL_PROPERTIES
-                else {
-                    String[] args = {name.substring(0, idx), name.substring(idx + 1)};
-                    mDB.delete(AccountID.TBL_PROPERTIES,
-                            AccountID.ACCOUNT_UUID + "=? AND " + COLUMN_NAME + "=?", args);
+            SQLiteDatabase mDB = openHelper.getWritableDatabase();
+            mDB.beginTransaction();
+            try {
+                for (Map.Entry<String, Object> change : changes.entrySet()) {
+                    String name = change.getKey();
+                    Object value = change.getValue();
+                    if (value == null)
+                        deleteProperty(mDB, name);
+                    else
+                        replaceProperty(mDB, name, value);
                 }
+                mDB.setTransactionSuccessful();
+            } finally {
+                mDB.endTransaction();
             }
-            else {
-                mDB.delete(TABLE_NAME, COLUMN_NAME + "=?", new String[]{name});
+
+            if (configTable != null) {
+                for (Map.Entry<String, Object> change : changes.entrySet())
+                    cacheChange(change.getKey(), change.getValue());
             }
         }
-        Timber.log(TimberLog.FINER, "### Remove property from table: %s", name);
+        Timber.log(TimberLog.FINER, "### Committed %d property changes", changes.size());
     }
 
     /**
-     * Overrides {@link HashtableConfigurationStore#setNonSystemProperty(String, Object)}.
+     * Applies a change written to the database to the loaded tables.
      *
-     * @param name the name of the non-system property to be set to the specified value in this
-     * <code>ConfigurationStore</code>
-     * @param value the value to be assigned to the non-system property with the specified name in this
-     * <code>ConfigurationStore</code>
-     * @see ConfigurationStore#setNonSystemProperty(String, Object)
+     * @param name the name of the changed property
+     * @param value the new value of the property, or <code>null</code> if it has been removed
      */
-    @Override
-    public void setNonSystemProperty(String name, Object value)
+    private static void cacheChange(String name, Object value)
     {
-        synchronized (openHelper) {
-            SQLiteDatabase mDB = openHelper.getWritableDatabase();
-            String tableName = TABLE_NAME;
-
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(COLUMN_VALUE, value.toString());
+        if (name.startsWith(AccountID.ACCOUNT_UUID_PREFIX)) {
+            if (name.indexOf('.') != -1) {
+                if (value == null)
+                    accountTable.remove(name);
+                else
+                    accountTable.put(name, value.toString());
+            }
+            // the properties of a removed account are deleted in cascade
+            else if (value == null) {
+                startingWith(accountTable, name + ".").clear();
+            }
+        }
+        else if (value == null) {
+            configTable.remove(name);
+        }
+        else {
+            configTable.put(name, value.toString());
+        }
+    }
 
-            if (name.startsWith(AccountID.ACCOUNT_UUID_PREFIX)) {
-                int idx = name.indexOf(".");
-                contentValues.put(AccountID.ACCOUNT_UUID, name.substring(0, idx));
-                contentValues.put(COLUMN_NAME, name.substring(idx + 1));
-                tableName = AccountID.TBL_PROPERTIES;
+    /**
+     * Removes a property from its table.
+     *
+     * @param mDB the database to remove the property from
+     * @param name the name of the property to remove
+     */
+    private static void deleteProperty(SQLiteDatabase mDB, String name)
+    {
+        if (name.startsWith(AccountID.ACCOUNT_UUID_PREFIX)) {
+            int idx = name.indexOf(".");
+            // remove user account if only accountUuid is specified
+            if (idx == -1) {
+                String[] args = {name};
+                mDB.delete(AccountID.TABLE_NAME, AccountID.ACCOUNT_UUID + "=?", args);
             }
+            // Otherwise, remove the accountProperty from the AccountID.TBL_PROPERTIES
             else {
-                contentValues.put(COLUMN_NAME, name);
+                String[] args = {name.substring(0, idx), name.substring(idx + 1)};
+                mDB.delete(AccountID.TBL_PROPERTIES,
+                        AccountID.ACCOUNT_UUID + "=? AND " + COLUMN_NAME + "=?", args);
             }
+        }
+        else {
+            mDB.delete(TABLE_NAME, COLUMN_NAME + "=?", new String[]{name});
+        }
+        Timber.log(TimberLog.FINER, "### Remove property from table: %s", name);
+    }
 
-            // Insert the properties in DB, replace if exist
-            long rowId = mDB.replace(tableName, null, contentValues);
-            if (rowId == -1)
-                Timber.e("Failed to set non-system property: %s: %s <= %s", tableName, name, value);
+    /**
+     * Inserts a property into its table, or replaces its value if it exists.
+     *
+     * @param mDB the database to store the property in
+     * @param name the name of the property
+     * @param value the value of the property
+     */
+    private static void replaceProperty(SQLiteDatabase mDB, String name, Object value)
+    {
+        String tableName = TABLE_NAME;
 
-            Timber.log(TimberLog.FINER, "### Set non-system property: %s: %s <= %s", tableName, name, value);
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(COLUMN_VALUE, value.toString());
+
+        if (name.startsWith(AccountID.ACCOUNT_UUID_PREFIX)) {
+            int idx = name.indexOf(".");
+            if (idx == -1) {
+                Timber.e("Failed to set non-system property without account property name: %s", name);
+                return;
+            }
+            contentValues.put(AccountID.ACCOUNT_UUID, name.substring(0, idx));
+            contentValues.put(COLUMN_NAME, name.substring(idx + 1));
+            tableName = AccountID.TBL_PROPERTIES;
+        }
+        else {
+            contentValues.put(COLUMN_NAME, name);
         }
-        // To take care of cached properties and accountProperties
-        super.setNonSystemProperty(name, value);
+
+        // Insert the properties in DB, replace if exist
+        long rowId = mDB.replace(tableName, null, contentValues);
+        if (rowId == -1)
+            Timber.e("Failed to set non-system property: %s: %s <= %s", tableName, name, value);
+
+        Timber.log(TimberLog.FINER, "### Set non-system property: %s: %s <= %s", tableName, name, value);
     }
 }
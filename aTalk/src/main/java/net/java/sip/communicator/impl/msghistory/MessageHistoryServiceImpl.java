@@ -49,6 +49,8 @@ import org.atalk.android.plugin.timberlog.TimberLog;
 import org.atalk.persistance.DatabaseBackend;
 import org.atalk.service.configuration.ConfigurationService;
 import org.jivesoftware.smack.packet.Stanza;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.jivesoftware.smackx.receipts.ReceiptReceivedListener;
 import org.jxmpp.jid.EntityBareJid;
 import org.jxmpp.jid.Jid;
@@ -1581,6 +1583,177 @@ public class MessageHistoryServiceImpl implements MessageHistoryService,
         mDB.insert(ChatMessage.TABLE_NAME, null, contentValues);
     }
 
+    // ============== XEP-0313: Message Archive Management catch-up ======================
+
+    /**
+     * Get the stanza-id of the last archived message retrieved for the chat session.
+     *
+     * @param sessionUuid the chatSession Uuid
+     * @return the last archived stanza-id or null if the chat session has never been synced
+     */
+    public String getMamLastArchiveId(String sessionUuid)
+    {
+        JSONObject attributes = getSessionAttributes(sessionUuid);
+        return attributes.optString(ChatSession.ATTR_MAM_LAST_ID, null);
+    }
+
+    /**
+     * Get the timeStamp of the last message stored for the chat session.
+     *
+     * @param sessionUuid the chatSession Uuid
+     * @return the timeStamp of the last message, or null if there is none
+     */
+    public Date getLastMessageDateForSessionUuid(String sessionUuid)
+    {
+        Date lastDate = null;
+        String[] columns = {ChatMessage.TIME_STAMP};
+        String[] args = {sessionUuid};
+        Cursor cursor = mDB.query(ChatMessage.TABLE_NAME, columns, ChatMessage.SESSION_UUID + "=?",
+                args, null, null, ORDER_DESC, "1");
+
+        while (cursor.moveToNext()) {
+            lastDate = new Date(cursor.getLong(0));
+        }
+        cursor.close();
+        return lastDate;
+    }
+
+    /**
+     * Find the messages which are already stored in the database, e.g. received live or as
+     * offline messages before their archived copies are retrieved.
+     *
+     * @param msgUuids the message Uuids to check
+     * @return the subset of msgUuids found in the database
+     */
+    public Set<String> findExistingMessageUuids(Collection<String> msgUuids)
+    {
+        Set<String> result = new HashSet<>();
+        if (msgUuids.isEmpty())
+            return result;
+
+        String[] columns = {ChatMessage.UUID};
+        String[] args = msgUuids.toArray(new String[0]);
+        String selection = ChatMessage.UUID + " IN (" + TextUtils.join(",", Collections.nCopies(args.length, "?")) + ")";
+
+        Cursor cursor = mDB.query(ChatMessage.TABLE_NAME, columns, selection, args, null, null, null);
+        while (cursor.moveToNext()) {
+            result.add(cursor.getString(0));
+        }
+        cursor.close();
+        return result;
+    }
+
+    /**
+     * Writes a page of messages retrieved from the server message archive for a chat session, and
+     * records the stanza-id of its last archived message, in a single database transaction; so
+     * the next catch-up resumes right after the last page stored.
+     *
+     * @param sessionUuid the chatSession Uuid to which the messages belong
+     * @param msgEvents the MessageReceivedEvents or MessageDeliveredEvents of the page, in archive order
+     * @param lastArchiveId the stanza-id of the last archived message of the page
+     * @return the number of messages written, or -1 if the page could not be stored
+     */
+    public int writeArchivedMessages(String sessionUuid, List<EventObject> msgEvents, String lastArchiveId)
+    {
+        int count = 0;
+        ContentValues values = new ContentValues();
+        mDB.beginTransaction();
+        try {
+            for (EventObject msgEvent : msgEvents) {
+                IMessage message;
+                String direction;
+                Contact contact;
+                Date timeStamp;
+                int msgType;
+
+                if (msgEvent instanceof MessageReceivedEvent) {
+                    MessageReceivedEvent evt = (MessageReceivedEvent) msgEvent;
+                    message = evt.getSourceMessage();
+                    contact = evt.getSourceContact();
+                    timeStamp = evt.getTimestamp();
+                    msgType = evt.getEventType();
+                    direction = ChatMessage.DIR_IN;
+                }
+                else if (msgEvent instanceof MessageDeliveredEvent) {
+                    MessageDeliveredEvent evt = (MessageDeliveredEvent) msgEvent;
+                    message = evt.getSourceMessage();
+                    contact = evt.getDestinationContact();
+                    timeStamp = evt.getTimestamp();
+                    msgType = evt.getEventType();
+                    direction = ChatMessage.DIR_OUT;
+                }
+                else
+                    continue;
+
+                values.clear();
+                values.put(ChatMessage.UUID, message.getMessageUID());
+                values.put(ChatMessage.SESSION_UUID, sessionUuid);
+                values.put(ChatMessage.TIME_STAMP, timeStamp.getTime());
+                values.put(ChatMessage.ENTITY_JID, contact.getAddress());
+                values.put(ChatMessage.MSG_TYPE, msgType);
+                values.put(ChatMessage.MSG_BODY, message.getContent());
+                values.put(ChatMessage.ENC_TYPE, message.getEncType());
+                values.put(ChatMessage.DIRECTION, direction);
+                values.put(ChatMessage.REMOTE_MSG_ID, message.getRemoteMsgId());
+                if (ChatMessage.DIR_OUT.equals(direction)) {
+                    values.put(ChatMessage.STATUS, 0);
+                    values.put(ChatMessage.SERVER_MSG_ID, message.getServerMsgId());
+                    values.put(ChatMessage.READ, ChatMessage.MESSAGE_DELIVERY_CLIENT_SENT);
+                }
+                else {
+                    values.put(ChatMessage.STATUS, 1);
+                }
+                mDB.insert(ChatMessage.TABLE_NAME, null, values);
+                count++;
+            }
+
+            // Read-modify-write the attributes within the transaction, so that a concurrent update of the
+            // other attributes of the chat session is not overwritten
+            JSONObject attributes = getSessionAttributes(sessionUuid);
+            try {
+                attributes.put(ChatSession.ATTR_MAM_LAST_ID, lastArchiveId);
+            } catch (JSONException e) {
+                Timber.w("ChatSession attributes update failed: %s", sessionUuid);
+            }
+            values.clear();
+            values.put(ChatSession.ATTRIBUTES, attributes.toString());
+            mDB.update(ChatSession.TABLE_NAME, values, ChatSession.SESSION_UUID + "=?", new String[]{sessionUuid});
+            mDB.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            Timber.e(e, "Failed to write %d archived messages for: %s", msgEvents.size(), sessionUuid);
+            count = -1;
+        } finally {
+            mDB.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * Get the attributes of a chat session.
+     *
+     * @param sessionUuid the chatSession Uuid
+     * @return the attributes JSONObject; empty if none
+     */
+    private JSONObject getSessionAttributes(String sessionUuid)
+    {
+        String[] columns = {ChatSession.ATTRIBUTES};
+        String[] args = {sessionUuid};
+        Cursor cursor = mDB.query(ChatSession.TABLE_NAME, columns, ChatSession.SESSION_UUID + "=?",
+                args, null, null, null);
+
+        JSONObject attributes = new JSONObject();
+        while (cursor.moveToNext()) {
+            String value = cursor.getString(0);
+            try {
+                attributes = new JSONObject(value == null ? "" : value);
+            } catch (JSONException e) {
+                attributes = new JSONObject();
+            }
+        }
+        cursor.close();
+        return attributes;
+    }
+
 //    public void convertToMessageType(String msgUuid, int msgType) {
 //        String[] args = {msgUuid};
 //
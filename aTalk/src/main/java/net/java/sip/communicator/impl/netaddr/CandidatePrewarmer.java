@@ -0,0 +1,199 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.netaddr;
+
+import net.java.sip.communicator.service.netaddr.event.ChangeEvent;
+import net.java.sip.communicator.service.netaddr.event.NetworkConfigurationChangeListener;
+import net.java.sip.communicator.service.protocol.OperationSetBasicTelephony;
+
+import org.atalk.service.configuration.ConfigurationService;
+import org.atalk.util.concurrent.ExecutorFactory;
+import org.ice4j.ice.harvest.HostCandidateHarvester;
+import org.ice4j.ice.harvest.HostSocketPool;
+import org.ice4j.ice.harvest.MappingCandidateHarvesters;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the ICE candidate harvesting state warm between calls so that an ICE agent can gather its
+ * candidates without waiting on the network: the allowed host addresses are enumerated once per
+ * network, a few host sockets are bound ahead of time in the media port range, and the STUN mapping
+ * harvesters and the STUN/TURN server discovery results are kept per network. All of them are
+ * refreshed in the background when the network configuration changes.
+ *
+ * @author Eng Chong Meng
+ */
+class CandidatePrewarmer implements NetworkConfigurationChangeListener
+{
+    /**
+     * The name of the property which specifies the number of host sockets to keep bound ahead of time
+     * on each host address; 0 disables the pre-binding.
+     */
+    static final String PREBOUND_SOCKETS_PNAME = "net.java.sip.communicator.impl.netaddr.PREBOUND_SOCKETS";
+
+    /**
+     * The default number of pre-bound host sockets per host address: enough for an audio and a video
+     * stream without rtcp-mux.
+     */
+    private static final int DEFAULT_PREBOUND_SOCKETS = 4;
+
+    /**
+     * The time in milliseconds to wait for the network configuration to settle before refreshing, so
+     * that the burst of events of a single change triggers a single refresh.
+     */
+    private static final long REFRESH_DELAY = 1000;
+
+    /**
+     * The default media port range, as in <code>TransportManager</code>.
+     */
+    private static final int DEFAULT_MIN_PORT = 5000;
+
+    private static final int DEFAULT_MAX_PORT = 6000;
+
+    /**
+     * The <code>NetworkAddressManagerServiceImpl</code> whose STUN discovery cache this instance clears on
+     * a network change.
+     */
+    private final NetworkAddressManagerServiceImpl networkAddressManager;
+
+    /**
+     * The executor on which the refreshes run.
+     */
+    private final ScheduledExecutorService executor
+            = ExecutorFactory.createSingleThreadScheduledExecutor("CandidatePrewarmer-", 60, TimeUnit.SECONDS);
+
+    /**
+     * The pending refresh, if any.
+     */
+    private ScheduledFuture<?> refreshTask;
+
+    /**
+     * The key of the network the harvesting state was last refreshed for.
+     */
+    private String networkKey;
+
+    /**
+     * Initializes a new <code>CandidatePrewarmer</code>.
+     *
+     * @param networkAddressManager the service which discovers the STUN/TURN servers
+     */
+    CandidatePrewarmer(NetworkAddressManagerServiceImpl networkAddressManager)
+    {
+        this.networkAddressManager = networkAddressManager;
+    }
+
+    /**
+     * Schedules a refresh of the harvesting state on any interface, address or DNS change.
+     *
+     * @param event the change event.
+     */
+    @Override
+    public void configurationChanged(ChangeEvent event)
+    {
+        scheduleRefresh();
+    }
+
+    /**
+     * Schedules {@link #refresh()} after {@link #REFRESH_DELAY}, postponing a pending one.
+     */
+    synchronized void scheduleRefresh()
+    {
+        if (refreshTask != null)
+            refreshTask.cancel(false);
+        refreshTask = executor.schedule(this::refresh, REFRESH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the pre-bound sockets and cancels any pending refresh.
+     */
+    synchronized void stop()
+    {
+        if (refreshTask != null)
+            refreshTask.cancel(false);
+        refreshTask = null;
+        executor.shutdown();
+        HostSocketPool.clear();
+    }
+
+    /**
+     * Re-enumerates the host addresses and, if the network has changed, rebinds the socket pool and
+     * rediscovers the STUN mappings of the new network.
+     */
+    private void refresh()
+    {
+        try {
+            List<InetAddress> addresses = HostCandidateHarvester.refreshHostAddresses();
+            String key = toNetworkKey(addresses);
+            if (key.equals(networkKey))
+                return;
+
+            Timber.i("Network changed to [%s]; pre-warming ICE candidates", key);
+            networkKey = key;
+            networkAddressManager.clearStunServerCache();
+
+            ConfigurationService cfg = NetaddrActivator.getConfigurationService();
+            int minPort = DEFAULT_MIN_PORT;
+            int maxPort = DEFAULT_MAX_PORT;
+            int poolSize = DEFAULT_PREBOUND_SOCKETS;
+            if (cfg != null) {
+                minPort = cfg.getInt(OperationSetBasicTelephony.MIN_MEDIA_PORT_NUMBER_PROPERTY_NAME, minPort);
+                maxPort = cfg.getInt(OperationSetBasicTelephony.MAX_MEDIA_PORT_NUMBER_PROPERTY_NAME, maxPort);
+                poolSize = cfg.getInt(PREBOUND_SOCKETS_PNAME, poolSize);
+            }
+            if (minPort <= 0 || maxPort < minPort)
+                poolSize = 0;
+            HostSocketPool.prebind(poolSize, minPort, maxPort);
+
+            // The slowest part as it waits for the STUN servers; the previous harvesters stay in use meanwhile.
+            MappingCandidateHarvesters.refresh(key);
+        } catch (Throwable t) {
+            if (t instanceof ThreadDeath)
+                throw (ThreadDeath) t;
+            Timber.w(t, "Failed to pre-warm ICE candidates");
+        }
+    }
+
+    /**
+     * Gets a key which identifies a network by its host addresses.
+     *
+     * @param addresses the allowed host addresses
+     * @return the sorted host addresses, separated by commas
+     */
+    private static String toNetworkKey(List<InetAddress> addresses)
+    {
+        List<String> hostAddresses = new ArrayList<>(addresses.size());
+        for (InetAddress address : addresses)
+            hostAddresses.add(address.getHostAddress());
+        Collections.sort(hostAddresses);
+
+        StringBuilder key = new StringBuilder();
+        for (String hostAddress : hostAddresses) {
+            if (key.length() > 0)
+                key.append(',');
+            key.append(hostAddress);
+        }
+        return key.toString();
+    }
+}
@@ -36,6 +36,8 @@ import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.*;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import timber.log.Timber;
 
@@ -81,12 +83,27 @@ public class NetworkAddressManagerServiceImpl implements NetworkAddressManagerSe
      */
     public static final String STUN_SRV_NAME = "stun";
 
+    /**
+     * The STUN/TURN servers discovered through DNS by domain name, for the current network; an entry
+     * without address records that the domain has none.
+     */
+    private final Map<String, StunServerRecord> stunServerCache = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps the ICE candidate harvesting state warm across calls and network changes.
+     */
+    private CandidatePrewarmer candidatePrewarmer = null;
+
     /**
      * Initializes this network address manager service implementation.
      */
     public void start()
     {
         this.localHostFinderSocket = initRandomPortSocket();
+
+        // The watcher fires the current interfaces to a new listener, which starts the pre-warming.
+        candidatePrewarmer = new CandidatePrewarmer(this);
+        addNetworkConfigurationChangeListener(candidatePrewarmer);
     }
 
     /**
@@ -95,10 +112,24 @@ public class NetworkAddressManagerServiceImpl implements NetworkAddressManagerSe
      */
     public void stop()
     {
+        if (candidatePrewarmer != null) {
+            removeNetworkConfigurationChangeListener(candidatePrewarmer);
+            candidatePrewarmer.stop();
+            candidatePrewarmer = null;
+        }
         if (networkConfigurationWatcher != null)
             networkConfigurationWatcher.stop();
     }
 
+    /**
+     * Forgets the STUN/TURN servers discovered so far; called when the network changes since the DNS
+     * answers may differ on the new network.
+     */
+    void clearStunServerCache()
+    {
+        stunServerCache.clear();
+    }
+
     /**
      * Returns an InetAddress instance that represents the localhost, and that a socket can bind
      * upon or distribute to peers as a contact address.
@@ -438,6 +469,32 @@ public class NetworkAddressManagerServiceImpl implements NetworkAddressManagerSe
      * discovered or <code>null</code> if there were no such records for the specified <code>domainName</code>
      */
     public StunCandidateHarvester discoverStunServer(String domainName, byte[] userName, byte[] password)
+    {
+        // The DNS lookups below are done once per network; a new harvester is created from the cached result.
+        StunServerRecord record = stunServerCache.get(domainName);
+        if (record == null) {
+            record = lookupStunServer(domainName);
+            if (record == null)
+                return null;
+            stunServerCache.put(domainName, record);
+        }
+
+        if (record.address == null)
+            return null;
+        else if (record.turn)
+            return new TurnCandidateHarvester(record.address, new LongTermCredential(userName, password));
+        else
+            return new StunCandidateHarvester(record.address);
+    }
+
+    /**
+     * Looks up through DNS SRV the TURN or else the STUN server of a specific domain.
+     *
+     * @param domainName the domain name that we are trying to discover a TURN server for.
+     * @return the discovered server, with a <code>null</code> address if none was found, or <code>null</code>
+     * if the lookup failed and is to be retried
+     */
+    private StunServerRecord lookupStunServer(String domainName)
     {
         // cmeng - Do not proceed to check further if the domainName is not reachable, just return null
         try {
@@ -457,8 +514,7 @@ public class NetworkAddressManagerServiceImpl implements NetworkAddressManagerSe
 
             // Seem to have a TURN server, so we'll be using it for both TURN and STUN harvesting.
             if (srvrAddress != null) {
-                return new TurnCandidateHarvester(new TransportAddress(srvrAddress, srvRecords[0].port, Transport.UDP),
-                        new LongTermCredential(userName, password));
+                return new StunServerRecord(new TransportAddress(srvrAddress, srvRecords[0].port, Transport.UDP), true);
             }
 
             // srvrAddress was null. try for a STUN only server.
@@ -469,13 +525,14 @@ public class NetworkAddressManagerServiceImpl implements NetworkAddressManagerSe
             }
         } catch (IOException e) {
             Timber.w("Failed to fetch STUN/TURN SRV RR for %s: %s", domainName, e.getMessage());
+            return null;
         }
 
         if (srvrAddress != null) {
-            return new StunCandidateHarvester(new TransportAddress(srvrAddress, port, Transport.UDP));
+            return new StunServerRecord(new TransportAddress(srvrAddress, port, Transport.UDP), false);
         }
         // srvrAddress was still null. sigh ...
-        return null;
+        return new StunServerRecord(null, false);
     }
 
     /**
@@ -514,4 +571,26 @@ public class NetworkAddressManagerServiceImpl implements NetworkAddressManagerSe
         }
         return stream;
     }
+
+    /**
+     * The result of a STUN/TURN server discovery for a domain.
+     */
+    private static class StunServerRecord
+    {
+        /**
+         * The address of the discovered server or <code>null</code> if none was found.
+         */
+        final TransportAddress address;
+
+        /**
+         * Whether the server is a TURN server, else a STUN only one.
+         */
+        final boolean turn;
+
+        StunServerRecord(TransportAddress address, boolean turn)
+        {
+            this.address = address;
+            this.turn = turn;
+        }
+    }
 }
@@ -0,0 +1,236 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import org.ice4j.socket.DatagramPacketFilter;
+import org.jivesoftware.smackx.jingle_rtp.element.PayloadType;
+import org.jivesoftware.smackx.jingle_rtp.element.RtpDescription;
+import org.jivesoftware.smackx.jingle_rtp.element.SdpSource;
+
+import java.net.DatagramPacket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Demultiplexes the packets received on the single (rtcp-mux) ICE component shared by all the media
+ * of a Jingle BUNDLE group into the RTP and RTCP sockets of each media.
+ *
+ * RTP packets are mapped to their media by the SSRC once learnt, else by the payload type negotiated in
+ * the <code>RtpDescription</code> of the media. RTCP packets are mapped by the SSRC of their sender, which
+ * is the only SSRC in the clear in SRTCP; a peer which sends feedback from an SSRC of its own e.g. a
+ * receive-only one, has to signal it in the <code>RtpDescription</code> of the media the feedback is about.
+ * Packets which cannot be mapped i.e. DTLS, unknown SSRC, are delivered to the owner media of the
+ * transport, which is also the one establishing the DTLS session of the BUNDLE group.
+ *
+ * @author Eng Chong Meng
+ */
+class BundleDemultiplexer
+{
+    /**
+     * The name of the media which owns the shared ICE stream.
+     */
+    private final String ownerMedia;
+
+    /**
+     * The RTP payload type to media name mapping, as negotiated in the session.
+     */
+    private final Map<Integer, String> payloadTypes = new ConcurrentHashMap<>();
+
+    /**
+     * The maximum number of remote SSRCs learnt from the received RTP packets; the learnt SSRCs are
+     * forgotten when exceeded, and learnt again from the packets of the SSRCs still in use.
+     */
+    private static final int MAX_LEARNT_SSRCS = 64;
+
+    /**
+     * The remote SSRC to media name mapping, as signaled.
+     */
+    private final Map<Long, String> ssrcs = new ConcurrentHashMap<>();
+
+    /**
+     * The remote SSRC to media name mapping, as learnt from the received RTP packets.
+     */
+    private final Map<Long, String> learntSsrcs = new ConcurrentHashMap<>();
+
+    /**
+     * The filters handed out per media; cached so that the <code>MultiplexingDatagramSocket</code> returns
+     * the same filtered socket on subsequent requests.
+     */
+    private final Map<String, DatagramPacketFilter> rtpFilters = new ConcurrentHashMap<>();
+
+    private final Map<String, DatagramPacketFilter> rtcpFilters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new <code>BundleDemultiplexer</code> for the ICE stream owned by the given media.
+     *
+     * @param ownerMedia the name of the media which owns the shared ICE stream
+     */
+    BundleDemultiplexer(String ownerMedia)
+    {
+        this.ownerMedia = ownerMedia;
+    }
+
+    /**
+     * Registers the payload types and, for a remote description, the signaled SSRCs of the given
+     * <code>RtpDescription</code> as belonging to its media.
+     *
+     * @param description the local or remote <code>RtpDescription</code> of a content of the BUNDLE group
+     * @param local <code>true</code> if <code>description</code> is local, so that its SSRCs are ours
+     */
+    void addDescription(RtpDescription description, boolean local)
+    {
+        String media = description.getMedia();
+        if (media == null)
+            return;
+
+        for (PayloadType payloadType : description.getChildElements(PayloadType.class)) {
+            String oldMedia = payloadTypes.put(payloadType.getID(), media);
+            if ((oldMedia != null) && !oldMedia.equals(media)) {
+                Timber.w("Payload type %s is used by both %s and %s in BUNDLE", payloadType.getID(), oldMedia, media);
+            }
+        }
+
+        if (local)
+            return;
+
+        String ssrc = description.getSsrc();
+        if (ssrc != null) {
+            try {
+                ssrcs.put(Long.parseLong(ssrc), media);
+            } catch (NumberFormatException e) {
+                Timber.w("Ignore invalid ssrc: %s", ssrc);
+            }
+        }
+        for (SdpSource source : description.getChildElements(SdpSource.class)) {
+            if (source.hasSSRC())
+                ssrcs.put(source.getSSRC(), media);
+        }
+    }
+
+    /**
+     * Gets the filter accepting the RTP (and, for the owner media, all other non-RTCP) packets of a media.
+     *
+     * @param media the media name
+     * @return the <code>DatagramPacketFilter</code> for the RTP socket of the media
+     */
+    DatagramPacketFilter getRtpFilter(final String media)
+    {
+        DatagramPacketFilter filter = rtpFilters.get(media);
+        if (filter == null) {
+            filter = p -> !isRtcp(p) && media.equals(getRtpMedia(p));
+            rtpFilters.put(media, filter);
+        }
+        return filter;
+    }
+
+    /**
+     * Gets the filter accepting the RTCP packets of a media.
+     *
+     * @param media the media name
+     * @return the <code>DatagramPacketFilter</code> for the RTCP socket of the media
+     */
+    DatagramPacketFilter getRtcpFilter(final String media)
+    {
+        DatagramPacketFilter filter = rtcpFilters.get(media);
+        if (filter == null) {
+            filter = p -> isRtcp(p) && media.equals(getRtcpMedia(p));
+            rtcpFilters.put(media, filter);
+        }
+        return filter;
+    }
+
+    /**
+     * Determines the media of a non-RTCP packet.
+     *
+     * @param p the received packet
+     * @return the media name the packet belongs to
+     */
+    private String getRtpMedia(DatagramPacket p)
+    {
+        byte[] buf = p.getData();
+        int off = p.getOffset();
+        int len = p.getLength();
+
+        // Not RTP i.e. DTLS; leave it to the owner
+        if (buf == null || len < 12 || off + len > buf.length || ((buf[off] & 0xC0) >>> 6) != 2)
+            return ownerMedia;
+
+        long ssrc = readUint32(buf, off + 8);
+        String media = ssrcs.get(ssrc);
+        if (media == null)
+            media = learntSsrcs.get(ssrc);
+        if (media == null) {
+            media = payloadTypes.get(buf[off + 1] & 0x7F);
+            if (media == null)
+                return ownerMedia;
+
+            if (learntSsrcs.size() >= MAX_LEARNT_SSRCS)
+                learntSsrcs.clear();
+            learntSsrcs.put(ssrc, media);
+        }
+        return media;
+    }
+
+    /**
+     * Determines the media of a (compound) RTCP packet by the SSRC of the sender of its first packet; the
+     * rest of an SRTCP packet is still encrypted when demultiplexed.
+     *
+     * @param p the received RTCP packet
+     * @return the media name the packet belongs to
+     */
+    private String getRtcpMedia(DatagramPacket p)
+    {
+        long ssrc = readUint32(p.getData(), p.getOffset() + 4);
+        String media = ssrcs.get(ssrc);
+        if (media == null)
+            media = learntSsrcs.get(ssrc);
+        return (media == null) ? ownerMedia : media;
+    }
+
+    /**
+     * Determines whether the given packet is RTCP; same test as the rtcp-mux filter of the transport manager.
+     *
+     * @param p the received packet
+     * @return <code>true</code> if the packet is RTCP
+     */
+    private static boolean isRtcp(DatagramPacket p)
+    {
+        if (p == null)
+            return false;
+
+        byte[] buf = p.getData();
+        int off = p.getOffset();
+        int len = p.getLength();
+
+        if (buf == null || len < 8 || off + len > buf.length)
+            return false;
+
+        if (((buf[off] & 0xC0) >>> 6) != 2)
+            return false;
+
+        int pt = buf[off + 1] & 0xff;
+        return 200 <= pt && pt <= 211;
+    }
+
+    private static long readUint32(byte[] buf, int off)
+    {
+        return ((buf[off] & 0xFFL) << 24) | ((buf[off + 1] & 0xFFL) << 16)
+                | ((buf[off + 2] & 0xFFL) << 8) | (buf[off + 3] & 0xFFL);
+    }
+}
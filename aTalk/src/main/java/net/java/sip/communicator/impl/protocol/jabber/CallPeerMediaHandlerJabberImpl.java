@@ -166,6 +166,12 @@ public class CallPeerMediaHandlerJabberImpl extends CallPeerMediaHandler<CallPee
      */
     private boolean localInputEvtAware = false;
 
+    /**
+     * Indicates whether all the media of the session are to share a single transport i.e. both peers
+     * have agreed on a Jingle BUNDLE group.
+     */
+    private boolean bundle = false;
+
     /**
      * Creates a new handler that will be managing media streams for <code>peer</code>.
      *
@@ -924,6 +930,7 @@ public class CallPeerMediaHandlerJabberImpl extends CallPeerMediaHandler<CallPee
 
         // Setup TransportManger for (rtcp-mux) per callPeer capability support
         transportManager.setRtcpmux(isRtpcMux(mPeer));
+        transportManager.setBundle(bundle && !mPeer.isJitsiVideobridge());
         transportManager.startCandidateHarvest(remote, local, transportInfoSender);
 
         long stopCandidateHarvestTime = System.currentTimeMillis();
@@ -931,6 +938,7 @@ public class CallPeerMediaHandlerJabberImpl extends CallPeerMediaHandler<CallPee
         Timber.i("End candidate harvest within %s ms", candidateHarvestTime);
 
         setDtlsEncryptionOnTransports(remote, local);
+        setDtlsBundleOwner();
         if (transportManager.startConnectivityEstablishmentWithJitsiVideobridge) {
             Map<String, IceUdpTransport> mediaTransport = new LinkedHashMap<>();
 
@@ -1675,9 +1683,55 @@ public class CallPeerMediaHandlerJabberImpl extends CallPeerMediaHandler<CallPee
      */
     private void wrapupConnectivityEstablishment()
             throws OperationFailedException
+    {
+        getTransportManager().wrapupConnectivityEstablishment();
+        setStreamConnectorsAndTargets();
+    }
+
+    /**
+     * Notifies the associated <code>TransportManagerJabberImpl</code> that it should conclude any
+     * connectivity establishment and, once it has done so, sets the <code>connector</code>s and
+     * <code>target</code>s of the <code>MediaStream</code>s managed by this <code>CallPeerMediaHandler</code>.
+     * The calling thread is not blocked; <code>listener</code> is notified on completion.
+     *
+     * @param listener the <code>ConnectivityEstablishmentListener</code> to notify once the media streams are
+     * connected, or the connectivity establishment has failed
+     */
+    public void wrapupConnectivityEstablishment(final ConnectivityEstablishmentListener listener)
+    {
+        getTransportManager().wrapupConnectivityEstablishment(new ConnectivityEstablishmentListener()
+        {
+            @Override
+            public void connectivityEstablished()
+            {
+                try {
+                    setStreamConnectorsAndTargets();
+                } catch (OperationFailedException ofe) {
+                    listener.connectivityFailed(ofe);
+                    return;
+                }
+                listener.connectivityEstablished();
+            }
+
+            @Override
+            public void connectivityFailed(OperationFailedException cause)
+            {
+                listener.connectivityFailed(cause);
+            }
+        });
+    }
+
+    /**
+     * Sets the <code>connector</code>s and <code>target</code>s of the <code>MediaStream</code>s managed by this
+     * <code>CallPeerMediaHandler</code> per the concluded connectivity establishment of the transport manager.
+     *
+     * @throws OperationFailedException if anything goes wrong while setting the <code>connector</code>s
+     */
+    private void setStreamConnectorsAndTargets()
+            throws OperationFailedException
     {
         TransportManagerJabberImpl transportManager = getTransportManager();
-        transportManager.wrapupConnectivityEstablishment();
+        setDtlsBundleOwner();
 
         for (MediaType mediaType : MediaType.values()) {
             MediaStream stream = getStream(mediaType);
@@ -1688,6 +1742,71 @@ public class CallPeerMediaHandlerJabberImpl extends CallPeerMediaHandler<CallPee
         }
     }
 
+    /**
+     * When the media share a single transport in a BUNDLE group, makes the <code>DtlsControl</code> of the
+     * media owning the transport establish the only DTLS session; the others derive their SRTP keys from it.
+     */
+    private void setDtlsBundleOwner()
+    {
+        MediaType ownerType = getTransportManager().getBundleOwner();
+        if (ownerType == null)
+            return;
+
+        SrtpControls srtpControls = getSrtpControls();
+        DtlsControl owner = (DtlsControl) srtpControls.get(ownerType, SrtpControlType.DTLS_SRTP);
+        if (owner == null)
+            return;
+
+        for (MediaType mediaType : MediaType.values()) {
+            DtlsControl dtlsControl = (DtlsControl) srtpControls.get(mediaType, SrtpControlType.DTLS_SRTP);
+            if (dtlsControl != null)
+                dtlsControl.setBundleOwner(owner);
+        }
+    }
+
+    /**
+     * Sets whether all the media of the session are to share a single transport (Jingle BUNDLE group).
+     * Must be set before the candidate harvest is started.
+     *
+     * @param bundle <code>true</code> if both peers have agreed on a BUNDLE group
+     */
+    public void setBundle(boolean bundle)
+    {
+        this.bundle = bundle;
+    }
+
+    /**
+     * Falls back to a transport per media when the remote peer has not accepted the offered BUNDLE group:
+     * the media other than the BUNDLE owner get their own ICE stream and establish their own DTLS session.
+     *
+     * @return the contents with the new transports, to be sent to the remote peer in a <code>transport-info</code>
+     * @throws OperationFailedException if a transport cannot be created for any of the media
+     */
+    public List<JingleContent> unbundle()
+            throws OperationFailedException
+    {
+        bundle = false;
+        List<JingleContent> contents = getTransportManager().unbundle();
+
+        SrtpControls srtpControls = getSrtpControls();
+        for (MediaType mediaType : MediaType.values()) {
+            DtlsControl dtlsControl = (DtlsControl) srtpControls.get(mediaType, SrtpControlType.DTLS_SRTP);
+            if (dtlsControl != null)
+                dtlsControl.setBundleOwner(null);
+        }
+        return contents;
+    }
+
+    /**
+     * Gets whether all the media of the session are to share a single transport (Jingle BUNDLE group).
+     *
+     * @return <code>true</code> if a BUNDLE group is (to be) in use
+     */
+    public boolean isBundle()
+    {
+        return bundle;
+    }
+
     /**
      * If Jitsi Videobridge is in use, returns the <code>ColibriConferenceIQ.Channel</code> that this
      * <code>CallPeerMediaHandler</code> uses for media of type <code>mediaType</code>. Otherwise, returns <code>null</code>
@@ -61,6 +61,7 @@ import org.atalk.android.gui.dialogs.DialogActivity;
 import org.atalk.android.gui.util.XhtmlUtil;
 import org.atalk.android.plugin.timberlog.TimberLog;
 import org.atalk.crypto.omemo.OmemoAuthenticateDialog;
+import org.atalk.util.concurrent.KeyedSerialExecutor;
 import org.jivesoftware.smack.MessageListener;
 import org.jivesoftware.smack.PresenceListener;
 import org.jivesoftware.smack.SmackException;
@@ -2114,17 +2115,30 @@ public class ChatRoomJabberImpl extends AbstractChatRoom implements CaptchaDialo
         private static final String LAST_SEEN_DELAYED_MESSAGE_PROP = "lastSeenDelayedMessage";
 
         /**
-         * Process a Message stanza.
+         * Process a Message stanza; handed over to the stanza dispatcher so that the room messages are
+         * processed in their received order, but off the Smack delivery thread.
          *
          * @param message Smack Message to process.
          */
         @Override
-        public void processMessage(Message message)
+        public void processMessage(final Message message)
         {
             // Leave handling of omemo messages to onOmemoMessageReceived()
             if ((message == null) || message.hasExtension(OmemoElement.NAME_ENCRYPTED, OmemoConstants.OMEMO_NAMESPACE_V_AXOLOTL))
                 return;
 
+            KeyedSerialExecutor.getInstance().execute(getIdentifier(), () -> processRoomMessage(message));
+        }
+
+        /**
+         * Process a Message stanza of the room; lsdMessageTime needs no guard as the messages of a room
+         * are processed one at a time.
+         *
+         * @param message Smack Message to process.
+         */
+        private void processRoomMessage(Message message)
+        {
+
             // Captcha challenge body is in body extension
             String msgBody = null;
             Set<Message.Body> msgBodies = message.getBodies();
@@ -0,0 +1,40 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import net.java.sip.communicator.service.protocol.OperationFailedException;
+
+/**
+ * Notified by a <code>TransportManagerJabberImpl</code> once it has concluded the connectivity
+ * establishment started for a session, so that no thread needs to wait for it.
+ *
+ * @author Eng Chong Meng
+ */
+public interface ConnectivityEstablishmentListener
+{
+    /**
+     * The media streams may now be connected to the transport.
+     */
+    void connectivityEstablished();
+
+    /**
+     * The connectivity establishment has failed (i.e. ICE failed, ...)
+     *
+     * @param cause the <code>OperationFailedException</code> describing the failure
+     */
+    void connectivityFailed(OperationFailedException cause);
+}
@@ -218,7 +218,7 @@ public class ContactJabberImpl extends AbstractContact
      *
      * @param retrieveIfNecessary specifies whether the method should queue this contact for avatar update from the server.
      * @return a reference to the image currently stored by this contact.
-     * @see ServerStoredContactListJabberImpl.ImageRetriever#run()
+     * @see ServerStoredContactListJabberImpl.ImageRetriever#addContact(ContactJabberImpl)
      */
     public byte[] getImage(boolean retrieveIfNecessary)
     {
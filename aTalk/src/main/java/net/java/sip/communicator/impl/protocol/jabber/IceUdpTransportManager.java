@@ -21,6 +21,7 @@ import org.atalk.service.neomedia.DefaultStreamConnector;
 import org.atalk.service.neomedia.MediaStreamTarget;
 import org.atalk.service.neomedia.StreamConnector;
 import org.atalk.util.MediaType;
+import org.atalk.util.concurrent.ExecutorFactory;
 import org.ice4j.Transport;
 import org.ice4j.TransportAddress;
 import org.ice4j.ice.Agent;
@@ -62,6 +63,12 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import timber.log.Timber;
 
@@ -92,6 +99,22 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
      */
     private static final int[] COMPONENT_IDS = new int[]{Component.RTP, Component.RTCP};
 
+    /**
+     * The maximum time in ms to wait for the ICE connectivity checks to conclude.
+     */
+    private static final long WRAPUP_TIMEOUT = 5000;
+
+    /**
+     * Times out the pending connectivity establishment wrap-ups of all the sessions.
+     */
+    private static final ScheduledExecutorService timeoutExecutor
+            = ExecutorFactory.createSingleThreadScheduledExecutor("IceWrapupTimeout-", 60, TimeUnit.SECONDS);
+
+    /**
+     * Notifies the <code>ConnectivityEstablishmentListener</code>s off the ICE processing threads.
+     */
+    private static final ExecutorService wrapupExecutor = ExecutorFactory.createCachedThreadPool("IceWrapup-");
+
     /**
      * A filter which accepts any non-RTCP packets (RTP, DTLS, etc).
      */
@@ -150,6 +173,23 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
      */
     private boolean rtcpmux = true;
 
+    /**
+     * Whether all the media of the session share a single ICE stream/component (Jingle BUNDLE group).
+     * Only effective together with {@link #rtcpmux}.
+     */
+    private boolean bundle = false;
+
+    /**
+     * The name of the media whose ICE stream is shared by all the media of the BUNDLE group;
+     * the first media for which an ICE stream is created.
+     */
+    private String bundleMedia = null;
+
+    /**
+     * Splits the packets received on the shared ICE component among the media of the BUNDLE group.
+     */
+    private BundleDemultiplexer bundleDemultiplexer = null;
+
     /**
      * Caches the sockets for the stream connector so that they are not re-created.
      */
@@ -434,7 +474,7 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
         //     return streamConnectorSockets;
         // }
 
-        IceMediaStream stream = iceAgent.getStream(mediaType.toString());
+        IceMediaStream stream = iceAgent.getStream(getIceStreamName(mediaType.toString()));
         if (stream != null) {
             if (rtcpmux) {
                 Component component = stream.getComponent(Component.RTP);
@@ -447,8 +487,15 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
 
                 DatagramSocket[] streamConnectorSockets = new DatagramSocket[2];
                 try {
-                    streamConnectorSockets[0] = componentSocket.getSocket(RTP_FILTER);
-                    streamConnectorSockets[1] = componentSocket.getSocket(RTCP_FILTER);
+                    if (isBundle() && (bundleMedia != null)) {
+                        BundleDemultiplexer demultiplexer = getBundleDemultiplexer();
+                        streamConnectorSockets[0] = componentSocket.getSocket(demultiplexer.getRtpFilter(mediaType.toString()));
+                        streamConnectorSockets[1] = componentSocket.getSocket(demultiplexer.getRtcpFilter(mediaType.toString()));
+                    }
+                    else {
+                        streamConnectorSockets[0] = componentSocket.getSocket(RTP_FILTER);
+                        streamConnectorSockets[1] = componentSocket.getSocket(RTCP_FILTER);
+                    }
                 } catch (Exception e) {
                     Timber.e("Failed to create filtered sockets.");
                     return null;
@@ -506,7 +553,7 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
         if ((delegate != null) && (delegate != this))
             return delegate.getStreamTarget(mediaType);
 
-        IceMediaStream stream = iceAgent.getStream(mediaType.toString());
+        IceMediaStream stream = iceAgent.getStream(getIceStreamName(mediaType.toString()));
         MediaStreamTarget streamTarget = null;
 
         if (stream != null) {
@@ -684,9 +731,12 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     protected ExtensionElement createTransport(String media)
             throws OperationFailedException
     {
-        IceMediaStream iceStream = iceAgent.getStream(media);
-        if (iceStream == null)
+        IceMediaStream iceStream = iceAgent.getStream(getIceStreamName(media));
+        if (iceStream == null) {
             iceStream = createIceStream(media);
+            if (isBundle() && (bundleMedia == null))
+                bundleMedia = media;
+        }
         return createTransport(iceStream);
     }
 
@@ -848,17 +898,29 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
              * anything to add the remote candidates to.
              */
             RtpDescription description = content.getFirstChildElement(RtpDescription.class);
+            boolean localDescriptionOnly = false;
             if ((description == null) && (cpeList != null)) {
                 JingleContent localContent = findContentByName(cpeList, content.getName());
 
                 if (localContent != null) {
                     description = localContent.getFirstChildElement(RtpDescription.class);
+                    localDescriptionOnly = (description != null);
                 }
             }
 
             if (description != null) {
                 String media = description.getMedia();
                 mediaTransports.put(media, transport);
+                if (isBundle() && (bundleMedia != null)) {
+                    getBundleDemultiplexer().addDescription(description, localDescriptionOnly);
+                    if (cpeList != null) {
+                        JingleContent localContent = findContentByName(cpeList, content.getName());
+                        RtpDescription localDescription = (localContent == null)
+                                ? null : localContent.getFirstChildElement(RtpDescription.class);
+                        if ((localDescription != null) && (localDescription != description))
+                            getBundleDemultiplexer().addDescription(localDescription, true);
+                    }
+                }
                 // Timber.d("### Processing Jingle IQ (transport-info) media map add: %s (%s)",
                 // media, transport.getFirstChildElement(IceUdpTransportCandidate.class).toXML());
             }
@@ -909,12 +971,15 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
             List<IceUdpTransportCandidate> candidates = transport.getChildElements(IceUdpTransportCandidate.class);
 
             if (iceAgentStateIsRunning && candidates.isEmpty()) {
+                // The other media of a BUNDLE group may carry no candidates of their own
+                if (isBundle())
+                    continue;
                 Timber.i("Connectivity establishment has not been started because candidate list is empty");
                 return false;
             }
 
             String media = e.getKey();
-            IceMediaStream stream = iceAgent.getStream(media);
+            IceMediaStream stream = iceAgent.getStream(getIceStreamName(media));
             if (stream == null) {
                 Timber.w("No ICE media stream for media: %s (%s)", media, iceAgent.getStreams());
                 continue;
@@ -958,9 +1023,15 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
                 // must check for null else NPE in component.findRemoteCandidate()
                 if (component != null) {
                     // Timber.d("Process valid component candidate type: %s: %s", media, iceAgent.getStream(media));// candidate.toXML());
+                    TransportAddress candidateAddress = new TransportAddress(
+                            candidate.getIP(), candidate.getPort(), Transport.parse(candidate.getProtocol()));
+
+                    // Each media of a BUNDLE group may repeat the same candidates of the shared transport
+                    if (isBundle() && (component.findRemoteCandidate(candidateAddress) != null))
+                        continue;
+
                     RemoteCandidate relatedCandidate = component.findRemoteCandidate(relatedAddress);
-                    RemoteCandidate remoteCandidate = new RemoteCandidate(new TransportAddress(
-                            candidate.getIP(), candidate.getPort(), Transport.parse(candidate.getProtocol())), component,
+                    RemoteCandidate remoteCandidate = new RemoteCandidate(candidateAddress, component,
                             org.ice4j.ice.CandidateType.parse(candidate.getType().toString()),
                             candidate.getFoundation(), candidate.getPriority(), relatedCandidate);
                     if (iceAgentStateIsRunning) {
@@ -1018,7 +1089,8 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     }
 
     /**
-     * Waits for the associated ICE <code>Agent</code> to finish any started connectivity checks.
+     * Waits for the associated ICE <code>Agent</code> to finish any started connectivity checks; returns as soon
+     * as every ICE component has a selected pair, or after at most {@link #WRAPUP_TIMEOUT}.
      *
      * @throws OperationFailedException if ICE processing has failed
      * @see TransportManagerJabberImpl#wrapupConnectivityEstablishment()
@@ -1026,72 +1098,88 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     @Override
     public void wrapupConnectivityEstablishment()
             throws OperationFailedException
+    {
+        TransportManagerJabberImpl delegate = findTransportManagerEstablishingConnectivityWithJitsiVideobridge();
+        if (((delegate == null) || (delegate == this)) && iceAgent.isConnectivityEstablished()) {
+            removeLocalCandidates();
+            return;
+        }
+
+        final CountDownLatch wrapupLatch = new CountDownLatch(1);
+        final OperationFailedException[] failure = new OperationFailedException[1];
+        wrapupConnectivityEstablishment(new ConnectivityEstablishmentListener()
+        {
+            @Override
+            public void connectivityEstablished()
+            {
+                wrapupLatch.countDown();
+            }
+
+            @Override
+            public void connectivityFailed(OperationFailedException cause)
+            {
+                failure[0] = cause;
+                wrapupLatch.countDown();
+            }
+        });
+
+        boolean interrupted = false;
+        try {
+            wrapupLatch.await(WRAPUP_TIMEOUT + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            interrupted = true;
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    /**
+     * Concludes the connectivity checks of the associated ICE <code>Agent</code> without blocking the calling
+     * thread: <code>listener</code> is notified as soon as every ICE component has a selected pair, when ICE
+     * processing is over, or after at most {@link #WRAPUP_TIMEOUT} while still waiting for the remote candidates.
+     *
+     * @param listener the <code>ConnectivityEstablishmentListener</code> to notify once concluded
+     * @see TransportManagerJabberImpl#wrapupConnectivityEstablishment(ConnectivityEstablishmentListener)
+     */
+    @Override
+    public void wrapupConnectivityEstablishment(final ConnectivityEstablishmentListener listener)
     {
         TransportManagerJabberImpl delegate = findTransportManagerEstablishingConnectivityWithJitsiVideobridge();
         if ((delegate == null) || (delegate == this)) {
-            final Object iceProcessingStateSyncRoot = new Object();
-            PropertyChangeListener stateChangeListener = new PropertyChangeListener()
+            new ConnectivityWrapup(listener).start();
+        }
+        else {
+            delegate.wrapupConnectivityEstablishment(new ConnectivityEstablishmentListener()
             {
-                public void propertyChange(PropertyChangeEvent evt)
+                @Override
+                public void connectivityEstablished()
                 {
-                    Agent iceAgent = (Agent) evt.getSource();
-                    if (iceAgent.isOver()) {
-                        Timber.d("Current IceProcessingState: %s", evt.getNewValue());
-                        iceAgent.removeStateChangeListener(this);
-                        if (iceAgent == IceUdpTransportManager.this.iceAgent) {
-                            synchronized (iceProcessingStateSyncRoot) {
-                                iceProcessingStateSyncRoot.notify();
-                            }
-                        }
-                    }
+                    removeLocalCandidates();
+                    listener.connectivityEstablished();
                 }
-            };
-            iceAgent.addStateChangeListener(stateChangeListener);
 
-            /*
-             * Wait for the ICE connectivity checks to complete if they have started or
-             * waiting for transport info with max TOT of 5S.
-             */
-            boolean interrupted = false;
-            int maxWaitTimer = 5; // in seconds
-            synchronized (iceProcessingStateSyncRoot) {
-                while (IceProcessingState.RUNNING.equals(iceAgent.getState())
-                        || IceProcessingState.WAITING.equals(iceAgent.getState())) {
-                    try {
-                        iceProcessingStateSyncRoot.wait(1000);
-                    } catch (InterruptedException ie) {
-                        interrupted = true;
-                    }
-                    // Break the loop if maxWaitTimer timeout
-                    if (maxWaitTimer-- < 0)
-                        break;
+                @Override
+                public void connectivityFailed(OperationFailedException cause)
+                {
+                    listener.connectivityFailed(cause);
                 }
-            }
-            if (interrupted)
-                Thread.currentThread().interrupt();
-            /*
-             * Make sure stateChangeListener is removed from iceAgent in case its
-             * #propertyChange(PropertyChangeEvent) has never been executed.
-             */
-            iceAgent.removeStateChangeListener(stateChangeListener);
-            /* check the state of ICE processing and throw exception if failed */
-            if (IceProcessingState.FAILED.equals(iceAgent.getState())) {
-                String msg = aTalkApp.getResString(R.string.service_protocol_ICE_FAILED);
-                throw new OperationFailedException(msg, OperationFailedException.GENERAL_ERROR);
-            }
-        }
-        else {
-            delegate.wrapupConnectivityEstablishment();
+            });
         }
+    }
 
-        /*
-         * Once we're done establishing connectivity, we shouldn't be sending any more candidates
-         * because we will not be able to perform connectivity checks for them.
-         * Besides, they must have been sent in transport-info already.
-         *
-         * cmeng 2020529: Do not remove attributes UFRAG_ATTR_NAME and PWD_ATTR_NAME if
-         * transport-info contains child elements e.g. DTLS FingerPrint
-         */
+    /**
+     * Once we're done establishing connectivity, we shouldn't be sending any more candidates
+     * because we will not be able to perform connectivity checks for them.
+     * Besides, they must have been sent in transport-info already.
+     *
+     * cmeng 2020529: Do not remove attributes UFRAG_ATTR_NAME and PWD_ATTR_NAME if
+     * transport-info contains child elements e.g. DTLS FingerPrint
+     */
+    private void removeLocalCandidates()
+    {
         if (cpeList != null) {
             for (JingleContent content : cpeList) {
                 IceUdpTransport transport = content.getFirstChildElement(IceUdpTransport.class);
@@ -1102,6 +1190,85 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
         }
     }
 
+    /**
+     * Tracks one wrap-up of the connectivity establishment of {@link #iceAgent}: waits for the <code>Agent</code>
+     * callback or the timeout, whichever comes first, and then notifies the listener on {@link #wrapupExecutor}.
+     */
+    private class ConnectivityWrapup implements Agent.ConnectivityCallback, Runnable
+    {
+        private final ConnectivityEstablishmentListener listener;
+
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        private ScheduledFuture<?> timeoutFuture;
+
+        ConnectivityWrapup(ConnectivityEstablishmentListener listener)
+        {
+            this.listener = listener;
+        }
+
+        void start()
+        {
+            /*
+             * Wait for the ICE connectivity checks to complete if they have started or
+             * waiting for transport info with max TOT of WRAPUP_TIMEOUT.
+             */
+            IceProcessingState state = iceAgent.getState();
+            if (IceProcessingState.RUNNING.equals(state) || IceProcessingState.WAITING.equals(state)) {
+                timeoutFuture = timeoutExecutor.schedule(this, WRAPUP_TIMEOUT, TimeUnit.MILLISECONDS);
+                iceAgent.addConnectivityCallback(this);
+            }
+            else {
+                complete();
+            }
+        }
+
+        @Override
+        public void connectivityEstablished(Agent agent)
+        {
+            complete();
+        }
+
+        @Override
+        public void connectivityFailed(Agent agent)
+        {
+            complete();
+        }
+
+        /**
+         * The wrap-up has timed out; go on with whatever the ICE processing state is, as before.
+         */
+        @Override
+        public void run()
+        {
+            Timber.w("ICE connectivity establishment wrapup timeout in state: %s", iceAgent.getState());
+            complete();
+        }
+
+        private void complete()
+        {
+            if (!completed.compareAndSet(false, true))
+                return;
+
+            iceAgent.removeConnectivityCallback(this);
+            if (timeoutFuture != null)
+                timeoutFuture.cancel(false);
+
+            wrapupExecutor.execute(() -> {
+                Timber.d("Current IceProcessingState: %s", iceAgent.getState());
+                /* check the state of ICE processing and notify failure if failed */
+                if (IceProcessingState.FAILED.equals(iceAgent.getState())) {
+                    String msg = aTalkApp.getResString(R.string.service_protocol_ICE_FAILED);
+                    listener.connectivityFailed(new OperationFailedException(msg, OperationFailedException.GENERAL_ERROR));
+                }
+                else {
+                    removeLocalCandidates();
+                    listener.connectivityEstablished();
+                }
+            });
+        }
+    }
+
     /**
      * Removes a content with a specific name from the transport-related part of the session
      * represented by this <code>TransportManagerJabberImpl</code> which may have been reported through
@@ -1120,8 +1287,9 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
             RtpDescription rtpDescription = content.getFirstChildElement(RtpDescription.class);
 
             if (rtpDescription != null) {
-                IceMediaStream stream = iceAgent.getStream(rtpDescription.getMedia());
-                if (stream != null)
+                IceMediaStream stream = iceAgent.getStream(getIceStreamName(rtpDescription.getMedia()));
+                // The shared ICE stream of a BUNDLE group stays until its last content is removed
+                if ((stream != null) && !(isBundle() && hasRtpContent(cpeList)))
                     iceAgent.removeStream(stream);
             }
         }
@@ -1150,7 +1318,7 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     @Override
     public String getICECandidateExtendedType(String streamName)
     {
-        return TransportManager.getICECandidateExtendedType(iceAgent, streamName);
+        return TransportManager.getICECandidateExtendedType(iceAgent, getIceStreamName(streamName));
     }
 
     /**
@@ -1174,7 +1342,7 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     public InetSocketAddress getICELocalHostAddress(String streamName)
     {
         if (iceAgent != null) {
-            LocalCandidate localCandidate = iceAgent.getSelectedLocalCandidate(streamName);
+            LocalCandidate localCandidate = iceAgent.getSelectedLocalCandidate(getIceStreamName(streamName));
             if (localCandidate != null)
                 return localCandidate.getHostAddress();
         }
@@ -1192,7 +1360,7 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     public InetSocketAddress getICERemoteHostAddress(String streamName)
     {
         if (iceAgent != null) {
-            RemoteCandidate remoteCandidate = iceAgent.getSelectedRemoteCandidate(streamName);
+            RemoteCandidate remoteCandidate = iceAgent.getSelectedRemoteCandidate(getIceStreamName(streamName));
             if (remoteCandidate != null)
                 return remoteCandidate.getHostAddress();
         }
@@ -1210,7 +1378,7 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     public InetSocketAddress getICELocalReflexiveAddress(String streamName)
     {
         if (iceAgent != null) {
-            LocalCandidate localCandidate = iceAgent.getSelectedLocalCandidate(streamName);
+            LocalCandidate localCandidate = iceAgent.getSelectedLocalCandidate(getIceStreamName(streamName));
             if (localCandidate != null)
                 return localCandidate.getReflexiveAddress();
         }
@@ -1228,7 +1396,7 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     public InetSocketAddress getICERemoteReflexiveAddress(String streamName)
     {
         if (iceAgent != null) {
-            RemoteCandidate remoteCandidate = iceAgent.getSelectedRemoteCandidate(streamName);
+            RemoteCandidate remoteCandidate = iceAgent.getSelectedRemoteCandidate(getIceStreamName(streamName));
             if (remoteCandidate != null)
                 return remoteCandidate.getReflexiveAddress();
         }
@@ -1246,7 +1414,7 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     public InetSocketAddress getICELocalRelayedAddress(String streamName)
     {
         if (iceAgent != null) {
-            LocalCandidate localCandidate = iceAgent.getSelectedLocalCandidate(streamName);
+            LocalCandidate localCandidate = iceAgent.getSelectedLocalCandidate(getIceStreamName(streamName));
             if (localCandidate != null)
                 return localCandidate.getRelayedAddress();
         }
@@ -1264,7 +1432,7 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     public InetSocketAddress getICERemoteRelayedAddress(String streamName)
     {
         if (iceAgent != null) {
-            RemoteCandidate remoteCandidate = iceAgent.getSelectedRemoteCandidate(streamName);
+            RemoteCandidate remoteCandidate = iceAgent.getSelectedRemoteCandidate(getIceStreamName(streamName));
             if (remoteCandidate != null)
                 return remoteCandidate.getRelayedAddress();
         }
@@ -1345,4 +1513,111 @@ public class IceUdpTransportManager extends TransportManagerJabberImpl implement
     {
         return rtcpmux;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBundle(boolean bundle)
+    {
+        this.bundle = bundle;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * BUNDLE is only in use together with rtcp-mux, as all the media then share a single ICE component.
+     */
+    @Override
+    public boolean isBundle()
+    {
+        return bundle && rtcpmux;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MediaType getBundleOwner()
+    {
+        return (isBundle() && (bundleMedia != null)) ? MediaType.parseString(bundleMedia) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Creates an ICE stream for each media of the offer other than the BUNDLE owner; the remote candidates of
+     * the per-content transports in the answer are then added to the stream of their own media.
+     */
+    @Override
+    public synchronized List<JingleContent> unbundle()
+            throws OperationFailedException
+    {
+        String owner = isBundle() ? bundleMedia : null;
+        bundle = false;
+        bundleMedia = null;
+        bundleDemultiplexer = null;
+        if ((owner == null) || (cpeList == null))
+            return Collections.emptyList();
+
+        List<JingleContent> contents = new ArrayList<>();
+        for (JingleContent ourContent : cpeList) {
+            RtpDescription description = ourContent.getFirstChildElement(RtpDescription.class);
+            String media = (description == null) ? null : description.getMedia();
+            if ((media == null) || media.equals(owner) || (iceAgent.getStream(media) != null))
+                continue;
+
+            JingleContent.Builder content = JingleContent.getBuilder();
+            for (String name : ourContent.getAttributes().keySet()) {
+                String value = ourContent.getAttributeValue(name);
+                if (value != null)
+                    content.addAttribute(name, value);
+            }
+            content.addChildElement(createTransport(createIceStream(media)));
+            contents.add(content.build());
+        }
+        Timber.i("BUNDLE not accepted; created separate transports for: %s", contents.size());
+        return contents;
+    }
+
+    /**
+     * Gets the name of the ICE stream carrying the given media i.e. the shared stream of the BUNDLE group,
+     * if in use and already created.
+     *
+     * @param media the media name e.g. audio or video
+     * @return the name of the ICE stream carrying the media
+     */
+    private String getIceStreamName(String media)
+    {
+        return (isBundle() && (bundleMedia != null)) ? bundleMedia : media;
+    }
+
+    /**
+     * Gets the <code>BundleDemultiplexer</code> of the shared ICE stream, creating it if necessary.
+     *
+     * @return the <code>BundleDemultiplexer</code> for the BUNDLE group
+     */
+    private synchronized BundleDemultiplexer getBundleDemultiplexer()
+    {
+        if (bundleDemultiplexer == null)
+            bundleDemultiplexer = new BundleDemultiplexer(bundleMedia);
+        return bundleDemultiplexer;
+    }
+
+    /**
+     * Determines whether any of the given contents is an RTP content.
+     *
+     * @param contents the contents to check
+     * @return <code>true</code> if an RTP content remains in <code>contents</code>
+     */
+    private static boolean hasRtpContent(List<JingleContent> contents)
+    {
+        if (contents != null) {
+            for (JingleContent content : contents) {
+                if (content.getFirstChildElement(RtpDescription.class) != null)
+                    return true;
+            }
+        }
+        return false;
+    }
 }
@@ -123,14 +123,13 @@ public class InfoRetriever
 
     /**
      * Retrieve details and return them; return an empty list if none is found.
-     * Note: Synchronized access to #retrieveDetails(BareJid bareJid) to prevent the retrieved
-     * result is being overwritten by access from other Jid running on a separate thread
-     * {@link ServerStoredContactListJabberImpl.ImageRetriever#run()}
+     * Note: Not synchronized so that the vCards of different Jids can be retrieved concurrently
+     * by the {@link ServerStoredContactListJabberImpl.ImageRetriever}; the result list is per call.
      *
      * @param bareJid the address to search for.
      * @return the details or empty list.
      */
-    protected synchronized List<GenericDetail> retrieveDetails(BareJid bareJid)
+    protected List<GenericDetail> retrieveDetails(BareJid bareJid)
     {
         Timber.w(new Exception("Retrieve Details (testing debug info: ignore): " + bareJid.toString()));
 
@@ -0,0 +1,459 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import net.java.sip.communicator.impl.msghistory.MessageHistoryActivator;
+import net.java.sip.communicator.impl.msghistory.MessageHistoryServiceImpl;
+import net.java.sip.communicator.service.contactlist.MetaContact;
+import net.java.sip.communicator.service.protocol.Contact;
+import net.java.sip.communicator.service.protocol.IMessage;
+import net.java.sip.communicator.service.protocol.OperationSetPersistentPresence;
+import net.java.sip.communicator.service.protocol.event.MessageDeliveredEvent;
+import net.java.sip.communicator.service.protocol.event.MessageReceivedEvent;
+
+import org.atalk.android.gui.chat.ChatMessage;
+import org.atalk.android.gui.chat.ChatSession;
+import org.atalk.android.gui.chat.chatsession.ChatSessionRecord;
+import org.atalk.util.concurrent.ExecutorFactory;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.packet.StanzaError;
+import org.jivesoftware.smackx.delay.packet.DelayInformation;
+import org.jivesoftware.smackx.forward.packet.Forwarded;
+import org.jivesoftware.smackx.mam.MamManager;
+import org.jivesoftware.smackx.mam.element.MamElements.MamResultExtension;
+import org.jivesoftware.smackx.message_correct.element.MessageCorrectExtension;
+import org.jivesoftware.smackx.omemo.OmemoManager;
+import org.jivesoftware.smackx.omemo.OmemoMessage;
+import org.jivesoftware.smackx.omemo.element.OmemoElement;
+import org.jxmpp.jid.BareJid;
+import org.jxmpp.jid.Jid;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+import static org.jivesoftware.smackx.omemo.util.OmemoConstants.OMEMO_NAMESPACE_V_AXOLOTL;
+
+/**
+ * Catches up the 1:1 chat history from the server message archive (XEP-0313: Message Archive Management)
+ * after the account has logged in without resuming its previous stream, i.e. when the messages exchanged
+ * while offline or by the other clients of the account may be missing in the local history.
+ * <p>
+ * The stanza-id of the last archived message retrieved is remembered per chat session, and the catch-up
+ * pages forward from it with XEP-0059: Result Set Management in bounded pages; a chat session which has
+ * never been synced starts from its last stored message. Each page is written to the history in a single
+ * transaction together with its last stanza-id, so an interrupted catch-up resumes from the last page stored.
+ * The chat sessions are caught up in parallel on a small pool, each decrypting and writing its own pages,
+ * so that a large backlog of one conversation does not hold back the others.
+ * <p>
+ * The catch-up is bounded to the messages archived before the login; the later ones are received live. The
+ * offline messages are archived before the login too, and delivered live meanwhile: until the catch-up ends, the
+ * live OMEMO messages already decrypted by it, or stored, are skipped so that a message key is not consumed twice.
+ *
+ * @author Eng Chong Meng
+ */
+public class MamCatchUpManager
+{
+    /**
+     * The number of messages requested per archive page.
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * The maximum number of pages retrieved per chat session in one catch-up; the rest is left for the
+     * next catch-up, so a long offline period cannot turn into an unbounded message storm.
+     */
+    private static final int MAX_PAGES = 20;
+
+    /**
+     * The maximum number of chat sessions caught up concurrently.
+     */
+    private static final int MAX_CONCURRENT_SESSIONS = 3;
+
+    /**
+     * The provider that created us.
+     */
+    private final ProtocolProviderServiceJabberImpl mPPS;
+
+    /**
+     * The instant messaging operation set used to create the history messages.
+     */
+    private final OperationSetBasicInstantMessagingJabberImpl imOpSet;
+
+    /**
+     * The threads catching up the chat sessions of the current connection; null when not running.
+     */
+    private ExecutorService catchUpExecutor = null;
+
+    /**
+     * The OmemoManager the live OMEMO messages are filtered for; null when not running.
+     */
+    private OmemoManager mOmemoManager = null;
+
+    /**
+     * The Uids of the archived OMEMO messages decrypted by the current catch-up, which are not to be decrypted
+     * again when received live.
+     */
+    private final Set<String> decryptedUids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Creates the <code>MamCatchUpManager</code> of an account.
+     *
+     * @param pps the provider of the account
+     * @param imOpSet the instant messaging operation set of the account
+     */
+    public MamCatchUpManager(ProtocolProviderServiceJabberImpl pps, OperationSetBasicInstantMessagingJabberImpl imOpSet)
+    {
+        mPPS = pps;
+        this.imOpSet = imOpSet;
+    }
+
+    /**
+     * Starts catching up all the 1:1 chat sessions of the account from the server message archive.
+     *
+     * @param connection the authenticated connection
+     * @param omemoManager the OmemoManager to decrypt the archived OMEMO messages; may be null
+     */
+    public synchronized void start(final XMPPConnection connection, final OmemoManager omemoManager)
+    {
+        stop();
+        final MessageHistoryServiceImpl mhs = MessageHistoryActivator.getMessageHistoryService();
+        if ((mhs == null) || !mhs.isHistoryLoggingEnabled() || (connection.getUser() == null))
+            return;
+
+        // Later messages are received live
+        final Date loginDate = new Date();
+        if (omemoManager != null) {
+            mOmemoManager = omemoManager;
+            omemoManager.setReceivedMessageFilter(stanza -> isReceived(mhs, stanza));
+        }
+
+        final ExecutorService executor = ExecutorFactory.createFixedThreadPool(MAX_CONCURRENT_SESSIONS, "MamCatchUp-");
+        catchUpExecutor = executor;
+        // The tasks still to end: the sessions dispatcher and each session submitted by it
+        final AtomicInteger pendingTasks = new AtomicInteger(1);
+        executor.execute(() -> {
+            try {
+                MamManager mamManager = MamManager.getInstanceFor(connection);
+                try {
+                    if (!mamManager.isSupported()) {
+                        Timber.d("Message archive is not supported for: %s", connection.getUser());
+                        return;
+                    }
+                } catch (Exception e) {
+                    Timber.w("Message archive support check failed: %s", e.getMessage());
+                    return;
+                }
+
+                String accountUid = mPPS.getAccountID().getAccountUniqueID();
+                BareJid ownJid = connection.getUser().asBareJid();
+                for (ChatSessionRecord session : mhs.findSessionByEndDate(accountUid, new Date())) {
+                    if (session.getChatMode() != ChatSession.MODE_SINGLE)
+                        continue;
+
+                    pendingTasks.incrementAndGet();
+                    try {
+                        executor.execute(() -> {
+                            try {
+                                catchUpSession(mhs, mamManager, omemoManager, ownJid, session, loginDate);
+                            } finally {
+                                taskEnded(executor, pendingTasks);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // stopped
+                        pendingTasks.decrementAndGet();
+                        return;
+                    }
+                }
+            } finally {
+                taskEnded(executor, pendingTasks);
+            }
+        });
+    }
+
+    /**
+     * Notifies that a task of a catch-up has ended. Once all the tasks have ended, i.e. every chat session
+     * is caught up, lets the threads end and clears the live OMEMO message filter, which is of no more use.
+     *
+     * @param executor the threads of the catch-up
+     * @param pendingTasks the number of tasks of the catch-up which have not ended yet
+     */
+    private void taskEnded(ExecutorService executor, AtomicInteger pendingTasks)
+    {
+        if (pendingTasks.decrementAndGet() != 0)
+            return;
+
+        executor.shutdown();
+        synchronized (this) {
+            // Unless stopped or restarted meanwhile
+            if (catchUpExecutor == executor) {
+                catchUpExecutor = null;
+                stop();
+            }
+        }
+    }
+
+    /**
+     * Stops the catch-up in progress if any, and clears the live OMEMO message filter; the pages already
+     * stored are kept.
+     */
+    public synchronized void stop()
+    {
+        if (catchUpExecutor != null) {
+            catchUpExecutor.shutdownNow();
+            catchUpExecutor = null;
+        }
+        if (mOmemoManager != null) {
+            mOmemoManager.setReceivedMessageFilter(null);
+            mOmemoManager = null;
+        }
+        decryptedUids.clear();
+    }
+
+    /**
+     * Determines whether a live OMEMO message has already been decrypted by the catch-up, or stored.
+     * Called with the lock of the OmemoManager held, as the decryption of the archived messages.
+     *
+     * @param mhs the message history service
+     * @param stanza the live message or carbon copy
+     * @return true if the message is not to be decrypted again
+     */
+    private boolean isReceived(MessageHistoryServiceImpl mhs, Stanza stanza)
+    {
+        String msgUid = stanza.getStanzaId();
+        if (msgUid == null)
+            return false;
+        return decryptedUids.contains(msgUid)
+                || mhs.findExistingMessageUuids(Collections.singletonList(msgUid)).contains(msgUid);
+    }
+
+    /**
+     * Catches up a chat session from the server message archive, page by page.
+     *
+     * @param mhs the message history service
+     * @param mamManager the MamManager of the account archive
+     * @param omemoManager the OmemoManager to decrypt the archived OMEMO messages; may be null
+     * @param ownJid the bareJid of the account
+     * @param session the chat session to catch up
+     * @param loginDate the login time, before which the messages are caught up
+     */
+    private void catchUpSession(MessageHistoryServiceImpl mhs, MamManager mamManager, OmemoManager omemoManager,
+            BareJid ownJid, ChatSessionRecord session, Date loginDate)
+    {
+        String sessionUuid = session.getSessionUuid();
+        BareJid contactJid = session.getEntityBareJid();
+
+        OperationSetPersistentPresenceJabberImpl opSetPersPresence = (OperationSetPersistentPresenceJabberImpl)
+                mPPS.getOperationSet(OperationSetPersistentPresence.class);
+        if (opSetPersPresence == null)
+            return;
+
+        Contact contact = opSetPersPresence.findContactByJid(contactJid);
+        if (contact == null)
+            contact = opSetPersPresence.createVolatileContact(contactJid);
+
+        // return if logging is switched off for this particular contact
+        MetaContact metaContact = MessageHistoryActivator.getContactListService().findMetaContactByContact(contact);
+        if ((metaContact != null) && !mhs.isHistoryLoggingEnabled(metaContact.getMetaUID()))
+            return;
+
+        int count = 0;
+        try {
+            MamManager.MamQuery mamQuery = null;
+            String lastArchiveId = mhs.getMamLastArchiveId(sessionUuid);
+            if (lastArchiveId != null) {
+                try {
+                    mamQuery = mamManager.queryArchive(MamManager.MamQueryArgs.builder()
+                            .limitResultsToJid(contactJid)
+                            .afterUid(lastArchiveId)
+                            .limitResultsBefore(loginDate)
+                            .setResultPageSize(PAGE_SIZE)
+                            .build());
+                } catch (XMPPErrorException e) {
+                    // The archived message may have been expired by the server; fall back to the date
+                    if (e.getStanzaError().getCondition() != StanzaError.Condition.item_not_found)
+                        throw e;
+                }
+            }
+            if (mamQuery == null) {
+                Date since = mhs.getLastMessageDateForSessionUuid(sessionUuid);
+                mamQuery = mamManager.queryArchive(MamManager.MamQueryArgs.builder()
+                        .limitResultsToJid(contactJid)
+                        .limitResultsSince((since == null) ? session.getDateCreate() : since)
+                        .limitResultsBefore(loginDate)
+                        .setResultPageSize(PAGE_SIZE)
+                        .build());
+            }
+
+            for (int page = 1; ; page++) {
+                int written = storePage(mhs, sessionUuid, mamQuery.getPage(), omemoManager, ownJid, contact);
+                if (written < 0)
+                    break;
+                count += written;
+
+                if (mamQuery.isComplete() || mamQuery.getMessageCount() == 0 || page >= MAX_PAGES)
+                    break;
+                mamQuery.pageNext(PAGE_SIZE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Timber.w("Message archive catch-up failed for %s: %s", contactJid, e.getMessage());
+        }
+        if (count > 0)
+            Timber.i("Message archive catch-up stored %s messages for: %s", count, contactJid);
+    }
+
+    /**
+     * Converts and stores an archive page with the stanza-id of its last message.
+     *
+     * @param mhs the message history service
+     * @param sessionUuid the chatSession Uuid
+     * @param page the archive page
+     * @param omemoManager the OmemoManager to decrypt the archived OMEMO messages; may be null
+     * @param ownJid the bareJid of the account
+     * @param contact the contact of the chat session
+     * @return the number of messages stored, or -1 if the page could not be stored
+     */
+    private int storePage(MessageHistoryServiceImpl mhs, String sessionUuid, MamManager.MamQueryPage page,
+            OmemoManager omemoManager, BareJid ownJid, Contact contact)
+    {
+        List<MamResultExtension> results = page.getMamResultExtensions();
+        if (results.isEmpty())
+            return 0;
+
+        List<String> msgUuids = new ArrayList<>(results.size());
+        for (MamResultExtension result : results) {
+            msgUuids.add(getMessageUid(result));
+        }
+
+        // Skip the messages already received live or as offline messages
+        Set<String> existingUuids = mhs.findExistingMessageUuids(msgUuids);
+        List<EventObject> msgEvents = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            String msgUuid = msgUuids.get(i);
+            if (existingUuids.contains(msgUuid))
+                continue;
+
+            EventObject msgEvent = createMessageEvent(results.get(i).getForwarded(), msgUuid, omemoManager,
+                    ownJid, contact);
+            if (msgEvent != null)
+                msgEvents.add(msgEvent);
+        }
+        return mhs.writeArchivedMessages(sessionUuid, msgEvents, results.get(results.size() - 1).getId());
+    }
+
+    /**
+     * Get the message Uid of an archived message; same as the Uid of the message if received live.
+     *
+     * @param result the archive result
+     * @return the message Uid
+     */
+    private static String getMessageUid(MamResultExtension result)
+    {
+        String msgUid = result.getForwarded().getForwardedStanza().getStanzaId();
+        return (msgUid == null) ? result.getId() : msgUid;
+    }
+
+    /**
+     * Converts an archived message to the MessageReceivedEvent or MessageDeliveredEvent for the history.
+     *
+     * @param forwarded the archived message with its archive time stamp
+     * @param msgUuid the message Uid
+     * @param omemoManager the OmemoManager to decrypt the archived OMEMO messages; may be null
+     * @param ownJid the bareJid of the account
+     * @param contact the contact of the chat session
+     * @return the message event, or null if the message is not to be stored
+     */
+    private EventObject createMessageEvent(Forwarded<Message> forwarded, String msgUuid, OmemoManager omemoManager,
+            BareJid ownJid, Contact contact)
+    {
+        Message message = forwarded.getForwardedStanza();
+        if ((message.getType() == Message.Type.groupchat) || (message.getType() == Message.Type.error)
+                || message.hasExtension("x", "http://jabber.org/protocol/muc#user"))
+            return null;
+
+        // The corrected content has replaced the original message; leave the history as it is
+        if (MessageCorrectExtension.from(message) != null)
+            return null;
+
+        Jid from = message.getFrom();
+        BareJid senderJid = (from == null) ? ownJid : from.asBareJid();
+        boolean isOutgoing = ownJid.equals(senderJid);
+
+        String msgBody;
+        int encType;
+        OmemoElement omemoElement
+                = (OmemoElement) message.getExtensionElement(OmemoElement.NAME_ENCRYPTED, OMEMO_NAMESPACE_V_AXOLOTL);
+        if (omemoElement != null) {
+            if (omemoManager == null)
+                return null;
+
+            // Use the same lock as the OmemoService for the live messages: the sessions must step in sequence
+            OmemoMessage.Received decrypted;
+            try {
+                synchronized (omemoManager) {
+                    // Already decrypted by this catch-up
+                    if (!decryptedUids.add(msgUuid))
+                        return null;
+                    decrypted = omemoManager.decrypt(senderJid, omemoElement);
+                }
+            } catch (Exception e) {
+                // e.g. own message sent from this device, or message key already consumed by the live message
+                Timber.d("Skip archived omemo message %s: %s", msgUuid, e.getMessage());
+                return null;
+            }
+            if (decrypted.isKeyTransportMessage())
+                return null;
+
+            msgBody = decrypted.getBody();
+            encType = IMessage.ENCRYPTION_OMEMO;
+        }
+        else {
+            msgBody = message.getBody();
+            if (msgBody == null)
+                return null;
+            encType = msgBody.startsWith("?OTR") ? IMessage.ENCRYPTION_OTR : IMessage.ENCRYPTION_NONE;
+        }
+
+        // if msgBody contains markup text then set as ENCODE_HTML mode
+        if (msgBody.matches(ChatMessage.HTML_MARKUP))
+            encType |= IMessage.ENCODE_HTML;
+        else
+            encType |= IMessage.ENCODE_PLAIN;
+
+        IMessage newMessage = imOpSet.createMessageWithUID(msgBody, encType, msgUuid);
+        newMessage.setRemoteMsgId(msgUuid);
+
+        DelayInformation delayInfo = forwarded.getDelayInformation();
+        Date timeStamp = (delayInfo != null) ? delayInfo.getStamp() : new Date();
+
+        if (isOutgoing) {
+            newMessage.setServerMsgId(msgUuid);
+            return new MessageDeliveredEvent(newMessage, contact, timeStamp);
+        }
+        return new MessageReceivedEvent(newMessage, contact, timeStamp);
+    }
+}
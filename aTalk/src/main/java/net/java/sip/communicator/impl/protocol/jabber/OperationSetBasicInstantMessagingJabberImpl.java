@@ -35,6 +35,7 @@ import org.atalk.android.gui.chat.ChatMessage;
 import org.atalk.android.gui.util.XhtmlUtil;
 import org.atalk.android.plugin.timberlog.TimberLog;
 import org.atalk.crypto.omemo.OmemoAuthenticateDialog;
+import org.atalk.util.concurrent.KeyedSerialExecutor;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.SmackException.NoResponseException;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
@@ -131,6 +132,11 @@ public class OperationSetBasicInstantMessagingJabberImpl extends AbstractOperati
     private CarbonManager mCarbonManager = null;
     private ChatManager mChatManager = null;
 
+    /**
+     * Catches up the chat history from the server message archive after a login without stream resumption.
+     */
+    private final MamCatchUpManager mamCatchUpManager;
+
     /**
      * Current active chat
      */
@@ -209,6 +215,7 @@ public class OperationSetBasicInstantMessagingJabberImpl extends AbstractOperati
     {
         mPPS = provider;
         mPPS.addRegistrationStateChangeListener(this);
+        mamCatchUpManager = new MamCatchUpManager(provider, this);
     }
 
     /**
@@ -691,10 +698,15 @@ public class OperationSetBasicInstantMessagingJabberImpl extends AbstractOperati
             connection.removeAsyncStanzaListener(OperationSetBasicInstantMessagingJabberImpl.this);
             connection.addAsyncStanzaListener(this, INCOMING_SVR_MESSAGE_FILTER);
             enableDisableCarbon();
+
+            // A resumed stream has received all the messages; else fill the history gap from the archive
+            if (evt.getReasonCode() != RegistrationStateChangeEvent.REASON_RESUMED)
+                mamCatchUpManager.start(connection, mOmemoManager);
         }
         else if (evt.getNewState() == RegistrationState.UNREGISTERED
                 || evt.getNewState() == RegistrationState.CONNECTION_FAILED
                 || evt.getNewState() == RegistrationState.AUTHENTICATION_FAILED) {
+            mamCatchUpManager.stop();
             if (connection != null) {  // must not assume - may call after log off
                 connection.removeAsyncStanzaListener(this);
                 if (connection.isAuthenticated()) {
@@ -777,29 +789,49 @@ public class OperationSetBasicInstantMessagingJabberImpl extends AbstractOperati
     }
 
     /**
-     * The listener that we use in order to handle incoming messages and carbon messages.
+     * The listener that we use in order to handle carbon messages; processed in order with the other
+     * messages of the conversation with the contact.
      */
-    private boolean isForwardedSentMessage = false;
-
     @Override
     public void onCarbonCopyReceived(CarbonExtension.Direction direction,
-            Message carbonCopy, Message wrappingMessage)
+            final Message carbonCopy, Message wrappingMessage)
     {
-        isForwardedSentMessage = CarbonExtension.Direction.sent.equals(direction);
+        final boolean isForwardedSentMessage = CarbonExtension.Direction.sent.equals(direction);
         Jid userJId = isForwardedSentMessage ? carbonCopy.getTo() : carbonCopy.getFrom();
-        newIncomingMessage(userJId.asEntityBareJidIfPossible(), carbonCopy, null);
-        isForwardedSentMessage = false;
+        if (userJId == null)
+            return;
+
+        KeyedSerialExecutor.getInstance().execute(userJId.asBareJid(),
+                () -> processIncomingMessage(carbonCopy, isForwardedSentMessage));
     }
 
     /**
-     * Handles incoming messages and dispatches whatever events are necessary.
+     * Handles incoming messages; the processing is handed over to the stanza dispatcher so that the
+     * Smack delivery thread is not held up by the history and the UI, while the messages of a
+     * conversation are still processed in their received order.
      *
      * @param message the message that we need to handle.
      */
-    public void newIncomingMessage(EntityBareJid from, Message message, Chat chat)
+    public void newIncomingMessage(EntityBareJid from, final Message message, Chat chat)
+    {
+        if (message == null)
+            return;
+
+        BareJid key = (from != null) ? from : message.getFrom().asBareJid();
+        KeyedSerialExecutor.getInstance().execute(key, () -> processIncomingMessage(message, false));
+    }
+
+    /**
+     * Handles an incoming or carbon message and dispatches whatever events are necessary.
+     *
+     * @param message the message that we need to handle.
+     * @param isForwardedSentMessage <code>true</code> if the message is the carbon of a message sent by
+     * another client of ours
+     */
+    private void processIncomingMessage(Message message, boolean isForwardedSentMessage)
     {
         // Leave handling of omemo messages to onOmemoMessageReceived()
-        if ((message == null) || message.hasExtension(OmemoElement.NAME_ENCRYPTED, OMEMO_NAMESPACE_V_AXOLOTL))
+        if (message.hasExtension(OmemoElement.NAME_ENCRYPTED, OMEMO_NAMESPACE_V_AXOLOTL))
             return;
 
         // Return if it is for group chat
@@ -1012,16 +1044,29 @@ public class OperationSetBasicInstantMessagingJabberImpl extends AbstractOperati
         mOmemoManager = null;
     }
 
-    private boolean isForwardedSentOmemoMessage = false;
-
     /**
-     * Gets called, whenever an OmemoMessage has been received and was successfully decrypted.
+     * Gets called, whenever an OmemoMessage has been received and was successfully decrypted;
+     * OmemoManager calls it on the stanza dispatcher, in order per conversation.
      *
      * @param stanza Received (encrypted) stanza.
      * @param decryptedMessage decrypted OmemoMessage.
      */
     @Override
     public void onOmemoMessageReceived(Stanza stanza, OmemoMessage.Received decryptedMessage)
+    {
+        processOmemoMessage(stanza, decryptedMessage, false);
+    }
+
+    /**
+     * Handles a decrypted OmemoMessage or carbon copy and dispatches whatever events are necessary.
+     *
+     * @param stanza Received (encrypted) stanza.
+     * @param decryptedMessage decrypted OmemoMessage.
+     * @param isForwardedSentOmemoMessage <code>true</code> if the message is the carbon of a message sent
+     * by another client of ours
+     */
+    private void processOmemoMessage(Stanza stanza, OmemoMessage.Received decryptedMessage,
+            boolean isForwardedSentOmemoMessage)
     {
         // Do not process if decryptedMessage isKeyTransportMessage i.e. msgBody == null
         if (decryptedMessage.isKeyTransportMessage())
@@ -1089,8 +1134,6 @@ public class OperationSetBasicInstantMessagingJabberImpl extends AbstractOperati
             Message wrappingMessage,
             OmemoMessage.Received decryptedCarbonCopy)
     {
-        isForwardedSentOmemoMessage = CarbonExtension.Direction.sent.equals(direction);
-        onOmemoMessageReceived(carbonCopy, decryptedCarbonCopy);
-        isForwardedSentOmemoMessage = false;
+        processOmemoMessage(carbonCopy, decryptedCarbonCopy, CarbonExtension.Direction.sent.equals(direction));
     }
 }
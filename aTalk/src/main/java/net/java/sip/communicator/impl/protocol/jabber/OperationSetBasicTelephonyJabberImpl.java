@@ -956,6 +956,28 @@ public class OperationSetBasicTelephonyJabberImpl
     {
         JingleAction action = jingle.getAction();
         Timber.d("### Processing Jingle IQ (%s: %s); callPeer: %s", action, jingle.getStanzaId(), callPeer.getAddress());
+
+        // Transport-info must not wait: a content-add being processed may be waiting for its candidates.
+        if (action == JingleAction.transport_info) {
+            processTransportInfo(callPeer, jingle);
+            return;
+        }
+        synchronized (callPeer.getJingleSyncRoot()) {
+            processJingleAction(jingle, callPeer);
+        }
+    }
+
+    /**
+     * Passes a <code>jingle</code> other than transport-info to the handler of its action; called with the
+     * {@link CallPeerJabberImpl#getJingleSyncRoot()} of the <code>callPeer</code> held.
+     *
+     * @param jingle the {@link Jingle} packet to process.
+     * @param callPeer the <code>CallPeer</code> the <code>jingle</code> is for
+     */
+    private void processJingleAction(final Jingle jingle, final CallPeerJabberImpl callPeer)
+            throws NotConnectedException, InterruptedException
+    {
+        JingleAction action = jingle.getAction();
         switch (action) {
             case session_accept:
                 jingleSI = null;
@@ -1012,11 +1034,6 @@ public class OperationSetBasicTelephonyJabberImpl
                 callPeer.processContentRemove(jingle);
                 break;
 
-            // Transport_info send by peer e.g. conversations is too fast and before callPeer is properly initialized
-            case transport_info:
-                processTransportInfo(callPeer, jingle);
-                break;
-
             case source_add:
                 callPeer.processSourceAdd(jingle);
                 break;
@@ -1203,7 +1220,9 @@ public class OperationSetBasicTelephonyJabberImpl
 
                 callPeer.processOfferTransportInfo(jingleTransport);
                 if (jingleSA != null) {
-                    callPeer.processSessionAccept(jingleSA);
+                    synchronized (callPeer.getJingleSyncRoot()) {
+                        callPeer.processSessionAccept(jingleSA);
+                    }
                     jingleSA = null;
                 }
             } catch (NotConnectedException | InterruptedException e) {
@@ -356,7 +356,24 @@ public class OperationSetChatStateNotificationsJabberImpl extends
      * @param message the message carrying the chat state.
      */
     @Override
-    public void stateChanged(Chat chat, ChatState state, Message message)
+    public void stateChanged(Chat chat, final ChatState state, final Message message)
+    {
+        // Defer the notification while aTalk is in the background; only the last state of a contact matters
+        TrafficShaper trafficShaper = parentProvider.getTrafficShaper();
+        if (trafficShaper == null)
+            processChatState(state, message);
+        else
+            trafficShaper.submit(TrafficShaper.CHAT_STATE, message.getFrom().asBareJid(),
+                    () -> processChatState(state, message));
+    }
+
+    /**
+     * Fires the chat state notification event for the received chat state.
+     *
+     * @param state the new state of the participant.
+     * @param message the message carrying the chat state.
+     */
+    private void processChatState(ChatState state, Message message)
     {
         Jid fromJid = message.getFrom();
         BareJid bareJid = fromJid.asBareJid();
@@ -1155,9 +1155,14 @@ public class OperationSetPersistentPresenceJabberImpl
          * @param presence presence that has changed
          */
         @Override
-        public void presenceChanged(Presence presence)
+        public void presenceChanged(final Presence presence)
         {
-            firePresenceStatusChanged(presence);
+            // Defer the contact status update while aTalk is in the background
+            TrafficShaper trafficShaper = mPPS.getTrafficShaper();
+            if (trafficShaper == null)
+                firePresenceStatusChanged(presence);
+            else
+                trafficShaper.submit(TrafficShaper.PRESENCE, presence.getFrom(), () -> firePresenceStatusChanged(presence));
         }
 
         /**
@@ -1662,8 +1667,10 @@ public class OperationSetPersistentPresenceJabberImpl
         }
         if (newAvatar == null)
             newAvatar = new byte[0];
+        else
+            newAvatar = AvatarManager.getAvatarThumbnail(newAvatar);
 
-        // Sets the new avatar image for the contact.
+        // Sets the new avatar thumbnail for the contact.
         sourceContact.setImage(newAvatar);
 
         // Fires a property change event to update the contact list.
@@ -1682,6 +1689,23 @@ public class OperationSetPersistentPresenceJabberImpl
      * @param avatarInfo the metadata info of the userAvatar, may be empty if the contact set no avatar
      */
     public void onAvatarChange(EntityBareJid from, String avatarId, List<AvatarMetadata.Info> avatarInfo)
+    {
+        // Defer the avatar download while aTalk is in the background; only the last change is kept
+        TrafficShaper trafficShaper = mPPS.getTrafficShaper();
+        if (trafficShaper == null)
+            processAvatarChange(from, avatarId, avatarInfo);
+        else
+            trafficShaper.submit(TrafficShaper.PEP_AVATAR, from, () -> processAvatarChange(from, avatarId, avatarInfo));
+    }
+
+    /**
+     * Updates the avatar of a contact on a XEP-0084: User Avatar change, downloading it if not cached.
+     *
+     * @param from the contact EntityBareJid who change his avatar
+     * @param avatarId the new avatar id, may be null if the contact set no avatar
+     * @param avatarInfo the metadata info of the userAvatar, may be empty if the contact set no avatar
+     */
+    private void processAvatarChange(EntityBareJid from, String avatarId, List<AvatarMetadata.Info> avatarInfo)
     {
         /*
          * Retrieves the contact ID that aTalk currently managed concerning the peer that has
@@ -1711,8 +1735,10 @@ public class OperationSetPersistentPresenceJabberImpl
         }
         if (newAvatar == null)
             newAvatar = new byte[0];
+        else
+            newAvatar = AvatarManager.getAvatarThumbnail(newAvatar);
 
-        // Sets the new avatar image for the contact.
+        // Sets the new avatar thumbnail for the contact.
         sourceContact.setImage(newAvatar);
 
         // Fires a property change event to update the contact list.
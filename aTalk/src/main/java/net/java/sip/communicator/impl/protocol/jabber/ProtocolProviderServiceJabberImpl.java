@@ -93,6 +93,7 @@ import org.jivesoftware.smackx.iqregisterx.provider.RegistrationProvider;
 import org.jivesoftware.smackx.iqregisterx.provider.RegistrationStreamFeatureProvider;
 import org.jivesoftware.smackx.iqversion.VersionManager;
 import org.jivesoftware.smackx.jingle_filetransfer.JingleFileTransferManager;
+import org.jivesoftware.smackx.jingle_rtp.element.Grouping;
 import org.jivesoftware.smackx.jingle_rtp.element.IceUdpTransport;
 import org.jivesoftware.smackx.jingle_rtp.element.RawUdpTransport;
 import org.jivesoftware.smackx.jingle_filetransfer.component.JingleFileTransferImpl;
@@ -116,6 +117,7 @@ import org.jivesoftware.smackx.ping.PingManager;
 import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 import org.jivesoftware.smackx.receipts.DeliveryReceiptManager;
 import org.jivesoftware.smackx.receipts.DeliveryReceiptManager.AutoReceiptMode;
+import org.jivesoftware.smackx.receipts.ReceiptReceivedListener;
 import org.jivesoftware.smackx.si.packet.StreamInitiation;
 import org.jivesoftware.smackx.vcardtemp.packet.VCard;
 import org.jivesoftware.smackx.xhtmlim.XHTMLManager;
@@ -214,6 +216,11 @@ public class ProtocolProviderServiceJabberImpl extends AbstractProtocolProviderS
      */
     public static final String URN_XMPP_JINGLE_ICE_UDP_1 = IceUdpTransport.NAMESPACE;
 
+    /**
+     * Jingle's Discovery Info URN for "XEP-0338: Jingle Grouping Framework" support i.e. BUNDLE.
+     */
+    public static final String URN_XMPP_JINGLE_GROUPING = Grouping.NAMESPACE;
+
     /**
      * Jingle's Discovery Info URN for Jingle Nodes support.
      */
@@ -397,6 +404,26 @@ public class ProtocolProviderServiceJabberImpl extends AbstractProtocolProviderS
 
     private AndroidOmemoService androidOmemoService = null;
 
+    /**
+     * Defers the non-urgent stanza processing and indicates the client state while aTalk is in the background.
+     */
+    private TrafficShaper trafficShaper = null;
+
+    /**
+     * Hands the delivery receipts over to the message history, deferred while aTalk is in the background.
+     */
+    private final ReceiptReceivedListener receiptReceivedListener = (fromJid, toJid, receiptId, receipt) -> {
+        final MessageHistoryServiceImpl mhs = MessageHistoryActivator.getMessageHistoryService();
+        TrafficShaper shaper = trafficShaper;
+        if (mhs == null)
+            return;
+
+        if (shaper == null)
+            mhs.onReceiptReceived(fromJid, toJid, receiptId, receipt);
+        else
+            shaper.submit(null, receiptId, () -> mhs.onReceiptReceived(fromJid, toJid, receiptId, receipt));
+    };
+
     private HTTPAuthorizationRequestManager httpAuthorizationRequestManager = null;
 
     /**
@@ -1609,6 +1636,10 @@ public class ProtocolProviderServiceJabberImpl extends AbstractProtocolProviderS
         // set it null as it also holds a reference to the old connection; it will be created again on new connection setup
         mConnection = null;
 
+        // Write the omemo sessions and message counters still held in memory
+        if (androidOmemoService != null)
+            androidOmemoService.flushOmemoStore();
+
         if (httpAuthorizationRequestManager != null) {
             httpAuthorizationRequestManager.removeIncomingListener(this);
         }
@@ -1762,8 +1793,7 @@ public class ProtocolProviderServiceJabberImpl extends AbstractProtocolProviderS
         /* XEP-0184: Message Delivery Receipts - global option */
         DeliveryReceiptManager deliveryReceiptManager = DeliveryReceiptManager.getInstanceFor(mConnection);
         // Always enable the ReceiptReceivedListener and receipt request (independent of contact capability)
-        MessageHistoryServiceImpl mhs = MessageHistoryActivator.getMessageHistoryService();
-        deliveryReceiptManager.addReceiptReceivedListener(mhs);
+        deliveryReceiptManager.addReceiptReceivedListener(receiptReceivedListener);
         deliveryReceiptManager.autoAddDeliveryReceiptRequests();
 
         if (ConfigurationUtils.isSendMessageDeliveryReceipt()) {
@@ -1847,6 +1877,8 @@ public class ProtocolProviderServiceJabberImpl extends AbstractProtocolProviderS
             if (mAccountID.getAccountPropertyBoolean(ProtocolProviderFactory.IS_USE_ICE, true)) {
                 // XEP-0176: Jingle ICE-UDP Transport Method
                 supportedFeatures.add(URN_XMPP_JINGLE_ICE_UDP_1);
+                // XEP-0338: Jingle Grouping Framework; BUNDLE is only used with ICE
+                supportedFeatures.add(URN_XMPP_JINGLE_GROUPING);
             }
 
             // XEP-0167: Jingle RTP Sessions
@@ -2108,6 +2140,7 @@ public class ProtocolProviderServiceJabberImpl extends AbstractProtocolProviderS
     {
         synchronized (initializationLock) {
             mAccountID = accountID;
+            trafficShaper = new TrafficShaper(this);
 
             // Initialize all the smack default setting
             initSmackDefaultSettings();
@@ -2375,10 +2408,25 @@ public class ProtocolProviderServiceJabberImpl extends AbstractProtocolProviderS
                 telephony.shutdown();
             }
             disconnectAndCleanConnection();
+            if (trafficShaper != null) {
+                trafficShaper.dispose();
+                trafficShaper = null;
+            }
             isInitialized = false;
         }
     }
 
+    /**
+     * Returns the <code>TrafficShaper</code> which defers the non-urgent stanza processing of this
+     * account while aTalk is in the background.
+     *
+     * @return the <code>TrafficShaper</code> of this account
+     */
+    public TrafficShaper getTrafficShaper()
+    {
+        return trafficShaper;
+    }
+
     /**
      * Returns true if the provider service implementation is initialized and ready for use by
      * other services, and false otherwise.
@@ -466,4 +466,15 @@ public class RawUdpTransportManager extends TransportManagerJabberImpl
             throw new IllegalArgumentException("rtcp mux not supported by " + getClass().getSimpleName());
         }
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBundle(boolean bundle)
+    {
+        if (bundle) {
+            throw new IllegalArgumentException("bundle not supported by " + getClass().getSimpleName());
+        }
+    }
 }
@@ -10,6 +10,8 @@ import net.java.sip.communicator.service.protocol.OperationSetContactCapabilitie
 
 import org.atalk.android.aTalkApp;
 import org.atalk.android.plugin.timberlog.TimberLog;
+import org.atalk.persistance.EntityCapsDatabase;
+import org.atalk.persistance.FileBackend;
 import org.atalk.persistance.ServerPersistentStoresRefreshDialog;
 import org.jivesoftware.smack.SmackException.NoResponseException;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
@@ -27,7 +29,6 @@ import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.caps.EntityCapsManager;
 import org.jivesoftware.smackx.caps.EntityCapsManager.NodeVerHash;
 import org.jivesoftware.smackx.caps.cache.EntityCapsPersistentCache;
-import org.jivesoftware.smackx.caps.cache.SimpleDirectoryPersistentCache;
 import org.jivesoftware.smackx.caps.packet.CapsExtension;
 import org.jivesoftware.smackx.disco.NodeInformationProvider;
 import org.jivesoftware.smackx.disco.ServiceDiscoveryManager;
@@ -39,9 +40,15 @@ import org.jxmpp.jid.Jid;
 import org.jxmpp.util.cache.LruCache;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import timber.log.Timber;
 
@@ -88,7 +95,7 @@ public class ScServiceDiscoveryManager implements NodeInformationProvider
     private final ProtocolProviderServiceJabberImpl parentProvider;
 
     /**
-     * The runnable responsible for retrieving discover info.
+     * The engine responsible for retrieving discover info.
      */
     private final DiscoveryInfoRetriever retriever = new DiscoveryInfoRetriever();
 
@@ -115,20 +122,16 @@ public class ScServiceDiscoveryManager implements NodeInformationProvider
     private static final UserCapsNodeListener[] NO_USER_CAPS_NODE_LISTENERS = new UserCapsNodeListener[0];
 
     /**
-     * persistentAvatarCache is used only by ScServiceDiscoveryManager for the specific account entities received
+     * discoInfoPersistentCache is used only by ScServiceDiscoveryManager for the specific account entities received.
+     * Service Discover Features are defined by the account's server capability.
      */
     private static EntityCapsPersistentCache discoInfoPersistentCache = null;
 
     /**
-     * Persistent Storage for ScServiceDiscovery, created per account. Service Discover Features
-     * are defined by the account's server capability.
+     * A single Persistent Storage for EntityCapsManager to save caps for all accounts; the caps discovered
+     * by the retriever are also added here.
      */
-    private File discoInfoStoreDirectory;
-
-    /**
-     * A single Persistent Storage for EntityCapsManager to save caps for all accounts
-     */
-    private static File entityStoreDirectory;
+    private static EntityCapsPersistentCache entityCapsPersistentCache = null;
 
     /**
      * Creates a new <code>ScServiceDiscoveryManager</code> wrapping the default discovery manager of
@@ -595,59 +598,46 @@ public class ScServiceDiscoveryManager implements NodeInformationProvider
     //==================================================================
 
     /**
-     * Setup the SimpleDirectoryPersistentCache store to support EntityCapsManager persistent
+     * Setup the EntityCapsDatabase store to support EntityCapsManager persistent
      * store for fast Entity Capabilities and bandwidth improvement.
      * First initialize in {@link ProtocolProviderServiceJabberImpl#initSmackDefaultSettings()}
      * to ensure Persistence store is setup before being access. If necessary later in
      * {@link ServerPersistentStoresRefreshDialog#refreshCapsStore()}
      *
-     * Note: {@link #entityStoreDirectory} is a single directory for all jabber accounts to contain
-     * all the caps
+     * Note: {@link #entityCapsPersistentCache} is a single store for all jabber accounts to contain
+     * all the caps; loaded once into memory so caps lookups never access the database.
      */
     public static void initEntityPersistentStore()
     {
-        entityStoreDirectory = new File(aTalkApp.getGlobalContext().getFilesDir() + "/entityStore");
-
-        if (!entityStoreDirectory.exists()) {
-            if (!entityStoreDirectory.mkdir())
-                Timber.e("Entity Store directory creation error: %s", entityStoreDirectory.getAbsolutePath());
-        }
+        entityCapsPersistentCache = new EntityCapsDatabase(EntityCapsDatabase.STORE_ENTITY_CAPS);
+        EntityCapsManager.setPersistentCache(entityCapsPersistentCache);
 
-        if (entityStoreDirectory.exists()) {
-            SimpleDirectoryPersistentCache entityPersistentCache = new SimpleDirectoryPersistentCache(entityStoreDirectory);
-            EntityCapsManager.setPersistentCache(entityPersistentCache);
-        }
+        // Purge the obsolete one file per node store
+        purgeLegacyStore(new File(aTalkApp.getGlobalContext().getFilesDir() + "/entityStore"));
     }
 
-    public static File getEntityPersistentStore()
+    public static EntityCapsPersistentCache getEntityPersistentStore()
     {
-        return entityStoreDirectory;
+        return entityCapsPersistentCache;
     }
 
     /**
-     * Setup the SimpleDirectoryPersistentCache store to support DiscoInfo persistent
+     * Setup the EntityCapsDatabase store to support DiscoInfo persistent
      * store for fast discoInfo retrieval and bandwidth performance.
      *
-     * Note: {@link #discoInfoStoreDirectory} directory is setup to contain all the disco#info
-     * entities for each specific account and is being setup during the account login.
+     * Note: the store is setup to contain all the disco#info entities for each specific account
+     * and is being setup during the account login.
      */
     public void initDiscoInfoPersistentStore()
     {
         String userID = parentProvider.getAccountID().getUserID();
-        discoInfoStoreDirectory = new File(aTalkApp.getGlobalContext().getFilesDir() + "/discoInfoStore_" + userID);
-
-        if (!discoInfoStoreDirectory.exists()) {
-            if (!discoInfoStoreDirectory.mkdir())
-                Timber.e("DiscoInfo Store directory creation error: %s", discoInfoStoreDirectory.getAbsolutePath());
-        }
+        setDiscoInfoPersistentStore(new EntityCapsDatabase(EntityCapsDatabase.getDiscoInfoStore(userID)));
 
-        if (discoInfoStoreDirectory.exists()) {
-            SimpleDirectoryPersistentCache persistentCache = new SimpleDirectoryPersistentCache(discoInfoStoreDirectory);
-            setDiscoInfoPersistentStore(persistentCache);
-        }
+        // Purge the obsolete one file per node store
+        purgeLegacyStore(new File(aTalkApp.getGlobalContext().getFilesDir() + "/discoInfoStore_" + userID));
     }
 
-    public void setDiscoInfoPersistentStore(SimpleDirectoryPersistentCache cache)
+    public void setDiscoInfoPersistentStore(EntityCapsPersistentCache cache)
     {
         discoInfoPersistentCache = cache;
     }
@@ -657,30 +647,56 @@ public class ScServiceDiscoveryManager implements NodeInformationProvider
         nonCapsCache.clear();
     }
 
-    public File getDiscoInfoPersistentStore()
+    public EntityCapsPersistentCache getDiscoInfoPersistentStore()
     {
-        return discoInfoStoreDirectory;
+        return discoInfoPersistentCache;
     }
 
     /**
-     * Thread that runs the discovery info.
+     * Delete the directory of a SimpleDirectoryPersistentCache used by the previous versions.
+     *
+     * @param storeDirectory the store directory
      */
-    private class DiscoveryInfoRetriever implements Runnable
+    private static void purgeLegacyStore(File storeDirectory)
     {
+        if (storeDirectory.exists()) {
+            try {
+                FileBackend.deleteRecursive(storeDirectory);
+            } catch (IOException e) {
+                Timber.w("Failed to purge legacy store: %s", storeDirectory.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Retrieves the discovery info of the queued entities without blocking: up to {@link #MAX_IN_FLIGHT}
+     * disco#info requests are kept in flight and the event is fired for each entity as its answer arrives,
+     * so an unresponsive resource only holds up its own request until it times out.
+     *
+     * Entities advertising the same caps node#ver are coalesced into a single request, whose verified
+     * answer is cached by EntityCapsManager for all of them; entities without caps are requested by jid.
+     */
+    private class DiscoveryInfoRetriever
+    {
+        /**
+         * The maximum number of disco#info requests in flight.
+         */
+        private static final int MAX_IN_FLIGHT = 8;
+
         /**
-         * start/stop.
+         * The requests waiting to be sent, in the order queued.
          */
-        private boolean stopped = true;
+        private final ArrayDeque<Request> pending = new ArrayDeque<>();
 
         /**
-         * The thread that runs this dispatcher.
+         * The pending and in flight requests, by node#ver or by entity jid if it has no caps.
          */
-        private Thread retrieverThread = null;
+        private final Map<String, Request> requests = new HashMap<>();
 
         /**
-         * Entities to be processed and their nvh. HashMap so we can store null nvh.
+         * The number of requests in flight.
          */
-        final private ArrayList<Jid> entities = new ArrayList<>();
+        private int inFlight = 0;
 
         /**
          * Our capability operation set.
@@ -688,112 +704,160 @@ public class ScServiceDiscoveryManager implements NodeInformationProvider
         private OperationSetContactCapabilitiesJabberImpl capabilitiesOpSet;
 
         /**
-         * Runs in a different thread.
+         * Queue entities for retrieval; joins the request of another entity with the same caps if any.
+         *
+         * @param entityJid the entity.
          */
-        public void run()
+        public void addEntityForRetrieve(Jid entityJid)
         {
-            try {
-                stopped = false;
-
-                while (!stopped) {
-                    Jid entityToProcess;
-                    synchronized (entities) {
-                        if (entities.size() == 0) {
-                            try {
-                                entities.wait();
-                            } catch (InterruptedException ex) {
-                                ex.printStackTrace();
-                            }
-                        }
-                        entityToProcess = entities.get(0);
-                        entities.remove(entityToProcess);
-                    }
-
-                    if (entityToProcess != null) {
-                        requestDiscoveryInfo(entityToProcess);
-                    }
+            if (entityJid instanceof BareJid)
+                Timber.e("Warning! discoInfo for BareJid '%s' repeated access for every call!!!", entityJid.toString());
+
+            NodeVerHash nvh = EntityCapsManager.getNodeVerHashByJid(entityJid);
+            String key = (nvh != null) ? nvh.getNodeVer() : entityJid.toString();
+
+            synchronized (this) {
+                if (capabilitiesOpSet == null) {
+                    capabilitiesOpSet = (OperationSetContactCapabilitiesJabberImpl)
+                            parentProvider.getOperationSet(OperationSetContactCapabilities.class);
+                }
+
+                Request request = requests.get(key);
+                if (request == null) {
+                    request = new Request(key, entityJid, nvh);
+                    requests.put(key, request);
+                    pending.add(request);
                 }
-            } catch (Throwable t) {
-                // May happen on aTalk shutDown, where entities array outOfBound
-                Timber.w("Error requesting discovery info, thread ended: %s", t.getMessage());
+                request.entities.add(entityJid);
             }
+            sendPending();
         }
 
         /**
-         * Requests the discovery info and fires the event if retrieved.
-         *
-         * @param entityJid the entity to request
+         * Sends the pending requests while there is room in flight.
          */
-        private void requestDiscoveryInfo(final Jid entityJid)
+        private void sendPending()
         {
-            try {
-                // Discover by requesting the information from the remote entity;
-                // will return null if no nvh in JID_TO_NODEVER_CACHE=>CAPS_CACHE
-                DiscoverInfo discoverInfo = getRemoteDiscoverInfo(entityJid,
-                        ProtocolProviderServiceJabberImpl.SMACK_REPLY_EXTENDED_TIMEOUT_30);
-
-                // (discoverInfo = null) if iq result with "item-not-found"
-                if (discoverInfo != null) {
-                    if (cacheNonCaps) {
-                        // Timber.w("Add discoverInfo with null nvh for: %s", entityJid);
-                        addDiscoverInfoByEntity(entityJid, discoverInfo);
-                    }
-
-                    // fire the event
-                    if (capabilitiesOpSet != null) {
-                        capabilitiesOpSet.fireContactCapabilitiesChanged(entityJid);
-                    }
+            while (true) {
+                Request request;
+                synchronized (this) {
+                    if (inFlight >= MAX_IN_FLIGHT || pending.isEmpty())
+                        return;
+                    request = pending.poll();
+                    inFlight++;
                 }
-            } catch (NoResponseException | NotConnectedException | XMPPException | InterruptedException e) {
-                // print discovery info errors only when trace is enabled
-                Timber.log(TimberLog.FINER, e, "Error requesting discover info for %s", entityJid);
+
+                String node = (request.nvh != null) ? request.nvh.getNodeVer() : null;
+                DiscoverInfo discoInfoRequest = DiscoverInfo.builder(connection)
+                        .to(request.entityJid)
+                        .setNode(node)
+                        .build();
+
+                final Request sent = request;
+                Timber.w("### Remote discovery for: %s", request.entityJid);
+                connection.sendIqRequestAsync(discoInfoRequest, ProtocolProviderServiceJabberImpl.SMACK_REPLY_EXTENDED_TIMEOUT_30)
+                        .onSuccess(result -> onDiscoverInfo(sent, (DiscoverInfo) result))
+                        .onError(e -> {
+                            // print discovery info errors only when trace is enabled
+                            Timber.log(TimberLog.FINER, e, "Error requesting discover info for %s", sent.entityJid);
+                            complete(sent, false);
+                        });
             }
         }
 
         /**
-         * Queue entities for retrieval.
+         * Caches the received discovery info and completes its request.
          *
-         * @param entityJid the entity.
+         * @param request the request answered
+         * @param discoverInfo the received discovery info
          */
-        public void addEntityForRetrieve(Jid entityJid)
+        private void onDiscoverInfo(Request request, DiscoverInfo discoverInfo)
         {
-            if (entityJid instanceof BareJid)
-                Timber.e("Warning! discoInfo for BareJid '%s' repeated access for every call!!!", entityJid.toString());
-
-            synchronized (entities) {
-                if (!entities.contains(entityJid)) {
-                    entities.add(entityJid);
-                    entities.notifyAll();
+            boolean cached = true;
+            if (request.nvh != null) {
+                // Cache it for all the entities with the same caps; an unverified answer must not be
+                // trusted for the others.
+                if (EntityCapsManager.verifyDiscoverInfoVersion(request.nvh.getVer(), request.nvh.getHash(), discoverInfo)
+                        && (entityCapsPersistentCache != null)) {
+                    entityCapsPersistentCache.addDiscoverInfoByNodePersistent(request.nvh.getNodeVer(), discoverInfo);
+                }
+                else {
+                    Timber.w("Unverified discover info for %s: %s", request.entityJid, request.nvh.getNodeVer());
+                    cached = false;
+                }
+            }
+            else if (cacheNonCaps) {
+                // Timber.w("Add discoverInfo with null nvh for: %s", entityJid);
+                addDiscoverInfoByEntity(request.entityJid, discoverInfo);
+            }
+            complete(request, cached);
+        }
 
-                    if (retrieverThread == null) {
-                        start();
-                    }
+        /**
+         * Removes a request from flight, fires the event for its entities and sends the next pending ones.
+         *
+         * @param request the completed request
+         * @param fire whether to fire the capabilities changed event for the entities of the request
+         */
+        private void complete(Request request, boolean fire)
+        {
+            List<Jid> entities = null;
+            synchronized (this) {
+                inFlight--;
+                // The request is gone if it was cleared by stop()
+                if (requests.get(request.key) == request) {
+                    requests.remove(request.key);
+                    entities = new ArrayList<>(request.entities);
                 }
             }
+
+            if (fire && (entities != null) && (capabilitiesOpSet != null)) {
+                for (Jid entityJid : entities)
+                    capabilitiesOpSet.fireContactCapabilitiesChanged(entityJid);
+            }
+            sendPending();
         }
 
         /**
-         * Start thread.
+         * Clears the pending requests; the answers of the ones in flight are dropped.
          */
-        private void start()
+        synchronized void stop()
         {
-            capabilitiesOpSet = (OperationSetContactCapabilitiesJabberImpl)
-                    parentProvider.getOperationSet(OperationSetContactCapabilities.class);
-            retrieverThread = new Thread(this, ScServiceDiscoveryManager.class.getName());
-            retrieverThread.setDaemon(true);
-            retrieverThread.start();
+            pending.clear();
+            requests.clear();
         }
+    }
+
+    /**
+     * A disco#info request shared by the entities with the same caps node#ver.
+     */
+    private static class Request
+    {
+        /**
+         * The node#ver, or the entity jid if it has no caps.
+         */
+        final String key;
 
         /**
-         * Stops and clears.
+         * The entity to which the request is sent.
          */
-        void stop()
+        final Jid entityJid;
+
+        /**
+         * The caps of the entities, or null.
+         */
+        final NodeVerHash nvh;
+
+        /**
+         * The entities waiting for the answer; guarded by the retriever.
+         */
+        final Set<Jid> entities = new LinkedHashSet<>();
+
+        Request(String key, Jid entityJid, NodeVerHash nvh)
         {
-            synchronized (entities) {
-                stopped = true;
-                entities.notifyAll();
-                retrieverThread = null;
-            }
+            this.key = key;
+            this.entityJid = entityJid;
+            this.nvh = nvh;
         }
     }
 }
@@ -7,6 +7,7 @@ package net.java.sip.communicator.impl.protocol.jabber;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
 
 import net.java.sip.communicator.impl.protocol.jabber.OperationSetPersistentPresenceJabberImpl.ContactChangesListener;
 import net.java.sip.communicator.service.contactlist.MetaContactGroup;
@@ -16,6 +17,7 @@ import net.java.sip.communicator.service.protocol.event.*;
 
 import org.atalk.android.plugin.timberlog.TimberLog;
 import org.atalk.persistance.DatabaseBackend;
+import org.atalk.util.concurrent.ExecutorFactory;
 import org.jivesoftware.smack.SmackException.*;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
@@ -34,6 +36,8 @@ import org.jxmpp.stringprep.XmppStringprepException;
 import org.osgi.framework.ServiceReference;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import timber.log.Timber;
 
@@ -1087,10 +1091,10 @@ public class ServerStoredContactListJabberImpl
 
     /**
      * When there is no photo image for a contact, we need to retrieve it by adding the contact
-     * into contactsForUpdate arrayList for image update
+     * to the ImageRetriever for image update
      *
      * @param contact ContactJabberImpl
-     * @see ImageRetriever#contactsForUpdate
+     * @see ImageRetriever#addContact(ContactJabberImpl)
      */
     protected void addContactForImageUpdate(ContactJabberImpl contact)
     {
@@ -1100,7 +1104,6 @@ public class ServerStoredContactListJabberImpl
 
         if (imageRetriever == null) {
             imageRetriever = new ImageRetriever();
-            imageRetriever.start();
         }
         imageRetriever.addContact(contact);
     }
@@ -1440,110 +1443,124 @@ public class ServerStoredContactListJabberImpl
     }
 
     /**
-     * Thread for retrieving contacts' images.
+     * Retrieves the contacts' images on a small pool of threads, so that a slow vCard fetch does not hold
+     * back the others. Concurrent requests for the same avatar, i.e. the same avatar hash or contact jid,
+     * are coalesced into a single fetch.
      */
-    private class ImageRetriever extends Thread
+    private class ImageRetriever
     {
         /**
-         * list with the accounts with missing image
+         * The maximum number of avatars retrieved concurrently.
          */
-        private final List<ContactJabberImpl> contactsForUpdate = new Vector<>();
+        private static final int MAX_CONCURRENT_RETRIEVALS = 4;
 
         /**
-         * Should we stop.
+         * The contacts waiting for an image by the avatar hash or jid being retrieved; guarded by itself.
          */
-        private boolean running = false;
+        private final Map<String, List<ContactJabberImpl>> pendingRetrievals = new HashMap<>();
 
         /**
-         * Creates image retrieving.
+         * The threads retrieving the images.
          */
-        ImageRetriever()
-        {
-            setDaemon(true);
-        }
+        private final ExecutorService retrievers
+                = ExecutorFactory.createFixedThreadPool(MAX_CONCURRENT_RETRIEVALS, "ImageRetriever-");
 
         /**
-         * Thread entry point.
+         * Should we stop.
          */
-        @Override
-        public void run()
-        {
-            try {
-                Collection<ContactJabberImpl> copyContactsForUpdate;
-                running = true;
-                while (running) {
-                    synchronized (contactsForUpdate) {
-                        if (contactsForUpdate.isEmpty())
-                            contactsForUpdate.wait();
-
-                        if (!running)
-                            return;
-
-                        copyContactsForUpdate = new Vector<>(contactsForUpdate);
-                        contactsForUpdate.clear();
-                    }
+        private volatile boolean running = true;
 
-                    for (ContactJabberImpl contact : copyContactsForUpdate) {
-                        byte[] imgBytes = getAvatar(contact);
-                        if (imgBytes != null) {
-                            byte[] oldImage = contact.getImage(false);
+        /**
+         * Add contact for retrieving; joins the retrieval in progress for the same avatar if any.
+         *
+         * @param contact ContactJabberImpl
+         */
+        void addContact(final ContactJabberImpl contact)
+        {
+            BareJid userJid = contact.getJid().asBareJid();
+            String avatarHash = AvatarManager.getAvatarHashByJid(userJid);
+            final String key = TextUtils.isEmpty(avatarHash) ? userJid.toString() : avatarHash;
+
+            synchronized (pendingRetrievals) {
+                List<ContactJabberImpl> contacts = pendingRetrievals.get(key);
+                if (contacts != null) {
+                    if (!contacts.contains(contact))
+                        contacts.add(contact);
+                    return;
+                }
+                contacts = new ArrayList<>();
+                contacts.add(contact);
+                pendingRetrievals.put(key, contacts);
+            }
 
-                            contact.setImage(imgBytes);
-                            parentOperationSet.fireContactPropertyChangeEvent(contact,
-                                    ContactPropertyChangeEvent.PROPERTY_IMAGE, oldImage, imgBytes);
-                        }
-                        else
-                            // set an empty image data so it would not be queried again
-                            contact.setImage(new byte[0]);
-                    }
+            try {
+                retrievers.execute(() -> retrieve(key, contact));
+            } catch (RejectedExecutionException ex) {
+                synchronized (pendingRetrievals) {
+                    pendingRetrievals.remove(key);
                 }
-            } catch (InterruptedException ex) {
-                Timber.e(ex, "ImageRetriever error waiting will stop now!");
             }
         }
 
         /**
-         * Add contact for retrieving:
-         * - if the provider is registered notify the retriever to get the nicks
-         * - if we are not registered add a listener to wait for registering
+         * Retrieves the image of a contact and sets it on all the contacts waiting for the same avatar.
          *
-         * @param contact ContactJabberImpl
+         * @param key the avatar hash or jid of the retrieval
+         * @param contact the contact for which the retrieval was scheduled
          */
-        void addContact(ContactJabberImpl contact)
+        private void retrieve(String key, ContactJabberImpl contact)
         {
-            synchronized (contactsForUpdate) {
-                if (!contactsForUpdate.contains(contact)) {
-                    contactsForUpdate.add(contact);
-                    contactsForUpdate.notifyAll();
+            byte[] imgBytes = running ? getAvatar(contact) : null;
+
+            List<ContactJabberImpl> contacts;
+            synchronized (pendingRetrievals) {
+                contacts = pendingRetrievals.remove(key);
+            }
+            if (!running || (contacts == null))
+                return;
+
+            for (ContactJabberImpl waitingContact : contacts) {
+                if (imgBytes.length > 0) {
+                    byte[] oldImage = waitingContact.getImage(false);
+
+                    waitingContact.setImage(imgBytes);
+                    parentOperationSet.fireContactPropertyChangeEvent(waitingContact,
+                            ContactPropertyChangeEvent.PROPERTY_IMAGE, oldImage, imgBytes);
                 }
+                else
+                    // set an empty image data so it would not be queried again
+                    waitingContact.setImage(imgBytes);
             }
         }
 
         /**
-         * Stops this thread.
+         * Stops the retrieval; the images being retrieved are discarded.
          */
         void quit()
         {
-            synchronized (contactsForUpdate) {
-                running = false;
-                contactsForUpdate.notifyAll();
+            running = false;
+            retrievers.shutdownNow();
+            synchronized (pendingRetrievals) {
+                pendingRetrievals.clear();
             }
         }
 
         /**
-         * Retrieves the avatar. Use image from persistent storage if found. Otherwise proceed to
+         * Retrieves the avatar thumbnail. Use image from persistent storage if found. Otherwise proceed to
          * load avatar from VCard.
          *
          * @param contact the contact.
-         * @return the contact avatar.
+         * @return the contact avatar thumbnail, zero byte if none.
          */
         private byte[] getAvatar(ContactJabberImpl contact)
         {
             BareJid userJid = contact.getJid().asBareJid();
             String userId = userJid.toString();
-            byte[] result = VCardAvatarManager.getAvatarImageByJid(userJid);
+            byte[] result = VCardAvatarManager.getAvatarThumbnailByJid(userJid);
+            if (result != null)
+                return result;
 
-            if ((result == null) && infoRetrieveOnStart) {
+            if (infoRetrieveOnStart) {
                 Timber.i("Proceed to getAvatar for: %s", userId);
                 try {
                     Iterator<ServerStoredDetails.GenericDetail> iter
@@ -1561,9 +1578,9 @@ public class ServerStoredContactListJabberImpl
                 }
             }
             if (result == null) // return no photo if null
-                result = new byte[0];
+                return new byte[0];
 
-            return result;
+            return AvatarManager.getAvatarThumbnail(result);
         }
     }
 
@@ -0,0 +1,311 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.*;
+
+import net.java.sip.communicator.service.protocol.RegistrationState;
+import net.java.sip.communicator.service.protocol.event.RegistrationStateChangeEvent;
+import net.java.sip.communicator.service.protocol.event.RegistrationStateChangeListener;
+
+import org.atalk.android.aTalkApp;
+import org.atalk.util.concurrent.ExecutorFactory;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smackx.csi.ClientStateIndicationManager;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+import timber.log.Timber;
+
+/**
+ * Shapes the XMPP traffic of an account while aTalk is in the background.
+ * <p>
+ * On the app foreground/background transitions, the server is told the client state with
+ * XEP-0352: Client State Indication, so that a supporting server holds back and coalesces the
+ * non-urgent traffic on its side. In addition, the processing of the non-urgent stanzas still
+ * received i.e. presence updates, chat state notifications, delivery receipts and PEP avatar events,
+ * is deferred locally while inactive: the tasks are buffered, coalesced by their key so that only
+ * the last presence of a resource, chat state or avatar of a contact is kept, and run in order on
+ * resume. Messages, IQs, call signalling and the OMEMO device list events are never deferred.
+ *
+ * @author Eng Chong Meng
+ */
+public class TrafficShaper implements LifecycleEventObserver, RegistrationStateChangeListener
+{
+    /**
+     * The key type of the deferred presence updates; coalesced per resource.
+     */
+    public static final String PRESENCE = "presence:";
+
+    /**
+     * The key type of the deferred chat state notifications; coalesced per contact.
+     */
+    public static final String CHAT_STATE = "chatState:";
+
+    /**
+     * The key type of the deferred PEP avatar events; coalesced per contact.
+     */
+    public static final String PEP_AVATAR = "pepAvatar:";
+
+    /**
+     * The maximum number of tasks deferred while inactive; the buffer is flushed when exceeded.
+     */
+    private static final int MAX_DEFERRED_TASKS = 512;
+
+    /**
+     * The provider that created us.
+     */
+    private final ProtocolProviderServiceJabberImpl mPPS;
+
+    /**
+     * The deferred tasks by their coalescing key, in order of last submission; guarded by this.
+     */
+    private final LinkedHashMap<String, Runnable> deferredTasks = new LinkedHashMap<>();
+
+    /**
+     * The thread sending the client state and running the flushed tasks, in order.
+     */
+    private final ExecutorService shaperExecutor = ExecutorFactory.createFixedThreadPool(1, "TrafficShaper-");
+
+    /**
+     * Whether aTalk is in the foreground; guarded by this.
+     */
+    private boolean isActive;
+
+    /**
+     * The number of flushes and tasks queued on {@link #shaperExecutor} which have not completed yet; while
+     * non-zero, the tasks submitted in the foreground are queued on the executor too, behind the flushed
+     * ones. Guarded by this.
+     */
+    private int queuedTasks = 0;
+
+    /**
+     * The sequence number for the keys of the tasks which are not coalesced; guarded by this.
+     */
+    private long sequence = 0;
+
+    /**
+     * Creates the <code>TrafficShaper</code> of an account and starts tracking the app foreground state.
+     *
+     * @param pps the provider of the account
+     */
+    public TrafficShaper(ProtocolProviderServiceJabberImpl pps)
+    {
+        mPPS = pps;
+        mPPS.addRegistrationStateChangeListener(this);
+        isActive = aTalkApp.isForeground;
+
+        // The lifecycle observers must be added on the main thread
+        new Handler(Looper.getMainLooper()).post(()
+                -> ProcessLifecycleOwner.get().getLifecycle().addObserver(TrafficShaper.this));
+    }
+
+    /**
+     * Stops tracking the app foreground state and runs the deferred tasks.
+     */
+    public void dispose()
+    {
+        mPPS.removeRegistrationStateChangeListener(this);
+        new Handler(Looper.getMainLooper()).post(()
+                -> ProcessLifecycleOwner.get().getLifecycle().removeObserver(TrafficShaper.this));
+        flush();
+    }
+
+    /**
+     * Runs a task now if aTalk is in the foreground, else defers it until aTalk returns to the foreground.
+     *
+     * @param type the key type of the task for coalescing e.g. {@link #PRESENCE}; null if the task must not
+     * be coalesced with others, e.g. a delivery receipt
+     * @param id the entity the task is for, e.g. the presence sender
+     * @param task the task processing the stanza
+     */
+    public void submit(String type, Object id, Runnable task)
+    {
+        boolean defer;
+        boolean queue = false;
+        boolean overflow = false;
+        synchronized (this) {
+            defer = !isActive;
+            if (defer) {
+                String key = (type == null) ? String.valueOf(sequence++) : type + id;
+                // Re-insert to keep the order of the last submission
+                deferredTasks.remove(key);
+                deferredTasks.put(key, task);
+                overflow = deferredTasks.size() > MAX_DEFERRED_TASKS;
+            }
+            else if (queuedTasks > 0) {
+                // Keep behind the deferred tasks being flushed
+                queuedTasks++;
+                queue = true;
+            }
+        }
+        if (queue)
+            executeQueued(Collections.singletonList(task));
+        else if (!defer)
+            task.run();
+        else if (overflow)
+            flush();
+    }
+
+    /**
+     * Tracks the app foreground state, for all the activities of aTalk.
+     */
+    @Override
+    public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event)
+    {
+        if (Lifecycle.Event.ON_START == event) {
+            setActive(true);
+        }
+        else if (Lifecycle.Event.ON_STOP == event) {
+            setActive(false);
+        }
+    }
+
+    /**
+     * Sends the client state on login if it differs from the state the stream starts with; and runs
+     * the deferred tasks once the connection is lost, as the states they carry are then reset.
+     */
+    @Override
+    public void registrationStateChanged(RegistrationStateChangeEvent evt)
+    {
+        if (evt.getNewState() == RegistrationState.REGISTERED) {
+            final boolean active;
+            synchronized (this) {
+                active = isActive;
+            }
+            // A new stream starts active, whereas a resumed one keeps the state last sent
+            if (!active || (evt.getReasonCode() == RegistrationStateChangeEvent.REASON_RESUMED))
+                shaperExecutor.execute(() -> sendClientState(active));
+        }
+        else if (evt.getNewState() == RegistrationState.UNREGISTERED
+                || evt.getNewState() == RegistrationState.CONNECTION_FAILED) {
+            flush();
+        }
+    }
+
+    /**
+     * Changes the client state, sending it to the server and running the deferred tasks on resume.
+     *
+     * @param active <code>true</code> if aTalk is now in the foreground
+     */
+    private void setActive(final boolean active)
+    {
+        final List<Runnable> tasks;
+        synchronized (this) {
+            if (isActive == active)
+                return;
+            isActive = active;
+            // Queue the deferred tasks as the state flips, ahead of any task submitted once active
+            tasks = active ? drainDeferredTasks() : null;
+        }
+        Timber.d("Client state for %s: %s", mPPS.getAccountID(), active ? "active" : "inactive");
+        shaperExecutor.execute(() -> sendClientState(active));
+        if (tasks != null)
+            executeQueued(tasks);
+    }
+
+    /**
+     * Sends the XEP-0352 client state if the server supports it.
+     *
+     * @param active <code>true</code> to send &lt;active/&gt;; else &lt;inactive/&gt;
+     */
+    private void sendClientState(boolean active)
+    {
+        XMPPConnection connection = mPPS.getConnection();
+        if ((connection == null) || !connection.isAuthenticated()
+                || !ClientStateIndicationManager.isSupported(connection))
+            return;
+
+        try {
+            if (active)
+                ClientStateIndicationManager.active(connection);
+            else
+                ClientStateIndicationManager.inactive(connection);
+        } catch (Exception e) {
+            Timber.w("Failed to send client state: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Runs all the deferred tasks in order.
+     */
+    private void flush()
+    {
+        final List<Runnable> tasks;
+        synchronized (this) {
+            tasks = drainDeferredTasks();
+        }
+        if (tasks != null)
+            executeQueued(tasks);
+    }
+
+    /**
+     * Takes all the deferred tasks out of the buffer, counting them as queued; must be called with the
+     * lock on this held, and the result passed to {@link #executeQueued(List)}.
+     *
+     * @return the deferred tasks in order, or <code>null</code> if there are none
+     */
+    private List<Runnable> drainDeferredTasks()
+    {
+        if (deferredTasks.isEmpty())
+            return null;
+
+        List<Runnable> tasks = new ArrayList<>(deferredTasks.values());
+        deferredTasks.clear();
+        queuedTasks++;
+        Timber.d("Run %s deferred tasks for: %s", tasks.size(), mPPS.getAccountID());
+        return tasks;
+    }
+
+    /**
+     * Runs tasks in order on {@link #shaperExecutor}, which have been counted in {@link #queuedTasks}.
+     *
+     * @param tasks the tasks to run
+     */
+    private void executeQueued(final List<Runnable> tasks)
+    {
+        shaperExecutor.execute(() -> {
+            try {
+                for (Runnable task : tasks)
+                    runTask(task);
+            } finally {
+                synchronized (TrafficShaper.this) {
+                    queuedTasks--;
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a deferred task, logging rather than propagating its failure so that the next tasks go on.
+     *
+     * @param task the task to run
+     */
+    private static void runTask(Runnable task)
+    {
+        try {
+            task.run();
+        } catch (Exception e) {
+            Timber.e(e, "Deferred task failed");
+        }
+    }
+}
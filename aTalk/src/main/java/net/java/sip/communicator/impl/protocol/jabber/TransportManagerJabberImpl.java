@@ -25,6 +25,7 @@ import org.jivesoftware.smackx.jingle_rtp.element.RtpDescription;
 import org.jxmpp.jid.Jid;
 
 import java.net.InetAddress;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -440,6 +441,24 @@ public abstract class TransportManagerJabberImpl extends TransportManager<CallPe
     {
     }
 
+    /**
+     * Notifies this <code>TransportManagerJabberImpl</code> that it should conclude any started connectivity
+     * establishment, without blocking the calling thread. The default implementation does not perform
+     * connectivity checks and notifies <code>listener</code> right away.
+     *
+     * @param listener the <code>ConnectivityEstablishmentListener</code> to notify once concluded
+     */
+    public void wrapupConnectivityEstablishment(ConnectivityEstablishmentListener listener)
+    {
+        try {
+            wrapupConnectivityEstablishment();
+        } catch (OperationFailedException e) {
+            listener.connectivityFailed(e);
+            return;
+        }
+        listener.connectivityEstablished();
+    }
+
     /**
      * Removes a content with a specific name from the transport-related part of the session
      * represented by this <code>TransportManagerJabberImpl</code> which may have been reported through
@@ -724,4 +743,37 @@ public abstract class TransportManagerJabberImpl extends TransportManager<CallPe
     {
         return false;
     }
+
+    /**
+     * Sets the flag which indicates whether all the media share a single transport (Jingle BUNDLE group).
+     */
+    public abstract void setBundle(boolean bundle);
+
+    public boolean isBundle()
+    {
+        return false;
+    }
+
+    /**
+     * Gets the <code>MediaType</code> which owns the transport shared by all the media in a BUNDLE group.
+     *
+     * @return the <code>MediaType</code> owning the shared transport, or <code>null</code> if BUNDLE is not in use
+     */
+    public MediaType getBundleOwner()
+    {
+        return null;
+    }
+
+    /**
+     * Gives each media of a BUNDLE group its own transport, as the remote peer has not accepted the group.
+     *
+     * @return the contents with the new transports of the media which shared the transport of the BUNDLE
+     * owner, to be sent to the remote peer in a <code>transport-info</code>; empty if BUNDLE is not in use
+     * @throws OperationFailedException if a transport cannot be created for any of the media
+     */
+    public List<JingleContent> unbundle()
+            throws OperationFailedException
+    {
+        return Collections.emptyList();
+    }
 }
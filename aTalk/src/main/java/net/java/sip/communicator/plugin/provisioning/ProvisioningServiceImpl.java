@@ -630,7 +630,7 @@ public class ProvisioningServiceImpl implements ProvisioningService
         String[] prefixes = enforcePrefix.split("\\|");
 
         /* get all properties */
-        for (String key : config.getAllPropertyNames(enforcePrefix)) {
+        for (String key : config.getAllPropertyNames("")) {
             boolean isValid = false;
 
             for (String k : prefixes) {
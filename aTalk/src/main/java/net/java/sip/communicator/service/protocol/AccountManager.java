@@ -22,6 +22,7 @@ import org.atalk.service.osgi.OSGiService;
 import org.bouncycastle.util.encoders.Base64;
 import org.osgi.framework.*;
 
+import java.io.IOException;
 import java.util.*;
 
 import timber.log.Timber;
@@ -111,6 +112,12 @@ public class AccountManager
      */
     private void doLoadStoredAccounts(ProtocolProviderFactory factory)
     {
+        // The account properties are read from the database directly, so write the pending changes first.
+        try {
+            configurationService.storeConfiguration();
+        } catch (IOException e) {
+            Timber.w(e, "Failed to store configuration before loading the accounts");
+        }
         List<AccountID> accountIDs = databaseBackend.getAccounts(factory);
         Timber.d("Found %s %s accounts", accountIDs.size(), factory.getProtocolName());
 
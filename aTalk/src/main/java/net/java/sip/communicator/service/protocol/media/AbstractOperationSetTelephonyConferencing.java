@@ -34,9 +34,6 @@ import org.atalk.service.neomedia.MediaStream;
 import org.atalk.util.xml.XMLException;
 import org.atalk.util.MediaType;
 import org.jxmpp.stringprep.XmppStringprepException;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
@@ -382,68 +379,23 @@ public abstract class AbstractOperationSetTelephonyConferencing<ProtocolProvider
         return basicTelephony;
     }
 
-    private void getEndpointMediaProperties(Node endpoint, Map<String, Object> properties)
+    private void getEndpointMediaProperties(ConferenceInfoDocument.Endpoint endpoint,
+            Map<String, Object> properties)
     {
-        NodeList endpointChildList = endpoint.getChildNodes();
-        int endpoingChildCount = endpointChildList.getLength();
-
-        for (int endpointChildIndex = 0; endpointChildIndex < endpoingChildCount; endpointChildIndex++) {
-            Node endpointChild = endpointChildList.item(endpointChildIndex);
-
-            if (ELEMENT_MEDIA.equals(endpointChild.getNodeName())) {
-                NodeList mediaChildList = endpointChild.getChildNodes();
-                int mediaChildCount = mediaChildList.getLength();
-                String srcId = null;
-                String status = null;
-                String type = null;
-
-                for (int mediaChildIndex = 0; mediaChildIndex < mediaChildCount; mediaChildIndex++) {
-                    Node mediaChild = mediaChildList.item(mediaChildIndex);
-                    String mediaChildName = mediaChild.getNodeName();
-
-                    if (ELEMENT_SRC_ID.equals(mediaChildName))
-                        srcId = mediaChild.getTextContent();
-                    else if (ELEMENT_STATUS.equals(mediaChildName))
-                        status = mediaChild.getTextContent();
-                    else if (ELEMENT_TYPE.equals(mediaChildName))
-                        type = mediaChild.getTextContent();
-                }
+        for (ConferenceInfoDocument.Media media : endpoint.getMedias()) {
+            String type = media.getType();
 
-                if (MediaType.AUDIO.toString().equalsIgnoreCase(type)) {
-                    properties.put(ConferenceMember.AUDIO_SSRC_PROPERTY_NAME, srcId);
-                    properties.put(ConferenceMember.AUDIO_STATUS_PROPERTY_NAME, status);
-                }
-                else if (MediaType.VIDEO.toString().equalsIgnoreCase(type)) {
-                    properties.put(ConferenceMember.VIDEO_SSRC_PROPERTY_NAME, srcId);
-                    properties.put(ConferenceMember.VIDEO_STATUS_PROPERTY_NAME, status);
-                }
+            if (MediaType.AUDIO.toString().equalsIgnoreCase(type)) {
+                properties.put(ConferenceMember.AUDIO_SSRC_PROPERTY_NAME, media.getSrcId());
+                properties.put(ConferenceMember.AUDIO_STATUS_PROPERTY_NAME, media.getStatus());
+            }
+            else if (MediaType.VIDEO.toString().equalsIgnoreCase(type)) {
+                properties.put(ConferenceMember.VIDEO_SSRC_PROPERTY_NAME, media.getSrcId());
+                properties.put(ConferenceMember.VIDEO_STATUS_PROPERTY_NAME, media.getStatus());
             }
         }
     }
 
-    /**
-     * Reads the text content of the <code>status</code> XML element of a specific <code>endpoint</code> XML
-     * element.
-     *
-     * @param endpoint an XML <code>Node</code> which represents the <code>endpoint</code> XML element from which to
-     * get the text content of its <code>status</code> XML element
-     * @return the text content of the <code>status</code> XML element of the specified
-     * <code>endpoint</code> XML element if any; otherwise, <code>null</code>
-     */
-    private String getEndpointStatus(Node endpoint)
-    {
-        NodeList childNodes = endpoint.getChildNodes();
-        int childCount = childNodes.getLength();
-
-        for (int i = 0; i < childCount; i++) {
-            Node child = childNodes.item(i);
-
-            if (ELEMENT_STATUS.equals(child.getNodeName()))
-                return child.getTextContent();
-        }
-        return null;
-    }
-
     /**
      * Gets the remote SSRC to be reported in the conference-info XML for a specific
      * <code>CallPeer</code>'s media of a specific <code>MediaType</code>.
@@ -656,88 +608,63 @@ public abstract class AbstractOperationSetTelephonyConferencing<ProtocolProvider
     private int setConferenceInfoDocument(MediaAwareCallPeerT callPeer,
             ConferenceInfoDocument confInfo)
     {
-        NodeList usersList = confInfo.getDocument().getElementsByTagName(ELEMENT_USERS);
         List<ConferenceMember> conferenceMembers = callPeer.getConferenceMembers();
         ConferenceMember[] toRemove = conferenceMembers.toArray(new ConferenceMember[0]);
         int toRemoveCount = toRemove.length;
         boolean changed = false;
+        Map<String, Object> conferenceMemberProperties = new HashMap<>();
 
-        if (usersList.getLength() > 0) {
-            NodeList userList = usersList.item(0).getChildNodes();
-            int userCount = userList.getLength();
-            Map<String, Object> conferenceMemberProperties = new HashMap<>();
-
-            for (int userIndex = 0; userIndex < userCount; userIndex++) {
-                Node user = userList.item(userIndex);
+        for (ConferenceInfoDocument.User user : confInfo.getUsers()) {
+            String address = stripParametersFromAddress(user.getEntity());
 
-                if (!ELEMENT_USER.equals(user.getNodeName()))
-                    continue;
+            if ((address == null) || (address.length() < 1))
+                continue;
 
-                String address = stripParametersFromAddress(((Element) user).getAttribute("entity"));
-
-                if ((address == null) || (address.length() < 1))
-                    continue;
-
-                /*
-                 * Determine the ConferenceMembers who are no longer in the list i.e. are to be
-                 * removed.
-                 */
-                AbstractConferenceMember conferenceMember = null;
+            /*
+             * Determine the ConferenceMembers who are no longer in the list i.e. are to be
+             * removed.
+             */
+            AbstractConferenceMember conferenceMember = null;
 
-                for (int i = 0; i < toRemoveCount; i++) {
-                    ConferenceMember aConferenceMember = toRemove[i];
+            for (int i = 0; i < toRemoveCount; i++) {
+                ConferenceMember aConferenceMember = toRemove[i];
 
-                    if ((aConferenceMember != null)
-                            && address.equalsIgnoreCase(aConferenceMember.getAddress())) {
-                        toRemove[i] = null;
-                        conferenceMember = (AbstractConferenceMember) aConferenceMember;
-                        break;
-                    }
+                if ((aConferenceMember != null)
+                        && address.equalsIgnoreCase(aConferenceMember.getAddress())) {
+                    toRemove[i] = null;
+                    conferenceMember = (AbstractConferenceMember) aConferenceMember;
+                    break;
                 }
+            }
 
-                // Create the new ones.
-                boolean addConferenceMember;
+            // Create the new ones.
+            boolean addConferenceMember;
 
-                if (conferenceMember == null) {
-                    conferenceMember = new AbstractConferenceMember(callPeer, address);
-                    addConferenceMember = true;
-                }
-                else
-                    addConferenceMember = false;
-
-                // Update the existing ones.
-                if (conferenceMember != null) {
-                    NodeList userChildList = user.getChildNodes();
-                    int userChildCount = userChildList.getLength();
-                    String displayName = null;
-                    String endpointStatus = null;
-
-                    conferenceMemberProperties.put(ConferenceMember.AUDIO_SSRC_PROPERTY_NAME, null);
-                    conferenceMemberProperties.put(ConferenceMember.AUDIO_STATUS_PROPERTY_NAME,
-                            null);
-                    conferenceMemberProperties.put(ConferenceMember.VIDEO_SSRC_PROPERTY_NAME, null);
-                    conferenceMemberProperties.put(ConferenceMember.VIDEO_STATUS_PROPERTY_NAME,
-                            null);
-                    for (int userChildIndex = 0; userChildIndex < userChildCount; userChildIndex++) {
-                        Node userChild = userChildList.item(userChildIndex);
-                        String userChildName = userChild.getNodeName();
-
-                        if (ELEMENT_DISPLAY_TEXT.equals(userChildName))
-                            displayName = userChild.getTextContent();
-                        else if (ELEMENT_ENDPOINT.equals(userChildName)) {
-                            endpointStatus = getEndpointStatus(userChild);
-                            getEndpointMediaProperties(userChild, conferenceMemberProperties);
-                        }
-                    }
-                    conferenceMember.setDisplayName(displayName);
-                    conferenceMember.setEndpointStatus(endpointStatus);
+            if (conferenceMember == null) {
+                conferenceMember = new AbstractConferenceMember(callPeer, address);
+                addConferenceMember = true;
+            }
+            else
+                addConferenceMember = false;
+
+            // Update the existing ones.
+            String endpointStatus = null;
+
+            conferenceMemberProperties.put(ConferenceMember.AUDIO_SSRC_PROPERTY_NAME, null);
+            conferenceMemberProperties.put(ConferenceMember.AUDIO_STATUS_PROPERTY_NAME, null);
+            conferenceMemberProperties.put(ConferenceMember.VIDEO_SSRC_PROPERTY_NAME, null);
+            conferenceMemberProperties.put(ConferenceMember.VIDEO_STATUS_PROPERTY_NAME, null);
+            for (ConferenceInfoDocument.Endpoint endpoint : user.getEndpoints()) {
+                endpointStatus = endpoint.getStatusText();
+                getEndpointMediaProperties(endpoint, conferenceMemberProperties);
+            }
+            conferenceMember.setDisplayName(user.getDisplayText());
+            conferenceMember.setEndpointStatus(endpointStatus);
 
-                    changed = conferenceMember.setProperties(conferenceMemberProperties);
+            changed = conferenceMember.setProperties(conferenceMemberProperties);
 
-                    if (addConferenceMember)
-                        callPeer.addConferenceMember(conferenceMember);
-                }
-            }
+            if (addConferenceMember)
+                callPeer.addConferenceMember(conferenceMember);
         }
 
         /*
@@ -886,6 +813,8 @@ public abstract class AbstractOperationSetTelephonyConferencing<ProtocolProvider
             }
         }
 
+        // Only the users which changed since the last notification of callPeer get serialized again.
+        confInfo.reuseEncodings(callPeer.getLastConferenceInfoSent());
         return confInfo;
     }
 
@@ -6,22 +6,25 @@
 package net.java.sip.communicator.service.protocol.media;
 
 import org.atalk.util.xml.XMLException;
-import org.atalk.util.xml.XMLUtils;
-import org.w3c.dom.*;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.xml.XmlPullParser;
 
-import java.io.*;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
 import timber.log.Timber;
 
 /**
- * A class that represents a Conference Information XML document as defined in RFC4575. It wraps
- * around a DOM <code>Document</code> providing convenience functions.
+ * A class that represents a Conference Information XML document as defined in RFC4575. It is a
+ * lightweight object model of the <code>conference-info</code> element, which is parsed with a pull
+ * parser and serialized by appending directly to a <code>StringBuilder</code>.
+ * <p>
+ * The serialized form of the document and of each of its <code>user</code>, <code>endpoint</code>
+ * and <code>media</code> elements is cached until the element changes, so that serializing the
+ * document again only regenerates the elements which have changed. The cached forms are kept when
+ * elements are copied into another document (e.g. into a partial notification), and
+ * {@link #reuseEncodings(ConferenceInfoDocument)} carries them over from the document last sent to
+ * a peer into a newly generated one. Like the DOM it replaces, the document is not thread safe.
  *
  * {@link "https://tools.ietf.org/html/rfc4575"}
  *
@@ -117,39 +120,64 @@ public class ConferenceInfoDocument
     public static final String DISPLAY_TEXT_ELEMENT = "display-text";
 
     /**
-     * The <code>Document</code> object that we wrap around.
+     * The name of the "sid" attribute, which is not part of RFC4575.
+     */
+    private static final String SID_ATTR_NAME = "sid";
+
+    /**
+     * The initial capacity of the buffer which a document is serialized into.
      */
-    private Document document;
+    private static final int INITIAL_BUFFER_CAPACITY = 1024;
 
     /**
-     * The single <code>conference-info</code> element of <code>document</code>
+     * The value of the <code>version</code> attribute of <code>conference-info</code>, or -1 if
+     * there is no such attribute or it couldn't be parsed as an integer.
      */
-    private Element conferenceInfo;
+    private int version = -1;
 
     /**
-     * The <code>conference-description</code> child element of <code>conference-info</code>.
+     * The value of the <code>state</code> attribute of <code>conference-info</code>, or
+     * <code>null</code> for the default <code>State.FULL</code>.
      */
-    private Element conferenceDescription;
+    private State state;
 
     /**
-     * The <code>conference-state</code> child element of <code>conference-info</code>.
+     * The value of the <code>sid</code> attribute of <code>conference-info</code>, or <code>null</code>.
      */
-    private Element conferenceState;
+    private String sid;
 
     /**
-     * The <code>conference-state</code> child element of <code>conference-state</code>.
+     * The value of the <code>entity</code> attribute of <code>conference-info</code>, or <code>null</code>.
      */
-    private Element userCount;
+    private String entity;
 
     /**
-     * The <code>users</code> child element of <code>conference-info</code>.
+     * The text content of the <code>user-count</code> child of the <code>conference-state</code>
+     * child of <code>conference-info</code>, or <code>null</code> if there is no such element.
      */
-    private Element users;
+    private String userCount;
+
+    /**
+     * The value of the <code>state</code> attribute of the <code>users</code> child of
+     * <code>conference-info</code>, or <code>null</code> for the default <code>State.FULL</code>.
+     */
+    private State usersState;
 
     /**
      * A list of <code>User</code>s representing the children of <code>users</code>
      */
-    private final List<User> usersList = new LinkedList<>();
+    private final List<User> usersList = new ArrayList<>();
+
+    /**
+     * The cached XML representation of this document, or <code>null</code> if it has changed since
+     * it was last serialized.
+     */
+    private String xml;
+
+    /**
+     * The buffer which this document is serialized into, kept for the next serialization.
+     */
+    private StringBuilder buffer;
 
     /**
      * Creates a new <code>ConferenceInfoDocument</code> instance.
@@ -159,27 +187,8 @@ public class ConferenceInfoDocument
     public ConferenceInfoDocument()
             throws XMLException
     {
-        try {
-            document = XMLUtils.createDocument();
-        } catch (Exception e) {
-            Timber.e(e, "Failed to create a new document.");
-            throw (new XMLException(e.getMessage()));
-        }
-
-        conferenceInfo = document.createElementNS(NAMESPACE, CONFERENCE_INFO_ELEMENT);
-        document.appendChild(conferenceInfo);
-
         setVersion(1);
-
-        conferenceDescription = document.createElement(CONFERENCE_DESCRIPTION_ELEMENT);
-        conferenceInfo.appendChild(conferenceDescription);
-
-        conferenceState = document.createElement(CONFERENCE_STATE_ELEMENT);
-        conferenceInfo.appendChild(conferenceState);
         setUserCount(0);
-
-        users = document.createElement(USERS_ELEMENT);
-        conferenceInfo.appendChild(users);
     }
 
     /**
@@ -192,50 +201,68 @@ public class ConferenceInfoDocument
     public ConferenceInfoDocument(String xml)
             throws XMLException
     {
-        byte[] bytes;
+        boolean hasConferenceDescription = false;
+        boolean hasUsers = false;
 
         try {
-            bytes = xml.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException uee) {
-            Timber.w(uee, "Failed to gets bytes from String for the UTF-8 charset");
-            bytes = xml.getBytes();
-        }
+            XmlPullParser parser = PacketParserUtils.getParserFor(xml);
+            if (!CONFERENCE_INFO_ELEMENT.equals(parser.getName())) {
+                throw new XMLException("Could not parse conference-info document,"
+                        + " conference-info element not found");
+            }
 
-        try {
-            document = XMLUtils.newDocumentBuilderFactory().newDocumentBuilder()
-                    .parse(new ByteArrayInputStream(bytes));
+            version = parseVersion(parser.getAttributeValue("", VERSION_ATTR_NAME));
+            state = parseState(parser.getAttributeValue("", STATE_ATTR_NAME));
+            sid = parser.getAttributeValue("", SID_ATTR_NAME);
+            entity = parser.getAttributeValue("", ENTITY_ATTR_NAME);
+
+            int depth = parser.getDepth();
+            while (nextChild(parser, depth)) {
+                switch (parser.getName()) {
+                case CONFERENCE_DESCRIPTION_ELEMENT:
+                    hasConferenceDescription = true;
+                    skipElement(parser);
+                    break;
+                case CONFERENCE_STATE_ELEMENT:
+                    int stateDepth = parser.getDepth();
+                    while (nextChild(parser, stateDepth)) {
+                        if (USER_COUNT_ELEMENT.equals(parser.getName()))
+                            userCount = parser.nextText();
+                        else
+                            skipElement(parser);
+                    }
+                    break;
+                case USERS_ELEMENT:
+                    hasUsers = true;
+                    usersState = parseState(parser.getAttributeValue("", STATE_ATTR_NAME));
+                    int usersDepth = parser.getDepth();
+                    while (nextChild(parser, usersDepth)) {
+                        if (USER_ELEMENT.equals(parser.getName()))
+                            usersList.add(new User(parser));
+                        else
+                            skipElement(parser);
+                    }
+                    break;
+                default:
+                    skipElement(parser);
+                    break;
+                }
+            }
+        } catch (XMLException e) {
+            throw e;
         } catch (Exception e) {
-            throw new XMLException(e.getMessage());
-        }
-
-        conferenceInfo = document.getDocumentElement();
-        if (conferenceInfo == null) {
-            throw new XMLException("Could not parse conference-info document,"
-                    + " conference-info element not found");
+            throw new XMLException(e.getMessage(), e);
         }
 
-        conferenceDescription = XMLUtils.findChild(conferenceInfo,
-                CONFERENCE_DESCRIPTION_ELEMENT);
         // conference-description is mandatory
-        if (conferenceDescription == null) {
+        if (!hasConferenceDescription) {
             throw new XMLException("Could not parse conference-info document,"
                     + " conference-description element not found");
         }
-
-        conferenceState = XMLUtils.findChild(conferenceInfo, CONFERENCE_STATE_ELEMENT);
-        if (conferenceState != null)
-            userCount = XMLUtils.findChild(conferenceState, USER_COUNT_ELEMENT);
-
-        users = XMLUtils.findChild(conferenceInfo, USERS_ELEMENT);
-        if (users == null) {
+        if (!hasUsers) {
             throw new XMLException("Could not parse conference-info document,"
                     + " 'users' element not found");
         }
-        NodeList usersNodeList = users.getElementsByTagName(USER_ELEMENT);
-        for (int i = 0; i < usersNodeList.getLength(); i++) {
-            User user = new User((Element) usersNodeList.item(i));
-            usersList.add(user);
-        }
     }
 
     /**
@@ -275,16 +302,6 @@ public class ConferenceInfoDocument
      */
     public int getVersion()
     {
-        String versionString = conferenceInfo.getAttribute(VERSION_ATTR_NAME);
-        if (versionString == null)
-            return -1;
-        int version = -1;
-        try {
-            version = Integer.parseInt(versionString);
-        } catch (NumberFormatException e) {
-            Timber.i("Failed to parse version string: %s", versionString);
-        }
-
         return version;
     }
 
@@ -296,7 +313,8 @@ public class ConferenceInfoDocument
      */
     public void setVersion(int version)
     {
-        conferenceInfo.setAttribute(VERSION_ATTR_NAME, Integer.toString(version));
+        this.version = version;
+        xml = null;
     }
 
     /**
@@ -306,7 +324,7 @@ public class ConferenceInfoDocument
      */
     public State getState()
     {
-        return getState(conferenceInfo);
+        return (state == null) ? State.FULL : state;
     }
 
     /**
@@ -318,7 +336,7 @@ public class ConferenceInfoDocument
      */
     public State getUsersState()
     {
-        return getState(users);
+        return (usersState == null) ? State.FULL : usersState;
     }
 
     /**
@@ -329,7 +347,8 @@ public class ConferenceInfoDocument
      */
     public void setUsersState(State state)
     {
-        setState(users, state);
+        usersState = (state == State.FULL) ? null : state;
+        xml = null;
     }
 
     /**
@@ -340,7 +359,8 @@ public class ConferenceInfoDocument
      */
     public void setState(State state)
     {
-        setState(conferenceInfo, state);
+        this.state = (state == State.FULL) ? null : state;
+        xml = null;
     }
 
     /**
@@ -353,10 +373,8 @@ public class ConferenceInfoDocument
      */
     public void setSid(String sid)
     {
-        if (sid == null || sid.equals(""))
-            conferenceInfo.removeAttribute("sid");
-        else
-            conferenceInfo.setAttribute("sid", sid);
+        this.sid = emptyToNull(sid);
+        xml = null;
     }
 
     /**
@@ -366,7 +384,7 @@ public class ConferenceInfoDocument
      */
     public String getSid()
     {
-        return conferenceInfo.getAttribute("sid");
+        return nullToEmpty(sid);
     }
 
     /**
@@ -377,10 +395,8 @@ public class ConferenceInfoDocument
      */
     public void setEntity(String entity)
     {
-        if (entity == null || entity.equals(""))
-            conferenceInfo.removeAttribute(ENTITY_ATTR_NAME);
-        else
-            conferenceInfo.setAttribute(ENTITY_ATTR_NAME, entity);
+        this.entity = emptyToNull(entity);
+        xml = null;
     }
 
     /**
@@ -390,7 +406,7 @@ public class ConferenceInfoDocument
      */
     public String getEntity()
     {
-        return conferenceInfo.getAttribute(ENTITY_ATTR_NAME);
+        return nullToEmpty(entity);
     }
 
     /**
@@ -401,20 +417,8 @@ public class ConferenceInfoDocument
      */
     public void setUserCount(int count)
     {
-        // conference-state and its user-count child aren't mandatory
-        if (userCount != null) {
-            userCount.setTextContent(Integer.toString(count));
-        }
-        else {
-            if (conferenceState == null) {
-                conferenceState = document.createElement(CONFERENCE_STATE_ELEMENT);
-                conferenceInfo.appendChild(conferenceState);
-            }
-
-            userCount = document.createElement(USER_COUNT_ELEMENT);
-            userCount.setTextContent(Integer.toString(count));
-            conferenceState.appendChild(userCount);
-        }
+        userCount = Integer.toString(count);
+        xml = null;
     }
 
     /**
@@ -430,7 +434,7 @@ public class ConferenceInfoDocument
     {
         int ret = -1;
         try {
-            ret = Integer.parseInt(userCount.getTextContent());
+            ret = Integer.parseInt(userCount.trim());
         } catch (Exception e) {
             Timber.w("Could not parse user-count field");
         }
@@ -446,15 +450,38 @@ public class ConferenceInfoDocument
      */
     public String toXml(String enclosingNamespace)
     {
-        try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            StringWriter buffer = new StringWriter();
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.transform(new DOMSource(conferenceInfo), new StreamResult(buffer));
-            return buffer.toString();
-        } catch (Exception e) {
-            return null;
+        if (xml == null) {
+            if (buffer == null)
+                buffer = new StringBuilder(INITIAL_BUFFER_CAPACITY);
+            else
+                buffer.setLength(0);
+
+            StringBuilder out = buffer;
+            out.append('<').append(CONFERENCE_INFO_ELEMENT).append(" xmlns=\"").append(NAMESPACE).append('"');
+            appendAttribute(out, ENTITY_ATTR_NAME, entity);
+            appendAttribute(out, STATE_ATTR_NAME, state);
+            appendAttribute(out, VERSION_ATTR_NAME, (version == -1) ? null : Integer.toString(version));
+            appendAttribute(out, SID_ATTR_NAME, sid);
+            out.append('>');
+
+            out.append('<').append(CONFERENCE_DESCRIPTION_ELEMENT).append("/>");
+            if (userCount != null) {
+                out.append('<').append(CONFERENCE_STATE_ELEMENT).append('>');
+                appendTextElement(out, USER_COUNT_ELEMENT, userCount);
+                out.append("</").append(CONFERENCE_STATE_ELEMENT).append('>');
+            }
+
+            out.append('<').append(USERS_ELEMENT);
+            appendAttribute(out, STATE_ATTR_NAME, usersState);
+            out.append('>');
+            for (User user : usersList)
+                user.appendTo(out);
+            out.append("</").append(USERS_ELEMENT).append('>');
+
+            out.append("</").append(CONFERENCE_INFO_ELEMENT).append('>');
+            xml = out.toString();
         }
+        return xml;
     }
 
     /**
@@ -509,12 +536,11 @@ public class ConferenceInfoDocument
      */
     public User addNewUser(String entity)
     {
-        Element userElement = document.createElement(USER_ELEMENT);
-        User user = new User(userElement);
+        User user = new User();
         user.setEntity(entity);
 
-        users.appendChild(userElement);
         usersList.add(user);
+        xml = null;
 
         return user;
     }
@@ -531,6 +557,7 @@ public class ConferenceInfoDocument
         newUser.setState(user.getState());
         for (Endpoint endpoint : user.getEndpoints())
             newUser.addEndpoint(endpoint);
+        newUser.xml = user.xml;
     }
 
     /**
@@ -543,72 +570,197 @@ public class ConferenceInfoDocument
         User user = getUser(entity);
         if (user != null) {
             usersList.remove(user);
-            users.removeChild(user.userElement);
+            xml = null;
         }
     }
 
     /**
-     * Returns the <code>Document</code> that this instance wraps around.
+     * Takes over the cached XML representations of the <code>user</code> elements of a document
+     * previously generated for the same peer, for those <code>User</code>s of this document which
+     * haven't changed since, so that serializing this document only regenerates the changed ones.
      *
-     * @return the <code>Document</code> that this instance wraps around.
+     * @param previous the document previously generated for the same peer, or <code>null</code>
      */
-    public Document getDocument()
+    public void reuseEncodings(ConferenceInfoDocument previous)
     {
-        return document;
+        if (previous == null)
+            return;
+
+        for (User user : usersList) {
+            User previousUser = previous.getUser(user.getEntity());
+            if ((previousUser != null) && user.matches(previousUser))
+                user.xml = previousUser.getXml();
+        }
+        xml = null;
     }
 
     /**
-     * Returns the <code>State</code> corresponding to the <code>state</code> attribute of an
-     * <code>Element</code>. Default to <code>State.FULL</code> which is the RFC4575 default.
+     * Parses the value of a <code>version</code> attribute.
      *
-     * @param element the <code>Element</code>
-     * @return the <code>State</code> corresponding to the <code>state</code> attribute of an
-     * <code>Element</code>.
+     * @param versionString the value of the attribute or <code>null</code>
+     * @return the version or -1 if <code>versionString</code> is <code>null</code> or couldn't be parsed
      */
-    private State getState(Element element)
+    private static int parseVersion(String versionString)
     {
-        State state = State.parseString(element.getAttribute(STATE_ATTR_NAME));
-        return state == null ? State.FULL : state;
+        if (versionString == null)
+            return -1;
+        int version = -1;
+        try {
+            version = Integer.parseInt(versionString);
+        } catch (NumberFormatException e) {
+            Timber.i("Failed to parse version string: %s", versionString);
+        }
+
+        return version;
     }
 
     /**
-     * Sets the "state" attribute of <code>element</code> to <code>state</code>. If <code>state</code> is
-     * <code>State.FULL</code> removes the "state" attribute, because this is the default value.
+     * Parses the value of a <code>state</code> attribute.
      *
-     * @param element The <code>Element</code> for which to set the "state" attribute of.
-     * @param state the <code>State</code> which to set.
+     * @param stateString the value of the attribute or <code>null</code>
+     * @return the <code>State</code> of <code>stateString</code>, or <code>null</code> for the default
+     * <code>State.FULL</code> or an unknown value
      */
-    private void setState(Element element, State state)
+    private static State parseState(String stateString)
     {
-        if (element != null) {
-            if (state == State.FULL || state == null)
-                element.removeAttribute(STATE_ATTR_NAME);
-            else
-                element.setAttribute(STATE_ATTR_NAME, state.toString());
+        State state = State.parseString(stateString);
+        return (state == State.FULL) ? null : state;
+    }
+
+    /**
+     * Advances a parser to the next child element of the element at a specific depth.
+     *
+     * @param parser the parser
+     * @param depth the depth of the parent element
+     * @return <code>true</code> if the parser is at the start of a child element, or <code>false</code>
+     * if it is at the end of the parent element
+     * @throws Exception if parsing failed
+     */
+    private static boolean nextChild(XmlPullParser parser, int depth)
+            throws Exception
+    {
+        while (true) {
+            switch (parser.next()) {
+            case START_ELEMENT:
+                return true;
+            case END_ELEMENT:
+                if (parser.getDepth() == depth)
+                    return false;
+                break;
+            case END_DOCUMENT:
+                throw new XMLException("Unexpected end of conference-info document");
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Skips the element a parser is at the start of, along with its children.
+     *
+     * @param parser the parser
+     * @throws Exception if parsing failed
+     */
+    private static void skipElement(XmlPullParser parser)
+            throws Exception
+    {
+        int depth = parser.getDepth();
+        while (nextChild(parser, depth))
+            skipElement(parser);
+    }
+
+    /**
+     * Appends an attribute to a start tag, escaping its value, unless the value is <code>null</code>.
+     *
+     * @param out the buffer to append to
+     * @param name the name of the attribute
+     * @param value the value of the attribute, or <code>null</code>
+     */
+    private static void appendAttribute(StringBuilder out, String name, Object value)
+    {
+        if (value != null) {
+            out.append(' ').append(name).append("=\"");
+            appendEscaped(out, value.toString());
+            out.append('"');
+        }
+    }
+
+    /**
+     * Appends an element with text content, escaping the text, unless the text is <code>null</code>.
+     *
+     * @param out the buffer to append to
+     * @param name the name of the element
+     * @param text the text content of the element, or <code>null</code>
+     */
+    private static void appendTextElement(StringBuilder out, String name, String text)
+    {
+        if (text != null) {
+            out.append('<').append(name).append('>');
+            appendEscaped(out, text);
+            out.append("</").append(name).append('>');
         }
     }
 
     /**
-     * Sets the <code>status</code> child element of <code>element</code>. If <code>statusString</code> is
-     * <code>null</code>, the child element is removed if present.
+     * Appends a string, escaping the characters which are special in XML text and attribute values.
      *
-     * @param element the <code>Element</code> for which to set the <code>status</code> child element.
-     * @param statusString the <code>String</code> to use for the text content of the <code>status</code> element
+     * @param out the buffer to append to
+     * @param s the string to append
      */
-    private void setStatus(Element element, String statusString)
+    private static void appendEscaped(StringBuilder out, String s)
     {
-        Element statusElement = XMLUtils.findChild(element, STATUS_ELEMENT);
-        if (statusString == null || statusString.equals("")) {
-            if (statusElement != null)
-                element.removeChild(statusElement);
-        }
-        else {
-            if (statusElement == null) {
-                statusElement = document.createElement(STATUS_ELEMENT);
-                element.appendChild(statusElement);
+        int length = s.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            String escape;
+            switch (s.charAt(i)) {
+            case '&':
+                escape = "&amp;";
+                break;
+            case '<':
+                escape = "&lt;";
+                break;
+            case '>':
+                escape = "&gt;";
+                break;
+            case '"':
+                escape = "&quot;";
+                break;
+            case '\'':
+                escape = "&apos;";
+                break;
+            default:
+                continue;
             }
-            statusElement.setTextContent(statusString);
+            out.append(s, start, i).append(escape);
+            start = i + 1;
         }
+        out.append(s, start, length);
+    }
+
+    /**
+     * @return <code>null</code> if <code>s</code> is <code>null</code> or empty; otherwise, <code>s</code>
+     */
+    private static String emptyToNull(String s)
+    {
+        return (s == null || s.equals("")) ? null : s;
+    }
+
+    /**
+     * @return the empty string if <code>s</code> is <code>null</code>, as for a missing attribute;
+     * otherwise, <code>s</code>
+     */
+    private static String nullToEmpty(String s)
+    {
+        return (s == null) ? "" : s;
+    }
+
+    /**
+     * @return <code>true</code> if <code>a</code> and <code>b</code> are both <code>null</code> or equal
+     */
+    private static boolean equal(Object a, Object b)
+    {
+        return (a == null) ? (b == null) : a.equals(b);
     }
 
     /**
@@ -676,35 +828,66 @@ public class ConferenceInfoDocument
     }
 
     /**
-     * Wraps around an <code>Element</code> and represents a <code>user</code> element (child of the
-     * <code>users</code> element). See RFC4575.
+     * Represents a <code>user</code> element (child of the <code>users</code> element). See RFC4575.
      */
     public class User
     {
         /**
-         * The underlying <code>Element</code>.
+         * The value of the <code>entity</code> attribute, or <code>null</code>.
+         */
+        private String entity;
+
+        /**
+         * The value of the <code>state</code> attribute, or <code>null</code> for the default
+         * <code>State.FULL</code>.
+         */
+        private State state;
+
+        /**
+         * The text content of the <code>display-text</code> child element, or <code>null</code>.
          */
-        private Element userElement;
+        private String displayText;
 
         /**
          * The list of <code>Endpoint</code>s representing the <code>endpoint</code> children of this
          * <code>User</code>'s element.
          */
-        private List<Endpoint> endpointsList = new LinkedList<>();
+        private final List<Endpoint> endpointsList = new ArrayList<>();
 
         /**
-         * Creates a new <code>User</code> instance with the specified <code>Element</code> as its
-         * underlying element.
+         * The cached XML representation of this <code>User</code>, or <code>null</code>.
+         */
+        private String xml;
+
+        /**
+         * Creates a new empty <code>User</code> instance.
+         */
+        private User()
+        {
+        }
+
+        /**
+         * Creates a new <code>User</code> instance from the <code>user</code> element a parser is at
+         * the start of.
          *
-         * @param user the <code>Element</code> to use
+         * @param parser the parser
+         * @throws Exception if parsing failed
          */
-        private User(Element user)
+        private User(XmlPullParser parser)
+                throws Exception
         {
-            this.userElement = user;
-            NodeList endpointsNodeList = user.getElementsByTagName(ENDPOINT_ELEMENT);
-            for (int i = 0; i < endpointsNodeList.getLength(); i++) {
-                Endpoint endpoint = new Endpoint((Element) endpointsNodeList.item(i));
-                endpointsList.add(endpoint);
+            entity = emptyToNull(parser.getAttributeValue("", ENTITY_ATTR_NAME));
+            state = parseState(parser.getAttributeValue("", STATE_ATTR_NAME));
+
+            int depth = parser.getDepth();
+            while (nextChild(parser, depth)) {
+                String name = parser.getName();
+                if (DISPLAY_TEXT_ELEMENT.equals(name))
+                    displayText = parser.nextText();
+                else if (ENDPOINT_ELEMENT.equals(name))
+                    endpointsList.add(new Endpoint(this, parser));
+                else
+                    skipElement(parser);
             }
         }
 
@@ -715,10 +898,8 @@ public class ConferenceInfoDocument
          */
         public void setEntity(String entity)
         {
-            if (entity == null || entity.equals(""))
-                userElement.removeAttribute(ENTITY_ATTR_NAME);
-            else
-                userElement.setAttribute(ENTITY_ATTR_NAME, entity);
+            this.entity = emptyToNull(entity);
+            invalidate();
         }
 
         /**
@@ -728,7 +909,7 @@ public class ConferenceInfoDocument
          */
         public String getEntity()
         {
-            return userElement.getAttribute(ENTITY_ATTR_NAME);
+            return nullToEmpty(entity);
         }
 
         /**
@@ -738,7 +919,8 @@ public class ConferenceInfoDocument
          */
         public void setState(State state)
         {
-            ConferenceInfoDocument.this.setState(userElement, state);
+            this.state = (state == State.FULL) ? null : state;
+            invalidate();
         }
 
         /**
@@ -748,7 +930,7 @@ public class ConferenceInfoDocument
          */
         public State getState()
         {
-            return ConferenceInfoDocument.this.getState(userElement);
+            return (state == null) ? State.FULL : state;
         }
 
         /**
@@ -758,18 +940,8 @@ public class ConferenceInfoDocument
          */
         public void setDisplayText(String text)
         {
-            Element displayText = XMLUtils.findChild(userElement, DISPLAY_TEXT_ELEMENT);
-            if (text == null || text.equals("")) {
-                if (displayText != null)
-                    userElement.removeChild(displayText);
-            }
-            else {
-                if (displayText == null) {
-                    displayText = document.createElement(DISPLAY_TEXT_ELEMENT);
-                    userElement.appendChild(displayText);
-                }
-                displayText.setTextContent(text);
-            }
+            displayText = emptyToNull(text);
+            invalidate();
         }
 
         /**
@@ -781,11 +953,7 @@ public class ConferenceInfoDocument
          */
         public String getDisplayText()
         {
-            Element displayText = XMLUtils.findChild(userElement, DISPLAY_TEXT_ELEMENT);
-            if (displayText != null)
-                return displayText.getTextContent();
-
-            return null;
+            return displayText;
         }
 
         /**
@@ -827,12 +995,11 @@ public class ConferenceInfoDocument
          */
         public Endpoint addNewEndpoint(String entity)
         {
-            Element endpointElement = document.createElement(ENDPOINT_ELEMENT);
-            Endpoint endpoint = new Endpoint(endpointElement);
+            Endpoint endpoint = new Endpoint(this);
             endpoint.setEntity(entity);
 
-            userElement.appendChild(endpointElement);
             endpointsList.add(endpoint);
+            invalidate();
 
             return endpoint;
         }
@@ -845,10 +1012,11 @@ public class ConferenceInfoDocument
         public void addEndpoint(Endpoint endpoint)
         {
             Endpoint newEndpoint = addNewEndpoint(endpoint.getEntity());
-            newEndpoint.setStatus(endpoint.getStatus());
+            newEndpoint.setStatus(endpoint.status);
             newEndpoint.setState(endpoint.getState());
             for (Media media : endpoint.getMedias())
                 newEndpoint.addMedia(media);
+            newEndpoint.xml = endpoint.xml;
         }
 
         /**
@@ -862,40 +1030,149 @@ public class ConferenceInfoDocument
             Endpoint endpoint = getEndpoint(entity);
             if (endpoint != null) {
                 endpointsList.remove(endpoint);
-                userElement.removeChild(endpoint.endpointElement);
+                invalidate();
+            }
+        }
+
+        /**
+         * Determines whether this <code>User</code> has the same content as another one, so that
+         * both have the same XML representation.
+         *
+         * @param other the <code>User</code> to compare to
+         * @return <code>true</code> if this <code>User</code> and <code>other</code> have the same content
+         */
+        private boolean matches(User other)
+        {
+            if (!equal(entity, other.entity) || state != other.state
+                    || !equal(displayText, other.displayText)
+                    || endpointsList.size() != other.endpointsList.size())
+                return false;
+
+            for (int i = 0; i < endpointsList.size(); i++) {
+                if (!endpointsList.get(i).matches(other.endpointsList.get(i)))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Clears the cached XML representation of this <code>User</code> and of its document.
+         */
+        private void invalidate()
+        {
+            xml = null;
+            ConferenceInfoDocument.this.xml = null;
+        }
+
+        /**
+         * Gets the XML representation of this <code>User</code>, serializing it if it isn't cached.
+         *
+         * @return the XML representation of this <code>User</code>
+         */
+        private String getXml()
+        {
+            if (xml == null)
+                appendTo(new StringBuilder());
+            return xml;
+        }
+
+        /**
+         * Appends the XML representation of this <code>User</code> to a buffer, from the cache
+         * if it hasn't changed since it was last serialized.
+         *
+         * @param out the buffer to append to
+         */
+        private void appendTo(StringBuilder out)
+        {
+            if (xml != null) {
+                out.append(xml);
+                return;
             }
+
+            int start = out.length();
+            out.append('<').append(USER_ELEMENT);
+            appendAttribute(out, ENTITY_ATTR_NAME, entity);
+            appendAttribute(out, STATE_ATTR_NAME, state);
+            out.append('>');
+            appendTextElement(out, DISPLAY_TEXT_ELEMENT, displayText);
+            for (Endpoint endpoint : endpointsList)
+                endpoint.appendTo(out);
+            out.append("</").append(USER_ELEMENT).append('>');
+            xml = out.substring(start);
         }
     }
 
     /**
-     * Wraps around an <code>Element</code> and represents an <code>endpoint</code> element. See RFC4575.
+     * Represents an <code>endpoint</code> element. See RFC4575.
      */
     public class Endpoint
     {
         /**
-         * The underlying <code>Element</code>.
+         * The <code>User</code> this <code>Endpoint</code> belongs to.
+         */
+        private final User user;
+
+        /**
+         * The value of the <code>entity</code> attribute, or <code>null</code>.
+         */
+        private String entity;
+
+        /**
+         * The value of the <code>state</code> attribute, or <code>null</code> for the default
+         * <code>State.FULL</code>.
+         */
+        private State state;
+
+        /**
+         * The text content of the <code>status</code> child element, or <code>null</code>.
          */
-        private Element endpointElement;
+        private String status;
 
         /**
          * The list of <code>Media</code>s representing the <code>media</code> children elements of this
          * <code>Endpoint</code>'s element.
          */
-        private List<Media> mediasList = new LinkedList<>();
+        private final List<Media> mediasList = new ArrayList<>();
+
+        /**
+         * The cached XML representation of this <code>Endpoint</code>, or <code>null</code>.
+         */
+        private String xml;
+
+        /**
+         * Creates a new empty <code>Endpoint</code> instance.
+         *
+         * @param user the <code>User</code> the new <code>Endpoint</code> belongs to
+         */
+        private Endpoint(User user)
+        {
+            this.user = user;
+        }
 
         /**
-         * Creates a new <code>Endpoint</code> instance with the specified <code>Element</code> as its
-         * underlying element.
+         * Creates a new <code>Endpoint</code> instance from the <code>endpoint</code> element a parser
+         * is at the start of.
          *
-         * @param endpoint the <code>Element</code> to use
+         * @param user the <code>User</code> the new <code>Endpoint</code> belongs to
+         * @param parser the parser
+         * @throws Exception if parsing failed
          */
-        private Endpoint(Element endpoint)
+        private Endpoint(User user, XmlPullParser parser)
+                throws Exception
         {
-            this.endpointElement = endpoint;
-            NodeList mediaNodeList = endpoint.getElementsByTagName(MEDIA_ELEMENT);
-            for (int i = 0; i < mediaNodeList.getLength(); i++) {
-                Media media = new Media((Element) mediaNodeList.item(i));
-                mediasList.add(media);
+            this.user = user;
+            entity = emptyToNull(parser.getAttributeValue("", ENTITY_ATTR_NAME));
+            state = parseState(parser.getAttributeValue("", STATE_ATTR_NAME));
+
+            int depth = parser.getDepth();
+            while (nextChild(parser, depth)) {
+                String name = parser.getName();
+                if (STATUS_ELEMENT.equals(name))
+                    status = parser.nextText();
+                else if (MEDIA_ELEMENT.equals(name))
+                    mediasList.add(new Media(this, parser));
+                else
+                    skipElement(parser);
             }
         }
 
@@ -906,10 +1183,8 @@ public class ConferenceInfoDocument
          */
         public void setEntity(String entity)
         {
-            if (entity == null || entity.equals(""))
-                endpointElement.removeAttribute(ENTITY_ATTR_NAME);
-            else
-                endpointElement.setAttribute(ENTITY_ATTR_NAME, entity);
+            this.entity = emptyToNull(entity);
+            invalidate();
         }
 
         /**
@@ -919,7 +1194,7 @@ public class ConferenceInfoDocument
          */
         public String getEntity()
         {
-            return endpointElement.getAttribute(ENTITY_ATTR_NAME);
+            return nullToEmpty(entity);
         }
 
         /**
@@ -929,7 +1204,8 @@ public class ConferenceInfoDocument
          */
         public void setState(State state)
         {
-            ConferenceInfoDocument.this.setState(endpointElement, state);
+            this.state = (state == State.FULL) ? null : state;
+            invalidate();
         }
 
         /**
@@ -939,7 +1215,7 @@ public class ConferenceInfoDocument
          */
         public State getState()
         {
-            return ConferenceInfoDocument.this.getState(endpointElement);
+            return (state == null) ? State.FULL : state;
         }
 
         /**
@@ -949,8 +1225,19 @@ public class ConferenceInfoDocument
          */
         public void setStatus(EndpointStatusType status)
         {
-            ConferenceInfoDocument.this.setStatus(endpointElement,
-                    status == null ? null : status.toString());
+            setStatus(status == null ? null : status.toString());
+        }
+
+        /**
+         * Sets the text content of the <code>status</code> child element of this <code>Endpoint</code>'s
+         * element.
+         *
+         * @param status the text content of the <code>status</code> element, or <code>null</code> to remove it
+         */
+        private void setStatus(String status)
+        {
+            this.status = emptyToNull(status);
+            invalidate();
         }
 
         /**
@@ -962,9 +1249,18 @@ public class ConferenceInfoDocument
          */
         public EndpointStatusType getStatus()
         {
-            Element statusElement = XMLUtils.findChild(endpointElement, STATUS_ELEMENT);
-            return statusElement == null ? null : EndpointStatusType.parseString(statusElement
-                    .getTextContent());
+            return status == null ? null : EndpointStatusType.parseString(status);
+        }
+
+        /**
+         * Returns the text content of the <code>status</code> child of this <code>Endpoint</code>'s
+         * element as received, without validating it as an <code>EndpointStatusType</code>.
+         *
+         * @return the text content of the <code>status</code> child element, or <code>null</code>.
+         */
+        String getStatusText()
+        {
+            return status;
         }
 
         /**
@@ -1007,12 +1303,11 @@ public class ConferenceInfoDocument
          */
         public Media addNewMedia(String id)
         {
-            Element mediaElement = document.createElement(MEDIA_ELEMENT);
-            Media media = new Media(mediaElement);
+            Media media = new Media(this);
             media.setId(id);
 
-            endpointElement.appendChild(mediaElement);
             mediasList.add(media);
+            invalidate();
 
             return media;
         }
@@ -1028,6 +1323,7 @@ public class ConferenceInfoDocument
             newMedia.setSrcId(media.getSrcId());
             newMedia.setType(media.getType());
             newMedia.setStatus(media.getStatus());
+            newMedia.xml = media.xml;
         }
 
         /**
@@ -1041,30 +1337,135 @@ public class ConferenceInfoDocument
             Media media = getMedia(id);
             if (media != null) {
                 mediasList.remove(media);
-                endpointElement.removeChild(media.mediaElement);
+                invalidate();
             }
         }
+
+        /**
+         * Determines whether this <code>Endpoint</code> has the same content as another one.
+         *
+         * @param other the <code>Endpoint</code> to compare to
+         * @return <code>true</code> if this <code>Endpoint</code> and <code>other</code> have the same content
+         */
+        private boolean matches(Endpoint other)
+        {
+            if (!equal(entity, other.entity) || state != other.state || !equal(status, other.status)
+                    || mediasList.size() != other.mediasList.size())
+                return false;
+
+            for (int i = 0; i < mediasList.size(); i++) {
+                if (!mediasList.get(i).matches(other.mediasList.get(i)))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Clears the cached XML representation of this <code>Endpoint</code> and of its ancestors.
+         */
+        private void invalidate()
+        {
+            xml = null;
+            user.invalidate();
+        }
+
+        /**
+         * Appends the XML representation of this <code>Endpoint</code> to a buffer, from the cache
+         * if it hasn't changed since it was last serialized.
+         *
+         * @param out the buffer to append to
+         */
+        private void appendTo(StringBuilder out)
+        {
+            if (xml != null) {
+                out.append(xml);
+                return;
+            }
+
+            int start = out.length();
+            out.append('<').append(ENDPOINT_ELEMENT);
+            appendAttribute(out, ENTITY_ATTR_NAME, entity);
+            appendAttribute(out, STATE_ATTR_NAME, state);
+            out.append('>');
+            appendTextElement(out, STATUS_ELEMENT, status);
+            for (Media media : mediasList)
+                media.appendTo(out);
+            out.append("</").append(ENDPOINT_ELEMENT).append('>');
+            xml = out.substring(start);
+        }
     }
 
     /**
-     * Wraps around an <code>Element</code> and represents a <code>media</code> element. See RFC4575.
+     * Represents a <code>media</code> element. See RFC4575.
      */
     public class Media
     {
         /**
-         * The underlying <code>Element</code>.
+         * The <code>Endpoint</code> this <code>Media</code> belongs to.
+         */
+        private final Endpoint endpoint;
+
+        /**
+         * The value of the <code>id</code> attribute, or <code>null</code>.
+         */
+        private String id;
+
+        /**
+         * The text content of the <code>type</code> child element, or <code>null</code>.
+         */
+        private String type;
+
+        /**
+         * The text content of the <code>src-id</code> child element, or <code>null</code>.
+         */
+        private String srcId;
+
+        /**
+         * The text content of the <code>status</code> child element, or <code>null</code>.
+         */
+        private String status;
+
+        /**
+         * The cached XML representation of this <code>Media</code>, or <code>null</code>.
          */
-        private Element mediaElement;
+        private String xml;
 
         /**
-         * Creates a new <code>Media</code> instance with the specified <code>Element</code> as its
-         * underlying element.
+         * Creates a new empty <code>Media</code> instance.
          *
-         * @param media the <code>Element</code> to use
+         * @param endpoint the <code>Endpoint</code> the new <code>Media</code> belongs to
          */
-        private Media(Element media)
+        private Media(Endpoint endpoint)
         {
-            this.mediaElement = media;
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Creates a new <code>Media</code> instance from the <code>media</code> element a parser is
+         * at the start of.
+         *
+         * @param endpoint the <code>Endpoint</code> the new <code>Media</code> belongs to
+         * @param parser the parser
+         * @throws Exception if parsing failed
+         */
+        private Media(Endpoint endpoint, XmlPullParser parser)
+                throws Exception
+        {
+            this.endpoint = endpoint;
+            id = emptyToNull(parser.getAttributeValue("", ID_ATTR_NAME));
+
+            int depth = parser.getDepth();
+            while (nextChild(parser, depth)) {
+                String name = parser.getName();
+                if (TYPE_ELEMENT.equals(name))
+                    type = parser.nextText();
+                else if (SRC_ID_ELEMENT.equals(name))
+                    srcId = parser.nextText();
+                else if (STATUS_ELEMENT.equals(name))
+                    status = parser.nextText();
+                else
+                    skipElement(parser);
+            }
         }
 
         /**
@@ -1074,10 +1475,8 @@ public class ConferenceInfoDocument
          */
         public void setId(String id)
         {
-            if (id == null || id.equals(""))
-                mediaElement.removeAttribute(ID_ATTR_NAME);
-            else
-                mediaElement.setAttribute(ID_ATTR_NAME, id);
+            this.id = emptyToNull(id);
+            invalidate();
         }
 
         /**
@@ -1087,7 +1486,7 @@ public class ConferenceInfoDocument
          */
         public String getId()
         {
-            return mediaElement.getAttribute(ID_ATTR_NAME);
+            return nullToEmpty(id);
         }
 
         /**
@@ -1097,18 +1496,8 @@ public class ConferenceInfoDocument
          */
         public void setSrcId(String srcId)
         {
-            Element srcIdElement = XMLUtils.findChild(mediaElement, SRC_ID_ELEMENT);
-            if (srcId == null || srcId.equals("")) {
-                if (srcIdElement != null)
-                    mediaElement.removeChild(srcIdElement);
-            }
-            else {
-                if (srcIdElement == null) {
-                    srcIdElement = document.createElement(SRC_ID_ELEMENT);
-                    mediaElement.appendChild(srcIdElement);
-                }
-                srcIdElement.setTextContent(srcId);
-            }
+            this.srcId = emptyToNull(srcId);
+            invalidate();
         }
 
         /**
@@ -1120,8 +1509,7 @@ public class ConferenceInfoDocument
          */
         public String getSrcId()
         {
-            Element srcIdElement = XMLUtils.findChild(mediaElement, SRC_ID_ELEMENT);
-            return srcIdElement == null ? null : srcIdElement.getTextContent();
+            return srcId;
         }
 
         /**
@@ -1131,18 +1519,8 @@ public class ConferenceInfoDocument
          */
         public void setType(String type)
         {
-            Element typeElement = XMLUtils.findChild(mediaElement, TYPE_ELEMENT);
-            if (type == null || type.equals("")) {
-                if (typeElement != null)
-                    mediaElement.removeChild(typeElement);
-            }
-            else {
-                if (typeElement == null) {
-                    typeElement = document.createElement(TYPE_ELEMENT);
-                    mediaElement.appendChild(typeElement);
-                }
-                typeElement.setTextContent(type);
-            }
+            this.type = emptyToNull(type);
+            invalidate();
         }
 
         /**
@@ -1154,8 +1532,7 @@ public class ConferenceInfoDocument
          */
         public String getType()
         {
-            Element typeElement = XMLUtils.findChild(mediaElement, TYPE_ELEMENT);
-            return typeElement == null ? null : typeElement.getTextContent();
+            return type;
         }
 
         /**
@@ -1165,7 +1542,8 @@ public class ConferenceInfoDocument
          */
         public void setStatus(String status)
         {
-            ConferenceInfoDocument.this.setStatus(mediaElement, status);
+            this.status = emptyToNull(status);
+            invalidate();
         }
 
         /**
@@ -1177,8 +1555,52 @@ public class ConferenceInfoDocument
          */
         public String getStatus()
         {
-            Element statusElement = XMLUtils.findChild(mediaElement, STATUS_ELEMENT);
-            return statusElement == null ? null : statusElement.getTextContent();
+            return status;
+        }
+
+        /**
+         * Determines whether this <code>Media</code> has the same content as another one.
+         *
+         * @param other the <code>Media</code> to compare to
+         * @return <code>true</code> if this <code>Media</code> and <code>other</code> have the same content
+         */
+        private boolean matches(Media other)
+        {
+            return equal(id, other.id) && equal(type, other.type) && equal(srcId, other.srcId)
+                    && equal(status, other.status);
+        }
+
+        /**
+         * Clears the cached XML representation of this <code>Media</code> and of its ancestors.
+         */
+        private void invalidate()
+        {
+            xml = null;
+            endpoint.invalidate();
+        }
+
+        /**
+         * Appends the XML representation of this <code>Media</code> to a buffer, from the cache if
+         * it hasn't changed since it was last serialized.
+         *
+         * @param out the buffer to append to
+         */
+        private void appendTo(StringBuilder out)
+        {
+            if (xml != null) {
+                out.append(xml);
+                return;
+            }
+
+            int start = out.length();
+            out.append('<').append(MEDIA_ELEMENT);
+            appendAttribute(out, ID_ATTR_NAME, id);
+            out.append('>');
+            appendTextElement(out, TYPE_ELEMENT, type);
+            appendTextElement(out, SRC_ID_ELEMENT, srcId);
+            appendTextElement(out, STATUS_ELEMENT, status);
+            out.append("</").append(MEDIA_ELEMENT).append('>');
+            xml = out.substring(start);
         }
     }
 
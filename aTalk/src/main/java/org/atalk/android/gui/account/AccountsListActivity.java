@@ -19,13 +19,13 @@ import net.java.sip.communicator.util.ServiceUtils;
 import net.java.sip.communicator.util.account.AccountUtils;
 
 import org.atalk.android.R;
-import org.atalk.android.aTalkApp;
 import org.atalk.android.gui.AndroidGUIActivator;
 import org.atalk.android.gui.account.settings.AccountPreferenceActivity;
 import org.atalk.android.gui.contactlist.AddGroupDialog;
 import org.atalk.android.gui.dialogs.DialogActivity;
 import org.atalk.android.gui.dialogs.ProgressDialogFragment;
 import org.atalk.android.plugin.certconfig.TLS_Configuration;
+import org.atalk.persistance.EntityCapsDatabase;
 import org.atalk.persistance.FileBackend;
 import org.atalk.persistance.ServerPersistentStoresRefreshDialog;
 import org.atalk.service.osgi.OSGiActivity;
@@ -262,15 +262,7 @@ public class AccountsListActivity extends OSGiActivity
             }
 
             // Account in unRegistering so discoveryInfoManager == null
-            // ScServiceDiscoveryManager discoveryInfoManager = jabberProvider.getDiscoveryManager();
-            // File discoInfoStoreDirectory = discoveryInfoManager.getDiscoInfoPersistentStore();
-            File discoInfoStoreDirectory = new File(aTalkApp.getGlobalContext().getFilesDir()
-                    + "/discoInfoStore_" + userJid);
-            try {
-                FileBackend.deleteRecursive(discoInfoStoreDirectory);
-            } catch (IOException e) {
-                Timber.e("Failed to purge store for: %s", R.string.service_gui_REFRESH_STORES_DISCINFO);
-            }
+            EntityCapsDatabase.removeStore(EntityCapsDatabase.getDiscoInfoStore(userJid.toString()));
         }
     }
 
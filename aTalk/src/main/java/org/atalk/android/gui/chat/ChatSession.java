@@ -53,6 +53,7 @@ public abstract class ChatSession
     public static final String ATTR_ALWAYS_NOTIFY = "always_notify";
     public static final String ATTR_CRYPTO_TARGETS = "crypto_targets";
     public static final String ATTR_LAST_CLEAR_HISTORY = "last_clear_history";
+    public static final String ATTR_MAM_LAST_ID = "mam_last_id"; // XEP-0313 stanza-id of the last archived message
 
     public static final String ATTR_AUTO_JOIN = "autoJoin";
     public static final String ATTR_AUTO_OPEN = "autoOpen";  // on-activity
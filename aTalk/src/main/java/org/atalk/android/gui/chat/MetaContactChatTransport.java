@@ -62,6 +62,7 @@ import org.jxmpp.jid.DomainBareJid;
 import org.jxmpp.jid.EntityBareJid;
 import org.jxmpp.jid.FullJid;
 import org.jxmpp.jid.Jid;
+import org.atalk.util.concurrent.ExecutorFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -71,6 +72,9 @@ import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.net.ssl.SSLHandshakeException;
 
@@ -102,6 +106,11 @@ public class MetaContactChatTransport implements ChatTransport, ContactPresenceS
      */
     private final ProtocolProviderService mPPS;
 
+    /**
+     * Generates the thumbnails of the media files being sent, off the thread starting the transfer.
+     */
+    private static final ExecutorService thumbnailExecutor = ExecutorFactory.createCachedThreadPool("FileThumbnail-");
+
     private HttpFileUploadManager httpFileUploadManager;
     private JingleFileTransferManager jingleFTManager;
     private JetManager jetManager;
@@ -674,15 +683,19 @@ public class MetaContactChatTransport implements ChatTransport, ContactPresenceS
         if (!allowsFileTransfer())
             return null;
 
-        // Create a thumbNailed file if possible. Skip for OMEMO message
+        // Create a thumbNailed file if possible, while the transfer is being set up. Skip for OMEMO message
+        Future<File> thumbnailedFile = null;
         if (FileBackend.isMediaFile(file) && (ChatFragment.MSGTYPE_OMEMO != chatType)) {
-            OperationSetThumbnailedFileFactory tfOpSet = mPPS.getOperationSet(OperationSetThumbnailedFileFactory.class);
+            final OperationSetThumbnailedFileFactory tfOpSet
+                    = mPPS.getOperationSet(OperationSetThumbnailedFileFactory.class);
             if (tfOpSet != null) {
-                byte[] thumbnail = getFileThumbnail(file);
-                if (thumbnail != null && thumbnail.length > 0) {
-                    file = tfOpSet.createFileWithThumbnail(file, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
-                            "image/png", thumbnail);
-                }
+                final File mediaFile = file;
+                thumbnailedFile = thumbnailExecutor.submit(() -> {
+                    byte[] thumbnail = getFileThumbnail(mediaFile);
+                    return (thumbnail != null && thumbnail.length > 0)
+                            ? tfOpSet.createFileWithThumbnail(mediaFile, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+                            "image/png", thumbnail) : mediaFile;
+                });
             }
         }
 
@@ -690,7 +703,7 @@ public class MetaContactChatTransport implements ChatTransport, ContactPresenceS
             OperationSetSmsMessaging smsOpSet = mPPS.getOperationSet(OperationSetSmsMessaging.class);
             if (smsOpSet == null)
                 return null;
-            return smsOpSet.sendMultimediaFile(contact, file);
+            return smsOpSet.sendMultimediaFile(contact, getThumbnailedFile(thumbnailedFile, file));
         }
         else {
             if (getStatus().isOnline()) {
@@ -704,7 +717,9 @@ public class MetaContactChatTransport implements ChatTransport, ContactPresenceS
                         return httpFileUpload(file, chatType, xferCon);
                     else {
                         try {
-                            return ftOpSet.sendFile(contact, file, xferCon.getMessageUuid());
+                            // Only the legacy file transfer carries the thumbnail
+                            return ftOpSet.sendFile(contact, getThumbnailedFile(thumbnailedFile, file),
+                                    xferCon.getMessageUuid());
                         } catch (OperationNotSupportedException ex2) {
                             // Fallback to use Http file upload if contact is offline, or contact
                             // does not support legacy FileTransfer in SOCKS5 and IBS
@@ -720,6 +735,26 @@ public class MetaContactChatTransport implements ChatTransport, ContactPresenceS
         }
     }
 
+    /**
+     * Waits for the thumbnailed file of a media file to be generated.
+     *
+     * @param thumbnailedFile the thumbnailed file being generated, or <code>null</code> if none is
+     * @param file the file to send
+     * @return the thumbnailed file, or <code>file</code> if it has none
+     */
+    private static File getThumbnailedFile(Future<File> thumbnailedFile, File file)
+            throws InterruptedException
+    {
+        if (thumbnailedFile != null) {
+            try {
+                return thumbnailedFile.get();
+            } catch (ExecutionException e) {
+                Timber.w("Failed to create the file thumbnail: %s", e.getCause());
+            }
+        }
+        return file;
+    }
+
     /**
      * Use Jingle File Transfer or Http file upload that is supported by the transport
      *
@@ -1003,9 +1038,21 @@ public class MetaContactChatTransport implements ChatTransport, ContactPresenceS
 
         if (FileBackend.isMediaFile(file)) {
             String imagePath = file.toString();
-            try {
-                FileInputStream fis = new FileInputStream(imagePath);
-                Bitmap imageBitmap = BitmapFactory.decodeStream(fis);
+
+            // Decode the bounds only, then subsample while decoding so a large photo is never fully loaded
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(imagePath, options);
+            int inSampleSize = 1;
+            while ((options.outWidth / (inSampleSize * 2)) >= THUMBNAIL_WIDTH
+                    && (options.outHeight / (inSampleSize * 2)) >= THUMBNAIL_HEIGHT) {
+                inSampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = inSampleSize;
+
+            try (FileInputStream fis = new FileInputStream(imagePath)) {
+                Bitmap imageBitmap = BitmapFactory.decodeStream(fis, null, options);
 
                 // check to ensure BitmapFactory can handle the MIME type
                 if (imageBitmap != null) {
@@ -1017,13 +1064,16 @@ public class MetaContactChatTransport implements ChatTransport, ContactPresenceS
                     if (height > THUMBNAIL_HEIGHT)
                         height = THUMBNAIL_HEIGHT;
 
-                    imageBitmap = ThumbnailUtils.extractThumbnail(imageBitmap, width, height);
+                    imageBitmap = ThumbnailUtils.extractThumbnail(imageBitmap, width, height,
+                            ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
                     ByteArrayOutputStream baos = new ByteArrayOutputStream();
                     imageBitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
                     imageData = baos.toByteArray();
                 }
             } catch (FileNotFoundException e) {
                 Timber.d("Could not locate image file. %s", e.getMessage());
+            } catch (IOException e) {
+                Timber.d("Could not read image file. %s", e.getMessage());
             }
         }
         return imageData;
@@ -496,7 +496,8 @@ public abstract class FileTransferConversation extends OSGiFragment
 
     private void updateProgress(long transferredBytes, long progressTimestamp)
     {
-        long SMOOTHING_FACTOR = 100;
+        // Time window (ms) of the running average; independent of how often the progress is being reported
+        long SMOOTHING_WINDOW = 2000;
 
         // before file transfer start is -1
         if (transferredBytes < 0)
@@ -505,12 +506,15 @@ public abstract class FileTransferConversation extends OSGiFragment
         final String bytesString = ByteFormat.format(transferredBytes);
         long byteTransferDelta = (transferredBytes == 0) ? 0 : (transferredBytes - mLastTransferredBytes);
 
-        // Calculate running average transfer speed in bytes/sec and time left, with the given SMOOTHING_FACTOR
+        // Calculate running average transfer speed in bytes/sec and time left, over the given SMOOTHING_WINDOW
         if (mLastTimestamp > 0) {
             long timeElapsed = progressTimestamp - mLastTimestamp;
             long transferSpeedCurrent = (timeElapsed > 0) ? (byteTransferDelta * 1000) / timeElapsed : 0;
             if (mTransferSpeedAverage != 0) {
-                mTransferSpeedAverage = (transferSpeedCurrent + (SMOOTHING_FACTOR - 1) * mTransferSpeedAverage) / SMOOTHING_FACTOR;
+                // weight the current sample by the time it covers, so sparse and frequent updates converge alike
+                long weight = Math.min(timeElapsed, SMOOTHING_WINDOW);
+                mTransferSpeedAverage = (transferSpeedCurrent * weight + (SMOOTHING_WINDOW - weight) * mTransferSpeedAverage)
+                        / SMOOTHING_WINDOW;
             }
             else {
                 mTransferSpeedAverage = transferSpeedCurrent;
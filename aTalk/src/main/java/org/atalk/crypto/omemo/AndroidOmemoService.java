@@ -105,6 +105,17 @@ public class AndroidOmemoService implements OmemoManager.InitializationFinishedC
         mOmemoManager.initializeAsync(this);
     }
 
+    /**
+     * Writes the omemo sessions and message counters which are pending in memory to the database;
+     * to be called when the account goes offline.
+     */
+    public void flushOmemoStore()
+    {
+        OmemoStore omemoStore = OmemoService.getInstance().getOmemoStoreBackend();
+        if (omemoStore instanceof SQLiteOmemoStore)
+            ((SQLiteOmemoStore) omemoStore).flush();
+    }
+
     @Override
     public void initializationFinished(OmemoManager manager)
     {
@@ -16,16 +16,19 @@
  */
 package org.atalk.crypto.omemo;
 
+import android.database.sqlite.SQLiteDatabase;
 import android.util.LruCache;
 
 import net.java.sip.communicator.service.protocol.AccountID;
 import net.java.sip.communicator.service.protocol.ProtocolProviderService;
 
 import org.atalk.android.R;
+import org.atalk.android.plugin.timberlog.TimberLog;
 import org.atalk.android.aTalkApp;
 import org.atalk.android.gui.AndroidGUIActivator;
 import org.atalk.persistance.DatabaseBackend;
 import org.atalk.service.configuration.ConfigurationService;
+import org.atalk.util.concurrent.ExecutorFactory;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
@@ -57,10 +60,15 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import timber.log.Timber;
 
@@ -73,6 +81,10 @@ import timber.log.Timber;
  * - Identities & fingerprints and its trust status
  * - Omemo sessions
  *
+ * The sessions, message counters and dates of the last received message, which change with every
+ * message, are written back: they are kept in memory and written to the database in batched
+ * transactions on a background thread, and on {@link #flush()} when an account goes offline.
+ *
  * @author Eng Chong Meng
  */
 
@@ -122,8 +134,61 @@ public class SQLiteOmemoStore extends SignalOmemoStore
 
     private static final int NUM_TRUSTS_TO_CACHE = 100;
 
+    /**
+     * The maximum number of sessions, and of per device counters and dates, kept in memory once
+     * written to the database.
+     */
+    private static final int NUM_DEVICES_TO_CACHE = 256;
+
+    /**
+     * The time in milliseconds to wait after a change before writing the pending changes, so that
+     * the changes made for a message to many devices are committed together.
+     */
+    private static final long FLUSH_DELAY = 500;
+
+    /**
+     * The time in milliseconds to wait before writing the pending changes again after a failed write.
+     */
+    private static final long RETRY_DELAY = 5000;
+
     private final DatabaseBackend mDB;
 
+    /**
+     * The serialized sessions by contact device. A session is cached serialized, and deserialized on
+     * each load, so that a ratchet step which is not stored, e.g. of a failed decryption, does not
+     * alter the cached session.
+     */
+    private final WriteBackCache<OmemoDevice, byte[]> sessionCache
+            = new WriteBackCache<>(NUM_DEVICES_TO_CACHE, new byte[0]);
+
+    /**
+     * The message counters by contact device.
+     */
+    private final WriteBackCache<OmemoDevice, Integer> messageCounterCache
+            = new WriteBackCache<>(NUM_DEVICES_TO_CACHE, Integer.MIN_VALUE);
+
+    /**
+     * The dates of the last message received by contact device.
+     */
+    private final WriteBackCache<OmemoDevice, Date> lastMessageRxCache
+            = new WriteBackCache<>(NUM_DEVICES_TO_CACHE, new Date(0));
+
+    /**
+     * The executor which writes the pending changes to the database.
+     */
+    private final ScheduledExecutorService flushExecutor
+            = ExecutorFactory.createSingleThreadScheduledExecutor("SQLiteOmemoStore-", 30, TimeUnit.SECONDS);
+
+    /**
+     * Whether a write of the pending changes has been scheduled but has not started yet.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * The lock which serializes the writes of the pending changes with the purges of the database.
+     */
+    private final Object flushLock = new Object();
+
     /*
      * mDevice is used by overridden method create(String fingerprint) for trustCache self update
      * @see LruCache#create(Object)
@@ -637,7 +702,28 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public SessionRecord loadRawSession(OmemoDevice userDevice, OmemoDevice contactDevice)
     {
-        return mDB.loadSession(contactDevice);
+        return toSessionRecord(sessionCache.get(contactDevice, device -> {
+            SessionRecord session = mDB.loadSession(device);
+            return (session == null) ? null : session.serialize();
+        }));
+    }
+
+    /**
+     * Deserializes a cached session.
+     *
+     * @param serializedSession the serialized session, or <code>null</code>
+     * @return a new instance of the session; null if none or it cannot be deserialized
+     */
+    private static SessionRecord toSessionRecord(byte[] serializedSession)
+    {
+        if (serializedSession == null)
+            return null;
+        try {
+            return new SessionRecord(serializedSession);
+        } catch (IOException e) {
+            Timber.w("Could not deserialize raw session. %s", e.getMessage());
+            return null;
+        }
     }
 
     /**
@@ -650,7 +736,20 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public HashMap<Integer, SessionRecord> loadAllRawSessionsOf(OmemoDevice userDevice, BareJid contact)
     {
-        return mDB.getSubDeviceSessions(contact);
+        HashMap<Integer, SessionRecord> sessions = mDB.getSubDeviceSessions(contact);
+
+        // Apply the sessions not written to the database yet
+        for (Map.Entry<OmemoDevice, byte[]> change : sessionCache.getPendingChanges().entrySet()) {
+            OmemoDevice device = change.getKey();
+            if (!device.getJid().equals(contact))
+                continue;
+
+            if (sessionCache.isAbsent(change.getValue()))
+                sessions.remove(device.getDeviceId());
+            else
+                sessions.put(device.getDeviceId(), toSessionRecord(change.getValue()));
+        }
+        return sessions;
     }
 
     /**
@@ -663,7 +762,8 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public void storeRawSession(OmemoDevice userDevice, OmemoDevice contactDevice, SessionRecord session)
     {
-        mDB.storeSession(contactDevice, session);
+        sessionCache.put(contactDevice, session.serialize());
+        scheduleFlush();
     }
 
     /**
@@ -675,7 +775,8 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public void removeRawSession(OmemoDevice userDevice, OmemoDevice contactDevice)
     {
-        mDB.deleteSession(contactDevice);
+        sessionCache.put(contactDevice, null);
+        scheduleFlush();
     }
 
     /**
@@ -687,7 +788,11 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public void removeAllRawSessionsOf(OmemoDevice userDevice, BareJid contact)
     {
-        mDB.deleteAllSessions(contact);
+        synchronized (flushLock) {
+            flush();
+            mDB.deleteAllSessions(contact);
+            sessionCache.evict(device -> device.getJid().equals(contact));
+        }
     }
 
     /**
@@ -701,7 +806,7 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public boolean containsRawSession(OmemoDevice userDevice, OmemoDevice contactDevice)
     {
-        return mDB.containsSession(contactDevice);
+        return loadRawSession(userDevice, contactDevice) != null;
     }
 
     /**
@@ -714,7 +819,8 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public void setDateOfLastReceivedMessage(OmemoDevice userDevice, OmemoDevice contactDevice, Date date)
     {
-        mDB.setLastMessageReceiveDate(contactDevice, date);
+        lastMessageRxCache.put(contactDevice, new Date(date.getTime()));
+        scheduleFlush();
     }
 
     /**
@@ -727,7 +833,8 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public Date getDateOfLastReceivedMessage(OmemoDevice userDevice, OmemoDevice contactDevice)
     {
-        return mDB.getLastMessageReceiveDate(contactDevice);
+        Date date = lastMessageRxCache.get(contactDevice, mDB::getLastMessageReceiveDate);
+        return (date == null) ? null : new Date(date.getTime());
     }
 
     /**
@@ -769,7 +876,8 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public void storeOmemoMessageCounter(OmemoDevice userDevice, OmemoDevice contactsDevice, int counter)
     {
-        mDB.setOmemoMessageCounter(contactsDevice, counter);
+        messageCounterCache.put(contactsDevice, counter);
+        scheduleFlush();
     }
 
     /**
@@ -784,7 +892,86 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public int loadOmemoMessageCounter(OmemoDevice userDevice, OmemoDevice contactsDevice)
     {
-        return mDB.getOmemoMessageCounter(contactsDevice);
+        Integer counter = messageCounterCache.get(contactsDevice, mDB::getOmemoMessageCounter);
+        return (counter == null) ? 0 : counter;
+    }
+
+    /**
+     * Schedules {@link #flush()} after {@link #FLUSH_DELAY}, unless already scheduled.
+     */
+    private void scheduleFlush()
+    {
+        scheduleFlush(FLUSH_DELAY);
+    }
+
+    private void scheduleFlush(long delay)
+    {
+        if (flushScheduled.compareAndSet(false, true)) {
+            flushExecutor.schedule(() -> {
+                flushScheduled.set(false);
+                flush();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the pending sessions, message counters and dates of the last received message to the
+     * database in a single transaction. Called in the background after changes, and synchronously
+     * when an account goes offline and before the database is purged.
+     */
+    public void flush()
+    {
+        synchronized (flushLock) {
+            Map<OmemoDevice, byte[]> sessions = sessionCache.getPendingChanges();
+            Map<OmemoDevice, Integer> counters = messageCounterCache.getPendingChanges();
+            Map<OmemoDevice, Date> dates = lastMessageRxCache.getPendingChanges();
+            if (sessions.isEmpty() && counters.isEmpty() && dates.isEmpty())
+                return;
+
+            SQLiteDatabase db = mDB.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Map.Entry<OmemoDevice, byte[]> session : sessions.entrySet()) {
+                    if (sessionCache.isAbsent(session.getValue()))
+                        mDB.deleteSession(session.getKey());
+                    else
+                        mDB.storeSession(session.getKey(), session.getValue());
+                }
+                for (Map.Entry<OmemoDevice, Integer> counter : counters.entrySet())
+                    mDB.setOmemoMessageCounter(counter.getKey(), counter.getValue());
+                for (Map.Entry<OmemoDevice, Date> date : dates.entrySet())
+                    mDB.setLastMessageReceiveDate(date.getKey(), date.getValue());
+                db.setTransactionSuccessful();
+            } catch (RuntimeException e) {
+                Timber.e(e, "Failed to write %d omemo sessions", sessions.size());
+                scheduleFlush(RETRY_DELAY);
+                return;
+            } finally {
+                db.endTransaction();
+            }
+
+            sessionCache.committed(sessions);
+            messageCounterCache.committed(counters);
+            lastMessageRxCache.committed(dates);
+            Timber.log(TimberLog.FINER, "Committed %d omemo sessions, %d counters and %d dates",
+                    sessions.size(), counters.size(), dates.size());
+        }
+    }
+
+    /**
+     * Drops the cached sessions, message counters and dates of the devices selected by a filter, after
+     * their rows have been purged from the database. Called under {@link #flushLock}, with the flush made
+     * before the purge, so that the pending changes of the other devices are neither lost nor written
+     * back over the purge. The fingerprint trust statuses are only read through, and are all reloaded.
+     *
+     * @param filter selects the devices whose rows have been purged
+     */
+    private void evictCaches(WriteBackCache.KeyFilter<OmemoDevice> filter)
+    {
+        sessionCache.evict(filter);
+        messageCounterCache.evict(filter);
+        lastMessageRxCache.evict(filter);
+        trustCache.evictAll();
     }
 
     // ========== aTalk methods to handle omemo specific tasks ==========
@@ -797,8 +984,28 @@ public class SQLiteOmemoStore extends SignalOmemoStore
     @Override
     public void purgeOwnDeviceKeys(OmemoDevice userDevice)
     {
-        mDB.purgeOmemoDb(userDevice);
-        trustCache.evictAll();
+        synchronized (flushLock) {
+            flush();
+            mDB.purgeOmemoDb(userDevice);
+            evictCaches(userDevice::equals);
+        }
+    }
+
+    /**
+     * Purge the omemo local database for the specified accountId, i.e. the identities and sessions of
+     * the account and of its contacts, and drop them from the caches.
+     *
+     * @param accountId the accountID whose omemo local database is to be purged
+     */
+    private void purgeOmemoDb(AccountID accountId)
+    {
+        Set<String> purgedJids = new HashSet<>(mDB.getContactsForAccount(accountId.getAccountUuid()));
+        purgedJids.add(accountId.getAccountJid());
+        synchronized (flushLock) {
+            flush();
+            mDB.purgeOmemoDb(accountId);
+            evictCaches(device -> purgedJids.contains(device.getJid().toString()));
+        }
     }
 
     /**
@@ -876,8 +1083,7 @@ public class SQLiteOmemoStore extends SignalOmemoStore
                 purgeBundleDeviceList(connection, userJid, omemoDevice);
 
                 // Purge all omemo devices info in the local database for the specified accountId
-                mDB.purgeOmemoDb(accountId);
-                trustCache.evictAll();
+                purgeOmemoDb(accountId);
 
                 // Create new omemoDeice
                 new AndroidOmemoService(pps).initOmemoDevice();
@@ -979,8 +1185,7 @@ public class SQLiteOmemoStore extends SignalOmemoStore
 
         // Must first remove the omemoDevice and associated data from local database
         // Purge local omemo database for the specified account
-        mDB.purgeOmemoDb(accountId);
-        trustCache.evictAll();
+        purgeOmemoDb(accountId);
 
         // Purge server omemo bundle nodes for the deleted account (only if online and authenticated)
         ProtocolProviderService pps = accountId.getProtocolProvider();
@@ -0,0 +1,206 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atalk.crypto.omemo;
+
+import android.util.LruCache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of values stored in the database, which defers the writes: a written value is
+ * kept as pending, and served from memory, until its owner has written it to the database and
+ * reported it committed. The values which are in sync with the database are kept in an LRU cache;
+ * the pending ones are never evicted.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values; they must not be modified once handed to the cache
+ * @author Eng Chong Meng
+ */
+class WriteBackCache<K, V>
+{
+    /**
+     * Loads a value from the database on a cache miss.
+     */
+    interface Loader<K, V>
+    {
+        /**
+         * @param key the key of the value to load
+         * @return the value in the database, or <code>null</code> if there is none
+         */
+        V load(K key);
+    }
+
+    /**
+     * Selects keys.
+     */
+    interface KeyFilter<K>
+    {
+        /**
+         * @param key a key
+         * @return <code>true</code> if <code>key</code> is selected
+         */
+        boolean accept(K key);
+    }
+
+    /**
+     * The value which stands for no value, i.e. a known absent or a removed one. Compared by identity.
+     */
+    private final V absent;
+
+    /**
+     * The values which are in sync with the database.
+     */
+    private final LruCache<K, V> clean;
+
+    /**
+     * The values which have been written but not yet committed to the database, in the order they
+     * have been last written.
+     */
+    private final LinkedHashMap<K, V> pending = new LinkedHashMap<>();
+
+    /**
+     * The number of writes made to this cache, so that a value loaded concurrently with a write is
+     * not cached.
+     */
+    private int modCount = 0;
+
+    /**
+     * Initializes a new <code>WriteBackCache</code>.
+     *
+     * @param maxSize the maximum number of values in sync with the database to keep
+     * @param absent the value which stands for no value, distinct by identity from any real value
+     */
+    WriteBackCache(int maxSize, V absent)
+    {
+        clean = new LruCache<>(maxSize);
+        this.absent = absent;
+    }
+
+    /**
+     * Gets the value of a key, from memory or else from the database.
+     *
+     * @param key the key
+     * @param loader loads the value from the database on a cache miss
+     * @return the value of <code>key</code>, or <code>null</code> if it has none
+     */
+    V get(K key, Loader<K, V> loader)
+    {
+        V value;
+        int loadModCount;
+        synchronized (this) {
+            value = pending.get(key);
+            if (value == null)
+                value = clean.get(key);
+            if (value != null)
+                return (value == absent) ? null : value;
+            loadModCount = modCount;
+        }
+
+        value = loader.load(key);
+        if (value == null)
+            value = absent;
+
+        synchronized (this) {
+            if (loadModCount == modCount)
+                clean.put(key, value);
+            else {
+                // Written meanwhile; the loaded value may be stale.
+                V current = pending.get(key);
+                if (current == null)
+                    current = clean.get(key);
+                if (current != null)
+                    value = current;
+            }
+        }
+        return (value == absent) ? null : value;
+    }
+
+    /**
+     * Writes the value of a key, to be committed to the database later.
+     *
+     * @param key the key
+     * @param value the new value of <code>key</code>, or <code>null</code> to remove it
+     */
+    synchronized void put(K key, V value)
+    {
+        // Moved to the end, so that the writes are committed in the order they have been last made.
+        pending.remove(key);
+        pending.put(key, (value == null) ? absent : value);
+        clean.remove(key);
+        modCount++;
+    }
+
+    /**
+     * Gets the writes which have not been committed to the database yet.
+     *
+     * @return the pending values, in the order they have been written, by key; the value of a
+     * removed key is {@link #isAbsent(Object) absent}
+     */
+    synchronized Map<K, V> getPendingChanges()
+    {
+        return new LinkedHashMap<>(pending);
+    }
+
+    /**
+     * Determines whether a pending value stands for a removed key.
+     *
+     * @param value a value returned by {@link #getPendingChanges()}
+     * @return <code>true</code> if <code>value</code> stands for no value
+     */
+    boolean isAbsent(V value)
+    {
+        return value == absent;
+    }
+
+    /**
+     * Marks pending values as committed to the database. The keys which have been written again
+     * since remain pending.
+     *
+     * @param changes the changes returned by {@link #getPendingChanges()} which have been committed
+     */
+    synchronized void committed(Map<K, V> changes)
+    {
+        for (Map.Entry<K, V> change : changes.entrySet()) {
+            K key = change.getKey();
+            if (pending.get(key) == change.getValue()) {
+                pending.remove(key);
+                clean.put(key, change.getValue());
+            }
+        }
+    }
+
+    /**
+     * Drops the values of the keys selected by a filter, pending or not, after their rows have been
+     * deleted from the database.
+     *
+     * @param filter selects the keys to drop
+     */
+    synchronized void evict(KeyFilter<K> filter)
+    {
+        for (Iterator<K> i = pending.keySet().iterator(); i.hasNext(); ) {
+            if (filter.accept(i.next()))
+                i.remove();
+        }
+        for (K key : clean.snapshot().keySet()) {
+            if (filter.accept(key))
+                clean.remove(key);
+        }
+        modCount++;
+    }
+}
@@ -5,6 +5,8 @@
  */
 package org.atalk.impl.configuration;
 
+import net.java.sip.communicator.service.protocol.AccountID;
+
 import org.atalk.android.plugin.timberlog.TimberLog;
 import org.atalk.impl.configuration.xml.XMLConfigurationStore;
 import org.atalk.service.configuration.*;
@@ -19,6 +21,9 @@ import org.jivesoftware.smack.util.StringUtils;
 import java.beans.PropertyChangeListener;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import timber.log.Timber;
@@ -83,7 +88,7 @@ public class ConfigurationServiceImpl implements ConfigurationService
      *
      * @see #defaultProperties
      */
-    private Map<String, String> immutableDefaultProperties = new HashMap<>();
+    private final TreeMap<String, String> immutableDefaultProperties = new TreeMap<>();
 
     /**
      * A set of properties deployed with the application during install time. Contrary to the
@@ -91,7 +96,36 @@ public class ConfigurationServiceImpl implements ConfigurationService
      * with call to the <code>setProperty()</code> methods. Still, re-setting one of these properties
      * to <code>null</code> would cause for its initial value to be restored.
      */
-    private Map<String, String> defaultProperties = new HashMap<>();
+    private final TreeMap<String, String> defaultProperties = new TreeMap<>();
+
+    /**
+     * The sorted names of the properties in {@link #store}, so that the properties with a specific
+     * prefix are a range of it; <code>null</code> until first needed, and after the store has been
+     * reloaded. Kept in sync with the changes made to the store through this service. Like
+     * <code>store.getPropertyNames("")</code>, it holds no account properties, which the store lists
+     * per accountUuid only.
+     */
+    private volatile NavigableSet<String> storePropertyNames;
+
+    /**
+     * The lock which orders the changes to {@link #store} with the updates of
+     * {@link #storePropertyNames}.
+     */
+    private final Object storePropertyNamesLock = new Object();
+
+    /**
+     * The values of the properties already parsed by {@link #getInt(String, int)},
+     * {@link #getLong(String, long)}, {@link #getBoolean(String, boolean)} and
+     * {@link #getDouble(String, double)}, by property name. An entry is dropped when its property
+     * changes, as notified by {@link #changeEventDispatcher}.
+     */
+    private final Map<String, ParsedValue> parsedValues = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on each invalidation of {@link #parsedValues}, so that a value parsed concurrently
+     * with a change of its property is not cached.
+     */
+    private final AtomicInteger parsedValuesGeneration = new AtomicInteger();
 
     /**
      * Our event dispatcher.
@@ -127,6 +161,9 @@ public class ConfigurationServiceImpl implements ConfigurationService
          * to set these properties before FileAccessServiceImpl looks for them.
          */
 
+        // Registered first so that the other listeners already read the new values.
+        changeEventDispatcher.addPropertyChangeListener(evt -> invalidateParsedValue(evt.getPropertyName()));
+
         try {
             debugPrintSystemProperties();
             preloadSystemPropertyFiles();
@@ -182,7 +219,7 @@ public class ConfigurationServiceImpl implements ConfigurationService
         // cmeng - define the location where to store the change properties - can be removed??? file system not use
         doSetProperty(propertyName, property, isSystem);
         try {
-            storeConfiguration();
+            storeChangedConfiguration();
         } catch (IOException ex) {
             Timber.e("Failed to store configuration after a property change");
         }
@@ -218,7 +255,7 @@ public class ConfigurationServiceImpl implements ConfigurationService
             doSetProperty(property.getKey(), property.getValue(), false);
 
         try {
-            storeConfiguration();
+            storeChangedConfiguration();
         } catch (IOException ex) {
             Timber.e("Failed to store configuration after property changes");
         }
@@ -251,23 +288,94 @@ public class ConfigurationServiceImpl implements ConfigurationService
         if (immutableDefaultProperties.containsKey(propertyName))
             return;
 
-        if (property == null) {
-            store.removeProperty(propertyName);
+        synchronized (storePropertyNamesLock) {
+            if (property == null) {
+                store.removeProperty(propertyName);
 
-            if (isSystem) {
-                // we can't remove or null set a sys property so let's "empty" it.
-                System.setProperty(propertyName, "");
+                if (isSystem) {
+                    // we can't remove or null set a sys property so let's "empty" it.
+                    System.setProperty(propertyName, "");
+                }
             }
+            else if (isSystem) {
+                // in case this is a system property, we must only store it in the System property set
+                // and keep only a ref locally.
+                System.setProperty(propertyName, property.toString());
+                store.setSystemProperty(propertyName);
+            }
+            else {
+                store.setNonSystemProperty(propertyName, property);
+            }
+            updateStorePropertyNames(propertyName, (property != null) && !isSystem);
         }
-        else if (isSystem) {
-            // in case this is a system property, we must only store it in the System property set
-            // and keep only a ref locally.
-            System.setProperty(propertyName, property.toString());
-            store.setSystemProperty(propertyName);
-        }
-        else {
+    }
+
+    /**
+     * Stores a non-system property in {@link #store} without asking {@code VetoableChangeListener}s
+     * and notifying {@code PropertyChangeListener}s.
+     *
+     * @param propertyName the name of the property
+     * @param property the value of the property
+     */
+    private void setStoreProperty(String propertyName, Object property)
+    {
+        synchronized (storePropertyNamesLock) {
             store.setNonSystemProperty(propertyName, property);
+            updateStorePropertyNames(propertyName, true);
+        }
+        invalidateParsedValue(propertyName);
+    }
+
+    /**
+     * Reflects a change made to {@link #store} in {@link #storePropertyNames}, if it has been built.
+     * Must be called with {@link #storePropertyNamesLock} held.
+     *
+     * @param propertyName the name of the changed property
+     * @param stored <code>true</code> if the store now holds a value for the property; <code>false</code>
+     * if it has been removed or made a system property
+     */
+    private void updateStorePropertyNames(String propertyName, boolean stored)
+    {
+        NavigableSet<String> names = storePropertyNames;
+        if (names != null && !propertyName.startsWith(AccountID.ACCOUNT_UUID_PREFIX)) {
+            if (stored)
+                names.add(propertyName);
+            else
+                names.remove(propertyName);
+        }
+    }
+
+    /**
+     * Gets the sorted names of the properties in {@link #store}, building the index on first use.
+     *
+     * @return the sorted names of the properties in the store
+     */
+    private NavigableSet<String> getStorePropertyNames()
+    {
+        NavigableSet<String> names = storePropertyNames;
+        if (names == null) {
+            synchronized (storePropertyNamesLock) {
+                names = storePropertyNames;
+                if (names == null) {
+                    names = new ConcurrentSkipListSet<>(Arrays.asList(store.getPropertyNames("")));
+                    storePropertyNames = names;
+                }
+            }
         }
+        return names;
+    }
+
+    /**
+     * Drops the index of the names and the parsed values of the properties in {@link #store}, after
+     * the store has been reloaded or replaced.
+     */
+    private void invalidateStore()
+    {
+        synchronized (storePropertyNamesLock) {
+            storePropertyNames = null;
+        }
+        parsedValuesGeneration.incrementAndGet();
+        parsedValues.clear();
     }
 
     /**
@@ -292,7 +400,7 @@ public class ConfigurationServiceImpl implements ConfigurationService
         removePropertyInternal(propertyName);
 
         try {
-            storeConfiguration();
+            storeChangedConfiguration();
         } catch (IOException ex) {
             Timber.e("Failed to store configuration after a property change");
         }
@@ -318,9 +426,12 @@ public class ConfigurationServiceImpl implements ConfigurationService
             changeEventDispatcher.fireVetoableChange(propertyName, oldValue, null);
 
         // no exception was thrown - lets change the property and fire a change event
-        Timber.log(TimberLog.FINER, "Will remove prop: %", propertyName);
+        Timber.log(TimberLog.FINER, "Will remove prop: %s", propertyName);
 
-        store.removeProperty(propertyName);
+        synchronized (storePropertyNamesLock) {
+            store.removeProperty(propertyName);
+            updateStorePropertyNames(propertyName, false);
+        }
         if (changeEventDispatcher.hasPropertyChangeListeners(propertyName))
             changeEventDispatcher.firePropertyChange(propertyName, oldValue, null);
     }
@@ -398,30 +509,49 @@ public class ConfigurationServiceImpl implements ConfigurationService
         HashSet<String> resultKeySet = new HashSet<>();
 
         // first fill in the names from the immutable default property set
-        Set<String> propertyNameSet;
-        String[] namesArray;
-
         if (immutableDefaultProperties.size() > 0) {
-            propertyNameSet = immutableDefaultProperties.keySet();
-            namesArray = propertyNameSet.toArray(new String[0]);
-            getPropertyNamesByPrefix(prefix, exactPrefixMatch, namesArray, resultKeySet);
+            getPropertyNamesByPrefix(prefix, exactPrefixMatch,
+                    startingWith(immutableDefaultProperties.navigableKeySet(), prefix), resultKeySet);
         }
 
         // now get property names from the current store.
-        getPropertyNamesByPrefix(prefix, exactPrefixMatch, store.getPropertyNames(prefix), resultKeySet);
+        getPropertyNamesByPrefix(prefix, exactPrefixMatch,
+                startingWith(getStorePropertyNames(), prefix), resultKeySet);
 
         // finally, get property names from mutable default property set.
         if (defaultProperties.size() > 0) {
-            propertyNameSet = defaultProperties.keySet();
-            namesArray = propertyNameSet.toArray(new String[0]);
-            getPropertyNamesByPrefix(prefix, exactPrefixMatch, namesArray, resultKeySet);
+            getPropertyNamesByPrefix(prefix, exactPrefixMatch,
+                    startingWith(defaultProperties.navigableKeySet(), prefix), resultKeySet);
         }
         return new ArrayList<>(resultKeySet);
     }
 
+    /**
+     * Gets the range of a sorted set of names which start with a specific prefix.
+     *
+     * @param names the sorted names
+     * @param prefix the prefix
+     * @return a view of the names in <code>names</code> which start with <code>prefix</code>
+     */
+    private static NavigableSet<String> startingWith(NavigableSet<String> names, String prefix)
+    {
+        int length = prefix.length();
+        if (length == 0)
+            return names;
+
+        char last = prefix.charAt(length - 1);
+        if (last == Character.MAX_VALUE)
+            return names.tailSet(prefix, true);
+
+        // The names starting with prefix sort below prefix with its last character incremented.
+        String upperBound = prefix.substring(0, length - 1) + (char) (last + 1);
+        return names.subSet(prefix, true, upperBound, false);
+    }
+
     /**
      * Updates the specified <code>String</code> <code>resultSet</code> to contain all property names in
-     * the <code>names</code> array that partially or completely match the specified prefix.
+     * the <code>names</code> which start with the specified prefix and whose prefix (the part before
+     * the last dot) partially or completely matches it.
      * Depending on the value of the <code>exactPrefixMatch</code> parameter the method will (when
      * false) or will not (when exactPrefixMatch is true) include property names that have prefixes
      * longer than the specified <code>prefix</code> param.
@@ -431,23 +561,19 @@ public class ConfigurationServiceImpl implements ConfigurationService
      * @param exactPrefixMatch a boolean indicating whether the returned property names should all have
      * a prefix that is an exact match of the the <code>prefix</code> param or whether properties with
      * prefixes that contain it but are longer than it are also accepted.
-     * @param names the list of names that we'd like to search.
+     * @param names the names that we'd like to search, all starting with <code>prefix</code>.
      * @return a reference to the updated result set.
      */
     private Set<String> getPropertyNamesByPrefix(String prefix, boolean exactPrefixMatch,
-            String[] names, Set<String> resultSet)
+            Collection<String> names, Set<String> resultSet)
     {
+        int prefixLength = prefix.length();
         for (String key : names) {
             // cmeng - A valid Property item must have a "." with suffix propertyName string
             int ix = key.lastIndexOf('.');
             if (ix != -1) {
-                String keyPrefix = key.substring(0, ix);
-                if (exactPrefixMatch) {
-                    if (prefix.equals(keyPrefix)) {
-                        resultSet.add(key);
-                    }
-                }
-                else if (keyPrefix.startsWith(prefix)) {
+                // key starts with prefix, so its keyPrefix equals (ix == prefixLength) or starts with it.
+                if (exactPrefixMatch ? (ix == prefixLength) : (ix >= prefixLength)) {
                     resultSet.add(key);
                 }
             }
@@ -479,7 +605,7 @@ public class ConfigurationServiceImpl implements ConfigurationService
     {
         List<String> resultKeySet = new LinkedList<>();
 
-        for (String key : store.getPropertyNames(suffix)) {
+        for (String key : store.getPropertyNames("")) {
             int ix = key.lastIndexOf('.');
 
             if ((ix != -1) && suffix.equals(key.substring(ix + 1)))
@@ -608,9 +734,25 @@ public class ConfigurationServiceImpl implements ConfigurationService
             store.reloadConfiguration(file);
         } catch (XMLException xmle) {
             throw new IOException(xmle);
+        } finally {
+            invalidateStore();
         }
     }
 
+    /**
+     * Stores the configuration after a change made through this service. A
+     * <code>DatabaseConfigurationStore</code> writes its changes in the background on its own, so
+     * it is not made to wait for the write here.
+     *
+     * @throws IOException if there was a problem storing the configuration
+     */
+    private void storeChangedConfiguration()
+            throws IOException
+    {
+        if (!(store instanceof DatabaseConfigurationStore))
+            storeConfiguration();
+    }
+
     /*
      * Implements ConfigurationService#storeConfiguration().
      */
@@ -855,7 +997,7 @@ public class ConfigurationServiceImpl implements ConfigurationService
             // now save all this as a configuration property so that we don't have to look for it
             // in the sys props next time and so that it is available for other bundles to consult.
             if (store != null) {
-                store.setNonSystemProperty(PNAME_SC_HOME_DIR_LOCATION, scHomeDirLocation);
+                setStoreProperty(PNAME_SC_HOME_DIR_LOCATION, scHomeDirLocation);
             }
         }
         return scHomeDirLocation;
@@ -888,7 +1030,7 @@ public class ConfigurationServiceImpl implements ConfigurationService
             // now save all this as a configuration property so that we don't have to look for it
             // in the sys props next time and so that it is available for other bundles to consult.
             if (store != null)
-                store.setNonSystemProperty(PNAME_SC_HOME_DIR_NAME, scHomeDirName);
+                setStoreProperty(PNAME_SC_HOME_DIR_NAME, scHomeDirName);
         }
         return scHomeDirName;
     }
@@ -1086,8 +1228,8 @@ public class ConfigurationServiceImpl implements ConfigurationService
     @Override
     public boolean getBoolean(String propertyName, boolean defaultValue)
     {
-        String value = getString(propertyName);
-        return StringUtils.isNullOrEmpty(value) ? defaultValue : Boolean.parseBoolean(value);
+        Boolean value = getParsedValue(propertyName, Boolean.class);
+        return (value == null) ? defaultValue : value;
     }
 
     /**
@@ -1125,18 +1267,8 @@ public class ConfigurationServiceImpl implements ConfigurationService
     @Override
     public int getInt(String propertyName, int defaultValue)
     {
-        String stringValue = getString(propertyName);
-        int intValue = defaultValue;
-
-        if ((stringValue != null) && (stringValue.length() > 0)) {
-            try {
-                intValue = Integer.parseInt(stringValue);
-            } catch (NumberFormatException ex) {
-                Timber.e(ex, " %sdoes not appear to be an integer. Defaulting to %s",
-                        propertyName, defaultValue);
-            }
-        }
-        return intValue;
+        Integer value = getParsedValue(propertyName, Integer.class);
+        return (value == null) ? defaultValue : value;
     }
 
     /**
@@ -1145,18 +1277,8 @@ public class ConfigurationServiceImpl implements ConfigurationService
     @Override
     public double getDouble(String propertyName, double defaultValue)
     {
-        String stringValue = getString(propertyName);
-        double doubleValue = defaultValue;
-
-        if ((stringValue != null) && (stringValue.length() > 0)) {
-            try {
-                doubleValue = Double.parseDouble(stringValue);
-            } catch (NumberFormatException ex) {
-                Timber.e(ex, "%s does not appear to be a double. Defaulting to %s",
-                        propertyName, defaultValue);
-            }
-        }
-        return doubleValue;
+        Double value = getParsedValue(propertyName, Double.class);
+        return (value == null) ? defaultValue : value;
     }
 
     /**
@@ -1180,18 +1302,67 @@ public class ConfigurationServiceImpl implements ConfigurationService
     @Override
     public long getLong(String propertyName, long defaultValue)
     {
+        Long value = getParsedValue(propertyName, Long.class);
+        return (value == null) ? defaultValue : value;
+    }
+
+    /**
+     * Gets the value of a specific property parsed as a specific type, from {@link #parsedValues}
+     * if it has already been parsed as that type since its last change.
+     *
+     * @param propertyName the name of the property
+     * @param type the type to parse the value as: <code>Boolean</code>, <code>Integer</code>,
+     * <code>Long</code> or <code>Double</code>
+     * @return the parsed value of the property, or <code>null</code> if it has no value or its value
+     * cannot be parsed as <code>type</code>
+     */
+    private <T> T getParsedValue(String propertyName, Class<T> type)
+    {
+        ParsedValue parsed = parsedValues.get(propertyName);
+        if (parsed != null && parsed.type == type)
+            return type.cast(parsed.value);
+
+        int generation = parsedValuesGeneration.get();
         String stringValue = getString(propertyName);
-        long longValue = defaultValue;
+        Object value = null;
 
         if ((stringValue != null) && (stringValue.length() > 0)) {
             try {
-                longValue = Long.parseLong(stringValue);
+                if (type == Boolean.class)
+                    value = Boolean.parseBoolean(stringValue);
+                else if (type == Integer.class)
+                    value = Integer.parseInt(stringValue);
+                else if (type == Long.class)
+                    value = Long.parseLong(stringValue);
+                else if (type == Double.class)
+                    value = Double.parseDouble(stringValue);
+                else
+                    throw new IllegalArgumentException("type " + type);
             } catch (NumberFormatException ex) {
-                Timber.e(ex, "%s does not appear to be a longinteger. Defaulting to %s",
-                        propertyName, defaultValue);
+                Timber.e(ex, "%s does not appear to be a %s. Using the default value",
+                        propertyName, type.getSimpleName());
             }
         }
-        return longValue;
+
+        parsedValues.put(propertyName, new ParsedValue(type, value));
+        // The property may have changed after it was read; do not keep its old value then.
+        if (generation != parsedValuesGeneration.get())
+            parsedValues.remove(propertyName);
+        return type.cast(value);
+    }
+
+    /**
+     * Drops the parsed value of a specific property from {@link #parsedValues}.
+     *
+     * @param propertyName the name of the property which has changed
+     */
+    private void invalidateParsedValue(String propertyName)
+    {
+        parsedValuesGeneration.incrementAndGet();
+        if (propertyName != null)
+            parsedValues.remove(propertyName);
+        else
+            parsedValues.clear();
     }
 
     /**
@@ -1218,9 +1389,11 @@ public class ConfigurationServiceImpl implements ConfigurationService
             configurationFile.delete();
             configurationFile = null;
         }
-        if (store != null)
+        if (store != null) {
             for (String name : store.getPropertyNames(""))
                 store.removeProperty(name);
+            invalidateStore();
+        }
     }
 
     /**
@@ -1352,6 +1525,7 @@ public class ConfigurationServiceImpl implements ConfigurationService
 
             if (exception != null)
                 throw new RuntimeException(exception);
+            invalidateStore();
         }
 
     }
@@ -1453,4 +1627,27 @@ public class ConfigurationServiceImpl implements ConfigurationService
             Timber.d(ex, "load exception");
         }
     }
+
+    /**
+     * The value of a property parsed as a specific type.
+     */
+    private static class ParsedValue
+    {
+        /**
+         * The type the value has been parsed as.
+         */
+        final Class<?> type;
+
+        /**
+         * The parsed value; <code>null</code> if the property has no value or it cannot be parsed as
+         * {@link #type}.
+         */
+        final Object value;
+
+        ParsedValue(Class<?> type, Object value)
+        {
+            this.type = type;
+            this.value = value;
+        }
+    }
 }
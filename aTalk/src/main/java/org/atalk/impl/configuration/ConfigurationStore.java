@@ -33,8 +33,11 @@ public interface ConfigurationStore
 
 	/**
 	 * Gets the names of the properties which have values associated in this
-	 * <code>ConfigurationStore</code>.
+	 * <code>ConfigurationStore</code>. An implementation may return only the names which start with
+	 * a specific prefix, or all of them, so the caller filters the names itself.
 	 *
+	 * @param name
+	 * 		the prefix of the names of interest; an empty <code>String</code> for all names
 	 * @return an array of <code>String</code>s which specify the names of the properties that have
 	 * values associated in this <code>ConfigurationStore</code>; an empty array if this instance
 	 * contains no property values
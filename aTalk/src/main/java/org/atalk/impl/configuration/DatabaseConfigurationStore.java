@@ -5,17 +5,61 @@
  */
 package org.atalk.impl.configuration;
 
+import org.atalk.util.concurrent.ExecutorFactory;
 import org.atalk.util.xml.XMLException;
 
 import java.io.*;
-import java.util.Hashtable;
+import java.util.*;
+import java.util.concurrent.*;
+
+import timber.log.Timber;
 
 /**
+ * A <code>ConfigurationStore</code> backed by a database. The changes are not written to the
+ * database on the thread which makes them: they are recorded in a journal of the changed property
+ * names, in which repeated changes of a property coalesce, and a background writer commits them
+ * in batches. The journal is consulted before the database, so the changes are visible as soon as
+ * they are made. {@link #storeConfiguration()} writes the pending changes and waits for them.
+ *
  * @author Lyubomir Marinov
+ * @author Eng Chong Meng
  */
 @SuppressWarnings("rawtypes")
 public abstract class DatabaseConfigurationStore extends HashtableConfigurationStore<Hashtable>
 {
+	/**
+	 * The time in milliseconds to wait after a change before writing the journal, so that the
+	 * changes made in a burst are committed together.
+	 */
+	private static final long WRITE_DELAY = 100;
+
+	/**
+	 * The time in milliseconds to wait before writing the journal again after a failed write.
+	 */
+	private static final long RETRY_DELAY = 5000;
+
+	/**
+	 * The value in {@link #journal} of a property which has been removed.
+	 */
+	private static final Object REMOVED = new Object();
+
+	/**
+	 * The changes which have not been written to the database yet, by property name, in the order
+	 * they have been made. Shared by all instances, which are backed by the same database.
+	 */
+	private static final LinkedHashMap<String, Object> journal = new LinkedHashMap<>();
+
+	/**
+	 * The executor which writes the journal to the database.
+	 */
+	private static final ScheduledExecutorService writer
+			= ExecutorFactory.createSingleThreadScheduledExecutor("DatabaseConfigurationStore-", 30, TimeUnit.SECONDS);
+
+	/**
+	 * Whether a write of the journal has been scheduled but has not started yet.
+	 */
+	private static boolean writeScheduled = false;
+
 	/**
 	 * Initializes a new <code>DatabaseConfigurationStore</code> instance.
 	 */
@@ -36,6 +80,203 @@ public abstract class DatabaseConfigurationStore extends HashtableConfigurationS
 		super(properties);
 	}
 
+	/**
+	 * Overrides {@link HashtableConfigurationStore#getProperty(String)}. Gets the value of the
+	 * property with a specific name from the journal of the changes not written yet, or else from
+	 * the runtime storage, from the database or from the system properties.
+	 *
+	 * @param name
+	 * 		the name of the property to get the value of
+	 * @return the value of the property with the specified name; <code>null</code> if it does not
+	 * have a value
+	 * @see ConfigurationStore#getProperty(String)
+	 */
+	@Override
+	public Object getProperty(String name)
+	{
+		Object value;
+		synchronized (journal) {
+			value = journal.get(name);
+		}
+		if (value == REMOVED)
+			return System.getProperty(name);
+		if (value != null)
+			return value;
+
+		value = properties.get(name);
+		if (value == null) {
+			value = loadProperty(name);
+			if (value == null)
+				value = System.getProperty(name);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads the value of the property with a specific name from the database.
+	 *
+	 * @param name
+	 * 		the name of the property to get the value of
+	 * @return the value of the property with the specified name in the database; <code>null</code>
+	 * if it does not have a value there
+	 */
+	protected Object loadProperty(String name)
+	{
+		return null;
+	}
+
+	/**
+	 * Overrides {@link HashtableConfigurationStore#removeProperty(String)}. Removes the property
+	 * with a specific name from the runtime storage and records the removal in the journal.
+	 *
+	 * @param name
+	 * 		the name of the property which is to have its value association in this
+	 * 		<code>ConfigurationStore</code> removed
+	 * @see ConfigurationStore#removeProperty(String)
+	 */
+	@Override
+	public void removeProperty(String name)
+	{
+		super.removeProperty(name);
+		journal(name, REMOVED);
+	}
+
+	/**
+	 * Overrides {@link HashtableConfigurationStore#setNonSystemProperty(String, Object)}. Sets the
+	 * property with a specific name in the runtime storage and records the change in the journal.
+	 *
+	 * @param name
+	 * 		the name of the non-system property to be set to the specified value in this
+	 * 		<code>ConfigurationStore</code>
+	 * @param value
+	 * 		the value to be assigned to the non-system property with the specified name in this
+	 * 		<code>ConfigurationStore</code>
+	 * @see ConfigurationStore#setNonSystemProperty(String, Object)
+	 */
+	@Override
+	public void setNonSystemProperty(String name, Object value)
+	{
+		super.setNonSystemProperty(name, value);
+		journal(name, value);
+	}
+
+	/**
+	 * Records a change in the journal and schedules its write.
+	 *
+	 * @param name
+	 * 		the name of the changed property
+	 * @param value
+	 * 		the new value of the property, or {@link #REMOVED}
+	 */
+	private void journal(String name, Object value)
+	{
+		synchronized (journal) {
+			// Moved to the end, so that the changes are written in the order they have been last made.
+			journal.remove(name);
+			journal.put(name, value);
+			scheduleWrite(WRITE_DELAY);
+		}
+	}
+
+	/**
+	 * Schedules {@link #writeJournal()}, unless already scheduled. Must be called with
+	 * {@link #journal} locked.
+	 *
+	 * @param delay
+	 * 		the delay in milliseconds after which to write the journal
+	 */
+	private void scheduleWrite(long delay)
+	{
+		if (!writeScheduled) {
+			writeScheduled = true;
+			writer.schedule(this::writeJournal, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Runs in {@link #writer}: writes the changes in the journal to the database in one batch. The
+	 * changes stay in the journal until written, so that they remain visible meanwhile.
+	 */
+	private void writeJournal()
+	{
+		Map<String, Object> batch;
+		synchronized (journal) {
+			writeScheduled = false;
+			if (journal.isEmpty())
+				return;
+			batch = new LinkedHashMap<>(journal);
+		}
+
+		Map<String, Object> changes = new LinkedHashMap<>(batch.size());
+		for (Map.Entry<String, Object> change : batch.entrySet()) {
+			Object value = change.getValue();
+			changes.put(change.getKey(), (value == REMOVED) ? null : value);
+		}
+
+		try {
+			writeChanges(changes);
+		} catch (Exception e) {
+			Timber.e(e, "Failed to write %d configuration changes", changes.size());
+			synchronized (journal) {
+				scheduleWrite(RETRY_DELAY);
+			}
+			return;
+		}
+
+		synchronized (journal) {
+			for (Map.Entry<String, Object> change : batch.entrySet()) {
+				// A property changed again meanwhile stays in the journal for the next write.
+				if (journal.get(change.getKey()) == change.getValue())
+					journal.remove(change.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Gets the changes which have not been written to the database yet.
+	 *
+	 * @return the changes not written yet, in the order they have been made, by property name; the
+	 * value of a removed property is <code>null</code>
+	 */
+	protected Map<String, Object> getPendingChanges()
+	{
+		synchronized (journal) {
+			Map<String, Object> changes = new LinkedHashMap<>(journal.size());
+			for (Map.Entry<String, Object> change : journal.entrySet()) {
+				Object value = change.getValue();
+				changes.put(change.getKey(), (value == REMOVED) ? null : value);
+			}
+			return changes;
+		}
+	}
+
+	/**
+	 * Writes the changes in the journal to the database and waits for the write to complete.
+	 */
+	public void flush()
+	{
+		try {
+			writer.submit(this::writeJournal).get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ee) {
+			Timber.e(ee.getCause(), "Failed to write the configuration changes");
+		}
+	}
+
+	/**
+	 * Writes a batch of changes to the database, preferably in a single transaction. Called on the
+	 * background writer thread.
+	 *
+	 * @param changes
+	 * 		the changes to write, in the order they have been made, by property name; the value of a
+	 * 		property to be removed is <code>null</code>
+	 * @throws IOException
+	 * 		if writing to the database fails
+	 */
+	protected abstract void writeChanges(Map<String, Object> changes)
+			throws IOException;
+
 	/**
 	 * Removes all property name-value associations currently present in this
 	 * <code>ConfigurationStore</code> instance and de-serializes new property name-value
@@ -64,13 +305,15 @@ public abstract class DatabaseConfigurationStore extends HashtableConfigurationS
 	public void reloadConfiguration(File file)
 			throws IOException, XMLException
 	{
+		flush();
 		properties.clear();
 		reloadConfiguration();
 	}
 
 	/**
 	 * Stores/serializes the property name-value associations currently present in this
-	 * <code>ConfigurationStore</code> instance into its underlying database (storage).
+	 * <code>ConfigurationStore</code> instance into its underlying database (storage): writes the
+	 * changes in the journal and waits for the write to complete.
 	 *
 	 * @throws IOException
 	 * 		if there is an output error while storing the properties managed by this
@@ -80,6 +323,7 @@ public abstract class DatabaseConfigurationStore extends HashtableConfigurationS
 	protected void storeConfiguration()
 			throws IOException
 	{
+		flush();
 	}
 
 	/**
@@ -15,8 +15,11 @@ import org.atalk.impl.neomedia.device.VideoMediaDeviceSession;
 import org.atalk.impl.neomedia.rtcp.NACKPacket;
 import org.atalk.impl.neomedia.rtcp.RTCPREMBPacket;
 import org.atalk.impl.neomedia.rtcp.RTCPTCCPacket;
+import org.atalk.impl.neomedia.rtp.RTCPPacketListenerAdapter;
 import org.atalk.impl.neomedia.rtp.StreamRTPManager;
 import org.atalk.impl.neomedia.rtp.TransportCCEngine;
+import org.atalk.impl.neomedia.stats.Histogram;
+import org.atalk.impl.neomedia.stats.MediaMetrics;
 import org.atalk.impl.neomedia.stats.MediaStreamStats2Impl;
 import org.atalk.impl.neomedia.transform.rtcp.StatisticsEngine;
 import org.atalk.service.neomedia.MediaStream;
@@ -278,11 +281,49 @@ public class MediaStreamStatsImpl implements MediaStreamStats
      */
     private int remoteJitterCount = 0;
 
+    /**
+     * The {@link MediaMetrics} histogram of the jitter reported by the remote side in microseconds,
+     * or <code>null</code> if the metrics are disabled.
+     */
+    private final Histogram remoteJitterHistogram = MediaMetrics.getInstance().histogram("rtcp.remote_jitter_us");
+
+    /**
+     * The {@link MediaMetrics} histogram of the RTT in milliseconds, or <code>null</code> if the
+     * metrics are disabled.
+     */
+    private final Histogram rttHistogram = MediaMetrics.getInstance().histogram("rtcp.rtt_ms");
+
+    /**
+     * The flag of {@link #hasRTCPPacketListeners(int)} for NACK packets.
+     */
+    public static final int RTCP_NACK = 1;
+
+    /**
+     * The flag of {@link #hasRTCPPacketListeners(int)} for REMB packets.
+     */
+    public static final int RTCP_REMB = 1 << 1;
+
+    /**
+     * The flag of {@link #hasRTCPPacketListeners(int)} for SR packets.
+     */
+    public static final int RTCP_SR = 1 << 2;
+
+    /**
+     * The flag of {@link #hasRTCPPacketListeners(int)} for TCC packets.
+     */
+    public static final int RTCP_TCC = 1 << 3;
+
     /**
      * The list of listeners to be notified when RTCP packets are received.
      */
     private final List<RTCPPacketListener> rtcpPacketListeners = Collections.synchronizedList(new LinkedList<>());
 
+    /**
+     * The <code>RTCP_XXX</code> flags of the RTCP packets which the {@link #rtcpPacketListeners} are
+     * interested in, so that the received packets nobody listens for are not parsed.
+     */
+    private volatile int listenedRTCPPackets = 0;
+
     /**
      * Creates a new instance of stats concerning a MediaStream.
      *
@@ -677,6 +718,9 @@ public class MediaStreamStatsImpl implements MediaStreamStats
 
         remoteJitterSum += remoteJitter;
         remoteJitterCount++;
+
+        if (remoteJitterHistogram != null)
+            remoteJitterHistogram.record(Math.round(rtpTimeToMs(remoteJitter) * 1000));
     }
 
     /**
@@ -1053,6 +1097,9 @@ public class MediaStreamStatsImpl implements MediaStreamStats
      */
     private void setRttMs(long rttMs)
     {
+        if (rttHistogram != null && rttMs >= 0)
+            rttHistogram.record(rttMs);
+
         if (this.rttMs != rttMs) {
             this.rttMs = rttMs;
 
@@ -1309,10 +1356,7 @@ public class MediaStreamStatsImpl implements MediaStreamStats
     public void srReceived(RTCPSRPacket sr)
     {
         if (sr != null) {
-            long emissionTime = TimeUtils.toNtpShortFormat(TimeUtils.constructNtp(sr.ntptimestampmsw, sr.ntptimestamplsw));
-
-            long arrivalTime = TimeUtils.toNtpShortFormat(TimeUtils.toNtpTime(System.currentTimeMillis()));
-            emission2reception.put(emissionTime, arrivalTime);
+            srReceived(sr.ntptimestampmsw, sr.ntptimestamplsw);
             synchronized (rtcpPacketListeners) {
                 for (RTCPPacketListener listener : rtcpPacketListeners) {
                     listener.srReceived(sr);
@@ -1321,6 +1365,33 @@ public class MediaStreamStatsImpl implements MediaStreamStats
         }
     }
 
+    /**
+     * Notifies this instance that an RTCP SR packet with a specific NTP timestamp was received; for when
+     * there are no {@link RTCPPacketListener}s to hand the parsed packet over to.
+     *
+     * @param ntpTimestampMSW the most significant word of the NTP timestamp of the SR
+     * @param ntpTimestampLSW the least significant word of the NTP timestamp of the SR
+     */
+    public void srReceived(long ntpTimestampMSW, long ntpTimestampLSW)
+    {
+        long emissionTime = TimeUtils.toNtpShortFormat(TimeUtils.constructNtp(ntpTimestampMSW, ntpTimestampLSW));
+
+        long arrivalTime = TimeUtils.toNtpShortFormat(TimeUtils.toNtpTime(System.currentTimeMillis()));
+        emission2reception.put(emissionTime, arrivalTime);
+    }
+
+    /**
+     * Returns whether any {@link RTCPPacketListener} is interested in the specified kinds of RTCP
+     * packets, i.e. whether received packets of these kinds have to be parsed into objects for them.
+     *
+     * @param packets the <code>RTCP_XXX</code> flags of the kinds of RTCP packets to check
+     * @return <code>true</code> if there are <code>RTCPPacketListener</code>s for any of <code>packets</code>
+     */
+    public boolean hasRTCPPacketListeners(int packets)
+    {
+        return (listenedRTCPPackets & packets) != 0;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1329,6 +1400,7 @@ public class MediaStreamStatsImpl implements MediaStreamStats
     {
         if (listener != null) {
             rtcpPacketListeners.add(listener);
+            updateListenedRTCPPackets();
         }
     }
 
@@ -1340,6 +1412,64 @@ public class MediaStreamStatsImpl implements MediaStreamStats
     {
         if (listener != null) {
             rtcpPacketListeners.remove(listener);
+            updateListenedRTCPPackets();
+        }
+    }
+
+    /**
+     * Recomputes {@link #listenedRTCPPackets} from the registered <code>RTCPPacketListener</code>s.
+     */
+    private void updateListenedRTCPPackets()
+    {
+        int packets = 0;
+        synchronized (rtcpPacketListeners) {
+            for (RTCPPacketListener listener : rtcpPacketListeners) {
+                packets |= getListenedRTCPPackets(listener);
+            }
+            listenedRTCPPackets = packets;
+        }
+    }
+
+    /**
+     * Gets the kinds of RTCP packets a specific <code>RTCPPacketListener</code> is interested in. A
+     * listener extending {@link RTCPPacketListenerAdapter} is not interested in the packets whose
+     * notification method it does not override.
+     *
+     * @param listener the <code>RTCPPacketListener</code>
+     * @return the <code>RTCP_XXX</code> flags of the RTCP packets <code>listener</code> is interested in
+     */
+    private static int getListenedRTCPPackets(RTCPPacketListener listener)
+    {
+        if (!(listener instanceof RTCPPacketListenerAdapter))
+            return RTCP_NACK | RTCP_REMB | RTCP_SR | RTCP_TCC;
+
+        Class<?> clazz = listener.getClass();
+        int packets = 0;
+        if (overrides(clazz, "nackReceived", NACKPacket.class))
+            packets |= RTCP_NACK;
+        if (overrides(clazz, "rembReceived", RTCPREMBPacket.class))
+            packets |= RTCP_REMB;
+        if (overrides(clazz, "srReceived", RTCPSRPacket.class))
+            packets |= RTCP_SR;
+        if (overrides(clazz, "tccReceived", RTCPTCCPacket.class))
+            packets |= RTCP_TCC;
+        return packets;
+    }
+
+    /**
+     * Checks whether a specific subclass of {@link RTCPPacketListenerAdapter} overrides one of its methods.
+     *
+     * @param clazz the subclass of <code>RTCPPacketListenerAdapter</code>
+     * @param name the name of the method
+     * @param parameterType the type of the only parameter of the method
+     * @return <code>true</code> if the method is not the no-op of <code>RTCPPacketListenerAdapter</code>
+     */
+    private static boolean overrides(Class<?> clazz, String name, Class<?> parameterType)
+    {
+        try {
+            return clazz.getMethod(name, parameterType).getDeclaringClass() != RTCPPacketListenerAdapter.class;
+        } catch (NoSuchMethodException e) {
+            return true;
         }
     }
 
@@ -5,6 +5,7 @@
  */
 package org.atalk.impl.neomedia;
 
+import net.java.sip.communicator.service.credentialsstorage.CredentialsStorageService;
 import net.java.sip.communicator.service.gui.ConfigurationForm;
 import net.java.sip.communicator.service.notification.*;
 import net.java.sip.communicator.service.resources.ResourceManagementServiceUtils;
@@ -15,6 +16,7 @@ import org.atalk.android.R;
 import org.atalk.android.aTalkApp;
 import org.atalk.android.gui.aTalk;
 import org.atalk.impl.neomedia.device.DeviceConfiguration;
+import org.atalk.impl.neomedia.transform.dtls.DtlsControlImpl;
 import org.atalk.service.audionotifier.AudioNotifierService;
 import org.atalk.service.configuration.ConfigurationService;
 import org.atalk.service.fileaccess.FileAccessService;
@@ -87,6 +89,12 @@ public class NeomediaActivator implements BundleActivator
      */
     private static FileAccessService fileAccessService;
 
+    /**
+     * The <code>CredentialsStorageService</code> registered in {@link #bundleContext} and used by
+     * the neomedia bundle.
+     */
+    private static CredentialsStorageService credentialsStorageService;
+
     /**
      * The notification service to pop-up messages.
      */
@@ -143,6 +151,9 @@ public class NeomediaActivator implements BundleActivator
         bundleContext.registerService(MediaService.class.getName(), mediaServiceImpl, null);
         Timber.d("Media Service ... [REGISTERED]");
 
+        // Have the DTLS-SRTP certificate ready before the first call is set up.
+        DtlsControlImpl.prepareCertificateInfo();
+
         // mediaConfiguration = new MediaConfigurationImpl();
         // bundleContext.registerService(MediaConfigurationService.class.getName(), getMediaConfiguration(), null);
         // Timber.d("Media Configuration ... [REGISTERED]");
@@ -277,6 +288,20 @@ public class NeomediaActivator implements BundleActivator
         return fileAccessService;
     }
 
+    /**
+     * Returns a reference to a CredentialsStorageService implementation currently registered in the
+     * bundle context or null if no such implementation was found.
+     *
+     * @return a currently valid implementation of the CredentialsStorageService.
+     */
+    public static CredentialsStorageService getCredentialsStorageService()
+    {
+        if (credentialsStorageService == null) {
+            credentialsStorageService = ServiceUtils.getService(bundleContext, CredentialsStorageService.class);
+        }
+        return credentialsStorageService;
+    }
+
     /**
      * Gets the <code>MediaService</code> implementation instance registered by the neomedia bundle.
      *
@@ -1146,6 +1146,16 @@ public class VideoMediaStreamImpl extends MediaStreamImpl implements VideoMediaS
         return paddingTermination;
     }
 
+    /**
+     * Gets the {@code BandwidthEstimator} of this stream without creating one.
+     *
+     * @return the {@code BandwidthEstimator} of this stream, or <code>null</code> if none has been created yet
+     */
+    public BandwidthEstimator getBandwidthEstimator()
+    {
+        return bandwidthEstimator;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -5,8 +5,6 @@
  */
 package org.atalk.impl.neomedia.audiolevel;
 
-import org.atalk.util.ArrayIOUtils;
-
 /**
  * Implements the calculation of audio level as defined by RFC 6465 &quot;A Real-time Transport
  * Protocol (RTP) Header Extension for Mixer-to-Client Audio Level Indication&quot;.
@@ -25,8 +23,19 @@ public class AudioLevelCalculator
 	 */
 	public static final byte MIN_AUDIO_LEVEL = 127;
 
+	/**
+	 * The value of <tt>20 * log10(Short.MAX_VALUE)</tt> i.e. the level in dB of a full scale sample,
+	 * by which the level of the mean square of the raw samples is normalized into dBov.
+	 */
+	private static final double FULL_SCALE_DB = 20 * Math.log10(Short.MAX_VALUE);
+
 	/**
 	 * Calculates the audio level of a signal with specific <tt>samples</tt>.
+	 * <p>
+	 * The samples are signed 16-bit little endian. Their squares are summed as integers, four
+	 * samples per iteration into independent accumulators, so that the loop has no floating point
+	 * and no dependency between consecutive samples; the only floating point operation is the
+	 * conversion of the mean square into dBov at the end.
 	 *
 	 * @param samples
 	 * 		the samples of the signal to calculate the audio level of
@@ -39,34 +48,45 @@ public class AudioLevelCalculator
 	 */
 	public static byte calculateAudioLevel(byte[] samples, int offset, int length)
 	{
-		double rms = 0; // root mean square (RMS) amplitude
+		int sampleCount = length / 2;
+		if (sampleCount <= 0)
+			return MIN_AUDIO_LEVEL;
+
+		int end = offset + 2 * sampleCount;
+		int unrolledEnd = offset + 8 * (sampleCount / 4);
+		long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+		int i = offset;
 
-		for (; offset < length; offset += 2) {
-			double sample = ArrayIOUtils.readShort(samples, offset);
+		for (; i < unrolledEnd; i += 8) {
+			int s0 = (samples[i + 1] << 8) | (samples[i] & 0xFF);
+			int s1 = (samples[i + 3] << 8) | (samples[i + 2] & 0xFF);
+			int s2 = (samples[i + 5] << 8) | (samples[i + 4] & 0xFF);
+			int s3 = (samples[i + 7] << 8) | (samples[i + 6] & 0xFF);
 
-			sample /= Short.MAX_VALUE;
-			rms += sample * sample;
+			sum0 += s0 * s0;
+			sum1 += s1 * s1;
+			sum2 += s2 * s2;
+			sum3 += s3 * s3;
 		}
+		for (; i < end; i += 2) {
+			int s = (samples[i + 1] << 8) | (samples[i] & 0xFF);
 
-		int sampleCount = length / 2;
-		rms = (sampleCount == 0) ? 0 : Math.sqrt(rms / sampleCount);
+			sum0 += s * s;
+		}
 
-		double db;
+		long sumOfSquares = sum0 + sum1 + sum2 + sum3;
+		if (sumOfSquares == 0)
+			return MIN_AUDIO_LEVEL;
 
-		if (rms > 0) {
-			db = 20 * Math.log10(rms);
-			// XXX The audio level is expressed in -dBov.
-			db = -db;
-			// Ensure that the calculated audio level is within the range
-			// between MIN_AUDIO_LEVEL and MAX_AUDIO_LEVEL.
-			if (db > MIN_AUDIO_LEVEL)
-				db = MIN_AUDIO_LEVEL;
-			else if (db < MAX_AUDIO_LEVEL)
-				db = MAX_AUDIO_LEVEL;
-		}
-		else {
+		// XXX The audio level is expressed in -dBov.
+		double db = FULL_SCALE_DB - 10 * Math.log10(((double) sumOfSquares) / sampleCount);
+
+		// Ensure that the calculated audio level is within the range
+		// between MIN_AUDIO_LEVEL and MAX_AUDIO_LEVEL.
+		if (db > MIN_AUDIO_LEVEL)
 			db = MIN_AUDIO_LEVEL;
-		}
+		else if (db < MAX_AUDIO_LEVEL)
+			db = MAX_AUDIO_LEVEL;
 		return (byte) db;
 	}
 }
@@ -36,8 +36,8 @@ public class AudioLevelEffect extends ControlsAdapter
 	private SimpleAudioLevelListener audioLevelListener = null;
 
 	/**
-	 * The dispatcher of the events which handles the calculation and the event firing in different
-	 * thread in order to now slow down the JMF codec chain.
+	 * The dispatcher of the events which calculates the levels in the JMF codec chain and fires the
+	 * events from the thread it shares with the other dispatchers.
 	 */
 	private final AudioLevelEventDispatcher eventDispatcher
 			= new AudioLevelEventDispatcher("AudioLevelEffect Dispatcher");
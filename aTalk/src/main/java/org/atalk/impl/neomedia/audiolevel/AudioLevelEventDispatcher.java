@@ -6,15 +6,27 @@
 package org.atalk.impl.neomedia.audiolevel;
 
 import org.atalk.service.neomedia.event.SimpleAudioLevelListener;
+import org.atalk.util.concurrent.ExecutorFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.media.Buffer;
 
+import timber.log.Timber;
+
 /**
- * The class implements an audio level measurement thread. The thread will measure new data every
- * time it is added through the <tt>addData()</tt> method and would then deliver it to a registered
- * listener if any. (No measurement would be performed until we have a <tt>levelListener</tt>). We
- * use a separate thread so that we could compute and deliver audio levels in a way that won't delay
- * the media processing thread.
+ * The class implements audio level measurement of the data added through the <tt>addData()</tt>
+ * method and delivers the measured levels to a registered listener if any. (No measurement would
+ * be performed until we have a <tt>levelListener</tt> or a level cache.)
+ * <p>
+ * The level is calculated in the thread which adds the data, directly on the <tt>Buffer</tt> of the
+ * media processing chain, so that the data is neither copied nor handed over to another thread;
+ * the calculation is cheap enough not to delay the media processing thread. The level is stored
+ * in the level cache right away, while the listener is notified by a single thread shared by all
+ * dispatchers, at most once every {@link #NOTIFICATION_INTERVAL} milliseconds with the latest
+ * level. Listeners must therefore return quickly.
  * <p>
  * Note that, for performance reasons this class is not 100% thread safe and you should not modify
  * add or remove audio listeners in this dispatcher in the notification thread (i.e. in the thread
@@ -27,179 +39,132 @@ import javax.media.Buffer;
 public class AudioLevelEventDispatcher
 {
 	/**
-	 * The interval of time in milliseconds which the Thread of AudioLevelEventDispatcher is to
-	 * idly wait for data to be provided for audio level calculation before it exits.
+	 * The minimum interval of time in milliseconds between two notifications of the listener of an
+	 * <tt>AudioLevelEventDispatcher</tt>. The levels measured in between are coalesced into the
+	 * latest one.
 	 */
-	private static final long IDLE_TIMEOUT = 30 * 1000;
+	private static final long NOTIFICATION_INTERVAL = 40;
+
+	/**
+	 * The executor which notifies the listeners of all <tt>AudioLevelEventDispatcher</tt>s.
+	 */
+	private static final ScheduledExecutorService notifier
+			= ExecutorFactory.createSingleThreadScheduledExecutor("AudioLevelEventDispatcher-", 30, TimeUnit.SECONDS);
 
 	/**
 	 * The <tt>AudioLevelMap</tt> in which the audio calculations run by this
 	 * <tt>AudioLevelEventDispatcher</tt> are to be cached in addition to dispatching them to
 	 * {@link #listener}.
 	 */
-	private AudioLevelMap cache = null;
+	private volatile AudioLevelMap cache = null;
 
 	/**
-	 * The data to process.
+	 * The listener which is interested in audio level changes.
 	 */
-	private byte[] data = null;
+	private volatile SimpleAudioLevelListener listener;
 
 	/**
-	 * The length of the data last recorded in the <tt>data</tt> array.
+	 * The SSRC of the stream we are measuring that we should use as a key for entries of the
+	 * levelMap level cache.
 	 */
-	private int dataLength = 0;
+	private volatile long ssrc = -1;
 
 	/**
-	 * The listener which is interested in audio level changes.
+	 * The name of this dispatcher, used in its log messages.
 	 */
-	private SimpleAudioLevelListener listener;
+	private final String name;
 
 	/**
-	 * The SSRC of the stream we are measuring that we should use as a key for entries of the
-	 * levelMap level cache.
+	 * The level last measured and not yet delivered to {@link #listener}.
 	 */
-	private long ssrc = -1;
+	private volatile int latestLevel;
 
 	/**
-	 * The <tt>Thread</tt> which runs the actual audio level calculations and dispatches to
-	 * {@link #listener}.
+	 * The time in milliseconds at which {@link #listener} was last notified.
 	 */
-	private Thread thread;
+	private volatile long lastNotificationTime = 0;
 
 	/**
-	 * The name of the <tt>Thread</tt> which is to run the actual audio level calculations and to
-	 * dispatch to {@link #listener}.
+	 * Whether a notification of {@link #listener} has been scheduled on {@link #notifier} but has
+	 * not run yet.
 	 */
-	private final String threadName;
+	private final AtomicBoolean notificationPending = new AtomicBoolean();
 
 	/**
-	 * Initializes a new <tt>AudioLevelEventDispatcher</tt> instance which is to use a specific
-	 * name
-	 * for its <tt>Thread</tt> which is to run the actual audio level calculations and to dispatch
-	 * to its <tt>SimpleAudioLevelListener</tt>
+	 * Initializes a new <tt>AudioLevelEventDispatcher</tt> instance which is to use a specific name
+	 * in its log messages.
 	 *
-	 * @param threadName
+	 * @param name
+	 * 		the name of the new dispatcher
 	 */
-	public AudioLevelEventDispatcher(String threadName)
+	public AudioLevelEventDispatcher(String name)
 	{
-		this.threadName = threadName;
+		this.name = name;
 	}
 
 	/**
-	 * Runs the actual audio level calculations and dispatches to the {@link #listener}.
+	 * Calculates the audio level of specific data, caches it and schedules its delivery to the
+	 * listener if requested.
+	 *
+	 * @param buffer
+	 * 		the data that we'd like to measure.
 	 */
-	private void run()
+	public void addData(Buffer buffer)
 	{
-		long idleTimeoutStart = -1;
-
-		while (true) {
-			SimpleAudioLevelListener listener;
-			AudioLevelMap cache;
-			long ssrc;
-
-			byte[] data;
-			int dataLength;
-
-			synchronized (this) {
-				if (!Thread.currentThread().equals(thread))
-					break;
+		SimpleAudioLevelListener listener = this.listener;
+		AudioLevelMap cache = this.cache;
+		long ssrc = this.ssrc;
 
-				listener = this.listener;
-				cache = this.cache;
-				ssrc = this.ssrc;
-				/*
-				 * If no one is interested in the audio level, do not even keep the Thread waiting.
-				 */
-				if ((listener == null) && ((cache == null) || (ssrc == -1)))
-					break;
-
-				data = this.data;
-				dataLength = this.dataLength;
-				/*
-				 * If there is no data to calculate the audio level of, wait for such data to be
-				 * provided.
-				 */
-				if ((data == null) || (dataLength < 1)) {
-					// The current thread is idle.
-					if (idleTimeoutStart == -1)
-						idleTimeoutStart = System.currentTimeMillis();
-					else if ((System.currentTimeMillis() - idleTimeoutStart) >= IDLE_TIMEOUT)
-						break;
+		/*
+		 * If no one is interested in the audio level, do not even calculate it.
+		 */
+		if ((listener == null) && ((cache == null) || (ssrc == -1)))
+			return;
 
-					boolean interrupted = false;
+		Object data = buffer.getData();
+		int length = buffer.getLength();
 
-					try {
-						wait(IDLE_TIMEOUT);
-					}
-					catch (InterruptedException ie) {
-						interrupted = true;
-					}
-					if (interrupted)
-						Thread.currentThread().interrupt();
+		if (!(data instanceof byte[]) || (length < 1))
+			return;
 
-					continue;
-				}
-				// The values of data and dataLength seem valid so consume them.
-				this.data = null;
-				this.dataLength = 0;
-				// The current thread is no longer idle.
-				idleTimeoutStart = -1;
-			}
+		int level = AudioLevelCalculator.calculateAudioLevel((byte[]) data, buffer.getOffset(), length);
 
-			int level = AudioLevelCalculator.calculateAudioLevel(data, 0, dataLength);
+		// FIXME The audio level is expressed in -dBov.
+		level = AudioLevelCalculator.MIN_AUDIO_LEVEL - level;
 
-			// FIXME The audio level is expressed in -dBov.
-			level = AudioLevelCalculator.MIN_AUDIO_LEVEL - level;
+		// Cache the newLevel if requested.
+		if ((cache != null) && (ssrc != -1))
+			cache.putLevel(ssrc, level);
+		// Notify the listener about the newLevel if requested.
+		if (listener != null) {
+			latestLevel = level;
+			if (notificationPending.compareAndSet(false, true)) {
+				long delay = lastNotificationTime + NOTIFICATION_INTERVAL - System.currentTimeMillis();
 
-			/*
-			 * In order to try to mitigate the issue with allocating data, try to return the one
-			 * which we have just calculated the audio level of.
-			 */
-			synchronized (this) {
-				if ((this.data == null) && (this.listener == null)
-						&& ((this.cache == null) || (this.ssrc == -1))) {
-					this.data = data;
-				}
+				notifier.schedule(this::notifyListener, Math.max(0, delay), TimeUnit.MILLISECONDS);
 			}
-
-			// Cache the newLevel if requested.
-			if ((cache != null) && (ssrc != -1))
-				cache.putLevel(ssrc, level);
-			// Notify the listener about the newLevel if requested.
-			if (listener != null)
-				listener.audioLevelChanged(level);
 		}
 	}
 
 	/**
-	 * Adds data to be processed.
-	 *
-	 * @param buffer
-	 * 		the data that we'd like to queue for processing.
+	 * Runs in {@link #notifier}: delivers the latest measured level to {@link #listener}.
 	 */
-	public synchronized void addData(Buffer buffer)
+	private void notifyListener()
 	{
-		/*
-		 * If no one is interested in the audio level, do not even add the Buffer data.
-		 */
-		if ((listener == null) && ((cache == null) || (ssrc == -1)))
-			return;
-
-		dataLength = buffer.getLength();
-		if (dataLength > 0) {
-			if ((data == null) || (data.length < dataLength))
-				data = new byte[dataLength];
-
-			Object bufferData = buffer.getData();
-
-			if (bufferData != null) {
-				System.arraycopy(bufferData, buffer.getOffset(), data, 0, dataLength);
+		lastNotificationTime = System.currentTimeMillis();
+		// Let a level measured from now on schedule a new notification.
+		notificationPending.set(false);
+
+		SimpleAudioLevelListener listener = this.listener;
+
+		if (listener != null) {
+			try {
+				listener.audioLevelChanged(latestLevel);
+			} catch (Throwable t) {
+				if (t instanceof ThreadDeath)
+					throw (ThreadDeath) t;
+				Timber.e(t, "%s: audio level listener failed", name);
 			}
-
-			if (thread == null)
-				startThread();
-			else
-				notify();
 		}
 	}
 
@@ -211,10 +176,7 @@ public class AudioLevelEventDispatcher
 	 */
 	public synchronized void setAudioLevelListener(SimpleAudioLevelListener listener)
 	{
-		if (this.listener != listener) {
-			this.listener = listener;
-			startOrNotifyThread();
-		}
+		this.listener = listener;
 	}
 
 	/**
@@ -228,67 +190,9 @@ public class AudioLevelEventDispatcher
 	 */
 	public synchronized void setAudioLevelCache(AudioLevelMap cache, long ssrc)
 	{
-		if ((this.cache != cache) || (this.ssrc != ssrc)) {
-			this.cache = cache;
-			this.ssrc = ssrc;
-			startOrNotifyThread();
-		}
-	}
-
-	/**
-	 * Starts the <tt>Thread</tt> which is to run the audio level calculations and to dispatch to
-	 * {@link #listener} if necessary or notifies it about a change it the state on which it
-	 * depends.
-	 */
-	private synchronized void startOrNotifyThread()
-	{
-		if ((this.listener == null) && ((cache == null) || (ssrc == -1))) {
-			thread = null;
-			notify();
-		}
-		else if ((data != null) && (dataLength > 0)) {
-			if (thread == null)
-				startThread();
-			else
-				notify();
-		}
-	}
-
-	/**
-	 * Starts the <tt>Thread</tt> which is to run the audio level calculations and to dispatch to
-	 * {@link #listener}.
-	 */
-	private synchronized void startThread()
-	{
-		thread = new Thread()
-		{
-			@Override
-			public void run()
-			{
-				try {
-					AudioLevelEventDispatcher.this.run();
-				} finally {
-					synchronized (AudioLevelEventDispatcher.this) {
-						if (Thread.currentThread().equals(thread))
-							thread = null;
-						/*
-						 * If the thread of this AudioLevelEventDispatcher is dying yet the state
-						 * suggests that it should be running, restart it.
-						 */
-						if ((thread == null)
-								&& ((listener != null) || ((cache != null)
-								&& (ssrc != -1)))
-								&& (data != null)
-								&& (dataLength > 0))
-							startThread();
-					}
-				}
-			}
-		};
-		thread.setDaemon(true);
-		if (threadName != null)
-			thread.setName(threadName);
-
-		thread.start();
+		// Clear the cache first so that addData never pairs the new cache with the old ssrc.
+		this.cache = null;
+		this.ssrc = ssrc;
+		this.cache = cache;
 	}
 }
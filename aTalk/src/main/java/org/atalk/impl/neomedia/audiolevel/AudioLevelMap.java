@@ -5,25 +5,32 @@
  */
 package org.atalk.impl.neomedia.audiolevel;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 /**
  * The class implements a basic mapping utility that allows binding <tt>long</tt> CSRC ID-s to
- * <tt>int</tt> audio levels. The class does not implement any synchronization for neither read nor
- * write operations but it is still intended to handle concurrent access in a manner that can be
- * considered graceful for the audio level use case. The class uses a bi-dimensional
- * <tt>long[][]</tt> matrix that is recreated every time a new CSRC is added or an existing one is
- * removed. Iterating through the matrix is only possible after obtaining a direct reference to it.
- * It is possible for this reference to become invalid shortly after someone has obtained it (e.g.
- * because someone added a new CSRC) but this should not cause problems for the CSRC audio level
- * delivery case.
+ * <tt>int</tt> audio levels. Reads and level updates of known CSRC-s are lock-free so that they can
+ * be done for every audio frame in the media processing threads: the CSRC-s are hashed into an
+ * open-addressed table whose levels are atomic slots. Only adding or removing a CSRC, which happens
+ * when a participant joins or leaves, recreates the table, under the lock of this instance. A level
+ * written into a table which is being replaced at the same time may get lost, but the next frame of
+ * the stream corrects it, which is graceful enough for the audio level use case.
  *
  * @author Emil Ivov
  */
 public class AudioLevelMap
 {
 	/**
-	 * The matrix containing a CSRC-to-level mappings.
+	 * The key of the empty slots of a {@link Table}. CSRC-s are unsigned 32-bit so it never clashes
+	 * with a valid one.
+	 */
+	private static final long EMPTY_SLOT = -1;
+
+	/**
+	 * The table containing the CSRC-to-level mappings.
 	 */
-	private long[][] levels = null;
+	private volatile Table table = new Table(0);
 
 	/**
 	 * If this map already contains <tt>csrc</tt> this method updates its level, otherwise we add a
@@ -36,16 +43,28 @@ public class AudioLevelMap
 	 */
 	public void putLevel(long csrc, int level)
 	{
-		// copy the levels matrix so that no one pulls it from under our feet.
-		long[][] levelsRef = levels;
-		int csrcIndex = findCSRC(levelsRef, csrc);
+		Table tableRef = table;
+		int index = tableRef.indexOf(csrc);
 
-		if (csrcIndex == -1) {
-			// we don't have the csrc in there yet so we need a new row.
-			levels = appendCSRCToMatrix(levelsRef, csrc, level);
+		if (index != -1) {
+			tableRef.levels.lazySet(index, level);
+			return;
 		}
-		else {
-			levelsRef[csrcIndex][1] = level;
+
+		// we don't have the csrc in there yet so we need a new table.
+		synchronized (this) {
+			tableRef = table;
+			index = tableRef.indexOf(csrc);
+			if (index == -1) {
+				Table newTable = new Table(tableRef.size + 1);
+
+				newTable.copyFrom(tableRef, EMPTY_SLOT);
+				newTable.put(csrc, level);
+				table = newTable;
+			}
+			else {
+				tableRef.levels.set(index, level);
+			}
 		}
 	}
 
@@ -59,27 +78,20 @@ public class AudioLevelMap
 	 */
 	public boolean removeLevel(long csrc)
 	{
-		// copy the levels matrix so that no one pulls it from under our feet.
-		long[][] levelsRef = levels;
-		int index = findCSRC(levelsRef, csrc);
+		synchronized (this) {
+			Table tableRef = table;
 
-		if (index == -1)
-			return false;
+			if (tableRef.indexOf(csrc) == -1)
+				return false;
 
-		if (levelsRef.length == 1) {
-			levels = null;
+			// copy tableRef into newTable making sure we skip the entry
+			// containing the CSRC ID that we are trying to remove;
+			Table newTable = new Table(tableRef.size - 1);
+
+			newTable.copyFrom(tableRef, csrc);
+			table = newTable;
 			return true;
 		}
-
-		// copy levelsRef into newLevels ref making sure we skip the entry
-		// containing the CSRC ID that we are trying to remove;
-		long[][] newLevelsRef = new long[levelsRef.length - 1][];
-
-		System.arraycopy(levelsRef, 0, newLevelsRef, 0, index);
-		System.arraycopy(levelsRef, index + 1, newLevelsRef, index, newLevelsRef.length - index);
-
-		levels = newLevelsRef;
-		return true;
 	}
 
 	/**
@@ -93,60 +105,127 @@ public class AudioLevelMap
 	 */
 	public int getLevel(long csrc)
 	{
-		long[][] levelsRef = levels;
-		int index = findCSRC(levelsRef, csrc);
+		Table tableRef = table;
+		int index = tableRef.indexOf(csrc);
 
-		return (index == -1) ? -1 : ((int) levelsRef[index][1]);
+		return (index == -1) ? -1 : tableRef.levels.get(index);
 	}
 
 	/**
-	 * Returns the index of the specified <tt>csrc</tt> level in the <tt>levels</tt> matrix or
-	 * <tt>-1</tt> if <tt>levels</tt> is <tt>null</tt> or does not contain <tt>csrc</tt>.
-	 *
-	 * @param levels
-	 * 		the bi-dimensional array that we'd like to search for the specified <tt>csrc</tt>.
-	 * @param csrc
-	 * 		the CSRC identifier that we are looking for.
-	 * @return the the index of the specified <tt>csrc</tt> level in the <tt>levels</tt> matrix or
-	 * <tt>-1</tt> if <tt>levels</tt> is <tt>null</tt> or does not contain <tt>csrc</tt>.
+	 * An open-addressed hash table of CSRC-s with linear probing, which is never modified once
+	 * published, apart from its levels.
 	 */
-	private int findCSRC(long[][] levels, long csrc)
+	private static class Table
 	{
-		if (levels != null) {
-			for (int i = 0; i < levels.length; i++) {
-				if (levels[i][0] == csrc)
+		/**
+		 * The CSRC-s of the slots, or {@link #EMPTY_SLOT}.
+		 */
+		final long[] csrcs;
+
+		/**
+		 * The levels of the slots.
+		 */
+		final AtomicIntegerArray levels;
+
+		/**
+		 * The mask which maps a hash onto a slot.
+		 */
+		final int mask;
+
+		/**
+		 * The number of CSRC-s in this table.
+		 */
+		int size = 0;
+
+		/**
+		 * Initializes a new empty <tt>Table</tt> with room for a specific number of CSRC-s, at a load
+		 * factor of at most one half.
+		 *
+		 * @param capacity
+		 * 		the number of CSRC-s the new table is to hold
+		 */
+		Table(int capacity)
+		{
+			int length = 2;
+			while (length < 2 * capacity)
+				length <<= 1;
+
+			csrcs = new long[length];
+			Arrays.fill(csrcs, EMPTY_SLOT);
+			levels = new AtomicIntegerArray(length);
+			mask = length - 1;
+		}
+
+		/**
+		 * Returns the index of the slot of a specific CSRC.
+		 *
+		 * @param csrc
+		 * 		the CSRC identifier that we are looking for.
+		 * @return the index of the slot of <tt>csrc</tt> or <tt>-1</tt> if this table does not
+		 * contain <tt>csrc</tt>.
+		 */
+		int indexOf(long csrc)
+		{
+			for (int i = hash(csrc) & mask; ; i = (i + 1) & mask) {
+				long key = csrcs[i];
+
+				if (key == csrc)
 					return i;
+				if (key == EMPTY_SLOT)
+					return -1;
 			}
 		}
-		return -1;
-	}
-
-	/**
-	 * Creates a new bi-dimensional array containing all entries (if any) from the <tt>levels</tt>
-	 * matrix and an extra entry for the specified <tt>csrc</tt> and <tt>level</tt>.
-	 *
-	 * @param levels
-	 * 		the bi-dimensional levels array that we'd like to add a mapping to.
-	 * @param csrc
-	 * 		the CSRC identifier that we'd like to add to the <tt>levels</tt> bi-dimensional array.
-	 * @param level
-	 * 		the level corresponding to the <tt>csrc</tt> identifier.
-	 * @return a new matrix containing all entries from levels and a new one mapping <tt>csrc</tt>
-	 * to <tt>level</tt>
-	 */
-	private long[][] appendCSRCToMatrix(long[][] levels, long csrc, int level)
-	{
-		int newLength = 1 + ((levels == null) ? 0 : levels.length);
-		long[][] newLevels = new long[newLength][];
 
-		// put the new level.
-		newLevels[0] = new long[]{csrc, level};
-
-		if (newLength == 1)
-			return newLevels;
+		/**
+		 * Adds a CSRC which this table does not contain yet. Only called before the table is
+		 * published.
+		 *
+		 * @param csrc
+		 * 		the CSRC identifier to add.
+		 * @param level
+		 * 		the level corresponding to the <tt>csrc</tt> identifier.
+		 */
+		void put(long csrc, int level)
+		{
+			int i = hash(csrc) & mask;
+
+			while (csrcs[i] != EMPTY_SLOT)
+				i = (i + 1) & mask;
+			csrcs[i] = csrc;
+			levels.set(i, level);
+			size++;
+		}
 
-		System.arraycopy(levels, 0, newLevels, 1, levels.length);
+		/**
+		 * Adds the entries of another table to this one.
+		 *
+		 * @param table
+		 * 		the table to copy the entries of.
+		 * @param skip
+		 * 		the CSRC whose entry is not to be copied or {@link #EMPTY_SLOT}.
+		 */
+		void copyFrom(Table table, long skip)
+		{
+			for (int i = 0; i < table.csrcs.length; i++) {
+				long csrc = table.csrcs[i];
+
+				if ((csrc != EMPTY_SLOT) && (csrc != skip))
+					put(csrc, table.levels.get(i));
+			}
+		}
 
-		return newLevels;
+		/**
+		 * Spreads the bits of a CSRC, which are random anyway, over the low bits of the hash.
+		 *
+		 * @param csrc
+		 * 		the CSRC to hash.
+		 * @return the hash of <tt>csrc</tt>.
+		 */
+		private static int hash(long csrc)
+		{
+			int h = (int) (csrc ^ (csrc >>> 32));
+
+			return h ^ (h >>> 16);
+		}
 	}
 }
@@ -8,6 +8,9 @@ package org.atalk.impl.neomedia.codec;
 import net.sf.fmj.media.AbstractCodec;
 import net.sf.fmj.media.AbstractPlugIn;
 
+import org.atalk.impl.neomedia.stats.Histogram;
+import org.atalk.impl.neomedia.stats.MediaMetrics;
+
 import java.awt.Dimension;
 
 import javax.media.*;
@@ -238,6 +241,12 @@ public abstract class AbstractCodec2 extends AbstractCodec
      */
     private long outLenProcessed;
 
+    /**
+     * The {@link MediaMetrics} histogram of the time in nanoseconds spent in {@link #doProcess(Buffer, Buffer)},
+     * or <tt>null</tt> if the metrics are disabled. Initialized when this <tt>PlugIn</tt> is opened.
+     */
+    private Histogram processTimes;
+
     private final Format[] supportedOutputFormats;
 
     /**
@@ -359,6 +368,7 @@ public abstract class AbstractCodec2 extends AbstractCodec
         doOpen();
         opened = true;
         super.open();
+        processTimes = MediaMetrics.getInstance().histogram("codec." + name + ".process_ns");
     }
 
     /**
@@ -401,6 +411,11 @@ public abstract class AbstractCodec2 extends AbstractCodec
                 && ((Buffer.FLAG_SILENCE & inBuf.getFlags()) != 0)) {
             process = OUTPUT_BUFFER_NOT_FILLED;
         }
+        else if (processTimes != null) {
+            long start = System.nanoTime();
+            process = doProcess(inBuf, outBuf);
+            processTimes.recordSince(start);
+        }
         else {
             process = doProcess(inBuf, outBuf);
         }
@@ -136,7 +136,7 @@ public class DePacketizer extends AbstractCodec2
      * The indicator which determines whether this <tt>DePacketizer</tt> is to request a key
      * frame from the remote peer associated with {@link #keyFrameControl}.
      */
-    private boolean requestKeyFrame = false;
+    private volatile boolean requestKeyFrame = false;
 
     /**
      * The <tt>Thread</tt> which is to asynchronously request key frames from
@@ -219,8 +219,7 @@ public class DePacketizer extends AbstractCodec2
             octet = 0; // Ignored later on.
         }
 
-        byte[] out = validateByteArraySize(
-                outBuffer, outBuffer.getOffset() + newOutLength + outputPaddingSize, true);
+        byte[] out = validateOutputSize(outBuffer, outBuffer.getOffset() + newOutLength + outputPaddingSize);
 
         if (start_bit) {
             // Copy in the NAL start sequence and the (reconstructed) octet.
@@ -262,8 +261,7 @@ public class DePacketizer extends AbstractCodec2
 
         int outOffset = outBuffer.getOffset();
         int newOutLength = NAL_PREFIX.length + inLength;
-        byte[] out = validateByteArraySize(
-                outBuffer, outOffset + newOutLength + outputPaddingSize, true);
+        byte[] out = validateOutputSize(outBuffer, outOffset + newOutLength + outputPaddingSize);
 
         System.arraycopy(NAL_PREFIX, 0, out, outOffset, NAL_PREFIX.length);
         outOffset += NAL_PREFIX.length;
@@ -523,6 +521,25 @@ public class DePacketizer extends AbstractCodec2
         return matchingOutputFormats;
     }
 
+    /**
+     * Ensures that the data of the specified output <tt>Buffer</tt> can hold <tt>newSize</tt> bytes,
+     * preserving its current content. The array is grown at least twofold whenever it has to be
+     * reallocated, so assembling a NAL unit from many FU-A fragments does not reallocate and recopy
+     * the whole unit for every fragment; the array is then reused for subsequent NAL units.
+     *
+     * @param outBuffer the output <tt>Buffer</tt>
+     * @param newSize the minimum size required
+     * @return the data array of <tt>outBuffer</tt> with at least <tt>newSize</tt> bytes
+     */
+    private static byte[] validateOutputSize(Buffer outBuffer, int newSize)
+    {
+        Object data = outBuffer.getData();
+        if ((data instanceof byte[]) && ((byte[]) data).length < newSize) {
+            newSize = Math.max(newSize, 2 * ((byte[]) data).length);
+        }
+        return validateByteArraySize(outBuffer, newSize, true);
+    }
+
     /**
      * Appends {@link #outputPaddingSize} number of bytes to <tt>out</tt>
      * beginning at index <tt>outOffset</tt>. The specified <tt>out</tt> is
@@ -705,30 +722,36 @@ public class DePacketizer extends AbstractCodec2
      * @param requestKeyFrame <tt>true</tt> if this <tt>DePacketizer</tt> is to request a key frame
      * from the remote peer associated with {@link #keyFrameControl}
      */
-    private synchronized void setRequestKeyFrame(boolean requestKeyFrame)
+    private void setRequestKeyFrame(boolean requestKeyFrame)
     {
-        if (this.requestKeyFrame != requestKeyFrame) {
-            this.requestKeyFrame = requestKeyFrame;
-
-            if ((this.requestKeyFrame) && (requestKeyFrameThread == null)) {
-                requestKeyFrameThread = new Thread()
-                {
-                    @Override
-                    public void run()
+        // Called for every packet; only lock when the indicator actually changes.
+        if (this.requestKeyFrame == requestKeyFrame)
+            return;
+
+        synchronized (this) {
+            if (this.requestKeyFrame != requestKeyFrame) {
+                this.requestKeyFrame = requestKeyFrame;
+
+                if ((this.requestKeyFrame) && (requestKeyFrameThread == null)) {
+                    requestKeyFrameThread = new Thread()
                     {
-                        try {
-                            runInRequestKeyFrameThread();
-                        } finally {
-                            synchronized (DePacketizer.this) {
-                                if (requestKeyFrameThread == Thread.currentThread())
-                                    requestKeyFrameThread = null;
+                        @Override
+                        public void run()
+                        {
+                            try {
+                                runInRequestKeyFrameThread();
+                            } finally {
+                                synchronized (DePacketizer.this) {
+                                    if (requestKeyFrameThread == Thread.currentThread())
+                                        requestKeyFrameThread = null;
+                                }
                             }
                         }
-                    }
-                };
-                requestKeyFrameThread.start();
+                    };
+                    requestKeyFrameThread.start();
+                }
+                notifyAll();
             }
-            notifyAll();
         }
     }
 }
@@ -12,8 +12,7 @@ import org.atalk.service.neomedia.codec.Constants;
 import org.atalk.util.ByteArrayBuffer;
 import org.atalk.util.RTPUtils;
 
-import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Arrays;
 
 import javax.media.Buffer;
 import javax.media.ResourceUnavailableException;
@@ -27,7 +26,11 @@ import timber.log.Timber;
  * See {@link "https://tools.ietf.org/html/draft-ietf-payload-vp8-17"}
  *
  * Stores the RTP payloads (VP8 payload descriptor stripped) from RTP packets belonging to a
- * single VP8 compressed frame. Maps an RTP sequence number to a buffer which contains the payload.
+ * single VP8 compressed frame. The payloads are appended to a single reusable arena in their order of
+ * arrival and each RTP sequence number maps (through a fixed size slot table) to its slice in the arena;
+ * so no per packet objects or buffers are allocated. When the packets arrive in order, the arena already
+ * holds the assembled frame and is handed over to the output <code>Buffer</code> in exchange for its
+ * (now consumed) data array, so each payload byte is copied only once.
  *
  * @author Boris Grozev
  * @author George Politis
@@ -35,54 +38,95 @@ import timber.log.Timber;
  */
 public class DePacketizer extends AbstractCodec2
 {
-    private final SortedMap<Integer, Container> data = new TreeMap<>(RTPUtils.sequenceNumberComparator);
+    /**
+     * The maximum number of RTP packets of a single VP8 compressed frame that can be held; must be a power of 2.
+     * A 1080p key frame is typically well below this count.
+     */
+    private static final int MAX_PACKETS = 512;
+
+    /**
+     * The initial size of the payload arena; grows as needed and is reused for subsequent frames.
+     */
+    private static final int INITIAL_ARENA_SIZE = 64 * 1024;
+
+    /**
+     * The payload arena holding the stored RTP payloads, in the order they were received.
+     */
+    private byte[] arena = new byte[INITIAL_ARENA_SIZE];
+
+    /**
+     * The sequence number stored in each slot, indexed by <code>seq & (MAX_PACKETS - 1)</code>, or -1 if empty.
+     */
+    private final int[] slotSeq = new int[MAX_PACKETS];
+
+    /**
+     * The offset in <code>arena</code> of the payload stored in each slot.
+     */
+    private final int[] slotOffset = new int[MAX_PACKETS];
+
+    /**
+     * The length of the payload stored in each slot.
+     */
+    private final int[] slotLength = new int[MAX_PACKETS];
+
+    /**
+     * The number of packets currently stored in the slots.
+     */
+    private int packetCount = 0;
+
+    /**
+     * Whether the stored packets were received in consecutive sequence number order, i.e. <code>arena</code>
+     * holds the payloads exactly as they are to be output.
+     */
+    private boolean inOrder = true;
 
     /**
-     * Stores unused <code>Container</code>'s.
+     * Stores the oldest sequence number held in the slots, or -1 if empty. Differs from <code>firstSeq</code>
+     * only when <code>firstSeq</code> is re-synced on the arrival of a packet of a subsequent frame.
      */
-    private final Queue<Container> free = new ArrayBlockingQueue<>(100);
+    private int oldestSeq = -1;
 
     /**
-     * Stores the first (earliest) sequence number stored in <code>data</code>, or -1 if <code>data</code> is empty.
+     * Stores the first (earliest) sequence number stored in the slots, or -1 if no packet is stored.
      */
     private int firstSeq = -1;
 
     /**
-     * Stores the last (latest) sequence number stored in <code>data</code>, or -1 if <code>data</code> is empty.
+     * Stores the last (latest) sequence number stored in the slots, or -1 if no packet is stored.
      */
     private int lastSeq = -1;
 
     /**
      * Stores the value of the <code>PictureID</code> field for the VP8 compressed
-     * frame, parts of which are currently stored in <code>data</code>, or -1 if
-     * the <code>PictureID</code> field is not in use or <code>data</code> is empty.
+     * frame, parts of which are currently stored in the slots, or -1 if
+     * the <code>PictureID</code> field is not in use or no packet is stored.
      */
     private int pictureId = -1;
 
     /**
-     * Stores the RTP timestamp of the packets stored in <code>data</code>, or -1 if they don't have a timestamp set.
+     * Stores the RTP timestamp of the packets stored in the slots, or -1 if they don't have a timestamp set.
      */
     private long timestamp = -1L;
 
     /**
-     * Whether we have stored any packets in <code>data</code>. Equivalent to <code>data.isEmpty()</code>.
+     * Whether we have not stored any packets in the slots. Equivalent to <code>packetCount == 0</code>.
      */
     private boolean empty = true;
 
     /**
-     * Whether we have stored in <code>data</code> the last RTP packet of the VP8
-     * compressed frame, parts of which are currently stored in <code>data</code>.
+     * Whether we have stored in the slots the last RTP packet of the VP8
+     * compressed frame, parts of which are currently stored in the slots.
      */
     private boolean haveEnd = false;
 
     /**
-     * Whether we have stored in <code>data</code> the first RTP packet of the VP8
-     * compressed frame, parts of which are currently stored in <code>data</code>.
+     * Whether we have stored in the slots the first RTP packet of the VP8
+     * compressed frame, parts of which are currently stored in the slots.
      */
     private boolean haveStart = false;
 
     /**
-     * Stores the sum of the lengths of the data stored in <code>data</code>, that
+     * Stores the sum of the lengths of the data stored in the slots, that
      * is the total length of the VP8 compressed frame to be constructed.
      */
     private int frameLength = 0;
@@ -106,6 +150,7 @@ public class DePacketizer extends AbstractCodec2
         super("VP8 RTP DePacketizer", VideoFormat.class,
                 new VideoFormat[]{new VideoFormat(Constants.VP8)});
         inputFormats = new VideoFormat[]{new VideoFormat(Constants.VP8_RTP)};
+        Arrays.fill(slotSeq, -1);
     }
 
     /**
@@ -127,29 +172,31 @@ public class DePacketizer extends AbstractCodec2
     }
 
     /**
-     * Re-initializes the fields which store information about the currently held data. Empties <code>data</code>.
+     * Re-initializes the fields which store information about the currently held data. Empties the slots.
      */
     private void reinit()
     {
-        firstSeq = lastSeq = -1;
+        if (packetCount > 0) {
+            int s = oldestSeq;
+            for (int i = RTPUtils.getSequenceNumberDelta(lastSeq, oldestSeq); i >= 0; i--) {
+                slotSeq[s & (MAX_PACKETS - 1)] = -1;
+                s = (s + 1) & 0xffff;
+            }
+        }
+        packetCount = 0;
+        inOrder = true;
+
+        oldestSeq = firstSeq = lastSeq = -1;
         timestamp = -1L;
         pictureId = -1;
         empty = true;
         haveEnd = haveStart = false;
         frameLength = 0;
-
-        Iterator<Map.Entry<Integer, Container>> it = data.entrySet().iterator();
-        Map.Entry<Integer, Container> e;
-        while (it.hasNext()) {
-            e = it.next();
-            free.offer(e.getValue());
-            it.remove();
-        }
     }
 
     /**
      * Checks whether the currently held VP8 compressed frame is complete (e.g all its packets
-     * are stored in <code>data</code>).
+     * are stored in the slots).
      *
      * @return <code>true</code> if the currently help VP8 compressed frame is complete, <code>false</code> otherwise.
      */
@@ -160,17 +207,20 @@ public class DePacketizer extends AbstractCodec2
 
     /**
      * Checks whether there are packets with sequence numbers between <code>firstSeq</code> and
-     * <code>lastSeq</code> which are *not* stored in <code>data</code>.
+     * <code>lastSeq</code> which are *not* stored in the slots.
      *
      * @return <code>true</code> if there are packets with sequence numbers between
-     * <code>firstSeq</code> and <code>lastSeq</code> which are *not* stored in <code>data</code>.
+     * <code>firstSeq</code> and <code>lastSeq</code> which are *not* stored in the slots.
      */
     private boolean haveMissing()
     {
-        Set<Integer> seqs = data.keySet();
+        // No duplicates are stored, so all packets from oldestSeq to lastSeq are held iff the count matches
+        if (oldestSeq == firstSeq)
+            return packetCount != RTPUtils.getSequenceNumberDelta(lastSeq, firstSeq) + 1;
+
         int s = firstSeq;
         while (s != lastSeq) {
-            if (!seqs.contains(s))
+            if (slotSeq[s & (MAX_PACKETS - 1)] != s)
                 return true;
             s = (s + 1) & 0xffff;
         }
@@ -203,7 +253,7 @@ public class DePacketizer extends AbstractCodec2
         int inPayloadLength = inLength - inPdSize;
 
         if (empty && lastSentSeq != -1
-                && RTPUtils.sequenceNumberComparator.compare(inSeq, lastSentSeq) <= 0) {
+                && RTPUtils.getSequenceNumberDelta(inSeq, lastSentSeq) <= 0) {
             Timber.d("Discarding old packet (while empty) %s", inSeq);
             outBuffer.setDiscard(true);
             return BUFFER_PROCESSED_OK;
@@ -217,14 +267,14 @@ public class DePacketizer extends AbstractCodec2
                     | (timestamp != -1 && inRtpTimestamp != -1
                     && inRtpTimestamp != timestamp)) {
                 //inSeq <= firstSeq
-                if (RTPUtils.sequenceNumberComparator.compare(inSeq, firstSeq) <= 0) {
+                if (RTPUtils.getSequenceNumberDelta(inSeq, firstSeq) <= 0) {
                     // the packet belongs to a previous frame. discard it
                     Timber.i("Discarding old packet %s", inSeq);
                     outBuffer.setDiscard(true);
                     return BUFFER_PROCESSED_OK;
                 }
                 // ReSync the firstSeq if process has dropped out data; must do this else MediaCodec decoder has problem
-                else if (RTPUtils.sequenceNumberComparator.compare(inSeq, firstSeq) > 0) {
+                else if (RTPUtils.getSequenceNumberDelta(inSeq, firstSeq) > 0) {
                     firstSeq = inSeq;
                 }
                 // never reach here?
@@ -236,7 +286,7 @@ public class DePacketizer extends AbstractCodec2
             }
         }
 
-        // a whole frame in a single packet. avoid the extra copy to this.data and output it immediately.
+        // a whole frame in a single packet. avoid the extra copy to the arena and output it immediately.
         if (empty && inMarker && inIsStartOfFrame) {
             byte[] outData = validateByteArraySize(outBuffer, inPayloadLength, false);
             System.arraycopy(inData, inOffset + inPdSize, outData, 0, inPayloadLength);
@@ -249,30 +299,50 @@ public class DePacketizer extends AbstractCodec2
             return BUFFER_PROCESSED_OK;
         }
 
-        // add to this.data
-        Container container = free.poll();
-        if (container == null)
-            container = new Container();
-        if (container.buf == null || container.buf.length < inPayloadLength)
-            container.buf = new byte[inPayloadLength];
-
-        if (data.get(inSeq) != null) {
+        // add to the arena
+        int slot = inSeq & (MAX_PACKETS - 1);
+        if (slotSeq[slot] == inSeq) {
             Timber.i("(Probable) duplicate packet detected, discarding %s", inSeq);
             outBuffer.setDiscard(true);
             return BUFFER_PROCESSED_OK;
         }
 
-        System.arraycopy(inData, inOffset + inPdSize, container.buf, 0, inPayloadLength);
-        container.len = inPayloadLength;
-        data.put(inSeq, container);
+        if (!empty) {
+            int first = RTPUtils.getSequenceNumberDelta(inSeq, oldestSeq) < 0 ? inSeq : oldestSeq;
+            int last = RTPUtils.getSequenceNumberDelta(inSeq, lastSeq) > 0 ? inSeq : lastSeq;
+            if (RTPUtils.getSequenceNumberDelta(last, first) >= MAX_PACKETS) {
+                Timber.w("Too many packets for a frame, discarding saved packets: %s; %s", first, last);
+                reinit();
+            }
+        }
+
+        if (packetCount > 0 && inSeq != ((lastSeq + 1) & 0xffff))
+            inOrder = false;
+
+        int arenaLength = frameLength;
+        if (arena == null || arena.length < arenaLength + inPayloadLength) {
+            byte[] newArena = new byte[Math.max(arenaLength + inPayloadLength,
+                    (arena == null) ? INITIAL_ARENA_SIZE : 2 * arena.length)];
+            if (arenaLength > 0)
+                System.arraycopy(arena, 0, newArena, 0, arenaLength);
+            arena = newArena;
+        }
+        System.arraycopy(inData, inOffset + inPdSize, arena, arenaLength, inPayloadLength);
+        slotSeq[slot] = inSeq;
+        slotOffset[slot] = arenaLength;
+        slotLength[slot] = inPayloadLength;
+        packetCount++;
 
         // update fields
         frameLength += inPayloadLength;
+        if (oldestSeq == -1
+                || (RTPUtils.getSequenceNumberDelta(oldestSeq, inSeq) > 0))
+            oldestSeq = inSeq;
         if (firstSeq == -1
-                || (RTPUtils.sequenceNumberComparator.compare(firstSeq, inSeq) > 0))
+                || (RTPUtils.getSequenceNumberDelta(firstSeq, inSeq) > 0))
             firstSeq = inSeq;
         if (lastSeq == -1
-                || (RTPUtils.sequenceNumberComparator.compare(inSeq, lastSeq) > 0))
+                || (RTPUtils.getSequenceNumberDelta(inSeq, lastSeq) > 0))
             lastSeq = inSeq;
 
         if (empty) {
@@ -289,13 +359,24 @@ public class DePacketizer extends AbstractCodec2
 
         // check if we have a full frame
         if (frameComplete()) {
-            byte[] outData = validateByteArraySize(outBuffer, frameLength, false);
-            int ptr = 0;
-            Container b;
-            for (Map.Entry<Integer, Container> entry : data.entrySet()) {
-                b = entry.getValue();
-                System.arraycopy(b.buf, 0, outData, ptr, b.len);
-                ptr += b.len;
+            if (inOrder) {
+                // The arena holds the whole frame already; exchange it with the consumed output data array.
+                Object outData = outBuffer.getData();
+                outBuffer.setData(arena);
+                arena = (outData instanceof byte[]) ? (byte[]) outData : null;
+            }
+            else {
+                byte[] outData = validateByteArraySize(outBuffer, frameLength, false);
+                int ptr = 0;
+                int s = oldestSeq;
+                for (int i = RTPUtils.getSequenceNumberDelta(lastSeq, oldestSeq); i >= 0; i--) {
+                    int idx = s & (MAX_PACKETS - 1);
+                    if (slotSeq[idx] == s) {
+                        System.arraycopy(arena, slotOffset[idx], outData, ptr, slotLength[idx]);
+                        ptr += slotLength[idx];
+                    }
+                    s = (s + 1) & 0xffff;
+                }
             }
 
             outBuffer.setOffset(0);
@@ -816,20 +897,4 @@ public class DePacketizer extends AbstractCodec2
             return (((buf[off + 6] & 0xff) << 8) | buf[off + 5] & 0xff) & 0x3fff;
         }
     }
-
-    /**
-     * A simple container for a <code>byte[]</code> and an integer.
-     */
-    private static class Container
-    {
-        /**
-         * This <code>Container</code>'s data.
-         */
-        private byte[] buf;
-
-        /**
-         * Length used.
-         */
-        private int len = 0;
-    }
 }
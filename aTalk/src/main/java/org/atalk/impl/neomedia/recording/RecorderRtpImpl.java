@@ -39,6 +39,8 @@ import org.atalk.util.dsi.ActiveSpeakerChangedListener;
 import org.atalk.util.dsi.ActiveSpeakerDetector;
 import org.atalk.util.dsi.DominantSpeakerIdentification;
 import org.atalk.util.MediaType;
+import org.atalk.util.concurrent.ExecutorFactory;
+import org.atalk.util.concurrent.TimerWheel;
 
 import java.io.File;
 import java.io.IOException;
@@ -48,6 +50,8 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.media.CaptureDeviceInfo;
 import javax.media.Codec;
@@ -99,6 +103,13 @@ public class RecorderRtpImpl implements Recorder, ReceiveStreamListener,
      */
     private static final ConfigurationService cfg = LibJitsi.getConfigurationService();
 
+    /**
+     * The thread which configures the delayed audio processors; <code>Processor.configure()</code> may
+     * block, so it is not run on the workers of the <code>TimerWheel</code>.
+     */
+    private static final ExecutorService configureExecutor
+            = ExecutorFactory.createFixedThreadPool(1, "RecorderRtpImpl-configure-");
+
     // values hard-coded to match chrome =>
     // TODO: allow to set them dynamically
     // Issue 6705: Stop using hardcoded payload types for VideoCodecs
@@ -500,25 +511,14 @@ public class RecorderRtpImpl implements Recorder, ReceiveStreamListener,
              * FMJ calls in RecorderRtpImpl does not help). XXX TODO NOOBABRI
              */
             if (receiveStreamDesc.format instanceof AudioFormat) {
+                // delay configuring the processors for the different audio streams to
+                // decrease the probability that they run together.
+                int ms = 450 * (streamCount - 1);
+                Timber.w("Delaying for %d ms the configuring of processor for SSRC = %d %d",
+                        ms, ssrc, System.currentTimeMillis());
                 final Processor p = processor;
-                new Thread()
-                {
-                    @Override
-                    public void run()
-                    {
-                        // delay configuring the processors for the different audio streams to
-                        // decrease the probability that they run together.
-                        try {
-                            int ms = 450 * (streamCount - 1);
-                            Timber.w("Sleeping for %d ms before configuring processor for SSRC = %d %d",
-                                    ms, ssrc, System.currentTimeMillis());
-                            Thread.sleep(ms);
-                        } catch (Exception ex) {
-                            ex.printStackTrace();
-                        }
-                        p.configure();
-                    }
-                }.run();
+                TimerWheel.getInstance().schedule(() -> configureExecutor.execute(p::configure),
+                        ms, TimeUnit.MILLISECONDS);
             }
             else {
                 processor.configure();
@@ -21,7 +21,6 @@ import org.atalk.impl.neomedia.transform.PacketTransformer;
 import org.atalk.impl.neomedia.transform.SinglePacketTransformerAdapter;
 import org.atalk.impl.neomedia.transform.TransformEngine;
 import org.atalk.service.neomedia.RawPacket;
-import org.atalk.util.ByteArrayBuffer;
 
 /**
  * Provide RTCP termination facilities for audio
@@ -68,9 +67,8 @@ public class AudioRTCPTermination implements TransformEngine
         {
             RTCPIterator it = new RTCPIterator(pkt);
             while (it.hasNext()) {
-                ByteArrayBuffer baf = it.next();
                 // We want to terminate all REMB packets
-                if (RTCPREMBPacket.isREMBPacket(baf)) {
+                if (it.next().isRemb()) {
                     it.remove();
                 }
             }
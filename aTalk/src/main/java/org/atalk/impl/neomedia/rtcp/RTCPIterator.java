@@ -17,7 +17,6 @@ package org.atalk.impl.neomedia.rtcp;
 
 import net.sf.fmj.media.rtp.RTCPHeader;
 
-import org.atalk.service.neomedia.RawPacket;
 import org.atalk.util.ByteArrayBuffer;
 import org.atalk.util.RTCPUtils;
 
@@ -28,6 +27,10 @@ import java.util.Iterator;
  * For a {@code PacketTransformer} that splits compound RTCP packets into
  * individual RTCP packets {@see CompoundPacketEngine}.
  * <p>
+ * The element returned by {@link #next()} is a single {@link RTCPPacketView}
+ * which is repositioned on every call, so that iterating does not allocate;
+ * callers must not keep a reference to it past the next call to {@link #next()}.
+ * <p>
  * Instances of this class are not thread-safe. If multiple threads access an
  * instance concurrently, it must be synchronized externally.
  *
@@ -55,6 +58,11 @@ public class RTCPIterator implements Iterator<ByteArrayBuffer>
      */
     private int lastLen;
 
+    /**
+     * The view over the last next element, reused for every element.
+     */
+    private final RTCPPacketView view = new RTCPPacketView();
+
     /**
      * Ctor.
      *
@@ -82,14 +90,14 @@ public class RTCPIterator implements Iterator<ByteArrayBuffer>
      * {@inheritDoc}
      */
     @Override
-    public ByteArrayBuffer next()
+    public RTCPPacketView next()
     {
         int pktLen = RTCPUtils.getLength(baf.getBuffer(), nextOff, remainingLen);
         if (pktLen < RTCPHeader.SIZE) {
             throw new IllegalStateException();
         }
 
-        RawPacket next = new RawPacket(baf.getBuffer(), nextOff, pktLen);
+        view.wrap(baf.getBuffer(), nextOff, pktLen);
         lastLen = pktLen;
         nextOff += pktLen;
         remainingLen -= pktLen;
@@ -97,7 +105,7 @@ public class RTCPIterator implements Iterator<ByteArrayBuffer>
         if (remainingLen < 0) {
             throw new ArrayIndexOutOfBoundsException();
         }
-        return next;
+        return view;
     }
 
     /**
@@ -0,0 +1,584 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atalk.impl.neomedia.rtcp;
+
+import net.sf.fmj.media.rtp.RTCPHeader;
+import net.sf.fmj.media.rtp.RTCPPacket;
+
+import org.atalk.service.neomedia.event.RTCPFeedbackMessageEvent;
+import org.atalk.util.ByteArrayBuffer;
+import org.atalk.util.RTCPUtils;
+import org.atalk.util.RTPUtils;
+
+/**
+ * A reusable flyweight view of a single RTCP packet inside a (compound) RTCP packet buffer. The view
+ * reads and writes the SR/RR/SDES/BYE/RTPFB/PSFB/XR fields in place, so RTCP can be inspected and
+ * rewritten without parsing it into FMJ <code>RTCPPacket</code> object graphs.
+ * <p>
+ * A view may be positioned with {@link #wrap(byte[], int, int)}, or moved over the packets of a compound
+ * RTCP packet with {@link #reset(ByteArrayBuffer)} and {@link #next()}. Accessors do not check the
+ * bounds beyond what {@link #isValid()} verifies for the packet type.
+ * <p>
+ * Instances of this class are not thread-safe.
+ *
+ * @author Eng Chong Meng
+ */
+public class RTCPPacketView implements ByteArrayBuffer
+{
+    /**
+     * The length in bytes of the sender info of an SR packet.
+     */
+    public static final int SENDER_INFO_LENGTH = 20;
+
+    /**
+     * The length in bytes of a reception report block in SR/RR.
+     */
+    public static final int REPORT_BLOCK_LENGTH = 24;
+
+    /**
+     * The length in bytes of the common header and the two SSRCs of an RTCP FB message.
+     */
+    public static final int FB_HEADER_LENGTH = 12;
+
+    /**
+     * The buffer which holds the RTCP packet(s).
+     */
+    private byte[] buf;
+
+    /**
+     * The offset in {@link #buf} of the RTCP packet this view is positioned at.
+     */
+    private int off;
+
+    /**
+     * The length in bytes of the RTCP packet this view is positioned at.
+     */
+    private int len;
+
+    /**
+     * The end offset (exclusive) in {@link #buf} of the compound RTCP packet being walked.
+     */
+    private int compoundEnd;
+
+    /**
+     * Positions this view at the single RTCP packet in the specified buffer region.
+     *
+     * @param buf the buffer which holds the RTCP packet
+     * @param off the offset in <code>buf</code> where the RTCP packet starts
+     * @param len the length of the RTCP packet
+     * @return this view
+     */
+    public RTCPPacketView wrap(byte[] buf, int off, int len)
+    {
+        this.buf = buf;
+        this.off = off;
+        this.len = len;
+        this.compoundEnd = off + len;
+        return this;
+    }
+
+    /**
+     * Prepares this view to walk the RTCP packets of the specified compound RTCP packet with {@link #next()}.
+     *
+     * @param baf the compound RTCP packet
+     * @return this view
+     */
+    public RTCPPacketView reset(ByteArrayBuffer baf)
+    {
+        buf = baf.getBuffer();
+        off = baf.getOffset();
+        len = 0;
+        compoundEnd = off + baf.getLength();
+        return this;
+    }
+
+    /**
+     * Moves this view to the next RTCP packet of the compound RTCP packet set by {@link #reset(ByteArrayBuffer)}.
+     *
+     * @return <code>true</code> if the view is now positioned at the next RTCP packet; <code>false</code> if
+     * there are no more packets, or the remaining data does not hold a complete RTCP packet, in which
+     * case the view is left where it was and {@link #hasRemaining()} tells the two apart.
+     */
+    public boolean next()
+    {
+        int nextOff = off + len;
+        int remaining = compoundEnd - nextOff;
+        int pktLen = RTCPUtils.getLength(buf, nextOff, remaining);
+
+        if (pktLen < RTCPHeader.SIZE || pktLen > remaining) {
+            return false;
+        }
+        off = nextOff;
+        len = pktLen;
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if there are bytes of the compound RTCP packet after the packet this view
+     * is positioned at.
+     */
+    public boolean hasRemaining()
+    {
+        return off + len < compoundEnd;
+    }
+
+    /**
+     * Checks whether the packet this view is positioned at is well formed, applying the same rules
+     * as the FMJ <code>RTCPPacketParser</code> (extended by {@link RTCPPacketParserEx}) does when it parses
+     * SR, RR, SDES, BYE, APP, RTPFB and PSFB packets, without allocating. Padding is only accepted
+     * on the last packet of a compound packet. The content of XR packets, and of packets of other
+     * types, is not checked beyond their length field.
+     *
+     * @return <code>true</code> if the packet is well formed
+     */
+    public boolean isValid()
+    {
+        if (buf == null || len < RTCPHeader.SIZE || !RTCPUtils.isRtcp(buf, off, len)
+                || RTCPUtils.getLength(buf, off, len) != len) {
+            return false;
+        }
+
+        int padLen = 0;
+        if ((buf[off] & 0x20) != 0) {
+            padLen = buf[off + len - 1] & 0xff;
+            if (off + len != compoundEnd || padLen == 0 || padLen > len - RTCPHeader.SIZE)
+                return false;
+        }
+        int inLen = len - padLen;
+        int count = getCount();
+
+        switch (getPacketType()) {
+            case RTCPPacket.SR:
+                return inLen == 8 + SENDER_INFO_LENGTH + count * REPORT_BLOCK_LENGTH;
+            case RTCPPacket.RR:
+                return inLen == 8 + count * REPORT_BLOCK_LENGTH;
+            case RTCPPacket.SDES:
+                return isValidSdes(count, inLen);
+            case RTCPPacket.BYE:
+                int reasonLen = 0;
+                if (inLen > 4 + 4 * count)
+                    reasonLen = ((buf[off + 4 + 4 * count] & 0xff) + 1 + 3) & ~3;
+                return inLen == 4 + 4 * count + reasonLen;
+            case RTCPPacket.APP:
+                return inLen >= 12;
+            case RTCPFBPacket.RTPFB:
+                return inLen >= FB_HEADER_LENGTH;
+            case RTCPFBPacket.PSFB:
+                if (count == RTCPREMBPacket.FMT)
+                    return inLen >= 20 && inLen >= 20 + 4 * (buf[off + 16] & 0xff);
+                return inLen >= FB_HEADER_LENGTH;
+            default:
+                // XR and packet types unknown to us: only the length is checked, so that they can be
+                // skipped without dropping the rest of the compound packet.
+                return true;
+        }
+    }
+
+    /**
+     * Checks the chunks of an SDES packet: item types in the range 1 to 8, a CNAME in every chunk,
+     * chunks padded to 32 bits and exactly filling the packet.
+     *
+     * @param sc the source count of the SDES packet
+     * @param inLen the length of the SDES packet excluding padding
+     * @return <code>true</code> if the SDES chunks are well formed
+     */
+    private boolean isValidSdes(int sc, int inLen)
+    {
+        int end = off + inLen;
+        int pos = off + 4;
+
+        for (int i = 0; i < sc; i++) {
+            pos += 4; // SSRC/CSRC
+            boolean gotCname = false;
+            int type;
+
+            while (true) {
+                if (pos >= end)
+                    return false;
+                type = buf[pos++] & 0xff;
+                if (type == 0)
+                    break;
+                if (type > 8 || pos >= end)
+                    return false;
+                if (type == 1)
+                    gotCname = true;
+                pos += 1 + (buf[pos] & 0xff);
+            }
+            if (!gotCname)
+                return false;
+            pos = off + (((pos - off) + 3) & ~3);
+        }
+        return pos == end;
+    }
+
+    /* ---------------------------------------------------------------------
+     * Common header
+     * ------------------------------------------------------------------ */
+
+    /**
+     * @return the unsigned packet type (PT) field.
+     */
+    public int getPacketType()
+    {
+        return buf[off + 1] & 0xff;
+    }
+
+    /**
+     * @return the 5 bit report count (RC), source count (SC) or feedback message type (FMT) field.
+     */
+    public int getCount()
+    {
+        return buf[off] & 0x1f;
+    }
+
+    /**
+     * @return the SSRC of the packet sender, i.e. the first SSRC after the common header.
+     */
+    public long getSenderSSRC()
+    {
+        return RTPUtils.readUint32AsLong(buf, off + 4);
+    }
+
+    /* ---------------------------------------------------------------------
+     * SR sender info
+     * ------------------------------------------------------------------ */
+
+    /**
+     * @return the most significant word of the NTP timestamp of an SR.
+     */
+    public long getNtpTimestampMSW()
+    {
+        return RTPUtils.readUint32AsLong(buf, off + 8);
+    }
+
+    /**
+     * @return the least significant word of the NTP timestamp of an SR.
+     */
+    public long getNtpTimestampLSW()
+    {
+        return RTPUtils.readUint32AsLong(buf, off + 12);
+    }
+
+    /**
+     * @return the RTP timestamp of an SR.
+     */
+    public long getRtpTimestamp()
+    {
+        return RTPUtils.readUint32AsLong(buf, off + 16);
+    }
+
+    /**
+     * @return the sender's packet count of an SR.
+     */
+    public long getSenderPacketCount()
+    {
+        return RTPUtils.readUint32AsLong(buf, off + 20);
+    }
+
+    /**
+     * @return the sender's octet count of an SR.
+     */
+    public long getSenderOctetCount()
+    {
+        return RTPUtils.readUint32AsLong(buf, off + 24);
+    }
+
+    /* ---------------------------------------------------------------------
+     * SR/RR reception report blocks
+     * ------------------------------------------------------------------ */
+
+    /**
+     * Gets the offset in the buffer of a reception report block of an SR or RR.
+     *
+     * @param i the index of the report block
+     * @return the offset in the buffer where the report block starts
+     */
+    private int getReportBlockOffset(int i)
+    {
+        int blockOff = off + 8 + i * REPORT_BLOCK_LENGTH;
+        return (getPacketType() == RTCPPacket.SR) ? blockOff + SENDER_INFO_LENGTH : blockOff;
+    }
+
+    /**
+     * @param i the index of the report block
+     * @return the SSRC of the source reported upon by the <code>i</code>th report block.
+     */
+    public long getReportSSRC(int i)
+    {
+        return RTPUtils.readUint32AsLong(buf, getReportBlockOffset(i));
+    }
+
+    /**
+     * @param i the index of the report block
+     * @return the 8 bit fraction lost of the <code>i</code>th report block.
+     */
+    public int getFractionLost(int i)
+    {
+        return buf[getReportBlockOffset(i) + 4] & 0xff;
+    }
+
+    /**
+     * @param i the index of the report block
+     * @return the signed 24 bit cumulative number of packets lost of the <code>i</code>th report block.
+     */
+    public int getCumulativeLost(int i)
+    {
+        int lost = RTPUtils.readUint24AsInt(buf, getReportBlockOffset(i) + 5);
+        return (lost << 8) >> 8;
+    }
+
+    /**
+     * @param i the index of the report block
+     * @return the interarrival jitter, in RTP timestamp units, of the <code>i</code>th report block.
+     */
+    public long getJitter(int i)
+    {
+        return RTPUtils.readUint32AsLong(buf, getReportBlockOffset(i) + 12);
+    }
+
+    /**
+     * @param i the index of the report block
+     * @return the last SR timestamp (LSR) of the <code>i</code>th report block.
+     */
+    public long getLSR(int i)
+    {
+        return RTPUtils.readUint32AsLong(buf, getReportBlockOffset(i) + 16);
+    }
+
+    /**
+     * @param i the index of the report block
+     * @return the delay since last SR (DLSR) of the <code>i</code>th report block.
+     */
+    public long getDLSR(int i)
+    {
+        return RTPUtils.readUint32AsLong(buf, getReportBlockOffset(i) + 20);
+    }
+
+    /* ---------------------------------------------------------------------
+     * RTPFB/PSFB: NACK, PLI, FIR, REMB, TCC
+     * ------------------------------------------------------------------ */
+
+    /**
+     * @return the SSRC of the media source of an RTCP FB message.
+     */
+    public long getMediaSourceSSRC()
+    {
+        return RTPUtils.readUint32AsLong(buf, off + 8);
+    }
+
+    /**
+     * @return <code>true</code> if this is a Generic NACK.
+     */
+    public boolean isNack()
+    {
+        return getPacketType() == RTCPFBPacket.RTPFB && getCount() == NACKPacket.FMT;
+    }
+
+    /**
+     * @return <code>true</code> if this is a transport-wide congestion control feedback.
+     */
+    public boolean isTcc()
+    {
+        return getPacketType() == RTCPFBPacket.RTPFB && getCount() == RTCPTCCPacket.FMT;
+    }
+
+    /**
+     * @return <code>true</code> if this is a Picture Loss Indication.
+     */
+    public boolean isPli()
+    {
+        return getPacketType() == RTCPFBPacket.PSFB && getCount() == RTCPFeedbackMessageEvent.FMT_PLI;
+    }
+
+    /**
+     * @return <code>true</code> if this is a Full Intra Request.
+     */
+    public boolean isFir()
+    {
+        return getPacketType() == RTCPFBPacket.PSFB && getCount() == RTCPFeedbackMessageEvent.FMT_FIR;
+    }
+
+    /**
+     * Same as {@link RTCPREMBPacket#isREMBPacket(ByteArrayBuffer)}, the "REMB" identifier is not checked.
+     *
+     * @return <code>true</code> if this is a Receiver Estimated Maximum Bitrate message.
+     */
+    public boolean isRemb()
+    {
+        return getPacketType() == RTCPFBPacket.PSFB && getCount() == RTCPREMBPacket.FMT;
+    }
+
+    /**
+     * @return the number of PID/BLP entries of a Generic NACK.
+     */
+    public int getNackCount()
+    {
+        return (len - FB_HEADER_LENGTH) / 4;
+    }
+
+    /**
+     * @param i the index of the NACK entry
+     * @return the packet ID (PID) of the <code>i</code>th NACK entry.
+     */
+    public int getNackPid(int i)
+    {
+        return RTPUtils.readUint16AsInt(buf, off + FB_HEADER_LENGTH + i * 4);
+    }
+
+    /**
+     * @param i the index of the NACK entry
+     * @return the bitmask of following lost packets (BLP) of the <code>i</code>th NACK entry.
+     */
+    public int getNackBlp(int i)
+    {
+        return RTPUtils.readUint16AsInt(buf, off + FB_HEADER_LENGTH + i * 4 + 2);
+    }
+
+    /* ---------------------------------------------------------------------
+     * Builders
+     * ------------------------------------------------------------------ */
+
+    /**
+     * Writes the common header and the two SSRCs of an RTCP FB message into the specified buffer.
+     *
+     * @param buf the buffer to write into
+     * @param off the offset in <code>buf</code> at which to write
+     * @param pt the packet type, RTPFB or PSFB
+     * @param fmt the feedback message type
+     * @param fciLength the length in bytes of the FCI to follow; must be a multiple of 4
+     * @param senderSSRC the SSRC of the packet sender
+     * @param sourceSSRC the SSRC of the media source
+     * @return the total length of the RTCP FB message, including the FCI
+     */
+    public static int writeFBHeader(byte[] buf, int off, int pt, int fmt, int fciLength,
+            long senderSSRC, long sourceSSRC)
+    {
+        int length = FB_HEADER_LENGTH + fciLength;
+        buf[off] = (byte) (0x80 | (fmt & 0x1f));
+        buf[off + 1] = (byte) pt;
+        RTPUtils.writeShort(buf, off + 2, (short) (length / 4 - 1));
+        RTPUtils.writeInt(buf, off + 4, (int) senderSSRC);
+        RTPUtils.writeInt(buf, off + 8, (int) sourceSSRC);
+        return length;
+    }
+
+    /**
+     * Writes a Generic NACK entry into the FCI field.
+     *
+     * @param buf the buffer to write into
+     * @param fciOff the offset of the FCI field in <code>buf</code>
+     * @param i the index of the NACK entry
+     * @param pid the packet ID
+     * @param blp the bitmask of following lost packets
+     */
+    public static void writeNackEntry(byte[] buf, int fciOff, int i, int pid, int blp)
+    {
+        RTPUtils.writeShort(buf, fciOff + i * 4, (short) pid);
+        RTPUtils.writeShort(buf, fciOff + i * 4 + 2, (short) blp);
+    }
+
+    /* ---------------------------------------------------------------------
+     * ByteArrayBuffer
+     * ------------------------------------------------------------------ */
+
+    @Override
+    public byte[] getBuffer()
+    {
+        return buf;
+    }
+
+    @Override
+    public int getOffset()
+    {
+        return off;
+    }
+
+    @Override
+    public int getLength()
+    {
+        return len;
+    }
+
+    @Override
+    public void setLength(int len)
+    {
+        this.len = len;
+    }
+
+    @Override
+    public void setOffset(int off)
+    {
+        this.off = off;
+    }
+
+    @Override
+    public boolean isInvalid()
+    {
+        return !isValid();
+    }
+
+    @Override
+    public void readRegionToBuff(int off, int len, byte[] outBuf)
+    {
+        System.arraycopy(buf, this.off + off, outBuf, 0, len);
+    }
+
+    /**
+     * Ensures there is room for <code>howMuch</code> more bytes after the RTCP packet this view is positioned
+     * at. As with <code>RawPacket</code>, the packet is copied into a new buffer if there is not enough room;
+     * it is also copied if other packets of the compound RTCP packet follow it, so that these are never
+     * overwritten. The view then no longer walks the rest of the compound packet.
+     */
+    @Override
+    public void grow(int howMuch)
+    {
+        if (howMuch < 0)
+            throw new IllegalArgumentException("howMuch");
+
+        int newLength = len + howMuch;
+        if ((newLength > buf.length - off) || (off + len < compoundEnd)) {
+            byte[] newBuf = new byte[newLength];
+
+            System.arraycopy(buf, off, newBuf, 0, len);
+            buf = newBuf;
+            off = 0;
+            compoundEnd = len;
+        }
+    }
+
+    /**
+     * Appends data to the RTCP packet this view is positioned at, growing it as needed; see {@link #grow(int)}.
+     */
+    @Override
+    public void append(byte[] data, int len)
+    {
+        if (data == null || len == 0)
+            return;
+
+        grow(len);
+        System.arraycopy(data, 0, buf, off + this.len, len);
+        this.len += len;
+        compoundEnd = Math.max(compoundEnd, off + this.len);
+    }
+
+    @Override
+    public void shrink(int len)
+    {
+        if (len > 0)
+            this.len = Math.max(0, this.len - len);
+    }
+}
@@ -35,10 +35,7 @@ import org.atalk.service.neomedia.MediaStream;
 import org.atalk.service.neomedia.RTPTranslator;
 import org.atalk.service.neomedia.RawPacket;
 import org.atalk.service.neomedia.TransmissionFailedException;
-import org.atalk.service.neomedia.event.RTCPFeedbackMessageEvent;
 import org.atalk.util.ArrayUtils;
-import org.atalk.util.ByteArrayBuffer;
-import org.atalk.util.RTCPUtils;
 import org.atalk.util.concurrent.PeriodicRunnable;
 import org.atalk.util.function.RTCPGenerator;
 
@@ -373,25 +370,19 @@ public class RTCPReceiverFeedbackTermination extends PeriodicRunnable implements
         {
             RTCPIterator it = new RTCPIterator(pkt);
             while (it.hasNext()) {
-                ByteArrayBuffer baf = it.next();
-                int pt = RTCPUtils.getPacketType(baf);
-                if (pt == RTCPRRPacket.RR
-                        || RTCPREMBPacket.isREMBPacket(baf)
-                        || RTCPTCCPacket.isTCCPacket(baf)) {
+                RTCPPacketView view = it.next();
+                if (view.getPacketType() == RTCPRRPacket.RR || view.isRemb() || view.isTcc()) {
                     it.remove();
                     continue;
                 }
 
-                if (!send && pt > -1) {
-                    int fmt = RTCPUtils.getReportCount(baf);
-                    if ((pt == RTCPFeedbackMessageEvent.PT_PS
-                            && fmt == RTCPFeedbackMessageEvent.FMT_PLI)
-                            || (pt == RTCPFeedbackMessageEvent.PT_PS
-                            && fmt == RTCPFeedbackMessageEvent.FMT_FIR)) {
-                        long source = RTCPFBPacket.getSourceSSRC(baf);
-                        ((RTPTranslatorImpl) stream.getRTPTranslator()).getRtcpFeedbackMessageSender().requestKeyframe(source);
-                        it.remove();
+                if (!send && (view.isPli() || view.isFir())) {
+                    // A truncated PLI/FIR has no media source to request a keyframe for; just drop it.
+                    if (view.isValid()) {
+                        ((RTPTranslatorImpl) stream.getRTPTranslator()).getRtcpFeedbackMessageSender()
+                                .requestKeyframe(view.getMediaSourceSSRC());
                     }
+                    it.remove();
                 }
             }
             return pkt.getLength() == 0 ? null : pkt;
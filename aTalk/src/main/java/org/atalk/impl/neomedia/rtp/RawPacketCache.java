@@ -280,13 +280,14 @@ public class RawPacketCache implements AutoCloseable
 
     /**
      * Gets an unused <tt>RawPacket</tt> with at least <tt>len</tt> bytes of
-     * buffer space.
+     * buffer space. Besides the cache itself, the RTX retransmissions are built
+     * in such packets, and given back with {@link #returnFreePacket(RawPacket)}.
      *
      * @param len the minimum available length
      * @return An unused <tt>RawPacket</tt> with at least <tt>len</tt> bytes of
      * buffer space.
      */
-    private RawPacket getFreePacket(int len)
+    public RawPacket getFreePacket(int len)
     {
         RawPacket pkt = pool.poll();
         if (pkt == null)
@@ -299,6 +300,18 @@ public class RawPacketCache implements AutoCloseable
         return pkt;
     }
 
+    /**
+     * Returns to the pool a <tt>RawPacket</tt> obtained from {@link #getFreePacket(int)} which is no
+     * longer in use; it is left to the GC if the pool is full.
+     *
+     * @param pkt the <tt>RawPacket</tt> to return
+     */
+    public void returnFreePacket(RawPacket pkt)
+    {
+        if (pkt != null)
+            pool.offer(pkt);
+    }
+
     /**
      * @return an unused {@link Container} instance.
      */
@@ -0,0 +1,313 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atalk.impl.neomedia.stats;
+
+import org.atalk.util.concurrent.MonotonicAtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of non-negative <code>long</code> values with HDR-style log-linear
+ * buckets: values below 32 have a bucket each, and every power of two above is split into 16
+ * buckets, which keeps the relative error of the reported percentiles under 1/16 over the whole
+ * range. Recording a value is a few arithmetic operations and an atomic increment, so it is cheap
+ * enough to do per packet or per frame.
+ * <p>
+ * Values larger than {@link #HIGHEST_TRACKABLE_VALUE} (about 68 seconds in nanoseconds) are
+ * recorded as that value.
+ *
+ * @author Eng Chong Meng
+ */
+public class Histogram
+{
+    /**
+     * The number of bits of a value below its highest set bit which select a sub-bucket.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /**
+     * The number of sub-buckets each power of two is split into.
+     */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The largest value which is recorded as is.
+     */
+    public static final long HIGHEST_TRACKABLE_VALUE = (1L << 36) - 1;
+
+    /**
+     * The number of buckets of every histogram.
+     */
+    private static final int BUCKET_COUNT = bucketIndex(HIGHEST_TRACKABLE_VALUE) + 1;
+
+    /**
+     * The name of this histogram.
+     */
+    private final String name;
+
+    /**
+     * The number of values recorded in each bucket.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * The sum of the values recorded.
+     */
+    private final StripedCounter sum = new StripedCounter();
+
+    /**
+     * The smallest value recorded.
+     */
+    private final MonotonicAtomicLong min = new MonotonicAtomicLong();
+
+    /**
+     * The largest value recorded.
+     */
+    private final MonotonicAtomicLong max = new MonotonicAtomicLong();
+
+    /**
+     * Initializes a new empty <code>Histogram</code>.
+     *
+     * @param name the name of the new histogram
+     */
+    public Histogram(String name)
+    {
+        this.name = name;
+        min.set(Long.MAX_VALUE);
+    }
+
+    /**
+     * Gets the index of the bucket which a specific value falls into.
+     *
+     * @param value the value, between 0 and {@link #HIGHEST_TRACKABLE_VALUE}
+     * @return the index of the bucket of <code>value</code>
+     */
+    private static int bucketIndex(long value)
+    {
+        if (value < 2 * SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * Gets the smallest value which falls into a specific bucket.
+     *
+     * @param index the index of the bucket
+     * @return the smallest value of the bucket at <code>index</code>
+     */
+    private static long bucketLowerBound(int index)
+    {
+        if (index < 2 * SUB_BUCKET_COUNT)
+            return index;
+
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        return ((long) ((index & (SUB_BUCKET_COUNT - 1)) | SUB_BUCKET_COUNT)) << shift;
+    }
+
+    /**
+     * Records a value in this histogram. Negative values are ignored.
+     *
+     * @param value the value to record
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            return;
+        if (value > HIGHEST_TRACKABLE_VALUE)
+            value = HIGHEST_TRACKABLE_VALUE;
+
+        buckets.incrementAndGet(bucketIndex(value));
+        sum.add(value);
+        if (value < min.get())
+            min.decrease(value);
+        if (value > max.get())
+            max.increase(value);
+    }
+
+    /**
+     * Records the time elapsed since a specific {@link System#nanoTime()}, in nanoseconds.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} at the start of the timed operation
+     */
+    public void recordSince(long startNanos)
+    {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Gets the name of this histogram.
+     *
+     * @return the name of this histogram
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Takes a copy of the current state of this histogram. Values which are recorded concurrently
+     * with the call may or may not be included.
+     *
+     * @return a {@link Snapshot} of this histogram
+     */
+    public Snapshot snapshot()
+    {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long minValue = min.get();
+        return new Snapshot(counts, total, sum.sum(), (minValue == Long.MAX_VALUE) ? 0 : minValue, max.get());
+    }
+
+    /**
+     * Clears this histogram.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets.set(i, 0);
+        sum.reset();
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    /**
+     * The state of a {@link Histogram} at a point in time.
+     */
+    public static class Snapshot
+    {
+        /**
+         * The number of values in each bucket.
+         */
+        private final long[] counts;
+
+        /**
+         * The number of values recorded, as summed from {@link #counts}.
+         */
+        private final long count;
+
+        /**
+         * The sum of the values recorded.
+         */
+        private final long sum;
+
+        /**
+         * The smallest value recorded.
+         */
+        private final long min;
+
+        /**
+         * The largest value recorded.
+         */
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long min, long max)
+        {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of values recorded.
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * @return the smallest value recorded, or 0 if none was.
+         */
+        public long getMin()
+        {
+            return min;
+        }
+
+        /**
+         * @return the largest value recorded, or 0 if none was.
+         */
+        public long getMax()
+        {
+            return max;
+        }
+
+        /**
+         * @return the mean of the values recorded, or 0 if none was.
+         */
+        public double getMean()
+        {
+            return (count == 0) ? 0 : ((double) sum) / count;
+        }
+
+        /**
+         * Gets the value below which a specific percentage of the recorded values fall, with the
+         * precision of the bucket the percentile falls into.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the highest value of the bucket which holds the percentile, capped at {@link #getMax()}
+         */
+        public long getValueAtPercentile(double percentile)
+        {
+            if (count == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(count * Math.min(percentile, 100) / 100d);
+            if (rank < 1)
+                rank = 1;
+
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(bucketLowerBound(i + 1) - 1, max);
+            }
+            return max;
+        }
+
+        /**
+         * Describes this snapshot as a JSON object with the count, min, max, mean and the 50th, 90th,
+         * 99th and 99.9th percentiles.
+         *
+         * @return a JSON object describing this snapshot
+         * @throws JSONException if a value cannot be represented in JSON
+         */
+        public JSONObject toJSON()
+                throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("min", min);
+            json.put("max", max);
+            json.put("mean", Math.round(getMean() * 100) / 100d);
+            json.put("p50", getValueAtPercentile(50));
+            json.put("p90", getValueAtPercentile(90));
+            json.put("p99", getValueAtPercentile(99));
+            json.put("p999", getValueAtPercentile(99.9));
+            return json;
+        }
+    }
+}
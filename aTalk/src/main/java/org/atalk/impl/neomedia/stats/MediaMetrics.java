@@ -0,0 +1,414 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atalk.impl.neomedia.stats;
+
+import org.atalk.service.configuration.ConfigurationService;
+import org.atalk.service.fileaccess.FileAccessService;
+import org.atalk.service.fileaccess.FileCategory;
+import org.atalk.service.libjitsi.LibJitsi;
+import org.atalk.util.concurrent.PeriodicRunnable;
+import org.atalk.util.concurrent.RecurringRunnableExecutor;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import timber.log.Timber;
+
+/**
+ * The process wide registry of the media metrics: named {@link StripedCounter}s (NACKs, RTX) and
+ * {@link Histogram}s (per transform engine packet processing time, codec frame time, jitter, RTT,
+ * loss bursts). While enabled, the registry takes a {@link Snapshot} periodically, hands it to the
+ * registered {@link SnapshotListener}s and writes it as JSON into {@link #DUMP_FILE_NAME} in the
+ * log directory, so that it is collected together with the logs.
+ * <p>
+ * The metrics are disabled by default. While disabled, {@link #counter(String)} and
+ * {@link #histogram(String)} return <code>null</code>, and the instrumented code, which obtains
+ * its metrics once at initialization, skips the measurements altogether.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaMetrics
+{
+    /**
+     * The name of the <code>ConfigurationService</code> boolean property which enables the media metrics.
+     */
+    public static final String ENABLED_PNAME = "neomedia.metrics.ENABLED";
+
+    /**
+     * The name of the <code>ConfigurationService</code> property which specifies the interval in
+     * milliseconds at which snapshots are taken and dumped.
+     */
+    public static final String SNAPSHOT_INTERVAL_PNAME = "neomedia.metrics.SNAPSHOT_INTERVAL";
+
+    /**
+     * The default interval in milliseconds at which snapshots are taken and dumped.
+     */
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 30000;
+
+    /**
+     * The name of the log directory which the snapshots are written into.
+     */
+    private static final String LOG_DIR_NAME = "log";
+
+    /**
+     * The name of the file which the last snapshot is written into.
+     */
+    public static final String DUMP_FILE_NAME = "media-metrics.json";
+
+    /**
+     * The single instance of this class.
+     */
+    private static MediaMetrics instance;
+
+    /**
+     * Whether the metrics are enabled.
+     */
+    private final boolean enabled;
+
+    /**
+     * The counters of this registry by name.
+     */
+    private final ConcurrentHashMap<String, StripedCounter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * The histograms of this registry by name.
+     */
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * The listeners notified of the periodic snapshots.
+     */
+    private final List<SnapshotListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * The executor which takes the periodic snapshots, or <code>null</code> if disabled.
+     */
+    private final RecurringRunnableExecutor executor;
+
+    /**
+     * The last periodic snapshot, if any.
+     */
+    private volatile Snapshot lastSnapshot;
+
+    /**
+     * The disabled instance handed out while the configuration is not available yet, e.g. when FMJ
+     * instantiates the codecs at registration time.
+     */
+    private static final MediaMetrics DISABLED = new MediaMetrics(false, 0);
+
+    /**
+     * Gets the process wide <code>MediaMetrics</code>, initializing it from the configuration on first use.
+     *
+     * @return the <code>MediaMetrics</code> instance
+     */
+    public static synchronized MediaMetrics getInstance()
+    {
+        if (instance == null) {
+            ConfigurationService cfg = LibJitsi.getConfigurationService();
+            if (cfg == null)
+                return DISABLED;
+
+            instance = new MediaMetrics(cfg.getBoolean(ENABLED_PNAME, false),
+                    cfg.getLong(SNAPSHOT_INTERVAL_PNAME, DEFAULT_SNAPSHOT_INTERVAL));
+        }
+        return instance;
+    }
+
+    /**
+     * Initializes a new <code>MediaMetrics</code>.
+     *
+     * @param enabled whether the metrics are enabled
+     * @param interval the interval in milliseconds at which snapshots are taken and dumped
+     */
+    private MediaMetrics(boolean enabled, long interval)
+    {
+        this.enabled = enabled;
+        if (enabled && interval > 0) {
+            executor = new RecurringRunnableExecutor(MediaMetrics.class.getSimpleName());
+            executor.registerRecurringRunnable(new PeriodicRunnable(interval)
+            {
+                @Override
+                public void run()
+                {
+                    super.run();
+                    takePeriodicSnapshot();
+                }
+            });
+        }
+        else {
+            executor = null;
+        }
+    }
+
+    /**
+     * Determines whether the metrics are enabled.
+     *
+     * @return <code>true</code> if the metrics are enabled
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Gets the counter with a specific name, creating it if necessary.
+     *
+     * @param name the name of the counter
+     * @return the counter with the specified name, or <code>null</code> if the metrics are disabled
+     */
+    public StripedCounter counter(String name)
+    {
+        if (!enabled)
+            return null;
+
+        StripedCounter counter = counters.get(name);
+        if (counter == null) {
+            counter = new StripedCounter();
+            StripedCounter existing = counters.putIfAbsent(name, counter);
+            if (existing != null)
+                counter = existing;
+        }
+        return counter;
+    }
+
+    /**
+     * Gets the histogram with a specific name, creating it if necessary.
+     *
+     * @param name the name of the histogram
+     * @return the histogram with the specified name, or <code>null</code> if the metrics are disabled
+     */
+    public Histogram histogram(String name)
+    {
+        if (!enabled)
+            return null;
+
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram(name);
+            Histogram existing = histograms.putIfAbsent(name, histogram);
+            if (existing != null)
+                histogram = existing;
+        }
+        return histogram;
+    }
+
+    /**
+     * Takes a snapshot of all the counters and histograms of this registry.
+     *
+     * @return a new {@link Snapshot}
+     */
+    public Snapshot snapshot()
+    {
+        SortedMap<String, Long> counterValues = new TreeMap<>();
+        for (Map.Entry<String, StripedCounter> e : counters.entrySet())
+            counterValues.put(e.getKey(), e.getValue().sum());
+
+        SortedMap<String, Histogram.Snapshot> histogramValues = new TreeMap<>();
+        for (Map.Entry<String, Histogram> e : histograms.entrySet())
+            histogramValues.put(e.getKey(), e.getValue().snapshot());
+
+        return new Snapshot(System.currentTimeMillis(), counterValues, histogramValues);
+    }
+
+    /**
+     * Gets the last snapshot taken periodically.
+     *
+     * @return the last periodic snapshot, or <code>null</code> if none was taken yet
+     */
+    public Snapshot getLastSnapshot()
+    {
+        return lastSnapshot;
+    }
+
+    /**
+     * Adds a listener to be notified of the periodic snapshots.
+     *
+     * @param listener the listener to add
+     */
+    public void addSnapshotListener(SnapshotListener listener)
+    {
+        if (listener != null && !listeners.contains(listener))
+            listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener of the periodic snapshots.
+     *
+     * @param listener the listener to remove
+     */
+    public void removeSnapshotListener(SnapshotListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Takes a snapshot, notifies the listeners and writes the snapshot into the dump file. Invoked
+     * by {@link #executor}.
+     */
+    private void takePeriodicSnapshot()
+    {
+        Snapshot snapshot = snapshot();
+        lastSnapshot = snapshot;
+
+        for (SnapshotListener listener : listeners) {
+            try {
+                listener.snapshotTaken(snapshot);
+            } catch (Throwable t) {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                Timber.e(t, "Media metrics snapshot listener failed");
+            }
+        }
+
+        try {
+            dump(snapshot);
+        } catch (Exception e) {
+            Timber.w("Failed to dump the media metrics: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a snapshot as JSON into {@link #DUMP_FILE_NAME} in the log directory, replacing the
+     * previous dump.
+     *
+     * @param snapshot the snapshot to write
+     * @return the file written into
+     * @throws Exception if the log directory is not available, or writing fails
+     */
+    public File dump(Snapshot snapshot)
+            throws Exception
+    {
+        FileAccessService fas = LibJitsi.getFileAccessService();
+        if (fas == null)
+            throw new IOException("FileAccessService is not available");
+
+        File dir = fas.getPrivatePersistentDirectory(LOG_DIR_NAME, FileCategory.LOG);
+        File tmp = new File(dir, DUMP_FILE_NAME + ".tmp");
+        File file = new File(dir, DUMP_FILE_NAME);
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+            writer.write(snapshot.toJSON().toString(2));
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Failed to rename " + tmp + " to " + file);
+        return file;
+    }
+
+    /**
+     * The values of all the counters and histograms of a {@link MediaMetrics} at a point in time.
+     */
+    public static class Snapshot
+    {
+        /**
+         * The time in milliseconds since the epoch at which this snapshot was taken.
+         */
+        private final long timestamp;
+
+        /**
+         * The counter values by name.
+         */
+        private final SortedMap<String, Long> counters;
+
+        /**
+         * The histogram snapshots by name.
+         */
+        private final SortedMap<String, Histogram.Snapshot> histograms;
+
+        private Snapshot(long timestamp, SortedMap<String, Long> counters,
+                SortedMap<String, Histogram.Snapshot> histograms)
+        {
+            this.timestamp = timestamp;
+            this.counters = Collections.unmodifiableSortedMap(counters);
+            this.histograms = Collections.unmodifiableSortedMap(histograms);
+        }
+
+        /**
+         * @return the time in milliseconds since the epoch at which this snapshot was taken.
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        /**
+         * @return the counter values by name.
+         */
+        public SortedMap<String, Long> getCounters()
+        {
+            return counters;
+        }
+
+        /**
+         * @return the histogram snapshots by name.
+         */
+        public SortedMap<String, Histogram.Snapshot> getHistograms()
+        {
+            return histograms;
+        }
+
+        /**
+         * Describes this snapshot as JSON: <code>{"timestamp": ..., "counters": {name: value},
+         * "histograms": {name: {"count", "min", "max", "mean", "p50", "p90", "p99", "p999"}}}</code>.
+         *
+         * @return a JSON object describing this snapshot
+         * @throws JSONException if a value cannot be represented in JSON
+         */
+        public JSONObject toJSON()
+                throws JSONException
+        {
+            JSONObject jsonCounters = new JSONObject();
+            for (Map.Entry<String, Long> e : counters.entrySet())
+                jsonCounters.put(e.getKey(), e.getValue().longValue());
+
+            JSONObject jsonHistograms = new JSONObject();
+            for (Map.Entry<String, Histogram.Snapshot> e : histograms.entrySet())
+                jsonHistograms.put(e.getKey(), e.getValue().toJSON());
+
+            JSONObject json = new JSONObject();
+            json.put("timestamp", timestamp);
+            json.put("counters", jsonCounters);
+            json.put("histograms", jsonHistograms);
+            return json;
+        }
+    }
+
+    /**
+     * The interface of the listeners of the periodic snapshots of {@link MediaMetrics}.
+     */
+    public interface SnapshotListener
+    {
+        /**
+         * Notifies this listener that a periodic snapshot was taken. Invoked on the thread of the
+         * {@link MediaMetrics}; implementations should return quickly.
+         *
+         * @param snapshot the snapshot
+         */
+        void snapshotTaken(Snapshot snapshot);
+    }
+}
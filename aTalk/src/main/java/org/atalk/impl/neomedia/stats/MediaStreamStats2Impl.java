@@ -51,6 +51,22 @@ public class MediaStreamStats2Impl extends MediaStreamStatsImpl
      */
     private final AggregateSendTrackStats sendStats = new AggregateSendTrackStats(INTERVAL, sendSsrcStats);
 
+    /**
+     * The {@link MediaMetrics} counter of the packets retransmitted upon NACK, or <code>null</code>.
+     */
+    private final StripedCounter retransmittedCounter = MediaMetrics.getInstance().counter("rtx.retransmitted");
+
+    /**
+     * The {@link MediaMetrics} counter of the NACKed packets found in the cache but not retransmitted,
+     * or <code>null</code>.
+     */
+    private final StripedCounter notRetransmittedCounter = MediaMetrics.getInstance().counter("rtx.not_retransmitted");
+
+    /**
+     * The {@link MediaMetrics} counter of the NACKed packets not found in the cache, or <code>null</code>.
+     */
+    private final StripedCounter cacheMissCounter = MediaMetrics.getInstance().counter("rtx.cache_miss");
+
     /**
      * Initializes a new {@link MediaStreamStats2Impl} instance.
      */
@@ -85,6 +101,8 @@ public class MediaStreamStats2Impl extends MediaStreamStatsImpl
     {
         getSendStats(ssrc).rtpPacketRetransmitted(length);
         sendStats.rtpPacketRetransmitted(length);
+        if (retransmittedCounter != null)
+            retransmittedCounter.increment();
     }
 
     /**
@@ -99,6 +117,8 @@ public class MediaStreamStats2Impl extends MediaStreamStatsImpl
     {
         getSendStats(ssrc).rtpPacketNotRetransmitted(length);
         sendStats.rtpPacketNotRetransmitted(length);
+        if (notRetransmittedCounter != null)
+            notRetransmittedCounter.increment();
     }
 
     /**
@@ -111,6 +131,8 @@ public class MediaStreamStats2Impl extends MediaStreamStatsImpl
     {
         getSendStats(ssrc).rtpPacketCacheMiss();
         sendStats.rtpPacketCacheMiss();
+        if (cacheMissCounter != null)
+            cacheMissCounter.increment();
     }
 
     /**
@@ -45,6 +45,12 @@ public class ReceiveTrackStatsImpl extends AbstractTrackStats
      */
     private AtomicLong packetsLost = new AtomicLong();
 
+    /**
+     * The {@link MediaMetrics} histogram of the number of consecutive packets lost, or
+     * <tt>null</tt> if the metrics are disabled.
+     */
+    private final Histogram lossBursts = MediaMetrics.getInstance().histogram("rtp.loss_burst");
+
 
     /**
      * Initializes a new instance.
@@ -115,6 +121,8 @@ public class ReceiveTrackStatsImpl extends AbstractTrackStats
             {
                 packetsLost.addAndGet(diff - 1);
                 packetLossRate.update(diff - 1, now);
+                if (lossBursts != null)
+                    lossBursts.record(diff - 1);
             }
         }
     }
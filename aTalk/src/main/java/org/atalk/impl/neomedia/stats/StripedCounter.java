@@ -0,0 +1,116 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atalk.impl.neomedia.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which spreads its updates over a number of cache line padded cells picked by the
+ * updating thread, so that the media threads (capture, encode, send, receive, decode) which update
+ * the same counter do not contend on one memory location. Reading sums the cells.
+ * <p>
+ * <code>java.util.concurrent.atomic.LongAdder</code> would do the same but is only available
+ * on Android API level 24 and later.
+ *
+ * @author Eng Chong Meng
+ */
+public class StripedCounter
+{
+    /**
+     * The number of <code>long</code>s between two cells, so that each cell sits on its own 64 byte
+     * cache line.
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * The number of cells of every counter: the number of processors rounded up to a power of two,
+     * at most 16.
+     */
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+        while (stripes < cpus)
+            stripes <<= 1;
+        STRIPES = stripes;
+    }
+
+    /**
+     * The cells of this counter; cell <code>i</code> is at index <code>i * PADDING</code>.
+     */
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Gets the index in {@link #cells} of the cell which the current thread is to update.
+     *
+     * @return the index of the cell of the current thread
+     */
+    private static int cellIndex()
+    {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((h >>> 16) & (STRIPES - 1)) * PADDING;
+    }
+
+    /**
+     * Adds a specific value to this counter.
+     *
+     * @param delta the value to add
+     */
+    public void add(long delta)
+    {
+        cells.addAndGet(cellIndex(), delta);
+    }
+
+    /**
+     * Adds one to this counter.
+     */
+    public void increment()
+    {
+        cells.incrementAndGet(cellIndex());
+    }
+
+    /**
+     * Gets the current value of this counter. Updates which happen concurrently with the call may or
+     * may not be included.
+     *
+     * @return the sum of the cells of this counter
+     */
+    public long sum()
+    {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    /**
+     * Resets this counter to zero.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < STRIPES; i++)
+            cells.set(i * PADDING, 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return Long.toString(sum());
+    }
+}
@@ -17,29 +17,35 @@ package org.atalk.impl.neomedia.transform;
 
 import org.atalk.android.plugin.timberlog.TimberLog;
 import org.atalk.impl.neomedia.rtcp.NACKPacket;
+import org.atalk.impl.neomedia.rtcp.RTCPFBPacket;
+import org.atalk.impl.neomedia.rtcp.RTCPPacketView;
+import org.atalk.impl.neomedia.stats.MediaMetrics;
+import org.atalk.impl.neomedia.stats.StripedCounter;
 import org.atalk.service.neomedia.MediaStream;
 import org.atalk.service.neomedia.RawPacket;
 import org.atalk.service.neomedia.TransmissionFailedException;
+import org.atalk.service.neomedia.stats.MediaStreamStats2;
 import org.atalk.util.RTPUtils;
 import org.atalk.util.logging.Logger;
-import org.jetbrains.annotations.NotNull;
 import org.atalk.util.TimeProvider;
 import org.atalk.util.concurrent.RecurringRunnable;
 
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import timber.log.Timber;
 
 /**
  * Detects lost RTP packets for a particular <code>RtpChannel</code> and requests
  * their retransmission by sending RTCP NACK packets.
+ * <p>
+ * The lost packets of each SSRC are tracked in a bitmap over a sliding window of the most recent
+ * sequence numbers, and the NACK FCI entries (PID + BLP) are packed straight from it. The first
+ * request for a packet waits for the reordering allowed by the measured jitter, and the following
+ * ones are spaced by the measured RTT, so that a retransmission in flight is not requested again.
  *
  * @author Boris Grozev
  * @author George Politis
@@ -61,25 +67,58 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
 
     /**
      * The interval after which another retransmission request will be sent
-     * for a packet, unless it arrives. Ideally this should not be a constant,
-     * but should be based on the RTT to the endpoint.
+     * for a packet, unless it arrives, while the RTT to the endpoint is not known.
      */
     public static final int RE_REQUEST_AFTER_MILLIS = 150;
 
     /**
-     * The interval we'll ask the {@link RecurringRunnableExecutor} to check back
+     * The bounds of the RTT based interval between two requests for the same packet.
+     */
+    private static final long MIN_RE_REQUEST_AFTER_MILLIS = 20;
+
+    private static final long MAX_RE_REQUEST_AFTER_MILLIS = 500;
+
+    /**
+     * The longest time to wait for a reordered packet before its first retransmission request.
+     */
+    private static final long MAX_REORDER_DELAY_MILLIS = 30;
+
+    /**
+     * The interval we'll ask the {@link org.atalk.util.concurrent.RecurringRunnableExecutor} to check back
      * in if there is no current work
      * TODO(brian): i think we should actually be able to get rid of this and
      * just rely on scheduled work and the 'work ready now' callback
      */
     public static final long WAKEUP_INTERVAL_MILLIS = 1000;
 
+    /**
+     * The number of the most recent sequence numbers of an SSRC tracked by its <code>Requester</code>;
+     * a power of two larger than {@link #MAX_MISSING}.
+     */
+    private static final int WINDOW_SIZE = 128;
+
+    /**
+     * The mask which maps a sequence number onto its slot in the window.
+     */
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    /**
+     * The largest number of sequence numbers a NACK FCI entry covers: the PID and the 16 bits of the BLP.
+     */
+    private static final int NACK_ENTRY_SPAN = 17;
+
     /**
      * Maps an SSRC to the <code>Requester</code> instance corresponding to it.
      * TODO: purge these somehow (RTCP BYE? Timeout?)
      */
     private final Map<Long, Requester> requesters = new HashMap<>();
 
+    /**
+     * The <code>Requester</code> of the last received packet, which spares the lookup in
+     * {@link #requesters} for the following packets of the same SSRC.
+     */
+    private volatile Requester lastRequester;
+
     /**
      * The {@link MediaStream} that this instance belongs to.
      */
@@ -91,6 +130,11 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
      */
     private long senderSsrc = -1;
 
+    /**
+     * The {@link MediaMetrics} counter of the packets requested in NACKs, or <code>null</code> if
+     * the metrics are disabled.
+     */
+    private final StripedCounter nackRequestedCounter = MediaMetrics.getInstance().counter("nack.requested");
 
     protected final TimeProvider timeProvider;
 
@@ -116,9 +160,13 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
     public void packetReceived(long ssrc, int seqNum)
     {
         // TODO(gp) Don't NACK higher temporal layers.
-        Requester requester = getOrCreateRequester(ssrc);
+        Requester requester = lastRequester;
+        if (requester == null || requester.ssrc != ssrc) {
+            requester = getOrCreateRequester(ssrc);
+            lastRequester = requester;
+        }
         // If the reception of this packet resulted in there being work that
-        // is ready to be done now, fire the work ready callback
+        // is ready to be done sooner, fire the work ready callback
         if (requester.received(seqNum)) {
             if (workReadyCallback != null) {
                 workReadyCallback.run();
@@ -160,7 +208,7 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
         List<Requester> dueRequesters = getDueRequesters(now);
         Timber.log(TimberLog.FINER, "%s has %s due requesters", hashCode(), dueRequesters.size());
         if (!dueRequesters.isEmpty()) {
-            List<NACKPacket> nackPackets = createNackPackets(now, dueRequesters);
+            List<RawPacket> nackPackets = createNackPackets(now, dueRequesters);
             Timber.log(TimberLog.FINER, "%s injecting %s nack packets", hashCode(), nackPackets.size());
             if (!nackPackets.isEmpty()) {
                 injectNackPackets(nackPackets);
@@ -210,8 +258,8 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
         synchronized (requesters) {
             for (Requester requester : requesters.values()) {
                 if (requester.isDue(currentTime)) {
-                    Timber.log(TimberLog.FINER, hashCode() + "%s requester for ssrc %s has work due at %s(now = %s) and is missing packets: %s",
-                            requester.ssrc, requester.nextRequestAt, currentTime, requester.getMissingSeqNums());
+                    Timber.log(TimberLog.FINER, hashCode() + "%s requester for ssrc %s has work due at %s(now = %s) and is missing %s packets",
+                            requester.ssrc, requester.nextRequestAt, currentTime, requester.missingCount);
 
                     dueRequesters.add(requester);
                 }
@@ -225,19 +273,11 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
      *
      * @param nackPackets the nack packets to inject
      */
-    private void injectNackPackets(List<NACKPacket> nackPackets)
+    private void injectNackPackets(List<RawPacket> nackPackets)
     {
-        for (NACKPacket nackPacket : nackPackets) {
+        for (RawPacket packet : nackPackets) {
             try {
-                RawPacket packet;
-                try {
-                    packet = nackPacket.toRawPacket();
-                } catch (IOException ioe) {
-                    Timber.w(ioe, "Failed to create a NACK packet");
-                    continue;
-                }
-
-                Timber.log(TimberLog.FINER, "Sending a NACK: %s", nackPacket);
+                Timber.log(TimberLog.FINER, "Sending a NACK: %s", packet);
                 stream.injectPacket(packet, /* data */ false, /* after */ null);
             } catch (TransmissionFailedException e) {
                 Timber.w(e.getCause(), "Failed to inject packet in MediaStream.");
@@ -246,33 +286,26 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
     }
 
     /**
-     * Gather the packets currently marked as missing and create
+     * Gather the packets currently due to be requested and create
      * NACKs for them
      *
+     * @param now the current time
      * @param dueRequesters the requesters which are due to have nack packets
      * generated
+     * @return the NACK packets, one per SSRC with packets to request
      */
-    protected List<NACKPacket> createNackPackets(long now, List<Requester> dueRequesters)
+    protected List<RawPacket> createNackPackets(long now, List<Requester> dueRequesters)
     {
-        Map<Long, Set<Integer>> packetsToRequest = new HashMap<>();
+        MediaStreamStats2 stats = stream.getMediaStreamStats();
+        long rtt = stats.getSendStats().getRtt();
+
+        List<RawPacket> nackPackets = new ArrayList<>(dueRequesters.size());
         for (Requester dueRequester : dueRequesters) {
-            synchronized (dueRequester) {
-                Set<Integer> missingPackets = dueRequester.getMissingSeqNums();
-                if (!missingPackets.isEmpty()) {
-                    Timber.log(TimberLog.FINER, "%S Sending nack with packets %S for ssrc %S",
-                            hashCode(), missingPackets, dueRequester.ssrc);
-                    packetsToRequest.put(dueRequester.ssrc, missingPackets);
-                    dueRequester.notifyNackCreated(now, missingPackets);
-                }
-            }
-        }
+            dueRequester.updateTiming(rtt, stats.getReceiveStats(dueRequester.ssrc).getJitter());
 
-        List<NACKPacket> nackPackets = new ArrayList<>();
-        for (Map.Entry<Long, Set<Integer>> entry : packetsToRequest.entrySet()) {
-            long sourceSsrc = entry.getKey();
-            Set<Integer> missingPackets = entry.getValue();
-            NACKPacket nack = new NACKPacket(senderSsrc, sourceSsrc, missingPackets);
-            nackPackets.add(nack);
+            RawPacket nack = dueRequester.createNackPacket(now);
+            if (nack != null)
+                nackPackets.add(nack);
         }
         return nackPackets;
     }
@@ -295,13 +328,49 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
         /**
          * The time that the next request for this SSRC should be sent.
          */
-        private long nextRequestAt = -1;
+        private volatile long nextRequestAt = -1;
+
+        /**
+         * The bitmap of the missing packets over the window of the last {@link #WINDOW_SIZE}
+         * sequence numbers up to {@link #lastReceivedSeq}; the bit of a sequence number is at
+         * <code>seq & WINDOW_MASK</code>.
+         */
+        private final long[] missing = new long[WINDOW_SIZE / 64];
 
         /**
-         * The set of active requests for this SSRC. The keys are the sequence
-         * numbers.
+         * The number of bits set in {@link #missing}.
          */
-        private final Map<Integer, Request> requests = new HashMap<>();
+        private int missingCount = 0;
+
+        /**
+         * The number of retransmission requests sent for the missing packet of each slot.
+         */
+        private final byte[] timesRequested = new byte[WINDOW_SIZE];
+
+        /**
+         * The time at which the next request is due for the missing packet of each slot.
+         */
+        private final long[] dueAt = new long[WINDOW_SIZE];
+
+        /**
+         * The time at which the first request was sent for the missing packet of each slot, or -1.
+         */
+        private final long[] firstRequestSentAt = new long[WINDOW_SIZE];
+
+        /**
+         * The time to wait for a reordered packet before requesting it, from the measured jitter.
+         */
+        private long reorderDelay = 0;
+
+        /**
+         * The interval between two requests for the same packet, from the measured RTT and jitter.
+         */
+        private long reRequestInterval = RE_REQUEST_AFTER_MILLIS;
+
+        /**
+         * The last measured RTT in milliseconds, or -1 if unknown.
+         */
+        private long rtt = -1;
 
         /**
          * Initializes a new <code>Requester</code> instance for the given SSRC.
@@ -320,15 +389,68 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
          */
         public boolean isDue(long currentTime)
         {
+            long nextRequestAt = this.nextRequestAt;
             return nextRequestAt != -1 && nextRequestAt <= currentTime;
         }
 
+        /**
+         * Determines whether the packet of a specific slot is missing.
+         */
+        private boolean isMissing(int slot)
+        {
+            return (missing[slot >>> 6] & (1L << slot)) != 0;
+        }
+
+        /**
+         * Marks the packet of a specific slot as missing.
+         */
+        private void setMissing(int slot)
+        {
+            if (!isMissing(slot)) {
+                missing[slot >>> 6] |= 1L << slot;
+                missingCount++;
+            }
+        }
+
+        /**
+         * Marks the packet of a specific slot as not missing.
+         *
+         * @return <code>true</code> if the packet was missing
+         */
+        private boolean clearMissing(int slot)
+        {
+            if (isMissing(slot)) {
+                missing[slot >>> 6] &= ~(1L << slot);
+                missingCount--;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Updates the request timing from the current RTT and jitter measurements.
+         *
+         * @param rtt the round trip time in milliseconds, or 0 or less if unknown
+         * @param jitter the interarrival jitter in milliseconds
+         */
+        private synchronized void updateTiming(long rtt, double jitter)
+        {
+            long jitterMillis = (jitter > 0) ? (long) jitter : 0;
+
+            this.rtt = rtt;
+            reorderDelay = Math.min(jitterMillis, MAX_REORDER_DELAY_MILLIS);
+            reRequestInterval = (rtt > 0)
+                    ? Math.max(MIN_RE_REQUEST_AFTER_MILLIS,
+                            Math.min(rtt + 2 * jitterMillis, MAX_RE_REQUEST_AFTER_MILLIS))
+                    : RE_REQUEST_AFTER_MILLIS;
+        }
+
         /**
          * Handles a received RTP packet with a specific sequence number.
          *
          * @param seq the RTP sequence number of the received packet.
-         * @return true if there is work for this requester ready to be
-         * done now, false otherwise
+         * @return true if the next request of this requester has become due
+         * sooner, false otherwise
          */
         synchronized private boolean received(int seq)
         {
@@ -340,128 +462,140 @@ public class RetransmissionRequesterDelegate implements RecurringRunnable
             int diff = RTPUtils.getSequenceNumberDelta(seq, lastReceivedSeq);
             if (diff <= 0) {
                 // An older packet, possibly already requested.
-                Request r = requests.remove(seq);
-                if (requests.isEmpty()) {
-                    nextRequestAt = -1;
-                }
-
-                if (r != null) {
-                    long rtt = stream.getMediaStreamStats().getSendStats().getRtt();
-                    if (rtt > 0) {
-
-                        // firstRequestSentAt is if we created a Request, but
-                        // haven't yet sent a NACK. Assume a delta of 0 in that
-                        // case.
-                        long firstRequestSentAt = r.firstRequestSentAt;
-                        long delta = firstRequestSentAt > 0
-                                ? timeProvider.currentTimeMillis() - r.firstRequestSentAt : 0;
+                int slot = seq & WINDOW_MASK;
+                if (diff > -WINDOW_SIZE && clearMissing(slot)) {
+                    if (missingCount == 0) {
+                        nextRequestAt = -1;
+                    }
 
+                    // firstRequestSentAt is -1 if the packet is missing, but
+                    // no NACK has been sent for it yet.
+                    long sentAt = firstRequestSentAt[slot];
+                    if (rtt > 0 && sentAt > 0) {
                         Timber.d("%s retr_received,stream = %d; delay = %d; rtt = %d",
-                                Logger.Category.STATISTICS, stream.hashCode(), delta, rtt);
+                                Logger.Category.STATISTICS, stream.hashCode(),
+                                timeProvider.currentTimeMillis() - sentAt, rtt);
                     }
                 }
             }
-            else if (diff == 1) {
-                // The very next packet, as expected.
-                lastReceivedSeq = seq;
-            }
             else if (diff <= MAX_MISSING) {
-                for (int missing = (lastReceivedSeq + 1) % (1 << 16);
-                     missing != seq;
-                     missing = (missing + 1) % (1 << 16)) {
-                    Request request = new Request(missing);
-                    requests.put(missing, request);
+                // The slots entering the window drop whatever older packets they tracked.
+                long due = -1;
+                if (diff > 1) {
+                    due = timeProvider.currentTimeMillis() + reorderDelay;
+                    for (int i = 1; i < diff; i++) {
+                        int slot = (lastReceivedSeq + i) & WINDOW_MASK;
+                        setMissing(slot);
+                        timesRequested[slot] = 0;
+                        dueAt[slot] = due;
+                        firstRequestSentAt[slot] = -1;
+                    }
                 }
-
+                clearMissing(seq & WINDOW_MASK);
                 lastReceivedSeq = seq;
-                nextRequestAt = 0;
 
-                return true;
+                if (missingCount == 0) {
+                    nextRequestAt = -1;
+                }
+                else if (due != -1 && (nextRequestAt == -1 || due < nextRequestAt)) {
+                    nextRequestAt = due;
+                    return true;
+                }
             }
             else // if (diff > MAX_MISSING)
             {
                 // Too many packets missing. Reset.
-                lastReceivedSeq = seq;
                 Timber.d("Resetting retransmission requester state. SSRC: %S, last received: %S, current: %S. Removing %S unsatisfied requests.",
-                        ssrc, lastReceivedSeq, seq, requests.size());
-                requests.clear();
+                        ssrc, lastReceivedSeq, seq, missingCount);
+                lastReceivedSeq = seq;
+                Arrays.fill(missing, 0);
+                missingCount = 0;
                 nextRequestAt = -1;
             }
             return false;
         }
 
         /**
-         * Returns a set of RTP sequence numbers which are considered still MIA,
-         * and for which a retransmission request needs to be sent.
-         * Assumes that the returned set of sequence numbers will be requested
-         * immediately and updates the state accordingly (i.e. increments the
+         * Creates an RTCP NACK for the missing packets whose request is due, packing runs of them
+         * into PID + BLP entries, and updates the state accordingly (i.e. increments the
          * timesRequested counters and sets the time of next request).
          *
-         * @return a set of RTP sequence numbers which are considered still MIA,
-         * and for which a retransmission request needs to be sent.
+         * @param now the current time
+         * @return the NACK packet, or <code>null</code> if no packet is due to be requested
          */
-        synchronized private @NotNull
-        Set<Integer> getMissingSeqNums()
+        synchronized private RawPacket createNackPacket(long now)
         {
-            return new HashSet<>(requests.keySet());
-        }
+            if (missingCount == 0) {
+                nextRequestAt = -1;
+                return null;
+            }
 
-        /**
-         * Notify this requester that a nack was sent at the given time
-         *
-         * @param time the time at which the nack was sent
-         */
-        public synchronized void notifyNackCreated(long time, Collection<Integer> sequenceNumbers)
-        {
-            for (Integer seqNum : sequenceNumbers) {
-                Request request = requests.get(seqNum);
-                request.timesRequested++;
-                if (request.timesRequested == MAX_REQUESTS) {
-                    Timber.d("Generated the last NACK for SSRC = %S seq = %S. Time since the first request: %S",
-                            ssrc, request.seq, (time - request.firstRequestSentAt));
-                    requests.remove(seqNum);
+            // At most one entry per missing packet; allocated once the first due packet is found.
+            byte[] buf = null;
+            int maxEntries = missingCount;
+            int fciOff = RTCPPacketView.FB_HEADER_LENGTH;
+            int entries = 0;
+            int requested = 0;
+            int pid = -1;
+            int blp = 0;
+            long next = -1;
+
+            // Walk the window from the oldest sequence number to the newest.
+            int oldest = lastReceivedSeq - WINDOW_SIZE + 1;
+            for (int i = 0; i < WINDOW_SIZE; i++) {
+                int seq = (oldest + i) & 0xffff;
+                int slot = seq & WINDOW_MASK;
+                if (!isMissing(slot))
+                    continue;
+
+                if (dueAt[slot] > now) {
+                    if (next == -1 || dueAt[slot] < next)
+                        next = dueAt[slot];
                     continue;
                 }
-                if (request.timesRequested == 1) {
-                    request.firstRequestSentAt = time;
-                }
-            }
-            nextRequestAt = (requests.size() > 0) ? time + RE_REQUEST_AFTER_MILLIS : -1;
-        }
 
-    }
+                int delta = (seq - pid) & 0xffff;
+                if (pid != -1 && delta < NACK_ENTRY_SPAN) {
+                    blp |= 1 << (delta - 1);
+                }
+                else {
+                    if (buf == null)
+                        buf = new byte[fciOff + 4 * maxEntries];
+                    else
+                        RTCPPacketView.writeNackEntry(buf, fciOff, entries++, pid, blp);
+                    pid = seq;
+                    blp = 0;
+                }
+                requested++;
 
-    /**
-     * Represents a request for the retransmission of a specific RTP packet.
-     */
-    private static class Request
-    {
-        /**
-         * The RTP sequence number.
-         */
-        final int seq;
+                if (timesRequested[slot] == 0) {
+                    firstRequestSentAt[slot] = now;
+                }
+                if (++timesRequested[slot] >= MAX_REQUESTS) {
+                    Timber.d("Generated the last NACK for SSRC = %S seq = %S. Time since the first request: %S",
+                            ssrc, seq, (now - firstRequestSentAt[slot]));
+                    clearMissing(slot);
+                }
+                else {
+                    dueAt[slot] = now + reRequestInterval;
+                    if (next == -1 || dueAt[slot] < next)
+                        next = dueAt[slot];
+                }
+            }
+            nextRequestAt = next;
 
-        /**
-         * The system time at the moment a retransmission request for this
-         * packet was first sent.
-         */
-        long firstRequestSentAt = -1;
+            if (buf == null)
+                return null;
 
-        /**
-         * The number of times that a retransmission request for this packet
-         * has been sent.
-         */
-        int timesRequested = 0;
+            RTCPPacketView.writeNackEntry(buf, fciOff, entries++, pid, blp);
+            int length = RTCPPacketView.writeFBHeader(buf, 0, RTCPFBPacket.RTPFB, NACKPacket.FMT,
+                    4 * entries, senderSsrc, ssrc);
 
-        /**
-         * Initializes a new <code>Request</code> instance with the given RTP
-         * sequence number.
-         *
-         * @param seq the RTP sequence number.
-         */
-        Request(int seq)
-        {
-            this.seq = seq;
+            Timber.log(TimberLog.FINER, "%S Sending nack with %S packets in %S entries for ssrc %S",
+                    hashCode(), requested, entries, ssrc);
+            if (nackRequestedCounter != null)
+                nackRequestedCounter.add(requested);
+            return new RawPacket(buf, 0, length);
         }
     }
 
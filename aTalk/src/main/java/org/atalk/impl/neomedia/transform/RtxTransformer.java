@@ -15,11 +15,13 @@
  */
 package org.atalk.impl.neomedia.transform;
 
+import org.atalk.android.plugin.timberlog.TimberLog;
 import org.atalk.impl.neomedia.MediaStreamImpl;
 import org.atalk.impl.neomedia.RTCPPacketPredicate;
 import org.atalk.impl.neomedia.RTPPacketPredicate;
-import org.atalk.impl.neomedia.rtcp.NACKPacket;
+import org.atalk.impl.neomedia.VideoMediaStreamImpl;
 import org.atalk.impl.neomedia.rtcp.RTCPIterator;
+import org.atalk.impl.neomedia.rtcp.RTCPPacketView;
 import org.atalk.impl.neomedia.rtp.MediaStreamTrackReceiver;
 import org.atalk.impl.neomedia.rtp.RTPEncodingDesc;
 import org.atalk.impl.neomedia.rtp.RawPacketCache;
@@ -32,11 +34,10 @@ import org.atalk.service.neomedia.RawPacket;
 import org.atalk.service.neomedia.TransmissionFailedException;
 import org.atalk.service.neomedia.codec.Constants;
 import org.atalk.service.neomedia.format.MediaFormat;
+import org.atalk.service.neomedia.rtp.BandwidthEstimator;
 import org.atalk.util.logging.Logger;
-import org.atalk.util.ByteArrayBuffer;
 
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
@@ -49,7 +50,10 @@ import timber.log.Timber;
  * removes their RTX encapsulation.
  *
  * Intercepts NACKs and retransmits packets to a mediaStream (using the RTX
- * format if the destination supports it).
+ * format if the destination supports it). The retransmissions draw on a token
+ * bucket refilled at a share of the current bandwidth estimate, so that a burst
+ * of NACKs cannot crowd the fresh media out of a constrained uplink; within the
+ * budget the key frame packets and then the newest packets are served first.
  *
  * @author Boris Grozev
  * @author George Politis
@@ -62,26 +66,116 @@ public class RtxTransformer implements TransformEngine
      */
     public static final String DISABLE_NACK_TERMINATION_PNAME = "neomedia.rtcp.DISABLE_NACK_TERMINATION";
 
+    /**
+     * The name of the property which specifies the share of the current bandwidth estimate which the
+     * retransmissions may use, between 0 and 1; 0 or less lifts the limit.
+     */
+    public static final String RTX_BANDWIDTH_SHARE_PNAME = "neomedia.rtx.BANDWIDTH_SHARE";
+
+    /**
+     * The default share of the bandwidth estimate available to retransmissions.
+     */
+    private static final double DEFAULT_RTX_BANDWIDTH_SHARE = 0.3;
+
+    /**
+     * The depth of the retransmission token bucket in milliseconds of its refill rate.
+     */
+    private static final long BUDGET_BURST_MILLIS = 200;
+
+    /**
+     * The smallest depth of the retransmission token bucket in bytes, so that a full size packet
+     * always fits on a low rate.
+     */
+    private static final int MIN_BUDGET_BURST_BYTES = 3000;
+
+    /**
+     * The value of the payload type lookup tables for a payload type without mapping.
+     */
+    private static final byte NO_PT = -1;
+
+    /**
+     * The source of the random initial RTX sequence numbers, shared by all instances.
+     */
+    private static final Random random = new Random();
+
     /**
      * The <code>MediaStream</code> for the transformer.
      */
     private MediaStreamImpl mediaStream;
 
     /**
-     * Maps an RTX SSRC to the last RTP sequence number sent with that SSRC.
+     * The RTX SSRCs for which a sequence number has been sent, in the first
+     * {@link #rtxSsrcCount} elements; {@link #rtxSequenceNumbers} holds their last sequence numbers.
+     */
+    private long[] rtxSsrcs = new long[4];
+
+    /**
+     * The last RTP sequence number sent with each RTX SSRC of {@link #rtxSsrcs}.
+     */
+    private int[] rtxSequenceNumbers = new int[4];
+
+    /**
+     * The number of RTX SSRCs in {@link #rtxSsrcs}.
+     */
+    private int rtxSsrcCount = 0;
+
+    /**
+     * The payload type number configured for RTX (RFC-4588), indexed by the
+     * media payload type number, or {@link #NO_PT}.
      */
-    private final Map<Long, Integer> rtxSequenceNumbers = new HashMap<>();
+    private volatile byte[] apt2rtx = newPayloadTypeTable();
 
     /**
-     * The payload type number configured for RTX (RFC-4588), mapped by the
-     * media payload type number.
+     * The "associated payload type" number for RTX, indexed by the RTX payload type number, or {@link #NO_PT}.
      */
-    private Map<Byte, Byte> apt2rtx = new HashMap<>();
+    private volatile byte[] rtx2apt = newPayloadTypeTable();
 
     /**
-     * The "associated payload type" number for RTX, mapped by the RTX payload type number.
+     * Whether the destination supports RTX i.e. whether {@link #apt2rtx} maps any payload type.
      */
-    private Map<Byte, Byte> rtx2apt = new HashMap<>();
+    private volatile boolean destinationSupportsRtx = false;
+
+    /**
+     * The share of the bandwidth estimate available to retransmissions; 0 or less for no limit.
+     */
+    private double bandwidthShare = DEFAULT_RTX_BANDWIDTH_SHARE;
+
+    /**
+     * The retransmission budget in bytes; the token bucket refilled at {@link #bandwidthShare} of the
+     * bandwidth estimate.
+     */
+    private double budget = MIN_BUDGET_BURST_BYTES;
+
+    /**
+     * The time in milliseconds at which {@link #budget} was last refilled, or -1.
+     */
+    private long budgetRefilledAt = -1;
+
+    /**
+     * The sequence numbers of the last received NACK, reused between NACKs. Only used by the thread
+     * receiving RTCP, as are {@link #retransmissions} and {@link #retransmissionPts}.
+     */
+    private int[] lostPackets = new int[64];
+
+    /**
+     * The copies of the cached packets to retransmit for the last received NACK, reused between NACKs.
+     */
+    private RawPacket[] retransmissions = new RawPacket[64];
+
+    /**
+     * The RTX payload type of each of {@link #retransmissions}.
+     */
+    private byte[] retransmissionPts = new byte[64];
+
+    /**
+     * The cached packets to retransmit for the last received NACK, reused between NACKs.
+     */
+    private RawPacketCache.Container[] candidates = new RawPacketCache.Container[64];
+
+    /**
+     * Whether each of {@link #candidates} belongs to a key frame.
+     */
+    private boolean[] candidateKeyFrames = new boolean[64];
 
     /**
      * The transformer that decapsulates RTX.
@@ -108,6 +202,7 @@ public class RtxTransformer implements TransformEngine
             Timber.w("NOT initializing RTCP n' NACK termination because  the configuration service was not found.");
             return;
         }
+        bandwidthShare = cfg.getDouble(RTX_BANDWIDTH_SHARE_PNAME, DEFAULT_RTX_BANDWIDTH_SHARE);
 
         boolean enableNackTermination = !cfg.getBoolean(DISABLE_NACK_TERMINATION_PNAME, false);
         if (enableNackTermination) {
@@ -146,7 +241,17 @@ public class RtxTransformer implements TransformEngine
      */
     public boolean destinationSupportsRtx()
     {
-        return !apt2rtx.isEmpty();
+        return destinationSupportsRtx;
+    }
+
+    /**
+     * @return a new payload type lookup table without any mapping.
+     */
+    private static byte[] newPayloadTypeTable()
+    {
+        byte[] table = new byte[128];
+        Arrays.fill(table, NO_PT);
+        return table;
     }
 
     /**
@@ -161,18 +266,21 @@ public class RtxTransformer implements TransformEngine
      * @return the sequence number which should be used for the next RTX
      * packet sent using SSRC <code>ssrc</code>.
      */
-    private int getNextRtxSequenceNumber(long ssrc)
+    private synchronized int getNextRtxSequenceNumber(long ssrc)
     {
-        Integer seq;
-        synchronized (rtxSequenceNumbers) {
-            seq = rtxSequenceNumbers.get(ssrc);
-            if (seq == null)
-                seq = new Random().nextInt(0xffff);
-            else
-                seq++;
-
-            rtxSequenceNumbers.put(ssrc, seq);
+        for (int i = 0; i < rtxSsrcCount; i++) {
+            if (rtxSsrcs[i] == ssrc) {
+                return rtxSequenceNumbers[i] = (rtxSequenceNumbers[i] + 1) & 0xffff;
+            }
         }
+
+        if (rtxSsrcCount == rtxSsrcs.length) {
+            rtxSsrcs = Arrays.copyOf(rtxSsrcs, rtxSsrcCount * 2);
+            rtxSequenceNumbers = Arrays.copyOf(rtxSequenceNumbers, rtxSsrcCount * 2);
+        }
+        int seq = random.nextInt(0xffff);
+        rtxSsrcs[rtxSsrcCount] = ssrc;
+        rtxSequenceNumbers[rtxSsrcCount++] = seq;
         return seq;
     }
 
@@ -213,16 +321,17 @@ public class RtxTransformer implements TransformEngine
      * the packet will be encapsulated in RTX, otherwise, the packet will be retransmitted as-is.
      *
      * @param pkt the packet to retransmit.
-     * @param rtxPt the RTX payload type to use for the re-transmitted packet.
+     * @param rtxPt the RTX payload type to use for the re-transmitted packet, or
+     * {@link #NO_PT} to retransmit the packet as-is.
      * @param after the {@code TransformEngine} in the chain of
      * {@code TransformEngine}s of the associated {@code MediaStream} after
      * which the injection of {@code pkt} is to begin
      * @return {@code true} if the packet was successfully retransmitted,
      * {@code false} otherwise.
      */
-    private boolean retransmit(RawPacket pkt, Byte rtxPt, TransformEngine after)
+    private boolean retransmit(RawPacket pkt, byte rtxPt, TransformEngine after)
     {
-        boolean destinationSupportsRtx = rtxPt != null;
+        boolean destinationSupportsRtx = rtxPt != NO_PT;
         boolean retransmitPlain;
 
         if (destinationSupportsRtx) {
@@ -259,36 +368,41 @@ public class RtxTransformer implements TransformEngine
      */
     public void onDynamicPayloadTypesChanged()
     {
-        Map<Byte, Byte> apt2rtx = new HashMap<>();
-        Map<Byte, Byte> rtx2apt = new HashMap<>();
+        byte[] apt2rtx = newPayloadTypeTable();
+        byte[] rtx2apt = newPayloadTypeTable();
+        boolean destinationSupportsRtx = false;
 
         Map<Byte, MediaFormat> mediaFormatMap
                 = mediaStream.getDynamicRTPPayloadTypes();
 
-        for (Iterator<Map.Entry<Byte, MediaFormat>>
-             it = mediaFormatMap.entrySet().iterator(); it.hasNext(); ) {
-            Map.Entry<Byte, MediaFormat> entry = it.next();
+        for (Map.Entry<Byte, MediaFormat> entry : mediaFormatMap.entrySet()) {
             MediaFormat format = entry.getValue();
             if (!Constants.RTX.equalsIgnoreCase(format.getEncoding())) {
                 continue;
             }
 
-            Byte pt = entry.getKey();
+            byte pt = entry.getKey();
             String aptString = format.getFormatParameters().get("apt");
-            Byte apt;
+            byte apt;
             try {
                 apt = Byte.parseByte(aptString);
             } catch (NumberFormatException nfe) {
                 Timber.e("Failed to parse apt: %s", aptString);
                 continue;
             }
+            if (pt < 0 || apt < 0) {
+                Timber.e("Invalid RTX payload type mapping: %s/%s", pt, apt);
+                continue;
+            }
 
-            apt2rtx.put(apt, pt);
-            rtx2apt.put(pt, apt);
+            apt2rtx[apt] = pt;
+            rtx2apt[pt] = apt;
+            destinationSupportsRtx = true;
         }
 
         this.rtx2apt = rtx2apt;
         this.apt2rtx = apt2rtx;
+        this.destinationSupportsRtx = destinationSupportsRtx;
     }
 
     /**
@@ -310,8 +424,13 @@ public class RtxTransformer implements TransformEngine
         int len = pkt.getLength();
         int off = pkt.getOffset();
 
-        byte[] newBuf = new byte[len + 2];
-        RawPacket rtxPkt = new RawPacket(newBuf, 0, len + 2);
+        // Take the buffer from the pool of the packet cache rather than allocate one per retransmission.
+        RawPacketCache cache = getCache();
+        RawPacket rtxPkt = (cache != null)
+                ? cache.getFreePacket(len + 2) : new RawPacket(new byte[len + 2], 0, 0);
+        byte[] newBuf = rtxPkt.getBuffer();
+        rtxPkt.setOffset(0);
+        rtxPkt.setLength(len + 2);
 
         int osn = pkt.getSequenceNumber();
         int headerLength = pkt.getHeaderLength();
@@ -338,8 +457,15 @@ public class RtxTransformer implements TransformEngine
             } catch (TransmissionFailedException tfe) {
                 Timber.w("Failed to transmit an RTX packet.");
                 return false;
+            } finally {
+                // The output stream copies the packet before injectPacket returns.
+                if (cache != null)
+                    cache.returnFreePacket(rtxPkt);
             }
         }
+        else if (cache != null) {
+            cache.returnFreePacket(rtxPkt);
+        }
         return true;
     }
 
@@ -376,14 +502,70 @@ public class RtxTransformer implements TransformEngine
     }
 
     /**
-     * @param mediaSSRC
-     * @param lostPackets
+     * Refills the retransmission budget for the time elapsed since its last refill and takes a
+     * specific number of bytes from it.
+     *
+     * @param bytes the number of bytes to retransmit
+     * @param now the current time in milliseconds
+     * @param rateBps the refill rate in bits per second; 0 or less for no limit
+     * @return <code>true</code> if the budget allows the retransmission
+     */
+    private boolean consumeBudget(int bytes, long now, long rateBps)
+    {
+        if (rateBps <= 0)
+            return true;
+
+        double bytesPerMillis = rateBps / 8000d;
+        double burst = Math.max(MIN_BUDGET_BURST_BYTES, bytesPerMillis * BUDGET_BURST_MILLIS);
+        if (budgetRefilledAt != -1 && now > budgetRefilledAt)
+            budget += (now - budgetRefilledAt) * bytesPerMillis;
+        budgetRefilledAt = now;
+        if (budget > burst)
+            budget = burst;
+
+        if (budget < bytes)
+            return false;
+        budget -= bytes;
+        return true;
+    }
+
+    /**
+     * Gets the rate at which the retransmission budget refills: a share of the bandwidth estimate
+     * of the stream or, without an estimate, of its current send bitrate.
+     *
+     * @return the rate in bits per second, or -1 for no limit
      */
-    private void nackReceived(long mediaSSRC, Collection<Integer> lostPackets)
+    private long getBudgetRate()
     {
-        Timber.d("%s nack_received,stream = %d; ssrc = %s; lost_packets = %s",
-                Logger.Category.STATISTICS, mediaStream.hashCode(), mediaSSRC, lostPackets);
+        if (bandwidthShare <= 0)
+            return -1;
+
+        long bps = -1;
+        if (mediaStream instanceof VideoMediaStreamImpl) {
+            // Do not create an estimator only to read a share of it.
+            BandwidthEstimator bwe = ((VideoMediaStreamImpl) mediaStream).getBandwidthEstimator();
+            if (bwe != null)
+                bps = bwe.getLatestEstimate();
+        }
+        if (bps <= 0)
+            bps = mediaStream.getMediaStreamStats().getSendStats().getBitrate();
+        return (bps > 0) ? (long) (bps * bandwidthShare) : -1;
+    }
+
+    /**
+     * Retransmits the cached packets requested by a NACK, the key frame packets and then the
+     * newest packets first, as far as the retransmission budget allows.
+     *
+     * @param mediaSSRC the SSRC of the media source the NACK is about
+     * @param lostPackets the sequence numbers reported lost, in the first <code>count</code> elements
+     * @param count the number of sequence numbers reported lost
+     */
+    private void nackReceived(long mediaSSRC, int[] lostPackets, int count)
+    {
+        Timber.d("%s nack_received,stream = %d; ssrc = %s; lost_count = %s",
+                Logger.Category.STATISTICS, mediaStream.hashCode(), mediaSSRC, count);
         RawPacketCache cache = getCache();
+        int misses = count;
 
         if (cache != null) {
             // Retransmitted packets need to be inserted:
@@ -400,45 +582,101 @@ public class RtxTransformer implements TransformEngine
 
             long rtt = mediaStream.getMediaStreamStats().getSendStats().getRtt();
             long now = System.currentTimeMillis();
+            MediaStreamStats2Impl stats = mediaStream.getMediaStreamStats();
+
+            // The packets are selected, charged to the budget and copied out of the cache under the
+            // lock, and injected after it has been released.
+            if (retransmissions.length < count) {
+                retransmissions = new RawPacket[count];
+                retransmissionPts = new byte[count];
+            }
+            int retransmissionCount = 0;
 
-            for (Iterator<Integer> i = lostPackets.iterator(); i.hasNext(); ) {
-                int seq = i.next();
-                RawPacketCache.Container container = cache.getContainer(mediaSSRC, seq);
+            synchronized (this) {
+                if (candidates.length < count) {
+                    candidates = new RawPacketCache.Container[count];
+                    candidateKeyFrames = new boolean[count];
+                }
 
+                int candidateCount = 0;
+                for (int i = 0; i < count; i++) {
+                    int seq = lostPackets[i];
+                    RawPacketCache.Container container = cache.getContainer(mediaSSRC, seq);
+                    if (container == null) {
+                        stats.rtpPacketCacheMiss(mediaSSRC);
+                        continue;
+                    }
 
-                MediaStreamStats2Impl stats = mediaStream.getMediaStreamStats();
-                if (container != null) {
                     // Cache hit.
+                    misses--;
+                    RawPacket pkt = container.pkt;
                     long delay = now - container.timeAdded;
                     boolean send = (rtt == -1) || (delay >= Math.min(rtt * 0.9, rtt - 5));
 
                     Timber.d("%s retransmitting stream = %d, ssrc = %s,seq = %d,send = %s",
                             Logger.Category.STATISTICS, mediaStream.hashCode(), mediaSSRC, seq, send);
 
-                    Byte rtxPt = apt2rtx.get(container.pkt.getPayloadType());
-                    if (send && retransmit(container.pkt, rtxPt, after)) {
-                        stats.rtpPacketRetransmitted(mediaSSRC, container.pkt.getLength());
-
-                        // We just retransmitted the packet. Update its
-                        // timestamp in the cache so that we use the new
-                        // timestamp when we handle subsequent NACKs.
-                        cache.updateTimestamp(mediaSSRC, seq, now);
-                        i.remove();
-                    }
-
+                    if (pkt == null)
+                        continue;
                     if (!send) {
-                        stats.rtpPacketNotRetransmitted(mediaSSRC, container.pkt.getLength());
-                        i.remove();
+                        stats.rtpPacketNotRetransmitted(mediaSSRC, pkt.getLength());
+                        continue;
                     }
+                    candidateKeyFrames[candidateCount] = mediaStream.isKeyFrame(pkt);
+                    candidates[candidateCount++] = container;
+                }
 
+                long rateBps = getBudgetRate();
+                for (int pass = 0; pass < 2; pass++) {
+                    boolean keyFrames = (pass == 0);
+
+                    // The NACK lists the oldest packets first.
+                    for (int i = candidateCount - 1; i >= 0; i--) {
+                        RawPacketCache.Container container = candidates[i];
+                        if (container == null || candidateKeyFrames[i] != keyFrames)
+                            continue;
+
+                        candidates[i] = null;
+                        // Containers are recycled/reused, so we must check if the
+                        // packet is still there.
+                        RawPacket pkt = container.pkt;
+                        if (pkt == null)
+                            continue;
+
+                        int len = pkt.getLength();
+                        if (!consumeBudget(len, now, rateBps)) {
+                            Timber.log(TimberLog.FINER, "Retransmission budget exhausted, ssrc = %s, seq = %s",
+                                    mediaSSRC, pkt.getSequenceNumber());
+                            stats.rtpPacketNotRetransmitted(mediaSSRC, len);
+                            continue;
+                        }
+
+                        // The container may be recycled once the lock is released.
+                        RawPacket copy = cache.getFreePacket(len);
+                        System.arraycopy(pkt.getBuffer(), pkt.getOffset(), copy.getBuffer(), 0, len);
+                        copy.setLength(len);
+                        retransmissionPts[retransmissionCount] = apt2rtx[pkt.getPayloadType() & 0x7f];
+                        retransmissions[retransmissionCount++] = copy;
+                    }
                 }
-                else {
-                    stats.rtpPacketCacheMiss(mediaSSRC);
+            }
+
+            for (int i = 0; i < retransmissionCount; i++) {
+                RawPacket pkt = retransmissions[i];
+                retransmissions[i] = null;
+                if (retransmit(pkt, retransmissionPts[i], after)) {
+                    stats.rtpPacketRetransmitted(mediaSSRC, pkt.getLength());
+
+                    // We just retransmitted the packet. Update its
+                    // timestamp in the cache so that we use the new
+                    // timestamp when we handle subsequent NACKs.
+                    cache.updateTimestamp(mediaSSRC, pkt.getSequenceNumber(), now);
                 }
+                cache.returnFreePacket(pkt);
             }
         }
 
-        if (!lostPackets.isEmpty()) {
+        if (misses > 0) {
             // If retransmission requests are enabled, videobridge assumes
             // the responsibility of requesting missing packets.
             Timber.d("Packets missing from the cache.");
@@ -506,8 +744,8 @@ public class RtxTransformer implements TransformEngine
                 // Containers are recycled/reused, so we must check if the
                 // packet is still there.
                 if (pkt != null) {
-                    int len = container.pkt.getLength();
-                    Byte apt = rtx2apt.get(container.pkt.getPayloadType());
+                    int len = pkt.getLength();
+                    byte apt = rtx2apt[pkt.getPayloadType() & 0x7f];
 
                     // XXX if the client doesn't support RTX, then we can not
                     // effectively ramp-up bwe using duplicates because they
@@ -515,8 +753,8 @@ public class RtxTransformer implements TransformEngine
                     // forced to use the bridge's SSRC and thus increase the
                     // probability of losses.
 
-                    if (bytes - len > 0 && apt != null) {
-                        retransmit(container.pkt, apt, this);
+                    if (bytes - len > 0 && apt != NO_PT) {
+                        retransmit(pkt, apt, this);
                         bytes -= len;
                     }
                     else {
@@ -549,8 +787,8 @@ public class RtxTransformer implements TransformEngine
         @Override
         public RawPacket reverseTransform(RawPacket pkt)
         {
-            Byte apt = rtx2apt.get(pkt.getPayloadType());
-            if (apt == null) {
+            byte apt = rtx2apt[pkt.getPayloadType() & 0x7f];
+            if (apt == NO_PT) {
                 return pkt;
             }
 
@@ -604,15 +842,37 @@ public class RtxTransformer implements TransformEngine
         {
             RTCPIterator it = new RTCPIterator(pkt);
             while (it.hasNext()) {
-                ByteArrayBuffer next = it.next();
-                if (NACKPacket.isNACKPacket(next)) {
-                    Collection<Integer> lostPackets = NACKPacket.getLostPackets(next);
-                    long mediaSSRC = NACKPacket.getSourceSSRC(next);
-                    nackReceived(mediaSSRC, lostPackets);
+                RTCPPacketView next = it.next();
+                if (next.isNack()) {
+                    nackReceived(next);
                     it.remove();
                 }
             }
             return pkt;
         }
+
+        /**
+         * Unpacks the PID + BLP entries of a NACK into {@link #lostPackets} and handles them.
+         *
+         * @param nack the NACK packet
+         */
+        private void nackReceived(RTCPPacketView nack)
+        {
+            int entryCount = nack.getNackCount();
+            if (lostPackets.length < entryCount * 17)
+                lostPackets = new int[entryCount * 17];
+
+            int count = 0;
+            for (int i = 0; i < entryCount; i++) {
+                int pid = nack.getNackPid(i);
+                int blp = nack.getNackBlp(i);
+                lostPackets[count++] = pid;
+                for (int j = 0; j < 16; j++) {
+                    if ((blp & (1 << j)) != 0)
+                        lostPackets[count++] = (pid + j + 1) & 0xffff;
+                }
+            }
+            RtxTransformer.this.nackReceived(nack.getMediaSourceSSRC(), lostPackets, count);
+        }
     }
 }
@@ -5,6 +5,8 @@
  */
 package org.atalk.impl.neomedia.transform;
 
+import org.atalk.impl.neomedia.stats.Histogram;
+import org.atalk.impl.neomedia.stats.MediaMetrics;
 import org.atalk.service.neomedia.RawPacket;
 
 import java.util.*;
@@ -273,6 +275,18 @@ public class TransformEngineChain implements TransformEngine
 		 */
 		private final boolean rtp;
 
+		/**
+		 * Whether the time spent in each <tt>PacketTransformer</tt> is to be recorded in the
+		 * {@link MediaMetrics}.
+		 */
+		private final boolean timed = MediaMetrics.getInstance().isEnabled();
+
+		/**
+		 * The {@link MediaMetrics} histograms of the time spent in the <tt>PacketTransformer</tt>s of
+		 * the engines of a specific engine chain, which is replaced copy-on-write.
+		 */
+		private volatile EngineTimes engineTimes;
+
 		/**
 		 * Creates an instance of this packet transformer and prepares it to deal with RTP or RTCP
 		 * according to the <tt>isRtp</tt> argument.
@@ -316,6 +330,7 @@ public class TransformEngineChain implements TransformEngine
 		public RawPacket[] reverseTransform(RawPacket pkts[])
 		{
 			TransformEngine[] engineChain = TransformEngineChain.this.engineChain;
+			EngineTimes times = timed ? getEngineTimes(engineChain) : null;
 
 			for (int i = engineChain.length - 1; i >= 0; i--) {
 				TransformEngine engine = engineChain[i];
@@ -324,8 +339,16 @@ public class TransformEngineChain implements TransformEngine
 
 				// the packet transformer may be null if for example the engine
 				// only does RTP transformations and this is an RTCP transformer.
-				if (pTransformer != null)
-					pkts = pTransformer.reverseTransform(pkts);
+				if (pTransformer != null) {
+					if (times != null) {
+						long start = System.nanoTime();
+						pkts = pTransformer.reverseTransform(pkts);
+						times.reverseTransform[i].recordSince(start);
+					}
+					else {
+						pkts = pTransformer.reverseTransform(pkts);
+					}
+				}
 			}
 			return pkts;
 		}
@@ -360,8 +383,11 @@ public class TransformEngineChain implements TransformEngine
 			// If the specified after is in the transformation chain, the
 			// transformation is to start after it.
 			boolean lookForAfter = after != null && engineChainAsList.contains(after);
+			TransformEngine[] engineChain = TransformEngineChain.this.engineChain;
+			EngineTimes times = timed ? getEngineTimes(engineChain) : null;
 
-			for (TransformEngine engine : engineChain) {
+			for (int i = 0; i < engineChain.length; i++) {
+				TransformEngine engine = engineChain[i];
 				// Start the transformation after the specified TransformEngine.
 				if (lookForAfter) {
 					if (engine.equals(after)) {
@@ -375,10 +401,76 @@ public class TransformEngineChain implements TransformEngine
 
 				// The transformer may be null if for example the engine does
 				// RTP transformations only and this is an RTCP transformer.
-				if (transformer != null)
-					pkts = transformer.transform(pkts);
+				if (transformer != null) {
+					if (times != null) {
+						long start = System.nanoTime();
+						pkts = transformer.transform(pkts);
+						times.transform[i].recordSince(start);
+					}
+					else {
+						pkts = transformer.transform(pkts);
+					}
+				}
 			}
 			return pkts;
 		}
+
+		/**
+		 * Gets the {@link EngineTimes} of a specific engine chain, replacing {@link #engineTimes} if the
+		 * engine chain has changed since it was last initialized.
+		 *
+		 * @param engineChain the current engine chain
+		 * @return the <tt>EngineTimes</tt> of <tt>engineChain</tt>
+		 */
+		private EngineTimes getEngineTimes(TransformEngine[] engineChain)
+		{
+			EngineTimes times = engineTimes;
+			if (times == null || times.engineChain != engineChain) {
+				times = new EngineTimes(engineChain, rtp);
+				engineTimes = times;
+			}
+			return times;
+		}
+	}
+
+	/**
+	 * The {@link MediaMetrics} histograms, in nanoseconds, of the time spent in the
+	 * <tt>PacketTransformer</tt>s of the engines of an engine chain, indexed as the engine chain. The
+	 * histograms are named after the class of the engine so that the times are aggregated over
+	 * all the streams.
+	 */
+	private static class EngineTimes
+	{
+		/**
+		 * The engine chain these histograms were initialized for.
+		 */
+		final TransformEngine[] engineChain;
+
+		/**
+		 * The histograms of the time spent in transform, indexed as {@link #engineChain}.
+		 */
+		final Histogram[] transform;
+
+		/**
+		 * The histograms of the time spent in reverseTransform, indexed as {@link #engineChain}.
+		 */
+		final Histogram[] reverseTransform;
+
+		EngineTimes(TransformEngine[] engineChain, boolean rtp)
+		{
+			this.engineChain = engineChain;
+			transform = new Histogram[engineChain.length];
+			reverseTransform = new Histogram[engineChain.length];
+
+			MediaMetrics metrics = MediaMetrics.getInstance();
+			String type = rtp ? ".rtp" : ".rtcp";
+			for (int i = 0; i < engineChain.length; i++) {
+				Class<?> clazz = engineChain[i].getClass();
+				String prefix = "transform." + (clazz.isAnonymousClass() ? clazz.getName() : clazz.getSimpleName()) + type;
+
+				transform[i] = metrics.histogram(prefix + ".transform_ns");
+				reverseTransform[i] = metrics.histogram(prefix + ".reverse_ns");
+			}
+		}
 	}
 }
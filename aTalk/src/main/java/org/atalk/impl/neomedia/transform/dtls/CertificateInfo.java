@@ -16,7 +16,9 @@
 package org.atalk.impl.neomedia.transform.dtls;
 
 import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.params.ECKeyParameters;
 import org.bouncycastle.tls.Certificate;
+import org.bouncycastle.tls.SignatureAlgorithm;
 
 /**
  * Bundles information such as key pair, hash function, fingerprint, etc. about
@@ -96,4 +98,16 @@ class CertificateInfo
     {
         return keyPair;
     }
+
+    /**
+     * Gets the TLS {@link SignatureAlgorithm} which the private key of {@link #certificate} signs with.
+     *
+     * @return {@link SignatureAlgorithm#ecdsa} for an elliptic curve key pair; otherwise,
+     * {@link SignatureAlgorithm#rsa}
+     */
+    public short getSignatureAlgorithm()
+    {
+        return (keyPair.getPrivate() instanceof ECKeyParameters)
+                ? SignatureAlgorithm.ecdsa : SignatureAlgorithm.rsa;
+    }
 }
@@ -7,10 +7,13 @@ package org.atalk.impl.neomedia.transform.dtls;
 
 import android.text.TextUtils;
 
+import net.java.sip.communicator.service.credentialsstorage.CredentialsStorageService;
+
 import org.atalk.android.R;
 import org.atalk.android.aTalkApp;
 import org.atalk.android.plugin.timberlog.TimberLog;
 import org.atalk.impl.neomedia.AbstractRTPConnector;
+import org.atalk.impl.neomedia.NeomediaActivator;
 import org.atalk.service.libjitsi.LibJitsi;
 import org.atalk.service.neomedia.AbstractSrtpControl;
 import org.atalk.service.neomedia.DtlsControl;
@@ -19,6 +22,7 @@ import org.atalk.service.neomedia.SrtpControlType;
 import org.atalk.service.neomedia.event.SrtpListener;
 import org.atalk.util.ConfigUtils;
 import org.atalk.util.MediaType;
+import org.atalk.util.concurrent.ExecutorFactory;
 import org.bouncycastle.asn1.ASN1Encoding;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x500.X500NameBuilder;
@@ -33,7 +37,11 @@ import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
 import org.bouncycastle.crypto.params.ECDomainParameters;
 import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
 import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.bouncycastle.crypto.util.PrivateKeyFactory;
+import org.bouncycastle.crypto.util.PrivateKeyInfoFactory;
+import org.bouncycastle.crypto.util.PublicKeyFactory;
 import org.bouncycastle.crypto.util.SubjectPublicKeyInfoFactory;
 import org.bouncycastle.jce.ECNamedCurveTable;
 import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
@@ -46,10 +54,12 @@ import org.bouncycastle.operator.bc.BcRSAContentSignerBuilder;
 import org.bouncycastle.tls.AlertDescription;
 import org.bouncycastle.tls.AlertLevel;
 import org.bouncycastle.tls.SRTPProtectionProfile;
+import org.bouncycastle.tls.SignatureAlgorithm;
 import org.bouncycastle.tls.TlsPeer;
 import org.bouncycastle.tls.crypto.TlsCertificate;
 import org.bouncycastle.tls.crypto.impl.bc.BcTlsCertificate;
 import org.bouncycastle.tls.crypto.impl.bc.BcTlsCrypto;
+import org.bouncycastle.util.encoders.Base64;
 
 import java.io.IOException;
 import java.math.BigInteger;
@@ -58,6 +68,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
@@ -92,10 +105,22 @@ public class DtlsControlImpl extends AbstractSrtpControl<DtlsTransformEngine> im
     /**
      * The name of the property which specifies the signature algorithm used
      * during certificate creation. When a certificate is created and this
-     * property is not set, a default value of "SHA256withRSA" will be used.
+     * property is not set, a default value of "SHA256withECDSA" will be used.
      */
     public static final String PROP_SIGNATURE_ALGORITHM = "neomedia.transform.dtls.SIGNATURE_ALGORITHM";
 
+    /**
+     * The default signature algorithm of the generated certificate: ECDSA over the P-256 curve, whose
+     * key pair is generated in milliseconds instead of the hundreds of milliseconds of a 2048-bit RSA key.
+     */
+    public static final String DEFAULT_SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    /**
+     * The account UUID under which the certificate and its private key are persisted (encrypted)
+     * in the <code>CredentialsStorageService</code>.
+     */
+    private static final String CERTIFICATE_CREDENTIALS_UUID = "neomedia.transform.dtls.CERTIFICATE";
+
     /**
      * The name of the property to specify RSA Key length.
      */
@@ -188,6 +213,22 @@ public class DtlsControlImpl extends AbstractSrtpControl<DtlsTransformEngine> im
      */
     private static CertificateInfo certificateInfoCache;
 
+    /**
+     * The executor on which the certificate is prepared and rotated so that call setup does not wait
+     * for the key generation.
+     */
+    private static ScheduledExecutorService certificateExecutor;
+
+    /**
+     * The scheduled preparation or rotation of {@link #certificateInfoCache}, if any.
+     */
+    private static ScheduledFuture<?> certificateTask;
+
+    /**
+     * The timestamp of the <code>CertificateInfo</code> last persisted in the <code>CredentialsStorageService</code>.
+     */
+    private static long storedCertificateTimestamp = -1;
+
     static {
         // Set configurable options using ConfigurationService.
 
@@ -334,6 +375,20 @@ public class DtlsControlImpl extends AbstractSrtpControl<DtlsTransformEngine> im
         AsymmetricCipherKeyPair keyPair = generateKeyPair();
         Certificate x509Certificate = generateX509Certificate(generateCN(), keyPair);
 
+        return createCertificateInfo(keyPair, x509Certificate, System.currentTimeMillis());
+    }
+
+    /**
+     * Bundles a key pair and its self-signed certificate with the fingerprint of the certificate.
+     *
+     * @param keyPair the pair of private and public keys of <code>x509Certificate</code>
+     * @param x509Certificate the self-signed certificate
+     * @param timestamp the time (in milliseconds of system time) at which <code>x509Certificate</code> was generated
+     * @return CertificateInfo the certificate, its key pair, hash function, and fingerprint
+     */
+    private static CertificateInfo createCertificateInfo(AsymmetricCipherKeyPair keyPair,
+            Certificate x509Certificate, long timestamp)
+    {
         BcTlsCertificate tlsCertificate = new BcTlsCertificate(new BcTlsCrypto(new SecureRandom()), x509Certificate);
         org.bouncycastle.tls.Certificate certificate
                 = new org.bouncycastle.tls.Certificate(new TlsCertificate[]{tlsCertificate});
@@ -341,7 +396,6 @@ public class DtlsControlImpl extends AbstractSrtpControl<DtlsTransformEngine> im
         String localFingerprintHashFunction = findHashFunction(x509Certificate);
         String localFingerprint = computeFingerprint(x509Certificate, localFingerprintHashFunction);
 
-        long timestamp = System.currentTimeMillis();
         return new CertificateInfo(keyPair, certificate, localFingerprintHashFunction, localFingerprint, timestamp);
     }
 
@@ -372,16 +426,27 @@ public class DtlsControlImpl extends AbstractSrtpControl<DtlsTransformEngine> im
     }
 
     /**
-     * Return a pair of RSA private and public keys.
+     * Gets the signature algorithm of the certificates to be generated.
+     *
+     * @return the value of {@link #PROP_SIGNATURE_ALGORITHM}, or {@link #DEFAULT_SIGNATURE_ALGORITHM} if not set
+     */
+    private static String getSignatureAlgorithm()
+    {
+        // The signature algorithm of the generated certificate defaults to SHA256withECDSA.
+        // However, allow the overriding of the default via the ConfigurationService.
+        return ConfigUtils.getString(
+                LibJitsi.getConfigurationService(), PROP_SIGNATURE_ALGORITHM, DEFAULT_SIGNATURE_ALGORITHM);
+    }
+
+    /**
+     * Return a pair of private and public keys, of the ECDSA P-256 or RSA type of the configured
+     * signature algorithm.
      *
      * @return a pair of private and public keys
      */
     private static AsymmetricCipherKeyPair generateKeyPair()
     {
-        // The signature algorithm of the generated certificate defaults to SHA256.
-        // However, allow the overriding of the default via the ConfigurationService.
-        String signatureAlgorithm = ConfigUtils.getString(
-                LibJitsi.getConfigurationService(), PROP_SIGNATURE_ALGORITHM, "SHA256withRSA");
+        String signatureAlgorithm = getSignatureAlgorithm();
 
         if (signatureAlgorithm.toUpperCase(Locale.ROOT).endsWith("RSA")) {
             RSAKeyPairGenerator generator = new RSAKeyPairGenerator();
@@ -412,10 +477,7 @@ public class DtlsControlImpl extends AbstractSrtpControl<DtlsTransformEngine> im
      */
     private static Certificate generateX509Certificate(X500Name subject, AsymmetricCipherKeyPair keyPair)
     {
-        // The signature algorithm of the generated certificate defaults to SHA256.
-        // However, allow the overriding of the default via the ConfigurationService.
-        String signatureAlgorithm = ConfigUtils.getString(
-                LibJitsi.getConfigurationService(), PROP_SIGNATURE_ALGORITHM, "SHA256withRSA");
+        String signatureAlgorithm = getSignatureAlgorithm();
 
         Timber.d("Signature algorithm: %s", signatureAlgorithm);
         try {
@@ -450,6 +512,182 @@ public class DtlsControlImpl extends AbstractSrtpControl<DtlsTransformEngine> im
         }
     }
 
+    /**
+     * Determines whether a specific <code>CertificateInfo</code> is due for rotation i.e. has outlived
+     * {@link #CERT_CACHE_EXPIRE_TIME} or no longer matches the configured signature algorithm.
+     *
+     * @param certificateInfo the <code>CertificateInfo</code> to check
+     * @param now the current time in milliseconds of system time
+     * @return <code>true</code> if a new certificate is to be generated to replace <code>certificateInfo</code>
+     */
+    private static boolean isExpired(CertificateInfo certificateInfo, long now)
+    {
+        boolean ecdsa = getSignatureAlgorithm().toUpperCase(Locale.ROOT).endsWith("ECDSA");
+        return certificateInfo.timestamp + CERT_CACHE_EXPIRE_TIME < now
+                || certificateInfo.timestamp > now
+                || ecdsa != (certificateInfo.getSignatureAlgorithm() == SignatureAlgorithm.ecdsa);
+    }
+
+    /**
+     * Determines whether a specific <code>CertificateInfo</code> may still be used for a new session,
+     * even when due for rotation: its certificate stays valid for at least another day.
+     *
+     * @param certificateInfo the <code>CertificateInfo</code> to check
+     * @param now the current time in milliseconds of system time
+     * @return <code>true</code> if <code>certificateInfo</code> may be used while its replacement is generated
+     */
+    private static boolean isUsable(CertificateInfo certificateInfo, long now)
+    {
+        // The certificate is valid till ONE_DAY * 6 past the cache expiry; see generateX509Certificate().
+        return certificateInfo.timestamp <= now
+                && now < certificateInfo.timestamp + CERT_CACHE_EXPIRE_TIME + ONE_DAY * 5;
+    }
+
+    /**
+     * Prepares the certificate of the local endpoint on an idle background thread, loading it from the
+     * <code>CredentialsStorageService</code> or generating (and persisting) a new one, so that the first
+     * <code>DtlsControlImpl</code> after a start does not block call setup on the key generation. The
+     * certificate is then rotated in the background every {@link #CERT_CACHE_EXPIRE_TIME}.
+     */
+    public static void prepareCertificateInfo()
+    {
+        scheduleCertificateTask(0);
+    }
+
+    /**
+     * Schedules {@link #refreshCertificateInfo()} after a specific delay, unless it is already scheduled
+     * to run sooner.
+     *
+     * @param delay the delay in milliseconds
+     */
+    private static synchronized void scheduleCertificateTask(long delay)
+    {
+        if (certificateTask != null && !certificateTask.isDone()) {
+            if (certificateTask.getDelay(TimeUnit.MILLISECONDS) <= delay)
+                return;
+            certificateTask.cancel(false);
+        }
+        if (certificateExecutor == null) {
+            certificateExecutor = ExecutorFactory.createSingleThreadScheduledExecutor(
+                    "dtls-certificate-", 60, TimeUnit.SECONDS);
+        }
+        certificateTask = certificateExecutor.schedule(DtlsControlImpl::refreshCertificateInfo,
+                Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes sure that {@link #certificateInfoCache} holds a certificate which is not due for rotation,
+     * persists it and schedules its rotation. Runs on {@link #certificateExecutor}.
+     */
+    private static void refreshCertificateInfo()
+    {
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        synchronized (DtlsControlImpl.class) {
+            // This run is no longer pending; let the rescheduling below queue the next rotation.
+            certificateTask = null;
+        }
+        try {
+            CertificateInfo certificateInfo;
+            synchronized (DtlsControlImpl.class) {
+                certificateInfo = certificateInfoCache;
+            }
+            if (certificateInfo == null)
+                certificateInfo = loadCertificateInfo();
+
+            if (certificateInfo == null || isExpired(certificateInfo, System.currentTimeMillis())) {
+                certificateInfo = generateCertificateInfo();
+                Timber.d("Generated DTLS certificate: %s", certificateInfo.localFingerprint);
+            }
+            synchronized (DtlsControlImpl.class) {
+                // A DtlsControlImpl may have generated its own meanwhile; keep the newest.
+                if (certificateInfoCache == null || certificateInfoCache.timestamp < certificateInfo.timestamp)
+                    certificateInfoCache = certificateInfo;
+                else
+                    certificateInfo = certificateInfoCache;
+            }
+            if (certificateInfo.timestamp != storedCertificateTimestamp)
+                storeCertificateInfo(certificateInfo);
+
+            scheduleCertificateTask(certificateInfo.timestamp + CERT_CACHE_EXPIRE_TIME - System.currentTimeMillis());
+        } catch (Throwable t) {
+            if (t instanceof ThreadDeath)
+                throw (ThreadDeath) t;
+            Timber.e(t, "Failed to prepare the DTLS certificate");
+        }
+    }
+
+    /**
+     * Gets the <code>CredentialsStorageService</code> in which the certificate is persisted. A master
+     * password protected storage is not used since accessing it would prompt the user from a background thread.
+     *
+     * @return the <code>CredentialsStorageService</code> to use or <code>null</code> if none is available
+     */
+    private static CredentialsStorageService getCredentialsStorage()
+    {
+        CredentialsStorageService credentialsStorage = NeomediaActivator.getCredentialsStorageService();
+        return ((credentialsStorage == null) || credentialsStorage.isUsingMasterPassword())
+                ? null : credentialsStorage;
+    }
+
+    /**
+     * Loads the certificate persisted by {@link #storeCertificateInfo(CertificateInfo)}.
+     *
+     * @return the persisted <code>CertificateInfo</code> or <code>null</code> if there is none
+     */
+    private static CertificateInfo loadCertificateInfo()
+    {
+        CredentialsStorageService credentialsStorage = getCredentialsStorage();
+        if ((credentialsStorage == null) || !credentialsStorage.isStoredEncrypted(CERTIFICATE_CREDENTIALS_UUID))
+            return null;
+
+        String stored = credentialsStorage.loadPassword(CERTIFICATE_CREDENTIALS_UUID);
+        if (TextUtils.isEmpty(stored))
+            return null;
+
+        try {
+            // timestamp:privateKeyInfo:certificate with the DER encodings in Base64.
+            String[] fields = stored.split(":");
+            long timestamp = Long.parseLong(fields[0]);
+            AsymmetricKeyParameter privateKey = PrivateKeyFactory.createKey(Base64.decode(fields[1]));
+            Certificate x509Certificate = Certificate.getInstance(Base64.decode(fields[2]));
+            AsymmetricKeyParameter publicKey = PublicKeyFactory.createKey(x509Certificate.getSubjectPublicKeyInfo());
+
+            storedCertificateTimestamp = timestamp;
+            return createCertificateInfo(new AsymmetricCipherKeyPair(publicKey, privateKey), x509Certificate, timestamp);
+        } catch (Exception e) {
+            Timber.w(e, "Discarding unreadable stored DTLS certificate");
+            credentialsStorage.removePassword(CERTIFICATE_CREDENTIALS_UUID);
+            return null;
+        }
+    }
+
+    /**
+     * Persists a certificate and its private key encrypted in the <code>CredentialsStorageService</code>
+     * so that it survives restarts of the application within {@link #CERT_CACHE_EXPIRE_TIME}.
+     *
+     * @param certificateInfo the <code>CertificateInfo</code> to persist
+     */
+    private static void storeCertificateInfo(CertificateInfo certificateInfo)
+    {
+        CredentialsStorageService credentialsStorage = getCredentialsStorage();
+        if (credentialsStorage == null)
+            return;
+
+        try {
+            byte[] privateKeyInfo = PrivateKeyInfoFactory.createPrivateKeyInfo(
+                    certificateInfo.getKeyPair().getPrivate()).getEncoded(ASN1Encoding.DER);
+            byte[] x509Certificate = certificateInfo.getCertificate().getCertificateAt(0).getEncoded();
+
+            String stored = certificateInfo.timestamp
+                    + ":" + Base64.toBase64String(privateKeyInfo)
+                    + ":" + Base64.toBase64String(x509Certificate);
+            if (credentialsStorage.storePassword(CERTIFICATE_CREDENTIALS_UUID, stored))
+                storedCertificateTimestamp = certificateInfo.timestamp;
+        } catch (IOException e) {
+            Timber.w(e, "Failed to store DTLS certificate");
+        }
+    }
+
     /**
      * Gets the <code>String</code> representation of a fingerprint specified in the form of an
      * array of <code>byte</code>s in accord with RFC 4572.
@@ -523,13 +761,19 @@ public class DtlsControlImpl extends AbstractSrtpControl<DtlsTransformEngine> im
         // The methods generateKeyPair(), generateX509Certificate(), findHashFunction(), and/or
         // computeFingerprint() may be too CPU intensive to invoke for each new DtlsControlImpl
         // instance. That's why we've decided to reuse their return values within a certain time
-        // frame. Attempt to retrieve from the cache.
+        // frame. Attempt to retrieve from the cache, which prepareCertificateInfo() fills and
+        // rotates in the background.
+        long now = System.currentTimeMillis();
         synchronized (DtlsControlImpl.class) {
             certificateInfo = certificateInfoCache;
-            if (certificateInfo == null
-                    || certificateInfo.timestamp + CERT_CACHE_EXPIRE_TIME < System.currentTimeMillis()) {
-                // The cache doesn't exist yet or has outlived its lifetime. Rebuild the cache.
+            if (certificateInfo == null || !isUsable(certificateInfo, now)) {
+                // The cache doesn't exist yet or is about to become invalid. Rebuild the cache.
                 certificateInfoCache = certificateInfo = generateCertificateInfo();
+                scheduleCertificateTask(0);
+            }
+            else if (isExpired(certificateInfo, now)) {
+                // Keep using the cache while its replacement is generated in the background.
+                scheduleCertificateTask(0);
             }
         }
         this.certificateInfo = certificateInfo;
@@ -691,6 +935,15 @@ public class DtlsControlImpl extends AbstractSrtpControl<DtlsTransformEngine> im
         properties.put(Properties.RTCPMUX_PNAME, rtcpmux);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBundleOwner(DtlsControl owner)
+    {
+        properties.put(Properties.BUNDLE_OWNER_PNAME, (owner == this) ? null : owner);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -21,6 +21,7 @@ import org.atalk.service.neomedia.DtlsControl;
 import org.atalk.service.neomedia.RawPacket;
 import org.atalk.util.ConfigUtils;
 import org.atalk.util.MediaType;
+import org.atalk.util.concurrent.ExecutorFactory;
 import org.bouncycastle.tls.AlertDescription;
 import org.bouncycastle.tls.AlertLevel;
 import org.bouncycastle.tls.ContentType;
@@ -53,6 +54,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ExecutorService;
 
 import timber.log.Timber;
 
@@ -121,6 +123,14 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
      */
     private static final int TRANSFORM_QUEUE_CAPACITY = RTPConnectorOutputStream.PACKET_QUEUE_CAPACITY;
 
+    /**
+     * The pool of threads shared by all instances to establish their DTLS connections. The handshake
+     * blocks on the network for its whole duration, so it does not belong on the <code>TimerWheel</code>
+     * workers; pooling saves the start of a new thread per component per call.
+     */
+    private static final ExecutorService connectExecutor
+            = ExecutorFactory.createCachedThreadPool("DtlsPacketTransformer-connect-");
+
     static {
         ConfigurationService cfg = LibJitsi.getConfigurationService();
         DROP_UNENCRYPTED_PKTS = ConfigUtils.getBoolean(cfg, DROP_UNENCRYPTED_PKTS_PNAME, false);
@@ -188,9 +198,9 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
     private AbstractRTPConnector connector;
 
     /**
-     * The background <code>Thread</code> which initializes {@link #mDtlsTransport}.
+     * The background task which initializes {@link #mDtlsTransport}.
      */
-    private Thread connectThread;
+    private ConnectTask connectTask;
 
     /**
      * The <code>DatagramTransport</code> implementation which adapts {@link #connector} and this
@@ -223,6 +233,15 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
      */
     private boolean rtcpmux;
 
+    /**
+     * The <code>DtlsControlImpl</code> which owns the transport of the BUNDLE group of the media stream of this
+     * instance, if not the <code>DtlsControlImpl</code> of this instance.
+     * <p>
+     * If set, this instance will not establish a DTLS session on its own, but rather reuse the one established
+     * by the RTP transformer of the owner to initialize the SRTP transformer.
+     */
+    private DtlsControlImpl bundleOwner;
+
     /**
      * The {@code SRTPTransformer} (to be) used by this instance.
      */
@@ -304,6 +323,16 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
         }
     }
 
+    /**
+     * Determines whether the current thread runs the current {@link #connectTask}.
+     *
+     * @return <code>true</code> if the current thread runs {@link #connectTask}; otherwise, <code>false</code>
+     */
+    private boolean isConnectThread()
+    {
+        return (connectTask != null) && Thread.currentThread().equals(connectTask.thread);
+    }
+
     /**
      * Determines whether {@link #runInConnectThread(DTLSProtocol, TlsPeer, DatagramTransport)} is
      * to try to establish a DTLS connection.
@@ -331,7 +360,7 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
                     if (interrupted)
                         currentThread.interrupt();
                 }
-                return currentThread.equals(this.connectThread)
+                return isConnectThread()
                         && datagramTransport.equals(this.datagramTransport);
             }
         }
@@ -374,6 +403,9 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
         if (rtcpmux && DtlsTransformEngine.COMPONENT_RTCP == componentID)
             return initializeSRTCPTransformerFromRtp();
 
+        if (bundleOwner != null)
+            return initializeSRTPTransformerFromBundleOwner();
+
         // XXX It is our explicit policy to rely on the SrtpListener to notify the user that
         // the session is not secure. Unfortunately,
         // (1) the SrtpListener is not supported by this DTLS SrtpControl implementation and
@@ -386,7 +418,7 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
                 if (srtpTransformer != null)
                     break; // _srtpTransformer is initialized
 
-                if (connectThread == null) {
+                if (connectTask == null) {
                     // Though _srtpTransformer is NOT initialized, there is no
                     // point in waiting because there is no one to initialize it.
                     break;
@@ -440,7 +472,7 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
 
             if (alertDescription == AlertDescription.unexpected_message) {
                 msg += " Received fatal unexpected message.";
-                if ((i == 0) || !Thread.currentThread().equals(connectThread)
+                if ((i == 0) || !isConnectThread()
                         || (connector == null) || (mediaType == null)) {
                     msg += " Giving up after " + (CONNECT_TRIES - i) + " retries.";
                 }
@@ -483,6 +515,33 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
         return _srtpTransformer;
     }
 
+    /**
+     * Tries to initialize {@link #_srtpTransformer} by using the {@code DtlsPacketTransformer} for RTP of
+     * {@link #bundleOwner}, which establishes the DTLS session shared by the media streams of a BUNDLE group.
+     *
+     * @return the (possibly updated) value of {@link #_srtpTransformer}.
+     */
+    private SinglePacketTransformer initializeSRTPTransformerFromBundleOwner()
+    {
+        DtlsPacketTransformer ownerTransformer
+                = (DtlsPacketTransformer) bundleOwner.getTransformEngine().getRTPTransformer();
+
+        if (ownerTransformer != this) {
+            PacketTransformer srtpTransformer = ownerTransformer.getSRTPTransformer();
+
+            if (srtpTransformer instanceof SRTPTransformer) {
+                synchronized (this) {
+                    if (_srtpTransformer == null) {
+                        SRTPTransformer ownerSrtpTransformer = new SRTPTransformer((SRTPTransformer) srtpTransformer);
+                        setSrtpTransformer((DtlsTransformEngine.COMPONENT_RTCP == componentID)
+                                ? new SRTCPTransformer(ownerSrtpTransformer) : ownerSrtpTransformer);
+                    }
+                }
+            }
+        }
+        return _srtpTransformer;
+    }
+
     /**
      * Initializes a new <code>SRTPTransformer</code> instance with a specific (negotiated)
      * <code>SRTPProtectionProfile</code> and the keying material specified by a specific <code>TlsContext</code>.
@@ -738,6 +797,7 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
         // time to initialize the respective states.
         if (propertyName == null) {
             propertyChange(Properties.RTCPMUX_PNAME);
+            propertyChange(Properties.BUNDLE_OWNER_PNAME);
             propertyChange(Properties.MEDIA_TYPE_PNAME);
             propertyChange(Properties.CONNECTOR_PNAME);
         }
@@ -751,6 +811,9 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
             Object newValue = getProperties().get(propertyName);
             setRtcpmux((newValue == null) ? false : (Boolean) newValue);
         }
+        else if (Properties.BUNDLE_OWNER_PNAME.equals(propertyName)) {
+            bundleOwner = (DtlsControlImpl) getProperties().get(propertyName);
+        }
     }
 
     /**
@@ -804,6 +867,11 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
             Timber.w("Dropping a DTLS packet, because it was received on the RTCP channel while rtcpmux is in use.");
             return;
         }
+        if (bundleOwner != null) {
+            // The transport demultiplexes the DTLS packets of a BUNDLE group to the owner.
+            Timber.w("Dropping a DTLS packet, because it was received by a stream which shares the DTLS session of another.");
+            return;
+        }
 
         // First, make the input packet available for bouncycastle to read.
         synchronized (this) {
@@ -859,7 +927,7 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
     }
 
     /**
-     * Runs in {@link #connectThread} to initialize {@link #mDtlsTransport}.
+     * Runs in {@link #connectTask} to initialize {@link #mDtlsTransport}.
      *
      * @param dtlsProtocol server or client TLS protocol
      * @param tlsPeer TLS peer
@@ -914,7 +982,7 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
         }
 
         synchronized (this) {
-            if (Thread.currentThread().equals(this.connectThread)
+            if (isConnectThread()
                     && datagramTransport.equals(this.datagramTransport)) {
                 mDtlsTransport = dtlsTransport;
             }
@@ -1027,7 +1095,7 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
     private synchronized void start()
     {
         if (this.datagramTransport != null) {
-            if ((this.connectThread == null) && (mDtlsTransport == null)) {
+            if ((this.connectTask == null) && (mDtlsTransport == null)) {
                 Timber.w("%s has been started but has failed to establish the DTLS connection!",
                         getClass().getName());
             }
@@ -1041,6 +1109,14 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
              */
             return;
         }
+        if (bundleOwner != null) {
+            /*
+             * In the case of BUNDLE, only the owner of the transport creates a DTLS session.
+             * The SRTP context (srtpTransformer) will be initialized on demand using
+             * initializeSRTPTransformerFromBundleOwner()
+             */
+            return;
+        }
 
         AbstractRTPConnector connector = this.connector;
 
@@ -1065,36 +1141,19 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
         final DatagramTransportImpl datagramTransport = new DatagramTransportImpl(componentID);
         datagramTransport.setConnector(connector);
 
-        Thread connectThread = new Thread()
-        {
-            @Override
-            public void run()
-            {
-                try {
-                    runInConnectThread(dtlsProtocol, tlsPeer, datagramTransport);
-                } finally {
-                    if (Thread.currentThread().equals(DtlsPacketTransformer.this.connectThread)) {
-                        DtlsPacketTransformer.this.connectThread = null;
-                        getDtlsControl().secureOnOff(getSecureCommunicationStatus());
-                    }
-                }
-            }
-        };
-
-        connectThread.setDaemon(true);
-        connectThread.setName(DtlsPacketTransformer.class.getName() + ".connectThread");
+        ConnectTask connectTask = new ConnectTask(dtlsProtocol, tlsPeer, datagramTransport);
 
-        this.connectThread = connectThread;
+        this.connectTask = connectTask;
         this.datagramTransport = datagramTransport;
         boolean started = false;
 
         try {
-            connectThread.start();
+            connectExecutor.execute(connectTask);
             started = true;
         } finally {
             if (!started) {
-                if (connectThread.equals(this.connectThread))
-                    this.connectThread = null;
+                if (connectTask.equals(this.connectTask))
+                    this.connectTask = null;
                 if (datagramTransport.equals(this.datagramTransport))
                     this.datagramTransport = null;
             }
@@ -1108,8 +1167,8 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
     private synchronized void stop()
     {
         started = false;
-        if (connectThread != null)
-            connectThread = null;
+        if (connectTask != null)
+            connectTask = null;
         try {
             /*
              * The dtlsTransport and srtpTransformer SHOULD be closed, of course. The datagramTransport MUST be closed.
@@ -1448,4 +1507,48 @@ public class DtlsPacketTransformer implements PacketTransformer, PropertyChangeL
         // pass sp instead of context as securityParametersHandshake is clear on AbstractTlsContext#handshakeComplete
         return TlsUtils.PRF(securityParameters, tlsSecret, asciiLabel, seed, length).extract();
     }
+
+    /**
+     * The task which runs {@link #runInConnectThread(DTLSProtocol, TlsPeer, DatagramTransport)} on
+     * {@link #connectExecutor}.
+     */
+    private class ConnectTask implements Runnable
+    {
+        private final DTLSProtocol dtlsProtocol;
+
+        private final TlsPeer tlsPeer;
+
+        private final DatagramTransportImpl datagramTransport;
+
+        /**
+         * The pooled thread which runs this task, or <code>null</code> if it has not started yet.
+         */
+        private volatile Thread thread;
+
+        ConnectTask(DTLSProtocol dtlsProtocol, TlsPeer tlsPeer, DatagramTransportImpl datagramTransport)
+        {
+            this.dtlsProtocol = dtlsProtocol;
+            this.tlsPeer = tlsPeer;
+            this.datagramTransport = datagramTransport;
+        }
+
+        @Override
+        public void run()
+        {
+            thread = Thread.currentThread();
+            try {
+                runInConnectThread(dtlsProtocol, tlsPeer, datagramTransport);
+            } finally {
+                boolean current;
+                synchronized (DtlsPacketTransformer.this) {
+                    current = equals(connectTask);
+                    if (current)
+                        connectTask = null;
+                }
+                if (current)
+                    getDtlsControl().secureOnOff(getSecureCommunicationStatus());
+                thread = null;
+            }
+        }
+    }
 }
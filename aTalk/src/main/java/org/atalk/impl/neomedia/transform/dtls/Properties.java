@@ -37,6 +37,11 @@ class Properties extends PropertyChangeNotifier
      */
     public static final String CONNECTOR_PNAME = Properties.class.getName() + ".connector";
 
+    /**
+     * The <code>DtlsControlImpl</code> whose DTLS session is shared within a BUNDLE group, if not the one of these properties.
+     */
+    public static final String BUNDLE_OWNER_PNAME = Properties.class.getName() + ".bundleOwner";
+
     public static final String MEDIA_TYPE_PNAME = Properties.class.getName() + ".mediaType";
 
     /**
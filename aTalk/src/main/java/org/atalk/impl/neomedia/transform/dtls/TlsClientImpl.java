@@ -252,21 +252,24 @@ public class TlsClientImpl extends DefaultTlsClient
                 throws IOException
         {
             if (clientCredentials == null) {
+                CertificateInfo certInfo = getDtlsControl().getCertificateInfo();
+                short signatureAlgorithm = certInfo.getSignatureAlgorithm();
+                short certificateType = (signatureAlgorithm == SignatureAlgorithm.ecdsa)
+                        ? ClientCertificateType.ecdsa_sign : ClientCertificateType.rsa_sign;
+
                 short[] certificateTypes = certificateRequest.getCertificateTypes();
-                if (certificateTypes == null || !org.bouncycastle.util.Arrays.contains(certificateTypes, ClientCertificateType.rsa_sign)) {
+                if (certificateTypes == null || !org.bouncycastle.util.Arrays.contains(certificateTypes, certificateType)) {
                     return null;
                 }
 
                 TlsCrypto crypto = context.getCrypto();
                 TlsCryptoParameters cryptoParams = new TlsCryptoParameters(context);
 
-                CertificateInfo certInfo = getDtlsControl().getCertificateInfo();
                 AsymmetricKeyParameter privateKey = certInfo.getKeyPair().getPrivate();
                 Certificate certificate = certInfo.getCertificate();
 
-                // FIXME The signature and hash algorithms should be retrieved from the certificate.
                 SignatureAndHashAlgorithm signatureAndHashAlgorithm
-                        = new SignatureAndHashAlgorithm(HashAlgorithm.sha256, SignatureAlgorithm.rsa);
+                        = new SignatureAndHashAlgorithm(HashAlgorithm.sha256, signatureAlgorithm);
 
                 clientCredentials = new BcDefaultTlsCredentialedSigner(cryptoParams, (BcTlsCrypto) crypto,
                         privateKey, certificate, signatureAndHashAlgorithm);
@@ -47,6 +47,25 @@ public class TlsServerImpl extends DefaultTlsServer
      */
     private final DtlsPacketTransformer packetTransformer;
 
+    /**
+     * The cipher suites offered when the local certificate has an elliptic curve key pair, which
+     * <tt>DefaultTlsServer</tt> does not include in its defaults.
+     */
+    private static final int[] ECDSA_CIPHER_SUITES = new int[]{
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256,
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384,
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256,
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA384,
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256,
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_256_CBC_SHA,
+            CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA
+    };
+
+    /**
+     * @see DefaultTlsServer#getECDSASignerCredentials()
+     */
+    private TlsCredentialedSigner ecdsaSignerCredentials;
+
     /**
      * @see DefaultTlsServer#getRSAEncryptionCredentials()
      */
@@ -151,6 +170,46 @@ public class TlsServerImpl extends DefaultTlsServer
         return packetTransformer.getProperties();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Offers only the cipher suites which the key pair of the local certificate can authenticate:
+     * ECDHE_ECDSA for an elliptic curve certificate, else the RSA based defaults of <tt>DefaultTlsServer</tt>.
+     */
+    @Override
+    protected int[] getSupportedCipherSuites()
+    {
+        if (getDtlsControl().getCertificateInfo().getSignatureAlgorithm() == SignatureAlgorithm.ecdsa)
+            return TlsUtils.getSupportedCipherSuites(getCrypto(), ECDSA_CIPHER_SUITES);
+        return super.getSupportedCipherSuites();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Required by <tt>DefaultTlsServer</tt> for the ECDHE_ECDSA cipher suites selected when the local
+     * certificate has an elliptic curve key pair.
+     */
+    @Override
+    protected TlsCredentialedSigner getECDSASignerCredentials()
+    {
+        if (ecdsaSignerCredentials == null) {
+            TlsCrypto crypto = context.getCrypto();
+            TlsCryptoParameters cryptoParams = new TlsCryptoParameters(context);
+
+            CertificateInfo certInfo = getDtlsControl().getCertificateInfo();
+            AsymmetricKeyParameter privateKey = certInfo.getKeyPair().getPrivate();
+            Certificate certificate = certInfo.getCertificate();
+
+            SignatureAndHashAlgorithm signatureAndHashAlgorithm
+                    = new SignatureAndHashAlgorithm(HashAlgorithm.sha256, SignatureAlgorithm.ecdsa);
+
+            ecdsaSignerCredentials = new BcDefaultTlsCredentialedSigner(cryptoParams, (BcTlsCrypto) crypto,
+                    privateKey, certificate, signatureAndHashAlgorithm);
+        }
+        return ecdsaSignerCredentials;
+    }
+
     /**
      * {@inheritDoc}
      * <p>
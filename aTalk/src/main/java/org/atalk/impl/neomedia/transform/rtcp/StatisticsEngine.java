@@ -17,7 +17,6 @@ package org.atalk.impl.neomedia.transform.rtcp;
 
 import net.sf.fmj.media.rtp.BurstMetrics;
 import net.sf.fmj.media.rtp.RTCPCompoundPacket;
-import net.sf.fmj.media.rtp.RTCPFeedback;
 import net.sf.fmj.media.rtp.RTCPPacket;
 import net.sf.fmj.media.rtp.RTCPReceiverReport;
 import net.sf.fmj.media.rtp.RTCPReport;
@@ -37,6 +36,7 @@ import org.atalk.impl.neomedia.device.MediaDeviceSession;
 import org.atalk.impl.neomedia.rtcp.NACKPacket;
 import org.atalk.impl.neomedia.rtcp.RTCPFBPacket;
 import org.atalk.impl.neomedia.rtcp.RTCPPacketParserEx;
+import org.atalk.impl.neomedia.rtcp.RTCPPacketView;
 import org.atalk.impl.neomedia.rtcp.RTCPREMBPacket;
 import org.atalk.impl.neomedia.rtcp.RTCPTCCPacket;
 import org.atalk.impl.neomedia.stats.MediaStreamStats2Impl;
@@ -56,14 +56,11 @@ import org.atalk.util.RTCPUtils;
 import org.atalk.util.RTPUtils;
 import org.atalk.util.MediaType;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import javax.media.control.JitterBufferControl;
 import javax.media.rtp.ReceiveStream;
@@ -134,20 +131,33 @@ public class StatisticsEngine extends SinglePacketTransformer implements Transfo
     private long minInterArrivalJitter = -1;
 
     /**
-     * The number of RTCP sender reports (SR) and/or receiver reports (RR) sent. Mapped per ssrc.
+     * The number of RTCP sender reports (SR) and/or receiver reports (RR) sent. Only written by the
+     * sending thread.
      */
-    private final Map<Long, Long> numberOfRTCPReportsMap = new HashMap<>();
+    private volatile long numberOfRTCPReports = 0;
 
     /**
-     * The sum of the jitter values we have reported in RTCP reports, in RTP timestamp units.
+     * The sum of the jitter values we have reported in RTCP reports, in RTP timestamp units. Only
+     * written by the sending thread.
      */
-    private final Map<Long, Long> jitterSumMap = new HashMap<>();
+    private volatile long jitterSum = 0;
 
     /**
-     * The {@link RTCPPacketParserEx} which this instance will use to parse RTCP packets.
+     * The {@link RTCPPacketParserEx} which this instance will use to parse the individual RTCP packets
+     * which have to be handed over as <code>RTCPPacket</code> instances.
      */
     private final RTCPPacketParserEx parser = new RTCPPacketParserEx();
 
+    /**
+     * The view through which incoming compound RTCP packets are validated and inspected.
+     */
+    private final RTCPPacketView receivedView = new RTCPPacketView();
+
+    /**
+     * The view through which outgoing compound RTCP packets are inspected.
+     */
+    private final RTCPPacketView sentView = new RTCPPacketView();
+
     /**
      * The <code>PacketTransformer</code> instance to use for RTP.
      */
@@ -641,8 +651,8 @@ public class StatisticsEngine extends SinglePacketTransformer implements Transfo
      */
     public double getAvgInterArrivalJitter()
     {
-        long numberOfRTCPReports = getCumulativeValue(numberOfRTCPReportsMap);
-        long jitterSum = getCumulativeValue(jitterSumMap);
+        long numberOfRTCPReports = this.numberOfRTCPReports;
+        long jitterSum = this.jitterSum;
 
         return numberOfRTCPReports == 0 ? 0 : ((double) jitterSum) / numberOfRTCPReports;
     }
@@ -704,17 +714,43 @@ public class StatisticsEngine extends SinglePacketTransformer implements Transfo
     }
 
     /**
-     * Initializes a new SR or RR <code>RTCPReport</code> instance from a specific <code>RawPacket</code>.
+     * Parses the single RTCP packet a specific view is positioned at into an <code>RTCPPacket</code>
+     * instance, for the consumers which need one.
      *
-     * @param pkt the <code>RawPacket</code> to parse into a new SR or RR <code>RTCPReport</code> instance
-     * @return a new SR or RR <code>RTCPReport</code> instance initialized from the specified <code>pkt</code>
-     * @throws IOException if an I/O error occurs while parsing the specified
-     * <code>pkt</code> into a new SR or RR <code>RTCPReport</code> instance
+     * @param view the view positioned at the RTCP packet to parse
+     * @return the parsed <code>RTCPPacket</code>, or <code>null</code> if the packet could not be parsed
      */
-    private RTCPReport parseRTCPReport(RawPacket pkt)
-            throws IOException
+    private RTCPPacket parseRTCPPacket(RTCPPacketView view)
     {
-        return parseRTCPReport(pkt.getRTCPPacketType(), pkt.getBuffer(), pkt.getOffset(), pkt.getLength());
+        RTCPCompoundPacket compound;
+        try {
+            compound = (RTCPCompoundPacket) parser.parse(view.getBuffer(), view.getOffset(), view.getLength());
+        } catch (BadFormatException | IllegalStateException e) {
+            // In some parsing failures, FMJ swallows the original
+            // IOException and throws a runtime IllegalStateException.
+            Timber.i("Failed to parse an incoming RTCP packet: %s", e.getMessage());
+            return null;
+        }
+        return (compound == null || compound.packets == null || compound.packets.length == 0)
+                ? null : compound.packets[0];
+    }
+
+    /**
+     * Checks that the compound RTCP packet a specific view has been reset to consists of one or more
+     * well formed RTCP packets, which exactly fill it.
+     *
+     * @param view the view reset to the compound RTCP packet to check
+     * @return <code>true</code> if the compound RTCP packet is well formed
+     */
+    private static boolean isValidCompound(RTCPPacketView view)
+    {
+        int count = 0;
+        while (view.next()) {
+            if (!view.isValid())
+                return false;
+            count++;
+        }
+        return count > 0 && !view.hasRemaining();
     }
 
     /**
@@ -731,23 +767,8 @@ public class StatisticsEngine extends SinglePacketTransformer implements Transfo
         if (RTCPUtils.isRtcp(pkt.getBuffer(), pkt.getOffset(), pkt.getLength())) {
             mediaStreamStats.rtcpPacketReceived(pkt.getRTCPSSRC(), pkt.getLength());
 
-            RTCPCompoundPacket compound;
-            Exception ex;
-            try {
-                compound = (RTCPCompoundPacket) parser.parse(pkt.getBuffer(), pkt.getOffset(), pkt.getLength());
-                ex = null;
-            } catch (BadFormatException | IllegalStateException e) {
-                // In some parsing failures, FMJ swallows the original
-                // IOException and throws a runtime IllegalStateException.
-                // Handle it as if parsing failed.
-                compound = null;
-                ex = e;
-            }
-
-            if (compound == null
-                    || compound.packets == null
-                    || compound.packets.length == 0) {
-                Timber.i("Failed to parse an incoming RTCP packet: %s", (ex == null ? "null" : ex.getMessage()));
+            if (!isValidCompound(receivedView.reset(pkt))) {
+                Timber.i("Dropping a malformed incoming RTCP packet.");
 
                 // Either this is an empty packet, or parsing failed. In any
                 // case, drop the packet to make sure we're not forwarding
@@ -757,7 +778,7 @@ public class StatisticsEngine extends SinglePacketTransformer implements Transfo
             }
 
             try {
-                updateReceivedMediaStreamStats(compound.packets);
+                updateReceivedMediaStreamStats(receivedView.reset(pkt));
             } catch (Throwable t) {
                 if (t instanceof ThreadDeath) {
                     throw (ThreadDeath) t;
@@ -771,40 +792,51 @@ public class StatisticsEngine extends SinglePacketTransformer implements Transfo
     }
 
     /**
-     * Processes the {@link RTCPPacket}s from {@code in} as received RTCP
-     * packets and updates the {@link MediaStreamStats}. Adds to {@code out} the
-     * ones which were not consumed and should be output from this instance.
+     * Processes the RTCP packets of a received compound RTCP packet and updates the
+     * {@link MediaStreamStats}. The packets are inspected in place; an SR, REMB, NACK or TCC packet is
+     * parsed only when there is an <code>RTCPPacketListener</code> for that kind of packet. The SR/RR
+     * <code>RTCPReport</code>s and the XRs, which <code>RTCPReports</code> keeps as the last reports
+     * received, are initialized straight from the received bytes.
      *
-     * @param in the input packets
+     * @param view the view reset to the received compound RTCP packet
      */
-    private void updateReceivedMediaStreamStats(RTCPPacket[] in)
+    private void updateReceivedMediaStreamStats(RTCPPacketView view)
     {
         MediaStreamStatsImpl streamStats = mediaStream.getMediaStreamStats();
 
-        for (RTCPPacket rtcp : in) {
-            switch (rtcp.type) {
+        while (view.next()) {
+            int type = view.getPacketType();
+            RTCPPacket rtcp;
+
+            switch (type) {
                 case RTCPFBPacket.PSFB:
-                    if (rtcp instanceof RTCPREMBPacket) {
-                        RTCPREMBPacket remb = (RTCPREMBPacket) rtcp;
-                        Timber.log(TimberLog.FINER, "remb_received,stream = %s bps = %s, dest = %s",
-                                mediaStream.hashCode(), remb.getBitrate(), Arrays.toString(remb.getDest()));
-                        streamStats.rembReceived(remb);
+                    if (view.isRemb() && streamStats.hasRTCPPacketListeners(MediaStreamStatsImpl.RTCP_REMB)) {
+                        rtcp = parseRTCPPacket(view);
+                        if (rtcp instanceof RTCPREMBPacket) {
+                            RTCPREMBPacket remb = (RTCPREMBPacket) rtcp;
+                            Timber.log(TimberLog.FINER, "remb_received,stream = %s bps = %s, dest = %s",
+                                    mediaStream.hashCode(), remb.getBitrate(), Arrays.toString(remb.getDest()));
+                            streamStats.rembReceived(remb);
+                        }
                     }
                     break;
 
                 case RTCPPacket.SR:
-                    if (rtcp instanceof RTCPSRPacket) {
-                        streamStats.srReceived((RTCPSRPacket) rtcp);
+                    if (streamStats.hasRTCPPacketListeners(MediaStreamStatsImpl.RTCP_SR)) {
+                        rtcp = parseRTCPPacket(view);
+                        if (rtcp instanceof RTCPSRPacket) {
+                            streamStats.srReceived((RTCPSRPacket) rtcp);
+                        }
+                    }
+                    else {
+                        streamStats.srReceived(view.getNtpTimestampMSW(), view.getNtpTimestampLSW());
                     }
                 case RTCPPacket.RR:
                     RTCPReport report;
                     try {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        rtcp.assemble(new DataOutputStream(baos));
-                        byte[] buf = baos.toByteArray();
-                        report = parseRTCPReport(rtcp.type, buf, 0, buf.length);
+                        report = parseRTCPReport(type, view.getBuffer(), view.getOffset(), view.getLength());
                     } catch (IOException ioe) {
-                        Timber.e(ioe, "Failed to assemble an RTCP report.");
+                        Timber.e(ioe, "Failed to parse an RTCP report.");
                         report = null;
                     }
                     if (report != null) {
@@ -813,21 +845,27 @@ public class StatisticsEngine extends SinglePacketTransformer implements Transfo
                     break;
 
                 case RTCPFBPacket.RTPFB:
-                    if (rtcp instanceof NACKPacket) {
+                    if (view.isNack() && streamStats.hasRTCPPacketListeners(MediaStreamStatsImpl.RTCP_NACK)) {
                         // NACKs are currently handled in RtxTransformer and do not
                         // reach the StatisticsEngine.
-                        NACKPacket nack = (NACKPacket) rtcp;
-                        streamStats.nackReceived(nack);
+                        rtcp = parseRTCPPacket(view);
+                        if (rtcp instanceof NACKPacket) {
+                            streamStats.nackReceived((NACKPacket) rtcp);
+                        }
                     }
-                    else if (rtcp instanceof RTCPTCCPacket) {
+                    else if (view.isTcc() && streamStats.hasRTCPPacketListeners(MediaStreamStatsImpl.RTCP_TCC)) {
                         /*
                          * Intuition: Packet is RTCP, wakeup RTCPPacketListeners which may include BWE workers
                          */
-                        streamStats.tccPacketReceived((RTCPTCCPacket) rtcp);
+                        rtcp = parseRTCPPacket(view);
+                        if (rtcp instanceof RTCPTCCPacket) {
+                            streamStats.tccPacketReceived((RTCPTCCPacket) rtcp);
+                        }
                     }
                     break;
 
                 case RTCPExtendedReport.XR:
+                    rtcp = parseRTCPPacket(view);
                     if (rtcp instanceof RTCPExtendedReport) {
                         streamStats.getRTCPReports().rtcpExtendedReportReceived((RTCPExtendedReport) rtcp);
                     }
@@ -906,112 +944,61 @@ public class StatisticsEngine extends SinglePacketTransformer implements Transfo
     private void updateSentMediaStreamStats(RawPacket pkt)
             throws Exception
     {
-        RTCPReport r = parseRTCPReport(pkt);
+        RTCPPacketView view = sentView.reset(pkt);
+        if (!view.next())
+            return;
 
-        if (r != null) {
-            mediaStream.getMediaStreamStats().getRTCPReports().rtcpReportSent(r);
+        int type = view.getPacketType();
+        if (type != RTCPPacket.SR && type != RTCPPacket.RR)
+            return;
 
-            List<?> feedbackReports = r.getFeedbackReports();
-            if (!feedbackReports.isEmpty()) {
-                RTCPFeedback feedback = (RTCPFeedback) feedbackReports.get(0);
-                long ssrc = feedback.getSSRC();
-                long jitter = feedback.getJitter();
+        RTCPReport r = parseRTCPReport(type, view.getBuffer(), view.getOffset(), view.getLength());
+        if (r == null)
+            return;
 
-                incrementSSRCCounter(numberOfRTCPReportsMap, ssrc, 1);
+        mediaStream.getMediaStreamStats().getRTCPReports().rtcpReportSent(r);
 
-                if (jitter < getMinInterArrivalJitter()
-                        || getMinInterArrivalJitter() == -1) {
-                    minInterArrivalJitter = jitter;
-                }
-                if (getMaxInterArrivalJitter() < jitter)
-                    maxInterArrivalJitter = jitter;
-
-                incrementSSRCCounter(jitterSumMap, ssrc, jitter);
-
-                if (TimberLog.isTraceEnable) {
-                    long numberOfRTCPReports = getMapValue(numberOfRTCPReportsMap, ssrc);
-                    // As sender reports are sent on every 5 seconds, print
-                    // every 4th packet, on every 20 seconds.
-                    if (numberOfRTCPReports % 4 == 1) {
-                        StringBuilder buff = new StringBuilder(RTP_STAT_PREFIX);
-                        String mediaTypeStr = (mediaType == null) ? "" : mediaType.toString();
-
-                        buff.append("Sending a report for ")
-                                .append(mediaTypeStr).append(" stream SSRC:")
-                                .append(ssrc).append(" [");
-                        // SR includes sender info, RR does not.
-                        if (r instanceof RTCPSenderReport) {
-                            RTCPSenderReport sr = (RTCPSenderReport) r;
-
-                            buff.append("packet count:")
-                                    .append(sr.getSenderPacketCount())
-                                    .append(", bytes:")
-                                    .append(sr.getSenderByteCount()).append(", ");
-                        }
-                        buff.append("inter-arrival jitter:").append(jitter)
-                                .append(", lost packets:")
-                                .append(feedback.getNumLost())
-                                .append(", time since previous report:")
-                                .append((int) (feedback.getDLSR() / 65.536))
-                                .append("ms]");
-                        Timber.log(TimberLog.FINER, "%s", buff);
-                    }
-                }
-            }
-        }
-    }
+        if (view.getCount() > 0 && view.isValid()) {
+            long ssrc = view.getReportSSRC(0);
+            long jitter = view.getJitter(0);
 
-    /**
-     * Computes the sum of the values of a specific {@code Map} with {@code Long} values.
-     *
-     * @param map the {@code Map} with {@code Long} values to sum up. Note that
-     * we synchronize on this object!
-     * @return the sum of the values of the specified {@code map}
-     */
-    private static long getCumulativeValue(Map<?, Long> map)
-    {
-        long cumulativeValue = 0;
+            long numberOfRTCPReports = ++this.numberOfRTCPReports;
 
-        synchronized (map) {
-            for (Long value : map.values()) {
-                if (value == null)
-                    continue;
-                cumulativeValue += value;
+            if (jitter < getMinInterArrivalJitter()
+                    || getMinInterArrivalJitter() == -1) {
+                minInterArrivalJitter = jitter;
+            }
+            if (getMaxInterArrivalJitter() < jitter)
+                maxInterArrivalJitter = jitter;
+
+            jitterSum += jitter;
+
+            if (TimberLog.isTraceEnable) {
+                // As sender reports are sent on every 5 seconds, print
+                // every 4th packet, on every 20 seconds.
+                if (numberOfRTCPReports % 4 == 1) {
+                    StringBuilder buff = new StringBuilder(RTP_STAT_PREFIX);
+                    String mediaTypeStr = (mediaType == null) ? "" : mediaType.toString();
+
+                    buff.append("Sending a report for ")
+                            .append(mediaTypeStr).append(" stream SSRC:")
+                            .append(ssrc).append(" [");
+                    // SR includes sender info, RR does not.
+                    if (type == RTCPPacket.SR) {
+                        buff.append("packet count:")
+                                .append(view.getSenderPacketCount())
+                                .append(", bytes:")
+                                .append(view.getSenderOctetCount()).append(", ");
+                    }
+                    buff.append("inter-arrival jitter:").append(jitter)
+                            .append(", lost packets:")
+                            .append(view.getCumulativeLost(0))
+                            .append(", time since previous report:")
+                            .append((int) (view.getDLSR(0) / 65.536))
+                            .append("ms]");
+                    Timber.log(TimberLog.FINER, "%s", buff);
+                }
             }
-        }
-        return cumulativeValue;
-    }
-
-    /**
-     * Utility method to return a value from a map and perform unboxing only if
-     * the result value is not null.
-     *
-     * @param map the map to get the value. Note that we synchronize on that object!
-     * @param ssrc the key
-     * @return the result value or 0 if nothing is found.
-     */
-    private static long getMapValue(Map<?, Long> map, long ssrc)
-    {
-        synchronized (map) {
-            // there can be no entry, or the value can be null
-            Long res = map.get(ssrc);
-            return res == null ? 0 : res;
-        }
-    }
-
-    /**
-     * Utility method to increment map value with specified step. If entry is missing add it.
-     *
-     * @param map the map holding the values. Note that we synchronize on that
-     * object!
-     * @param ssrc the key of the value to increment
-     * @param step increment step value
-     */
-    private static void incrementSSRCCounter(Map<Long, Long> map, long ssrc, long step)
-    {
-        synchronized (map) {
-            Long count = map.get(ssrc);
-            map.put(ssrc, (count == null) ? step : (count + step));
         }
     }
 
@@ -74,6 +74,19 @@ public class SRTPTransformer extends SinglePacketTransformer
         this.contexts = new HashMap<>();
     }
 
+    /**
+     * Constructs an <tt>SRTPTransformer</tt> with the keying material of a given <tt>SRTPTransformer</tt>, e.g.
+     * for a media stream which shares the DTLS session of another one in a BUNDLE group. The
+     * <tt>SrtpContextFactory</tt> instances are copied, so that either transformer may be closed first.
+     *
+     * @param srtpTransformer the <tt>SRTPTransformer</tt> whose keying material is to be used
+     */
+    public SRTPTransformer(SRTPTransformer srtpTransformer)
+    {
+        this(new SrtpContextFactory(srtpTransformer.forwardFactory),
+                new SrtpContextFactory(srtpTransformer.reverseFactory));
+    }
+
     /**
      * Sets a new key factory when key material has changed.
      *
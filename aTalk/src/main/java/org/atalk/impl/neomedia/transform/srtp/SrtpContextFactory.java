@@ -109,6 +109,17 @@ public class SrtpContextFactory
         this.srtcpPolicy = srtcpPolicy;
     }
 
+    /**
+     * Construct a SrtpTransformEngine with a copy of the key material and the policies of another one, so that
+     * either may be closed without affecting the other.
+     *
+     * @param factory the <tt>SrtpContextFactory</tt> to copy
+     */
+    public SrtpContextFactory(SrtpContextFactory factory)
+    {
+        this(factory.sender, factory.masterKey, factory.masterSalt, factory.srtpPolicy, factory.srtcpPolicy);
+    }
+
     /**
      * Close the transformer engine.
      *
@@ -19,14 +19,14 @@ import org.atalk.service.fileaccess.FileCategory;
 import org.atalk.service.libjitsi.LibJitsi;
 import org.atalk.service.neomedia.RawPacket;
 import org.atalk.service.neomedia.SrtpControl;
+import org.atalk.util.concurrent.TimerWheel;
 
 import java.io.File;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import gnu.java.zrtp.ZRtp;
 import gnu.java.zrtp.ZrtpCallback;
@@ -154,42 +154,29 @@ public class ZRTPTransformEngine extends SinglePacketTransformer implements Srtp
      * Very simple Timeout provider class.
      *
      * This very simple timeout provider can handle one timeout request at one time only. A second
-     * request would overwrite the first one and would lead to unexpected results.
+     * request replaces the first one. The timeouts run on the shared {@link TimerWheel} rather
+     * than on a thread of each engine.
      *
      * @author Werner Dittmann <Werner.Dittmann@t-online.de>
      */
-    private class TimeoutProvider extends Thread
+    private class TimeoutProvider
     {
         /**
-         * Constructs Timeout provider.
-         *
-         * @param name the name of the provider.
+         * The pending timeout, if any.
          */
-        public TimeoutProvider(String name)
-        {
-            super(name);
-        }
+        private TimerWheel.Timeout timeout = null;
 
         /**
-         * The delay to wait before timeout.
+         * The number of the last request; a timeout whose request has been superseded or
+         * cancelled in the meantime does not call {@link ZRTPTransformEngine#handleTimeout()}.
          */
-        private long nextDelay = 0;
+        private int request = 0;
 
         /**
-         * Whether to execute the timeout if delay expires.
-         */
-        private boolean newTask = false;
-
-        /**
-         * Whether thread is stopped.
+         * Whether the provider is stopped.
          */
         private boolean stop = false;
 
-        /**
-         * synchronizes delays and stop.
-         */
-        private final Object sync = new Object();
-
         /**
          * Request timeout after the specified delay.
          *
@@ -197,68 +184,49 @@ public class ZRTPTransformEngine extends SinglePacketTransformer implements Srtp
          */
         public synchronized void requestTimeout(long delay)
         {
-            synchronized (sync) {
-                nextDelay = delay;
-                newTask = true;
-                sync.notifyAll();
-            }
+            if (stop)
+                return;
+
+            if (timeout != null)
+                timeout.cancel();
+            final int thisRequest = ++request;
+            timeout = TimerWheel.getInstance().schedule(() -> expire(thisRequest), delay, TimeUnit.MILLISECONDS);
         }
 
         /**
-         * Stops the thread.
+         * Stops the provider.
          */
-        public void stopRun()
+        public synchronized void stopRun()
         {
-            synchronized (sync) {
-                stop = true;
-                sync.notifyAll();
-            }
+            stop = true;
+            cancelRequest();
         }
 
         /**
          * Cancels the last request.
          */
-        public void cancelRequest()
+        public synchronized void cancelRequest()
         {
-            synchronized (sync) {
-                newTask = false;
-                sync.notifyAll();
+            request++;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
             }
         }
 
         /**
-         * The running part of the thread.
+         * Runs on the <code>TimerWheel</code> when the timeout of a specific request expires.
+         *
+         * @param thisRequest the number of the request
          */
-        @Override
-        public void run()
+        private void expire(int thisRequest)
         {
-            while (!stop) {
-                synchronized (sync) {
-                    while (!newTask && !stop) {
-                        try {
-                            sync.wait();
-                        } catch (InterruptedException e) {
-                            // e.printStackTrace();
-                        }
-                    }
-                }
-                long currentTime = System.currentTimeMillis();
-                long endTime = currentTime + nextDelay;
-                synchronized (sync) {
-                    while ((currentTime < endTime) && newTask && !stop) {
-                        try {
-                            sync.wait(endTime - currentTime);
-                        } catch (InterruptedException e) {
-                            // e.printStackTrace();
-                        }
-                        currentTime = System.currentTimeMillis();
-                    }
-                }
-                if (newTask && !stop) {
-                    newTask = false;
-                    ZRTPTransformEngine.this.handleTimeout();
-                }
+            synchronized (this) {
+                if (stop || (thisRequest != request))
+                    return;
+                timeout = null;
             }
+            ZRTPTransformEngine.this.handleTimeout();
         }
     }
 
@@ -519,10 +487,7 @@ public class ZRTPTransformEngine extends SinglePacketTransformer implements Srtp
         zrtpEngine = new ZRtp(myZid, this, "", config, mitmMode);
 
         if (timeoutProvider == null) {
-            timeoutProvider = new TimeoutProvider("ZRTP");
-            // XXX Daemon only if timeoutProvider is a global singleton.
-            // timeoutProvider.setDaemon(true);
-            timeoutProvider.start();
+            timeoutProvider = new TimeoutProvider();
         }
         enableZrtp = autoEnable;
         return true;
@@ -536,14 +501,8 @@ public class ZRTPTransformEngine extends SinglePacketTransformer implements Srtp
         muted = startMuted;
         if (startMuted) {
             // make sure we don't mute for long time as secure communication may fail.
-            new Timer().schedule(new TimerTask()
-            {
-                @Override
-                public void run()
-                {
-                    ZRTPTransformEngine.this.muted = false;
-                }
-            }, 1500);
+            TimerWheel.getInstance().schedule(() -> ZRTPTransformEngine.this.muted = false,
+                    1500, TimeUnit.MILLISECONDS);
         }
     }
 
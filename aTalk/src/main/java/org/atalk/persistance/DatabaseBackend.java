@@ -67,7 +67,7 @@ public class DatabaseBackend extends SQLiteOpenHelper
      * Increment DATABASE_VERSION when there is a change in database records
      */
     public static final String DATABASE_NAME = "dbRecords.db";
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 6;
     private static DatabaseBackend instance = null;
     private ProtocolProviderService mProvider;
 
@@ -130,6 +130,15 @@ public class DatabaseBackend extends SQLiteOpenHelper
             + SQLiteOmemoStore.BARE_JID + ", " + SQLiteOmemoStore.DEVICE_ID
             + ") ON CONFLICT REPLACE);";
 
+    // Create entity caps and disco#info table
+    public static String CREATE_ENTITY_CAPS_STATEMENT = "CREATE TABLE "
+            + EntityCapsDatabase.TABLE_NAME + "("
+            + EntityCapsDatabase.STORE + " TEXT, "
+            + EntityCapsDatabase.NODE_VER + " TEXT, "
+            + EntityCapsDatabase.RESULT + " TEXT, UNIQUE("
+            + EntityCapsDatabase.STORE + ", " + EntityCapsDatabase.NODE_VER
+            + ") ON CONFLICT REPLACE);";
+
     private DatabaseBackend(Context context)
     {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -194,6 +203,7 @@ public class DatabaseBackend extends SQLiteOpenHelper
      * g. callHistory
      * f. recentMessages
      * i. Axolotl tables: identities, sessions, preKeys, signed_preKeys
+     * j. Entity caps and disco#info
      * <p>
      * # Initialize and initial data migration
      *
@@ -364,6 +374,9 @@ public class DatabaseBackend extends SQLiteOpenHelper
         db.execSQL(CREATE_IDENTITIES_STATEMENT);
         db.execSQL(CREATE_SESSIONS_STATEMENT);
 
+        // Entity caps and disco#info table
+        db.execSQL(CREATE_ENTITY_CAPS_STATEMENT);
+
         // Perform the first data migration to SQLite database
         initDatabase(db);
     }
@@ -1062,7 +1075,7 @@ public class DatabaseBackend extends SQLiteOpenHelper
     {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
-        values.put(SQLiteOmemoStore.LAST_MESSAGE_RX, date.getTime());
+        values.put(SQLiteOmemoStore.LAST_DEVICE_ID_PUBLISH, date.getTime());
 
         String[] selectionArgs = {device.getJid().toString(), Integer.toString(device.getDeviceId())};
 
@@ -1075,7 +1088,7 @@ public class DatabaseBackend extends SQLiteOpenHelper
         Cursor cursor = getIdentityKeyCursor(device, null);
         if (cursor.getCount() != 0) {
             cursor.moveToFirst();
-            Long ts = cursor.getLong(cursor.getColumnIndex(SQLiteOmemoStore.LAST_MESSAGE_RX));
+            Long ts = cursor.getLong(cursor.getColumnIndex(SQLiteOmemoStore.LAST_DEVICE_ID_PUBLISH));
             cursor.close();
             return (ts != null && ts > 0) ? new Date(ts) : null;
         }
@@ -1283,12 +1296,17 @@ public class DatabaseBackend extends SQLiteOpenHelper
     }
 
     public void storeSession(OmemoDevice omemoContact, SessionRecord session)
+    {
+        storeSession(omemoContact, session.serialize());
+    }
+
+    public void storeSession(OmemoDevice omemoContact, byte[] serializedSession)
     {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(SQLiteOmemoStore.BARE_JID, omemoContact.getJid().toString());
         values.put(SQLiteOmemoStore.DEVICE_ID, omemoContact.getDeviceId());
-        values.put(SQLiteOmemoStore.SESSION_KEY, Base64.encodeToString(session.serialize(), Base64.DEFAULT));
+        values.put(SQLiteOmemoStore.SESSION_KEY, Base64.encodeToString(serializedSession, Base64.DEFAULT));
         db.insert(SQLiteOmemoStore.SESSION_TABLE_NAME, null, values);
     }
 
@@ -17,33 +17,160 @@
 package org.atalk.persistance;
 
 import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
-import org.jivesoftware.smackx.caps.EntityCapsManager;
+import org.atalk.util.concurrent.ExecutorFactory;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smackx.caps.cache.EntityCapsPersistentCache;
+import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import timber.log.Timber;
 
 /**
- * Keeps track of entity capabilities.
+ * Keeps track of entity capabilities i.e. the XEP-0115 caps and the XEP-0030 disco#info of the services,
+ * in the single table {@link #TABLE_NAME} of the aTalk database instead of one file per node.
  * <p/>
- * This work is based on Jonas Adahl's smack fork.
+ * Each instance is a store within the table, e.g. the caps shared by all accounts or the disco#info of
+ * an account. The entries of the store are bulk loaded into an in-memory index on creation, so that a
+ * lookup on the presence path never touches the database; the writes are done in the background, and
+ * a store created after its removal loads only once the removal has been written.
  *
  * @author Emil Ivov
  * @author Lyubomir Marinov
  * @author Eng Chong Meng
  */
-public class EntityCapsDatabase
+public class EntityCapsDatabase implements EntityCapsPersistentCache
 {
     public static final String TABLE_NAME = "discoveryCaps";
-    public static final String HASH = "hash";
-    public static final String VER = "ver";
+    public static final String STORE = "store";
+    public static final String NODE_VER = "nodeVer";
     public static final String RESULT = "result";
 
-    public ContentValues getContentValues()
+    /**
+     * The store of the XEP-0115 entity caps shared by all accounts.
+     */
+    public static final String STORE_ENTITY_CAPS = "entityCaps";
+
+    /**
+     * The store name prefix of the disco#info of an account.
+     */
+    private static final String STORE_DISCO_INFO = "discoInfo_";
+
+    /**
+     * The single thread which writes the changes to the database in the order made.
+     */
+    private static final ExecutorService dbWriter
+            = ExecutorFactory.createFixedThreadPool(1, "EntityCapsDatabase-");
+
+    /**
+     * The name of this store.
+     */
+    private final String mStore;
+
+    /**
+     * The in-memory index of this store: the DiscoverInfo XML by node#ver or entity jid.
+     */
+    private final Map<String, String> mIndex = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the store of the given name and loads all its entries into memory. The entries are loaded
+     * on {@link #dbWriter} after the writes queued before, e.g. the removal of the store being refreshed.
+     *
+     * @param store the store name e.g. {@link #STORE_ENTITY_CAPS}
+     */
+    public EntityCapsDatabase(String store)
+    {
+        mStore = store;
+        try {
+            dbWriter.submit(this::load).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Timber.e(e.getCause(), "Failed to load entity caps store: %s", store);
+        }
+    }
+
+    /**
+     * Loads all the entries of this store into memory; runs on {@link #dbWriter}.
+     */
+    private void load()
+    {
+        SQLiteDatabase db = DatabaseBackend.getReadableDB();
+        String[] columns = {NODE_VER, RESULT};
+        String[] args = {mStore};
+
+        Cursor cursor = db.query(TABLE_NAME, columns, STORE + "=?", args, null, null, null);
+        while (cursor.moveToNext()) {
+            mIndex.put(cursor.getString(0), cursor.getString(1));
+        }
+        cursor.close();
+        Timber.d("Loaded %s entries of entity caps store: %s", mIndex.size(), mStore);
+    }
+
+    /**
+     * Gets the store name of the disco#info of an account.
+     *
+     * @param userID the user id of the account
+     * @return the store name
+     */
+    public static String getDiscoInfoStore(String userID)
     {
-        String currentCapsVersion = EntityCapsManager.getNodeVersionByJid(null);
+        return STORE_DISCO_INFO + userID;
+    }
+
+    @Override
+    public void addDiscoverInfoByNodePersistent(String nodeVer, DiscoverInfo info)
+    {
+        final String result = info.toXML().toString();
+        if (result.equals(mIndex.put(nodeVer, result)))
+            return;
+
         final ContentValues values = new ContentValues();
+        values.put(STORE, mStore);
+        values.put(NODE_VER, nodeVer);
+        values.put(RESULT, result);
+        dbWriter.execute(() -> DatabaseBackend.getWritableDB().replace(TABLE_NAME, null, values));
+    }
+
+    @Override
+    public DiscoverInfo lookup(String nodeVer)
+    {
+        String result = mIndex.get(nodeVer);
+        if (result == null)
+            return null;
 
-        values.put(HASH, HASH);
-        values.put(VER, currentCapsVersion);
-        values.put(RESULT, this.toString());
-        return values;
+        try {
+            return PacketParserUtils.parseStanza(result);
+        } catch (Exception e) {
+            Timber.w("Could not restore discover info for %s: %s", nodeVer, e.getMessage());
+            mIndex.remove(nodeVer);
+            return null;
+        }
+    }
+
+    @Override
+    public void emptyCache()
+    {
+        mIndex.clear();
+        removeStore(mStore);
+    }
+
+    /**
+     * Removes all the entries of a store from the database.
+     *
+     * @param store the store name
+     */
+    public static void removeStore(final String store)
+    {
+        dbWriter.execute(() -> {
+            String[] args = {store};
+            DatabaseBackend.getWritableDB().delete(TABLE_NAME, STORE + "=?", args);
+        });
     }
 }
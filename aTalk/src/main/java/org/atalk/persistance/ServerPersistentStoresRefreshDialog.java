@@ -36,6 +36,7 @@ import org.atalk.service.libjitsi.LibJitsi;
 import org.atalk.service.osgi.OSGiFragment;
 import org.jivesoftware.smackx.avatar.vcardavatar.VCardAvatarManager;
 import org.jivesoftware.smackx.caps.EntityCapsManager;
+import org.jivesoftware.smackx.caps.cache.EntityCapsPersistentCache;
 import org.jivesoftware.smackx.omemo.OmemoService;
 import org.jivesoftware.smackx.omemo.OmemoStore;
 
@@ -174,13 +175,9 @@ public class ServerPersistentStoresRefreshDialog extends OSGiFragment
         EntityCapsManager.setPersistentCache(null);
         EntityCapsManager.clearMemoryCache();
 
-        File entityStoreDirectory = ScServiceDiscoveryManager.getEntityPersistentStore();
-        if ((entityStoreDirectory != null) && entityStoreDirectory.exists()) {
-            try {
-                FileBackend.deleteRecursive(entityStoreDirectory);
-            } catch (IOException e) {
-                Timber.e("Failed to purchase store for: %s", R.string.service_gui_REFRESH_STORES_CAPS);
-            }
+        EntityCapsPersistentCache entityStore = ScServiceDiscoveryManager.getEntityPersistentStore();
+        if (entityStore != null) {
+            entityStore.emptyCache();
             ScServiceDiscoveryManager.initEntityPersistentStore();
         }
     }
@@ -199,6 +196,7 @@ public class ServerPersistentStoresRefreshDialog extends OSGiFragment
             if (discoveryInfoManager == null)
                 return;
 
+            EntityCapsPersistentCache discoInfoStore = discoveryInfoManager.getDiscoInfoPersistentStore();
             if (jabberProvider.isRegistered()) {
                 if (RegistrationState.REGISTERED.equals(jabberProvider.getRegistrationState())) {
                     // stop discoveryInfoManager from accessing the store
@@ -207,13 +205,8 @@ public class ServerPersistentStoresRefreshDialog extends OSGiFragment
                 }
             }
 
-            File discoInfoStoreDirectory = discoveryInfoManager.getDiscoInfoPersistentStore();
-            if ((discoInfoStoreDirectory != null) && discoInfoStoreDirectory.exists()) {
-                try {
-                    FileBackend.deleteRecursive(discoInfoStoreDirectory);
-                } catch (IOException e) {
-                    Timber.e("Failed to purchase store for: %s", R.string.service_gui_REFRESH_STORES_DISCINFO);
-                }
+            if (discoInfoStore != null) {
+                discoInfoStore.emptyCache();
                 discoveryInfoManager.initDiscoInfoPersistentStore();
             }
         }
@@ -0,0 +1,19 @@
+package org.atalk.persistance.migrations;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.atalk.persistance.EntityCapsDatabase;
+
+import timber.log.Timber;
+
+import static org.atalk.persistance.DatabaseBackend.CREATE_ENTITY_CAPS_STATEMENT;
+
+public class MigrationTo6
+{
+    public static void createEntityCapsTable(SQLiteDatabase db)
+    {
+        db.execSQL("DROP TABLE IF EXISTS " + EntityCapsDatabase.TABLE_NAME);
+        db.execSQL(CREATE_ENTITY_CAPS_STATEMENT);
+        Timber.d("Created discoveryCaps table successfully!");
+    }
+}
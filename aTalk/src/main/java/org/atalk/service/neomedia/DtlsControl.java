@@ -68,6 +68,16 @@ public interface DtlsControl extends SrtpControl
      */
     void setRtcpmux(boolean rtcpmux);
 
+    /**
+     * Sets the <code>DtlsControl</code> of the media stream which owns the transport of the BUNDLE group this
+     * instance belongs to. This instance then establishes no DTLS session of its own, but derives its SRTP
+     * keys from the DTLS session of the owner.
+     *
+     * @param owner the <code>DtlsControl</code> whose DTLS session is to be shared, or <code>null</code> to
+     * establish a DTLS session of its own
+     */
+    void setBundleOwner(DtlsControl owner);
+
     /**
      * Enumerates the possible values of the <code>setup</code> SDP attribute defined by RFC 4145
      * &quot;TCP-Based Media Transport in the Session Description Protocol (SDP)&quot;.
@@ -0,0 +1,275 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atalk.util.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import timber.log.Timber;
+
+/**
+ * Runs tasks on a pool of worker threads while keeping the tasks submitted with the same key in
+ * their submission order, e.g. the incoming messages of a conversation keyed by its bare JID.
+ * <p>
+ * The keys are hashed onto a fixed number of shards; each shard is a serial queue which is run by
+ * at most one worker at any time, so the tasks of different conversations are processed in
+ * parallel across the cores whereas a slow task only delays the conversations sharing its shard.
+ * A shard hands its worker back to the pool after {@link #BATCH_SIZE} tasks so that a busy
+ * conversation cannot starve the others.
+ * <p>
+ * The number of queued tasks is bounded: {@link #execute(Object, Runnable)} blocks the submitting
+ * thread, i.e. the stanza delivery thread of the connection, until there is room, pushing the
+ * backpressure onto the network reader. A task submitted from a worker thread is never blocked; it
+ * is run inline if it has the key of the task being run and nothing is queued ahead of it on the
+ * shard, else queued beyond the bound.
+ *
+ * @author Eng Chong Meng
+ */
+public class KeyedSerialExecutor
+{
+    /**
+     * The default number of worker threads; one per core.
+     */
+    private static final int DEFAULT_THREAD_COUNT
+            = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The number of shards per worker thread; more shards than workers lessen the chance of two
+     * busy conversations sharing a shard.
+     */
+    private static final int SHARDS_PER_THREAD = 4;
+
+    /**
+     * The default maximum number of queued tasks before the submitters are blocked.
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /**
+     * The maximum number of tasks a shard runs before it hands its worker back to the pool.
+     */
+    private static final int BATCH_SIZE = 32;
+
+    /**
+     * The <code>KeyedSerialExecutor</code> shared by the incoming message processing of all accounts.
+     */
+    private static KeyedSerialExecutor sharedInstance;
+
+    /**
+     * The shard being run by the current thread, if it is a worker thread.
+     */
+    private static final ThreadLocal<Shard> currentShard = new ThreadLocal<>();
+
+    /**
+     * The key of the task being run by the current thread, if it is a worker thread.
+     */
+    private static final ThreadLocal<Object> currentKey = new ThreadLocal<>();
+
+    /**
+     * Gets the <code>KeyedSerialExecutor</code> shared by the incoming message processing of all
+     * accounts, creating it on first use.
+     *
+     * @return the shared <code>KeyedSerialExecutor</code>
+     */
+    public static synchronized KeyedSerialExecutor getInstance()
+    {
+        if (sharedInstance == null)
+            sharedInstance = new KeyedSerialExecutor("StanzaDispatcher-", DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_CAPACITY);
+        return sharedInstance;
+    }
+
+    /**
+     * The serial queues onto which the keys are hashed.
+     */
+    private final Shard[] shards;
+
+    /**
+     * The pool which runs the shards.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The permits for the tasks which may still be queued without blocking the submitter.
+     */
+    private final Semaphore capacity;
+
+    /**
+     * Initializes a new <code>KeyedSerialExecutor</code>.
+     *
+     * @param threadNamePrefix the name prefix of the worker threads
+     * @param threadCount the number of worker threads
+     * @param queueCapacity the maximum number of queued tasks before the submitters are blocked
+     */
+    public KeyedSerialExecutor(String threadNamePrefix, int threadCount, int queueCapacity)
+    {
+        if (threadCount <= 0)
+            throw new IllegalArgumentException("threadCount " + threadCount);
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("queueCapacity " + queueCapacity);
+
+        shards = new Shard[threadCount * SHARDS_PER_THREAD];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new Shard();
+
+        workers = ExecutorFactory.createFixedThreadPool(threadCount, threadNamePrefix);
+        capacity = new Semaphore(queueCapacity);
+    }
+
+    /**
+     * Runs a task after all the tasks previously submitted with the same key.
+     *
+     * @param key the key which orders the task, e.g. the bare JID of the conversation; <code>null</code>
+     * orders the task with all the other tasks submitted with a <code>null</code> key
+     * @param task the task to run
+     */
+    public void execute(Object key, Runnable task)
+    {
+        Objects.requireNonNull(task, "task");
+
+        Shard shard = shards[(key == null) ? 0 : (key.hashCode() & 0x7fffffff) % shards.length];
+        Shard current = currentShard.get();
+        if (current == shard && Objects.equals(currentKey.get(), key) && shard.isIdle()) {
+            // Submitted while processing an earlier task of the same key, e.g. a decrypted
+            // message handed over to its listeners, with nothing queued ahead of it; it comes
+            // next in the order anyway.
+            runTask(task);
+            return;
+        }
+
+        boolean permit = false;
+        if (current == null) {
+            try {
+                capacity.acquire();
+                permit = true;
+            } catch (InterruptedException e) {
+                // Queue it regardless rather than lose the message.
+                Thread.currentThread().interrupt();
+            }
+        }
+        shard.add(new Task(key, task, permit));
+    }
+
+    /**
+     * Runs a task, logging rather than propagating its failure so that the shard goes on.
+     *
+     * @param task the task to run
+     */
+    private static void runTask(Runnable task)
+    {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            Timber.e(t, "Task failed: %s", task);
+        }
+    }
+
+    /**
+     * A submitted task with its key and the permit it holds, if any.
+     */
+    private static class Task
+    {
+        final Object key;
+
+        final Runnable runnable;
+
+        final boolean permit;
+
+        Task(Object key, Runnable runnable, boolean permit)
+        {
+            this.key = key;
+            this.runnable = runnable;
+            this.permit = permit;
+        }
+    }
+
+    /**
+     * A serial queue of tasks which is run by at most one worker at any time.
+     */
+    private class Shard implements Runnable
+    {
+        /**
+         * The tasks waiting to run; guarded by this.
+         */
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+
+        /**
+         * Whether this shard is queued or running on the pool; guarded by this.
+         */
+        private boolean scheduled = false;
+
+        /**
+         * Determines whether no task is waiting to run on this shard.
+         *
+         * @return <code>true</code> if no task is queued on this shard
+         */
+        synchronized boolean isIdle()
+        {
+            return tasks.isEmpty();
+        }
+
+        /**
+         * Queues a task and schedules this shard onto the pool if it is idle.
+         *
+         * @param task the task to queue
+         */
+        void add(Task task)
+        {
+            synchronized (this) {
+                tasks.add(task);
+                if (scheduled)
+                    return;
+                scheduled = true;
+            }
+            workers.execute(this);
+        }
+
+        @Override
+        public void run()
+        {
+            currentShard.set(this);
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    Task task;
+                    synchronized (this) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                    if (task.permit)
+                        capacity.release();
+                    currentKey.set(task.key);
+                    runTask(task.runnable);
+                }
+            } finally {
+                currentKey.remove();
+                currentShard.remove();
+            }
+
+            // Batch used up; requeue behind the other shards if there is more work.
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            workers.execute(this);
+        }
+    }
+}
@@ -17,15 +17,22 @@ package org.atalk.util.concurrent;
 
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
 /**
- * Implements a single-threaded {@link Executor} of {@link RecurringRunnable}s i.e. asynchronous
+ * Implements a serial {@link Executor} of {@link RecurringRunnable}s i.e. asynchronous
  * tasks which determine by themselves the intervals (the lengths of which may vary) at which
  * they are to be invoked.
  * <p>
+ * The invocations are timed by the shared {@link TimerWheel} rather than by a sleeping thread of each
+ * instance. The wheel only triggers them: the <code>RecurringRunnable</code>s of an instance are run on
+ * the own serial thread of the instance, so a runnable which blocks delays only the other runnables of
+ * the same instance. The thread is released after an idle timeout.
+ * <p>
  * webrtc/modules/utility/interface/process_thread.h
  * webrtc/modules/utility/source/process_thread_impl.cc
  * webrtc/modules/utility/source/process_thread_impl.h
@@ -37,27 +44,36 @@ import timber.log.Timber;
 public class RecurringRunnableExecutor implements Executor
 {
     /**
-     * The {@code RecurringRunnable}s registered with this instance which are
-     * to be invoked in {@link #thread}.
+     * The longest time in milliseconds a registered {@code RecurringRunnable} waits before its
+     * {@link RecurringRunnable#getTimeUntilNextRun()} is checked again, so that a shortened interval
+     * which is not signalled through {@link #startOrNotifyThread()} is still picked up.
+     */
+    private static final long MAX_WAIT = 100L;
+
+    /**
+     * The {@code RecurringRunnable}s registered with this instance and their pending timeouts on
+     * {@link #timerWheel}.
+     */
+    private final Map<RecurringRunnable, TimerWheel.Timeout> recurringRunnables = new LinkedHashMap<>();
+
+    /**
+     * The serial thread which runs the {@link RecurringRunnable}s of this instance.
      */
-    private final List<RecurringRunnable> recurringRunnables = new LinkedList<>();
+    private final ExecutorService runExecutor;
 
     /**
-     * The (background) {@code Thread} which invokes {@link RecurringRunnable#run()} on
-     * {@link #recurringRunnables} (in accord with their respective
-     * {@link RecurringRunnable#getTimeUntilNextRun()}).
+     * The {@code TimerWheel} which times the invocations.
      */
-    private Thread thread;
+    private final TimerWheel timerWheel = TimerWheel.getInstance();
 
     /**
-     * A {@code String} which will be added to the name of {@link #thread}.
-     * Meant to facilitate debugging.
+     * A {@code String} which identifies this instance in the logs. Meant to facilitate debugging.
      */
     private final String name;
 
     /**
      * Whether this {@link RecurringRunnableExecutor} is closed. When it is
-     * closed, it should stop its thread(s).
+     * closed, it should stop invoking its registered runnable.
      */
     private boolean closed = false;
 
@@ -72,11 +88,12 @@ public class RecurringRunnableExecutor implements Executor
     /**
      * Initializes a new {@link RecurringRunnableExecutor} instance.
      *
-     * @param name a string to be added to the name of the thread which this instance will start.
+     * @param name a string which identifies this instance in the logs.
      */
     public RecurringRunnableExecutor(String name)
     {
         this.name = name;
+        runExecutor = ExecutorFactory.createFixedThreadPool(1, "RecurringRunnableExecutor-" + name + "-");
     }
 
     /**
@@ -95,10 +112,13 @@ public class RecurringRunnableExecutor implements Executor
         }
         else {
             synchronized (recurringRunnables) {
-                boolean removed = recurringRunnables.remove(recurringRunnable);
-                if (removed)
-                    startOrNotifyThread();
-                return removed;
+                if (!recurringRunnables.containsKey(recurringRunnable))
+                    return false;
+
+                TimerWheel.Timeout timeout = recurringRunnables.remove(recurringRunnable);
+                if (timeout != null)
+                    timeout.cancel();
+                return true;
             }
         }
     }
@@ -119,69 +139,73 @@ public class RecurringRunnableExecutor implements Executor
     }
 
     /**
-     * Executes an iteration of the loop implemented by {@link #runInThread()}.
-     * Invokes {@link RecurringRunnable#run()} on all {@link #recurringRunnables} which are at or
-     * after the time at which they want the method in question called.
+     * Runs on a worker of {@link #timerWheel} when the timeout of a specific
+     * {@code RecurringRunnable} expires; hands the check over to {@link #runExecutor}, as the
+     * workers of the wheel must not block.
      *
-     * @return {@code true} to continue with the next iteration of the loop
-     * implemented by {@link #runInThread()} or {@code false} to break (out of) the loop
+     * @param recurringRunnable the {@code RecurringRunnable} whose timeout has expired
      */
-    private boolean run()
+    private void trigger(final RecurringRunnable recurringRunnable)
     {
-        if (closed || !Thread.currentThread().equals(thread)) {
-            return false;
+        try {
+            runExecutor.execute(() -> run(recurringRunnable));
+        } catch (RejectedExecutionException e) {
+            // Closed in the meantime.
         }
-        // Wait for the recurringRunnable that should be called next, but don't block thread longer than 100 ms.
-        long minTimeToNext = 100L;
+    }
 
+    /**
+     * Runs on {@link #runExecutor}. Invokes {@link RecurringRunnable#run()} of a specific
+     * {@code RecurringRunnable} if it is at or after the time at which it wants the method in
+     * question called, and schedules the next check.
+     *
+     * @param recurringRunnable the {@code RecurringRunnable} whose timeout has expired
+     */
+    private void run(RecurringRunnable recurringRunnable)
+    {
         synchronized (recurringRunnables) {
-            if (recurringRunnables.isEmpty()) {
-                return false;
-            }
-            for (RecurringRunnable recurringRunnable : recurringRunnables) {
-                long timeToNext = recurringRunnable.getTimeUntilNextRun();
-
-                if (minTimeToNext > timeToNext)
-                    minTimeToNext = timeToNext;
-            }
+            if (closed || !recurringRunnables.containsKey(recurringRunnable))
+                return;
+            recurringRunnables.put(recurringRunnable, null);
         }
 
-        if (minTimeToNext > 0L) {
-            synchronized (recurringRunnables) {
-                if (recurringRunnables.isEmpty()) {
-                    return false;
+        if (recurringRunnable.getTimeUntilNextRun() < 1L) {
+            try {
+                recurringRunnable.run();
+            } catch (Throwable t) {
+                if (t instanceof ThreadDeath) {
+                    throw (ThreadDeath) t;
                 }
-                try {
-                    recurringRunnables.wait(minTimeToNext);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
+                else {
+                    Timber.e(t, "%s: The invocation of the method %s.run() threw an exception.",
+                            name, recurringRunnable.getClass().getName());
                 }
-                return true;
             }
         }
-        synchronized (recurringRunnables) {
-            for (RecurringRunnable recurringRunnable : recurringRunnables) {
-                long timeToNext = recurringRunnable.getTimeUntilNextRun();
 
-                if (timeToNext < 1L) {
-                    try {
-                        recurringRunnable.run();
-                    } catch (Throwable t) {
-                        if (t instanceof InterruptedException) {
-                            Thread.currentThread().interrupt();
-                        }
-                        else if (t instanceof ThreadDeath) {
-                            throw (ThreadDeath) t;
-                        }
-                        else {
-                            Timber.e(t, "The invocation of the method %s.run() threw an exception.",
-                                    recurringRunnable.getClass().getName());
-                        }
-                    }
-                }
+        synchronized (recurringRunnables) {
+            if (recurringRunnables.containsKey(recurringRunnable)
+                    && recurringRunnables.get(recurringRunnable) == null) {
+                schedule(recurringRunnable);
             }
         }
-        return true;
+    }
+
+    /**
+     * Schedules the next check of a specific {@code RecurringRunnable} in accord with its
+     * {@link RecurringRunnable#getTimeUntilNextRun()}. Must be called with
+     * {@link #recurringRunnables} locked.
+     *
+     * @param recurringRunnable the {@code RecurringRunnable} to schedule
+     */
+    private void schedule(final RecurringRunnable recurringRunnable)
+    {
+        if (closed)
+            return;
+
+        long delay = Math.min(MAX_WAIT, recurringRunnable.getTimeUntilNextRun());
+        recurringRunnables.put(recurringRunnable,
+                timerWheel.schedule(() -> trigger(recurringRunnable), delay, TimeUnit.MILLISECONDS));
     }
 
     /**
@@ -202,87 +226,52 @@ public class RecurringRunnableExecutor implements Executor
             }
 
             // Only allow recurringRunnable to be registered once.
-            if (recurringRunnables.contains(recurringRunnable)) {
+            if (recurringRunnables.containsKey(recurringRunnable)) {
                 return false;
             }
             else {
-                recurringRunnables.add(0, recurringRunnable);
-
-                // Wake the thread calling run() to update the waiting time. The waiting time for the just
-                // registered recurringRunnable may be shorter than all other registered recurringRunnable.
-                startOrNotifyThread();
+                schedule(recurringRunnable);
                 return true;
             }
         }
     }
 
     /**
-     * Runs in {@link #thread}.
-     */
-    private void runInThread()
-    {
-        try {
-            while (run()) {
-                ;
-            }
-        } finally {
-            synchronized (recurringRunnables) {
-                if (!closed && Thread.currentThread().equals(thread)) {
-                    thread = null;
-                    // If the (current) thread dies unexpectedly, make sure a new thread will replace it if necessary.
-                    startOrNotifyThread();
-                }
-            }
-        }
-    }
-
-    /**
-     * Starts or notifies {@link #thread} depending on and in accord with the state of this instance.
+     * Re-evaluates when the registered {@code RecurringRunnable}s are to be invoked, e.g. after
+     * one of them has new work ready. Kept under its historical name for the callers which used
+     * to wake the thread of this instance up.
      */
     public void startOrNotifyThread()
     {
         synchronized (recurringRunnables) {
-            if (!closed && this.thread == null) {
-                if (!recurringRunnables.isEmpty()) {
-                    Thread thread = new Thread()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            RecurringRunnableExecutor.this.runInThread();
-                        }
-                    };
+            if (closed)
+                return;
 
-                    thread.setDaemon(true);
-                    thread.setName(RecurringRunnableExecutor.class.getName() + ".thread-" + name);
+            for (Map.Entry<RecurringRunnable, TimerWheel.Timeout> entry : recurringRunnables.entrySet()) {
+                TimerWheel.Timeout timeout = entry.getValue();
 
-                    boolean started = false;
-                    this.thread = thread;
-                    try {
-                        thread.start();
-                        started = true;
-                    } finally {
-                        if (!started && thread.equals(this.thread))
-                            this.thread = null;
-                    }
-                }
-            }
-            else {
-                recurringRunnables.notifyAll();
+                // A null timeout means the runnable is being run and will be scheduled right after.
+                // Replacing the value of an existing key does not disturb the iteration.
+                if (timeout != null && timeout.cancel())
+                    schedule(entry.getKey());
             }
         }
     }
 
     /**
-     * Closes this {@link RecurringRunnableExecutor}, signalling its thread to stop and
+     * Closes this {@link RecurringRunnableExecutor}, cancelling its pending invocations and
      * de-registering all registered runnable.
      */
     public void close()
     {
         synchronized (recurringRunnables) {
             closed = true;
-            thread = null;
-            recurringRunnables.notifyAll();
+            for (TimerWheel.Timeout timeout : recurringRunnables.values()) {
+                if (timeout != null)
+                    timeout.cancel();
+            }
+            recurringRunnables.clear();
         }
+        runExecutor.shutdown();
     }
 }
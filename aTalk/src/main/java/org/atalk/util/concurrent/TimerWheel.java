@@ -0,0 +1,424 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.atalk.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * A hashed timer wheel which schedules one-shot, cancellable timeouts for the media subsystems
+ * (ZRTP retransmissions, RTCP and NACK timers, delayed processor configuration) on a single ticker
+ * thread, instead of every stream keeping its own sleeping thread.
+ * <p>
+ * The time is divided into ticks of {@link #DEFAULT_TICK_DURATION} milliseconds and a timeout is
+ * hashed into the bucket of the tick at which it expires, so that scheduling and cancelling are
+ * O(1). Timeouts which expire on the same tick are coalesced and handed over together, as a single
+ * task, to a small fixed pool of worker threads, so the tasks must be short and must not block.
+ * The ticker wakes up only while there are pending timeouts.
+ *
+ * @author Eng Chong Meng
+ */
+public class TimerWheel
+{
+    /**
+     * The default duration of a tick in milliseconds, i.e. the resolution of the timeouts.
+     */
+    public static final long DEFAULT_TICK_DURATION = 10;
+
+    /**
+     * The default number of buckets of the wheel; a power of two. With the default tick duration a
+     * round of the wheel takes a little over 5 seconds.
+     */
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * The default number of worker threads which run the expired timeouts.
+     */
+    private static final int DEFAULT_WORKER_COUNT
+            = Math.min(4, Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * The <code>TimerWheel</code> shared by all media streams.
+     */
+    private static TimerWheel sharedInstance;
+
+    /**
+     * The state of a {@link Timeout} which is waiting in a bucket of the wheel.
+     */
+    private static final int PENDING = 0;
+
+    /**
+     * The state of a {@link Timeout} which has expired and waits for a worker to run its task.
+     */
+    private static final int DISPATCHED = 1;
+
+    /**
+     * The state of a {@link Timeout} whose task has been run or is running.
+     */
+    private static final int EXPIRED = 2;
+
+    /**
+     * The state of a {@link Timeout} which has been cancelled.
+     */
+    private static final int CANCELLED = 3;
+
+    /**
+     * Gets the <code>TimerWheel</code> shared by all media streams, creating it on first use.
+     *
+     * @return the shared <code>TimerWheel</code>
+     */
+    public static synchronized TimerWheel getInstance()
+    {
+        if (sharedInstance == null)
+            sharedInstance = new TimerWheel("TimerWheel", DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE, DEFAULT_WORKER_COUNT);
+        return sharedInstance;
+    }
+
+    /**
+     * The name of this wheel, used in the names of its threads.
+     */
+    private final String name;
+
+    /**
+     * The duration of a tick in nanoseconds.
+     */
+    private final long tickNanos;
+
+    /**
+     * The heads of the linked lists of the timeouts of each bucket.
+     */
+    private final Timeout[] buckets;
+
+    /**
+     * The mask which maps a tick onto its bucket.
+     */
+    private final int mask;
+
+    /**
+     * The pool which runs the tasks of the expired timeouts.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * The value of {@link System#nanoTime()} at which tick 0 started.
+     */
+    private final long startTime;
+
+    /**
+     * The next tick to be processed by the ticker thread.
+     */
+    private long tick;
+
+    /**
+     * The number of timeouts in the buckets of the wheel.
+     */
+    private int pending = 0;
+
+    /**
+     * The ticker thread, started on the first {@link #schedule(Runnable, long, TimeUnit)}.
+     */
+    private Thread ticker;
+
+    /**
+     * Initializes a new <code>TimerWheel</code>.
+     *
+     * @param name the name of the new wheel, used in the names of its threads
+     * @param tickDuration the duration of a tick in milliseconds
+     * @param wheelSize the number of buckets of the wheel, rounded up to a power of two
+     * @param workerCount the number of worker threads which run the expired timeouts
+     */
+    public TimerWheel(String name, long tickDuration, int wheelSize, int workerCount)
+    {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("tickDuration " + tickDuration);
+        if (wheelSize <= 0 || wheelSize > (1 << 30))
+            throw new IllegalArgumentException("wheelSize " + wheelSize);
+
+        int size = 1;
+        while (size < wheelSize)
+            size <<= 1;
+
+        this.name = name;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        buckets = new Timeout[size];
+        mask = size - 1;
+        workers = ExecutorFactory.createFixedThreadPool(workerCount, name + "-worker-");
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Schedules a task to run once after a specific delay. The delay is rounded up to the next tick.
+     *
+     * @param task the task to run
+     * @param delay the delay after which to run <code>task</code>; 0 or less runs it on the next tick
+     * @param unit the time unit of <code>delay</code>
+     * @return the <code>Timeout</code> which cancels the run of <code>task</code>
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        Objects.requireNonNull(task, "task");
+
+        long deadline = System.nanoTime() + Math.max(0, unit.toNanos(delay));
+        Timeout timeout = new Timeout(task, deadline);
+
+        synchronized (this) {
+            if (pending == 0) {
+                // The ticker skipped the ticks while the wheel was empty; catch up without processing them.
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+                notifyAll();
+            }
+
+            // The tick at whose end the deadline has passed.
+            long expiryTick = Math.max(tick, (deadline - startTime + tickNanos - 1) / tickNanos - 1);
+            timeout.remainingRounds = (expiryTick - tick) / buckets.length;
+            timeout.bucket = (int) (expiryTick & mask);
+            link(timeout);
+            pending++;
+
+            if (ticker == null)
+                startTicker();
+        }
+        return timeout;
+    }
+
+    /**
+     * Adds a timeout to the head of the list of its bucket.
+     *
+     * @param timeout the timeout to add
+     */
+    private void link(Timeout timeout)
+    {
+        Timeout head = buckets[timeout.bucket];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null)
+            head.prev = timeout;
+        buckets[timeout.bucket] = timeout;
+    }
+
+    /**
+     * Removes a timeout from the list of its bucket.
+     *
+     * @param timeout the timeout to remove
+     */
+    private void unlink(Timeout timeout)
+    {
+        if (timeout.prev == null)
+            buckets[timeout.bucket] = timeout.next;
+        else
+            timeout.prev.next = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /**
+     * Starts {@link #ticker}. Must be called with this instance locked.
+     */
+    private void startTicker()
+    {
+        Thread thread = new Thread(this::runInTicker);
+        thread.setDaemon(true);
+        thread.setName(name + "-ticker");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        ticker = thread;
+        thread.start();
+    }
+
+    /**
+     * Runs in {@link #ticker}: waits for each tick while there are pending timeouts and hands the
+     * timeouts which have expired on it over to {@link #workers}.
+     */
+    private void runInTicker()
+    {
+        try {
+            while (true) {
+                List<Timeout> expired = null;
+                synchronized (this) {
+                    if (pending == 0) {
+                        wait();
+                        continue;
+                    }
+
+                    long sleep = startTime + (tick + 1) * tickNanos - System.nanoTime();
+                    if (sleep > 0) {
+                        wait(TimeUnit.NANOSECONDS.toMillis(sleep), (int) (sleep % 1000000));
+                        continue;
+                    }
+
+                    int bucket = (int) (tick & mask);
+                    for (Timeout timeout = buckets[bucket]; timeout != null; ) {
+                        Timeout next = timeout.next;
+                        if (timeout.remainingRounds <= 0) {
+                            unlink(timeout);
+                            pending--;
+                            timeout.state = DISPATCHED;
+                            if (expired == null)
+                                expired = new ArrayList<>();
+                            expired.add(timeout);
+                        }
+                        else {
+                            timeout.remainingRounds--;
+                        }
+                        timeout = next;
+                    }
+                    tick++;
+                }
+                if (expired != null) {
+                    final List<Timeout> batch = expired;
+                    workers.execute(() -> runExpired(batch));
+                }
+            }
+        } catch (InterruptedException ie) {
+            Timber.w("%s ticker interrupted", name);
+        } finally {
+            synchronized (this) {
+                if (Thread.currentThread().equals(ticker)) {
+                    ticker = null;
+                    if (pending > 0)
+                        startTicker();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs in one of {@link #workers}: runs the tasks of timeouts which have expired on the same tick,
+     * unless they have been cancelled in the meantime.
+     *
+     * @param expired the timeouts which have expired
+     */
+    private void runExpired(List<Timeout> expired)
+    {
+        for (Timeout timeout : expired) {
+            synchronized (this) {
+                if (timeout.state != DISPATCHED)
+                    continue;
+                timeout.state = EXPIRED;
+            }
+            try {
+                timeout.task.run();
+            } catch (Throwable t) {
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                Timber.e(t, "The timeout task %s threw an exception.", timeout.task.getClass().getName());
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on a {@link TimerWheel}.
+     */
+    public final class Timeout
+    {
+        /**
+         * The task to run when this timeout expires.
+         */
+        private final Runnable task;
+
+        /**
+         * The value of {@link System#nanoTime()} at which this timeout expires.
+         */
+        private final long deadline;
+
+        /**
+         * The number of rounds of the wheel to wait, in {@link #bucket}, before this timeout expires.
+         */
+        private long remainingRounds;
+
+        /**
+         * The index of the bucket of this timeout.
+         */
+        private int bucket;
+
+        /**
+         * The neighbours of this timeout in the list of its bucket.
+         */
+        private Timeout prev, next;
+
+        /**
+         * The state of this timeout, guarded by its wheel.
+         */
+        private int state = PENDING;
+
+        private Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels this timeout, so that its task is not run, unless it has already started.
+         *
+         * @return <code>true</code> if the task will not run because of the call; <code>false</code>
+         * if it has already run, is running or has already been cancelled
+         */
+        public boolean cancel()
+        {
+            synchronized (TimerWheel.this) {
+                switch (state) {
+                case PENDING:
+                    unlink(this);
+                    pending--;
+                    // fall through
+                case DISPATCHED:
+                    state = CANCELLED;
+                    return true;
+                default:
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @return <code>true</code> if this timeout has been cancelled.
+         */
+        public boolean isCancelled()
+        {
+            synchronized (TimerWheel.this) {
+                return state == CANCELLED;
+            }
+        }
+
+        /**
+         * @return <code>true</code> if the task of this timeout has run or is running.
+         */
+        public boolean isExpired()
+        {
+            synchronized (TimerWheel.this) {
+                return state == EXPIRED;
+            }
+        }
+
+        /**
+         * Gets the time left until this timeout expires.
+         *
+         * @param unit the time unit of the returned value
+         * @return the time left until this timeout expires, or a negative value if its deadline has passed
+         */
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+    }
+}
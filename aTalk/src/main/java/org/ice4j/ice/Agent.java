@@ -266,6 +266,11 @@ public class Agent
      */
     private final List<PropertyChangeListener> stateListeners = new LinkedList<>();
 
+    /**
+     * Contains the {@link ConnectivityCallback}s waiting for this {@link Agent} to be able to carry media.
+     */
+    private final List<ConnectivityCallback> connectivityCallbacks = new LinkedList<>();
+
     /**
      * The <tt>StunStack</tt> used by this <tt>Agent</tt>.
      */
@@ -809,6 +814,86 @@ public class Agent
         }
     }
 
+    /**
+     * Adds a one-shot {@link ConnectivityCallback} notified as soon as every component of every stream has
+     * a selected pair, or ICE processing is over without. The callback is notified right away if that is
+     * already the case.
+     *
+     * @param callback the callback to register.
+     */
+    public void addConnectivityCallback(ConnectivityCallback callback)
+    {
+        synchronized (connectivityCallbacks) {
+            if (!connectivityCallbacks.contains(callback))
+                connectivityCallbacks.add(callback);
+        }
+        // the outcome may be known before the registration
+        notifyConnectivityCallbacks();
+    }
+
+    /**
+     * Removes <tt>callback</tt> from the callbacks waiting for this <tt>Agent</tt> to be able to carry media.
+     *
+     * @param callback the callback to remove.
+     */
+    public void removeConnectivityCallback(ConnectivityCallback callback)
+    {
+        synchronized (connectivityCallbacks) {
+            connectivityCallbacks.remove(callback);
+        }
+    }
+
+    /**
+     * Indicates whether this <tt>Agent</tt> is able to carry media i.e. ICE processing has completed, or every
+     * component of every stream already has a selected pair while the remaining checks are still running.
+     *
+     * @return <tt>true</tt> if media may be sent over the selected pairs of this <tt>Agent</tt>.
+     */
+    public boolean isConnectivityEstablished()
+    {
+        IceProcessingState state = getState();
+        if (state.isEstablished())
+            return true;
+        if (state.isOver())
+            return false;
+
+        List<IceMediaStream> streams = getStreams();
+        if (streams.isEmpty())
+            return false;
+
+        for (IceMediaStream stream : streams) {
+            if (!stream.allComponentsHaveSelected())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Notifies and unregisters all the {@link ConnectivityCallback}s, if the outcome of the connectivity
+     * establishment is known.
+     */
+    private void notifyConnectivityCallbacks()
+    {
+        boolean established = isConnectivityEstablished();
+        if (!established && !isOver())
+            return;
+
+        ConnectivityCallback[] callbacks;
+        synchronized (connectivityCallbacks) {
+            if (connectivityCallbacks.isEmpty())
+                return;
+            callbacks = connectivityCallbacks.toArray(new ConnectivityCallback[0]);
+            connectivityCallbacks.clear();
+        }
+
+        for (ConnectivityCallback callback : callbacks) {
+            if (established)
+                callback.connectivityEstablished(this);
+            else
+                callback.connectivityFailed(this);
+        }
+    }
+
     /**
      * Creates a new {@link PropertyChangeEvent} and delivers it to all
      * currently registered state listeners.
@@ -854,6 +939,7 @@ public class Agent
             logger.info("ICE state changed from " + oldState + " to "
                     + newState + ". Local ufrag " + getLocalUfrag());
             fireStateChange(oldState, newState);
+            notifyConnectivityCallbacks();
 
             return true;
         }
@@ -1675,6 +1761,11 @@ public class Agent
             //list for that media stream to Completed.
             checkList.setState(CheckListState.COMPLETED);
         }
+
+        // Media may start over the selected pairs without waiting for the
+        // remaining checks and the overall state to get COMPLETED.
+        if (parentStream.allComponentsHaveSelected())
+            notifyConnectivityCallbacks();
     }
 
     /**
@@ -2448,4 +2539,25 @@ public class Agent
                             && !shutdown;
         }
     }
+
+    /**
+     * Notified once an {@link Agent} is able to carry media, or has failed to. Called on an ICE processing
+     * thread, so implementations must not block.
+     */
+    public interface ConnectivityCallback
+    {
+        /**
+         * Every component of every stream of <tt>agent</tt> has a selected pair.
+         *
+         * @param agent the <tt>Agent</tt> which has established connectivity.
+         */
+        void connectivityEstablished(Agent agent);
+
+        /**
+         * ICE processing of <tt>agent</tt> is over without a selected pair for every component.
+         *
+         * @param agent the <tt>Agent</tt> which has failed.
+         */
+        void connectivityFailed(Agent agent);
+    }
 }
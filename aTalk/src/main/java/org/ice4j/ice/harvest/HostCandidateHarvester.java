@@ -105,6 +105,12 @@ public class HostCandidateHarvester
      */
     private static boolean addressFiltersInitialized = false;
 
+    /**
+     * The allowed host addresses with the virtual flag of their interfaces, as last enumerated from
+     * the <tt>NetworkInterface</tt>s; <tt>null</tt> until first needed or after {@link #refreshHostAddresses()}.
+     */
+    private static volatile List<HostAddress> hostAddresses;
+
     private static final boolean useIPv6 = !StackProperties.getBoolean(StackProperties.DISABLE_IPv6, false);
     private static final boolean useLinkLocalAddresses
             = !StackProperties.getBoolean(StackProperties.DISABLE_LINK_LOCAL_ADDRESSES, false);
@@ -229,6 +235,53 @@ public class HostCandidateHarvester
     public static List<InetAddress> getAllAllowedAddresses()
     {
         List<InetAddress> addresses = new LinkedList<>();
+        for (HostAddress hostAddress : getHostAddresses())
+            addresses.add(hostAddress.address);
+        return addresses;
+    }
+
+    /**
+     * Gets the allowed host addresses, enumerating the <tt>NetworkInterface</tt>s only if they have not
+     * been enumerated since the last {@link #refreshHostAddresses()}.
+     *
+     * @return the allowed host addresses
+     */
+    private static List<HostAddress> getHostAddresses()
+    {
+        List<HostAddress> addresses = hostAddresses;
+        if (addresses == null) {
+            synchronized (HostAddress.class) {
+                addresses = hostAddresses;
+                if (addresses == null)
+                    hostAddresses = addresses = enumerateHostAddresses();
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Discards the cached host addresses so that the next harvest enumerates the
+     * <tt>NetworkInterface</tt>s again, and enumerates them right away. To be called when the network
+     * configuration changes.
+     *
+     * @return the new list of allowed host addresses
+     */
+    public static List<InetAddress> refreshHostAddresses()
+    {
+        synchronized (HostAddress.class) {
+            hostAddresses = null;
+        }
+        return getAllAllowedAddresses();
+    }
+
+    /**
+     * Enumerates the allowed addresses of the allowed network interfaces which are up.
+     *
+     * @return the allowed host addresses
+     */
+    private static List<HostAddress> enumerateHostAddresses()
+    {
+        List<HostAddress> addresses = new ArrayList<>();
         try {
             for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
                 if (NetworkUtils.isInterfaceLoopback(iface)
@@ -236,6 +289,7 @@ public class HostCandidateHarvester
                         || !isInterfaceAllowed(iface)) {
                     continue;
                 }
+                boolean virtual = NetworkUtils.isInterfaceVirtual(iface);
 
                 Enumeration<InetAddress> ifaceAddresses = iface.getInetAddresses();
                 while (ifaceAddresses.hasMoreElements()) {
@@ -249,14 +303,14 @@ public class HostCandidateHarvester
                     if (!useLinkLocalAddresses && address.isLinkLocalAddress())
                         continue;
 
-                    addresses.add(address);
+                    addresses.add(new HostAddress(address, virtual));
                 }
             }
         } catch (SocketException se) {
             logger.info("Failed to get network interfaces: " + se);
         }
 
-        return addresses;
+        return Collections.unmodifiableList(addresses);
     }
 
     /**
@@ -289,86 +343,65 @@ public class HostCandidateHarvester
     {
         harvestStatistics.startHarvestTiming();
 
-        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
         if (transport != Transport.UDP && transport != Transport.TCP) {
             throw new IllegalArgumentException("Transport protocol not supported: " + transport);
         }
 
         boolean boundAtLeastOneSocket = false;
-        boolean foundAtLeastOneUsableInterface = false;
-        boolean foundAtLeastOneUsableAddress = false;
 
-        while (interfaces.hasMoreElements()) {
-            NetworkInterface iface = interfaces.nextElement();
+        // The host addresses are enumerated once and then kept until the network configuration changes.
+        List<HostAddress> hostAddresses = getHostAddresses();
+        boolean foundAtLeastOneUsableAddress = !hostAddresses.isEmpty();
 
-            if (NetworkUtils.isInterfaceLoopback(iface)
-                    || !NetworkUtils.isInterfaceUp(iface)
-                    || !isInterfaceAllowed(iface)) {
-                // skip one is obviously not going to do
-                continue;
-            }
-            foundAtLeastOneUsableInterface = true;
+        for (HostAddress hostAddress : hostAddresses) {
+            InetAddress addr = hostAddress.address;
 
-            Enumeration<InetAddress> addresses = iface.getInetAddresses();
-            while (addresses.hasMoreElements()) {
-                InetAddress addr = addresses.nextElement();
-
-                if (!isAddressAllowed(addr)) {
+            if ((addr instanceof Inet4Address) || useIPv6) {
+                IceSocketWrapper sock;
+                try {
+                    if (transport == Transport.UDP) {
+                        sock = createDatagramSocket(addr, preferredPort, minPort, maxPort);
+                    }
+                    else {
+                        if (addr instanceof Inet6Address)
+                            continue;
+                        sock = createServerSocket(addr, preferredPort, minPort, maxPort, component);
+                    }
+                    boundAtLeastOneSocket = true;
+                } catch (IOException exc) {
+                    // There seems to be a problem with this particular
+                    // address let's just move on for now and hope we will find better
+                    if (logger.isWarnEnabled()) {
+                        logger.warn("Failed to create a socket for:"
+                                + "\naddr:" + addr
+                                + "\npreferredPort:" + preferredPort
+                                + "\nminPort:" + minPort
+                                + "\nmaxPort:" + maxPort
+                                + "\nprotocol:" + transport
+                                + "\nContinuing with next address");
+                    }
                     continue;
                 }
 
-                if (!useLinkLocalAddresses && addr.isLinkLocalAddress()) {
+                HostCandidate candidate = new HostCandidate(sock, component, transport);
+                candidate.setVirtual(hostAddress.virtual);
+                component.addLocalCandidate(candidate);
+                logger.info("Host candidate added: " + candidate);
+
+                if (transport == Transport.TCP) {
+                    // have to wait a client connection to add a STUN socket to the StunStack
                     continue;
                 }
-                foundAtLeastOneUsableAddress = true;
-
-                if ((addr instanceof Inet4Address) || useIPv6) {
-                    IceSocketWrapper sock;
-                    try {
-                        if (transport == Transport.UDP) {
-                            sock = createDatagramSocket(addr, preferredPort, minPort, maxPort);
-                        }
-                        else {
-                            if (addr instanceof Inet6Address)
-                                continue;
-                            sock = createServerSocket(addr, preferredPort, minPort, maxPort, component);
-                        }
-                        boundAtLeastOneSocket = true;
-                    } catch (IOException exc) {
-                        // There seems to be a problem with this particular
-                        // address let's just move on for now and hope we will find better
-                        if (logger.isWarnEnabled()) {
-                            logger.warn("Failed to create a socket for:"
-                                    + "\naddr:" + addr
-                                    + "\npreferredPort:" + preferredPort
-                                    + "\nminPort:" + minPort
-                                    + "\nmaxPort:" + maxPort
-                                    + "\nprotocol:" + transport
-                                    + "\nContinuing with next address");
-                        }
-                        continue;
-                    }
-
-                    HostCandidate candidate = new HostCandidate(sock, component, transport);
-                    candidate.setVirtual(NetworkUtils.isInterfaceVirtual(iface));
-                    component.addLocalCandidate(candidate);
-                    logger.info("Host candidate added: " + candidate);
 
-                    if (transport == Transport.TCP) {
-                        // have to wait a client connection to add a STUN socket to the StunStack
-                        continue;
-                    }
+                // We are most certainly going to use all local host
+                // candidates for sending and receiving STUN connectivity
+                // checks. In case we have enabled STUN, we are going to use
+                // them as well while harvesting reflexive candidates.
+                createAndRegisterStunSocket(candidate);
 
-                    // We are most certainly going to use all local host
-                    // candidates for sending and receiving STUN connectivity
-                    // checks. In case we have enabled STUN, we are going to use
-                    // them as well while harvesting reflexive candidates.
-                    createAndRegisterStunSocket(candidate);
-
-                    ComponentSocket componentSocket = component.getComponentSocket();
-                    if (componentSocket != null) {
-                        componentSocket.add(sock);
-                    }
+                ComponentSocket componentSocket = component.getComponentSocket();
+                if (componentSocket != null) {
+                    componentSocket.add(sock);
                 }
             }
         }
@@ -379,8 +412,6 @@ public class HostCandidateHarvester
                     + " preferredPort=" + preferredPort
                     + " minPort=" + minPort
                     + " maxPort=" + maxPort
-                    + " foundAtLeastOneUsableInterface="
-                    + foundAtLeastOneUsableInterface
                     + " foundAtLeastOneUsableAddress="
                     + foundAtLeastOneUsableAddress);
         }
@@ -573,20 +604,40 @@ public class HostCandidateHarvester
     {
         // make sure port numbers are valid.
         boolean ephemeral = checkPorts(preferredPort, minPort, maxPort);
+
         if (ephemeral) {
-            DatagramSocket socket = new MultiplexingDatagramSocket(0, laddr);
+            // Any socket bound ahead of time will do.
+            DatagramSocket pooled = HostSocketPool.acquire(laddr, 0, 0);
+            DatagramSocket socket = (pooled != null) ? pooled : new MultiplexingDatagramSocket(0, laddr);
             if (logger.isDebugEnabled()) {
                 logger.debug("Bound using ephemeral port to " + socket.getLocalSocketAddress());
             }
             return new IceUdpSocketWrapper(socket);
         }
 
+        // The preferred port comes first, whether pre-bound or not.
+        DatagramSocket pooled = HostSocketPool.acquire(laddr, preferredPort, preferredPort);
+        if (pooled == null) {
+            try {
+                pooled = new MultiplexingDatagramSocket(preferredPort, laddr);
+            } catch (SocketException se) {
+                // Rather than retry the binds over the port range, take a socket bound ahead of time.
+                pooled = HostSocketPool.acquire(laddr, minPort, maxPort);
+            }
+        }
+        if (pooled != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Bound to " + pooled.getLocalSocketAddress());
+            }
+            return new IceUdpSocketWrapper(pooled);
+        }
+
         int bindRetries = StackProperties.getInt(
                 StackProperties.BIND_RETRIES,
                 StackProperties.BIND_RETRIES_DEFAULT_VALUE);
 
-        int port = preferredPort;
-        for (int i = 0; i < bindRetries; i++) {
+        int port = (preferredPort >= maxPort) ? minPort : preferredPort + 1;
+        for (int i = 1; i < bindRetries; i++) {
             try {
                 IceSocketWrapper sock = new IceUdpSocketWrapper(new MultiplexingDatagramSocket(port, laddr));
 
@@ -752,4 +803,20 @@ public class HostCandidateHarvester
             }
         }
     }
+
+    /**
+     * An allowed host address and whether the interface it belongs to is virtual.
+     */
+    private static final class HostAddress
+    {
+        final InetAddress address;
+
+        final boolean virtual;
+
+        HostAddress(InetAddress address, boolean virtual)
+        {
+            this.address = address;
+            this.virtual = virtual;
+        }
+    }
 }
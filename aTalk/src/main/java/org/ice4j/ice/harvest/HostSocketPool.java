@@ -0,0 +1,218 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ice4j.ice.harvest;
+
+import org.atalk.util.concurrent.ExecutorFactory;
+import org.ice4j.socket.MultiplexingDatagramSocket;
+
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small pool of UDP sockets bound ahead of time on the allowed host addresses, from which
+ * {@link HostCandidateHarvester} takes the sockets of its host candidates so that a call setup
+ * does not wait for the binding (and its retries over a busy port range). The pool refills itself
+ * in the background after every take, and is emptied and rebound whenever the host addresses change.
+ *
+ * @author Eng Chong Meng
+ */
+public final class HostSocketPool
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>HostSocketPool</tt> class for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(HostSocketPool.class.getName());
+
+    /**
+     * The idle sockets of the pool by the local address they are bound on.
+     */
+    private static final Map<InetAddress, LinkedList<DatagramSocket>> sockets = new HashMap<>();
+
+    /**
+     * The executor which refills the pool.
+     */
+    private static final ScheduledExecutorService refillExecutor
+            = ExecutorFactory.createSingleThreadScheduledExecutor("ice4j.HostSocketPool-", 60, TimeUnit.SECONDS);
+
+    /**
+     * The number of sockets to keep bound on each host address; 0 disables the pool.
+     */
+    private static int size = 0;
+
+    /**
+     * The lowest port number to bind the pooled sockets on.
+     */
+    private static int minPort;
+
+    /**
+     * The highest port number to bind the pooled sockets on.
+     */
+    private static int maxPort;
+
+    /**
+     * The port number to try first on the next bind. Successive binds walk the port range downwards
+     * from its top, away from the ports which the media port trackers hand out from its bottom.
+     */
+    private static int nextPort;
+
+    /**
+     * Whether a refill of the pool has been scheduled but has not run yet.
+     */
+    private static boolean refillPending = false;
+
+    /**
+     * Closes the pooled sockets and binds a new set on the current host addresses.
+     *
+     * @param poolSize the number of sockets to keep bound on each host address; 0 disables the pool
+     * @param minPortNumber the lowest port number to bind the pooled sockets on
+     * @param maxPortNumber the highest port number to bind the pooled sockets on
+     */
+    public static void prebind(int poolSize, int minPortNumber, int maxPortNumber)
+    {
+        synchronized (sockets) {
+            clear();
+            size = poolSize;
+            minPort = minPortNumber;
+            maxPort = maxPortNumber;
+            if (nextPort < minPort || nextPort > maxPort)
+                nextPort = maxPort;
+        }
+        refill();
+    }
+
+    /**
+     * Takes a pooled socket bound on a specific address and on a port in a specific range.
+     *
+     * @param laddr the local address the socket is to be bound on
+     * @param minPortNumber the lowest acceptable port number, or 0 for any port
+     * @param maxPortNumber the highest acceptable port number, or 0 for any port
+     * @return a bound socket, which the caller now owns, or <tt>null</tt> if the pool has none suitable
+     */
+    public static DatagramSocket acquire(InetAddress laddr, int minPortNumber, int maxPortNumber)
+    {
+        DatagramSocket socket = null;
+        synchronized (sockets) {
+            List<DatagramSocket> idle = sockets.get(laddr);
+            if (idle == null)
+                return null;
+
+            for (Iterator<DatagramSocket> i = idle.iterator(); i.hasNext(); ) {
+                DatagramSocket s = i.next();
+                int port = s.getLocalPort();
+                if (s.isClosed()) {
+                    i.remove();
+                }
+                else if (minPortNumber == 0 || (minPortNumber <= port && port <= maxPortNumber)) {
+                    i.remove();
+                    socket = s;
+                    break;
+                }
+            }
+            if (socket != null)
+                scheduleRefill();
+        }
+        return socket;
+    }
+
+    /**
+     * Closes and forgets all pooled sockets.
+     */
+    public static void clear()
+    {
+        synchronized (sockets) {
+            for (List<DatagramSocket> idle : sockets.values()) {
+                for (DatagramSocket socket : idle)
+                    socket.close();
+            }
+            sockets.clear();
+        }
+    }
+
+    /**
+     * Schedules {@link #refill()}, unless already scheduled. Must be called with {@link #sockets} locked.
+     */
+    private static void scheduleRefill()
+    {
+        if (!refillPending) {
+            refillPending = true;
+            refillExecutor.execute(HostSocketPool::refill);
+        }
+    }
+
+    /**
+     * Binds sockets until each allowed host address has {@link #size} of them.
+     */
+    private static void refill()
+    {
+        List<InetAddress> addresses = HostCandidateHarvester.getAllAllowedAddresses();
+
+        synchronized (sockets) {
+            refillPending = false;
+            if (size <= 0)
+                return;
+
+            for (Iterator<Map.Entry<InetAddress, LinkedList<DatagramSocket>>> i = sockets.entrySet().iterator();
+                 i.hasNext(); ) {
+                Map.Entry<InetAddress, LinkedList<DatagramSocket>> entry = i.next();
+                if (!addresses.contains(entry.getKey())) {
+                    for (DatagramSocket socket : entry.getValue())
+                        socket.close();
+                    i.remove();
+                }
+            }
+            for (InetAddress address : addresses) {
+                // The pool serves the UDP host candidates; IPv6 ones are rarely usable on mobile networks.
+                if (!(address instanceof Inet4Address))
+                    continue;
+
+                LinkedList<DatagramSocket> idle = sockets.get(address);
+                if (idle == null) {
+                    idle = new LinkedList<>();
+                    sockets.put(address, idle);
+                }
+                int attempts = Math.min(maxPort - minPort + 1, size * 16);
+                while (idle.size() < size && attempts-- > 0) {
+                    int port = nextPort;
+                    nextPort = (port <= minPort) ? maxPort : port - 1;
+                    try {
+                        idle.add(new MultiplexingDatagramSocket(port, address));
+                    } catch (SocketException se) {
+                        logger.log(Level.FINE, "Pre-bind failed on " + address + ":" + port, se);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Prevent instance creation.
+     */
+    private HostSocketPool()
+    {
+    }
+}
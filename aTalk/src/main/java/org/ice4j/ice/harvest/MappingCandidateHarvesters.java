@@ -15,6 +15,7 @@
  */
 package org.ice4j.ice.harvest;
 
+import org.atalk.util.LRUCache;
 import org.atalk.util.concurrent.ExecutorFactory;
 import org.ice4j.StackProperties;
 import org.ice4j.Transport;
@@ -26,6 +27,7 @@ import java.net.InetAddress;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -87,7 +89,26 @@ public class MappingCandidateHarvesters
     /**
      * The list of already configured harvesters.
      */
-    private static MappingCandidateHarvester[] harvesters = new MappingCandidateHarvester[0];
+    private static volatile MappingCandidateHarvester[] harvesters = new MappingCandidateHarvester[0];
+
+    /**
+     * The maximum number of networks whose harvesters are kept in {@link #harvestersByNetwork}.
+     */
+    private static final int MAX_KNOWN_NETWORKS = 8;
+
+    /**
+     * The harvesters last discovered on each network, keyed by the host addresses of the network,
+     * so that returning to a known network does not wait for the STUN discovery. Only the most recently
+     * used networks are kept, as e.g. the addresses of a mobile network change on every attachment.
+     */
+    private static final Map<String, MappingCandidateHarvester[]> harvestersByNetwork
+            = new LRUCache<>(MAX_KNOWN_NETWORKS, true);
+
+    /**
+     * The executor which runs the STUN discoveries, shared by all (re)initializations.
+     */
+    private static final ExecutorService stunExecutor
+            = ExecutorFactory.createCachedThreadPool("ice4j.Harvester-executor-");
 
     /**
      * Whether the discovery of a public address via STUN has failed.
@@ -135,6 +156,43 @@ public class MappingCandidateHarvesters
             return;
         initialized = true;
 
+        harvesters = createHarvesters();
+    }
+
+    /**
+     * Re-creates the harvesters for the current network, to be called when the network configuration
+     * changes. Unlike {@link #initialize()}, it does not block {@link #getHarvesters()} during the
+     * discovery: the harvesters last discovered on the same network (if any) are installed right away,
+     * and the ones of the previous network stay in use until the discovery completes otherwise.
+     *
+     * @param networkKey an identifier of the current network e.g. its sorted host addresses
+     */
+    public static void refresh(String networkKey)
+    {
+        synchronized (MappingCandidateHarvesters.class) {
+            MappingCandidateHarvester[] known = harvestersByNetwork.get(networkKey);
+            if (known != null) {
+                harvesters = known;
+                initialized = true;
+            }
+        }
+
+        // Until the first discovery completes, getHarvesters() still runs its own blocking one
+        MappingCandidateHarvester[] discovered = createHarvesters();
+        synchronized (MappingCandidateHarvesters.class) {
+            harvestersByNetwork.put(networkKey, discovered);
+            harvesters = discovered;
+            initialized = true;
+        }
+    }
+
+    /**
+     * Reads the configuration and instantiates harvesters accordingly, waiting for their discovery.
+     *
+     * @return the harvesters which were configured and initialized successfully
+     */
+    private static MappingCandidateHarvester[] createHarvesters()
+    {
         long start = System.currentTimeMillis();
         List<MappingCandidateHarvester> harvesterList = new LinkedList<>();
 
@@ -175,7 +233,7 @@ public class MappingCandidateHarvesters
         }
 
         harvesterList = prune(harvesterList);
-        harvesters = harvesterList.toArray(new MappingCandidateHarvester[0]);
+        MappingCandidateHarvester[] harvesters = harvesterList.toArray(new MappingCandidateHarvester[0]);
 
         for (MappingCandidateHarvester harvester : harvesters) {
             logger.info("Using " + harvester);
@@ -183,6 +241,7 @@ public class MappingCandidateHarvesters
         logger.info("Initialized mapping harvesters (delay=" + (System.currentTimeMillis() - start) + "ms). "
                 + " Harvesters size=" + harvesters.length
                 + " stunDiscoveryFailed=" + stunDiscoveryFailed);
+        return harvesters;
     }
 
     /**
@@ -299,34 +358,28 @@ public class MappingCandidateHarvesters
 
         // Now run discover() on all created harvesters in parallel and pick
         // the ones which succeeded.
-        ExecutorService es = ExecutorFactory.createFixedThreadPool(tasks.size(), "ice4j.Harvester-executor-");
-
+        List<Future<StunMappingCandidateHarvester>> futures;
         try {
-            List<Future<StunMappingCandidateHarvester>> futures;
+            futures = stunExecutor.invokeAll(tasks);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return stunHarvesters;
+        }
+
+        for (Future<StunMappingCandidateHarvester> future : futures) {
             try {
-                futures = es.invokeAll(tasks);
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-                return stunHarvesters;
-            }
+                StunMappingCandidateHarvester harvester = future.get();
 
-            for (Future<StunMappingCandidateHarvester> future : futures) {
-                try {
-                    StunMappingCandidateHarvester harvester = future.get();
-
-                    // The STUN server replied successfully.
-                    if (harvester.getMask() != null) {
-                        stunHarvesters.add(harvester);
-                    }
-                } catch (ExecutionException ee) {
-                    // The harvester failed for some reason, discard it.
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    throw new RuntimeException(ie);
+                // The STUN server replied successfully.
+                if (harvester.getMask() != null) {
+                    stunHarvesters.add(harvester);
                 }
+            } catch (ExecutionException ee) {
+                // The harvester failed for some reason, discard it.
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ie);
             }
-        } finally {
-            es.shutdown();
         }
         return stunHarvesters;
     }
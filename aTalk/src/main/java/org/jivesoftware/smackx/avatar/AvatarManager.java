@@ -18,6 +18,8 @@
 package org.jivesoftware.smackx.avatar;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.text.TextUtils;
 import android.util.LruCache;
 
@@ -32,6 +34,7 @@ import org.jxmpp.jid.BareJid;
 import org.jxmpp.jid.impl.JidCreate;
 import org.jxmpp.stringprep.XmppStringprepException;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -56,9 +59,21 @@ public class AvatarManager extends Manager
     protected static final int JPEG_QUALITY = 100;
 
     /**
-     * Map of avatarHash" to Avatar byte data
+     * The maximum width and height in pixels of the avatar thumbnails.
      */
-    private static final AvatarCacheMemory cacheAvatar = new AvatarCacheMemory(1000, -1);
+    public static final int THUMBNAIL_SIZE = 192;
+
+    /**
+     * Map of avatarHash" to Avatar byte data; bounded to 2MB of the recently used full size images.
+     */
+    private static final AvatarCacheMemory cacheAvatar = new AvatarCacheMemory(2 * 1024 * 1024);
+
+    /**
+     * Map of avatarHash" to the pre-scaled thumbnail of the Avatar, as displayed in the contact list and chats;
+     * bounded to 1/32 of the heap, i.e. the thumbnails of a couple of thousand contacts.
+     */
+    private static final AvatarCacheMemory cacheThumbnail
+            = new AvatarCacheMemory((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 32));
 
     /**
      * Use for the persistent avatar storage in additional to cacheAvatar
@@ -245,6 +260,108 @@ public class AvatarManager extends Manager
         return avatarImage;
     }
 
+    /**
+     * Get the thumbnail of the avatar image with the given avatarId, scaling and caching it on first access.
+     *
+     * @param avatarId the id of the avatar (Hash)
+     * @return the thumbnail (zero byte if no photo) or null if the avatar cannot be retrieved from the cache or file
+     */
+    public static byte[] getAvatarThumbnailByHash(String avatarId)
+    {
+        if (avatarId == null)
+            return null;
+        if (avatarId.length() == 0)
+            return new byte[0];
+
+        byte[] thumbnail = cacheThumbnail.getAvatarForHash(avatarId);
+        if (thumbnail == null) {
+            byte[] avatarImage = getAvatarImageByHash(avatarId);
+            if (avatarImage == null)
+                return null;
+
+            thumbnail = createThumbnail(avatarImage);
+            cacheThumbnail.addAvatarByHash(avatarId, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Get the thumbnail of the avatar of a jid.
+     *
+     * @param jid the user (BareJid)
+     * @return the thumbnail (can be zero byte) with found avatarId, otherwise null
+     */
+    public static byte[] getAvatarThumbnailByJid(BareJid jid)
+    {
+        String avatarId = getAvatarHashByJid(jid);
+        return (avatarId == null) ? null : getAvatarThumbnailByHash(avatarId);
+    }
+
+    /**
+     * Get the thumbnail of an avatar image e.g. just downloaded, through the thumbnail cache.
+     *
+     * @param avatarImage Byte[] value of avatar image data.
+     * @return the thumbnail; the avatarImage itself if empty or already small enough
+     */
+    public static byte[] getAvatarThumbnail(byte[] avatarImage)
+    {
+        if ((avatarImage == null) || (avatarImage.length == 0))
+            return avatarImage;
+
+        String avatarId = getAvatarHash(avatarImage);
+        if (TextUtils.isEmpty(avatarId))
+            return createThumbnail(avatarImage);
+
+        byte[] thumbnail = cacheThumbnail.getAvatarForHash(avatarId);
+        if (thumbnail == null) {
+            thumbnail = createThumbnail(avatarImage);
+            cacheThumbnail.addAvatarByHash(avatarId, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Scale down an avatar image to fit within {@link #THUMBNAIL_SIZE}; decoding it subsampled so that a
+     * large image is never fully decoded.
+     *
+     * @param avatarImage Byte[] value of avatar image data.
+     * @return the thumbnail; the avatarImage itself if already small enough or if it cannot be decoded
+     */
+    private static byte[] createThumbnail(byte[] avatarImage)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(avatarImage, 0, avatarImage.length, options);
+
+        int size = Math.max(options.outWidth, options.outHeight);
+        if (size <= THUMBNAIL_SIZE)
+            return avatarImage;
+
+        int sampleSize = 1;
+        while (size / (sampleSize * 2) >= THUMBNAIL_SIZE)
+            sampleSize *= 2;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(avatarImage, 0, avatarImage.length, options);
+        if (bitmap == null)
+            return avatarImage;
+
+        float scale = (float) THUMBNAIL_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale < 1) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale),
+                    Math.round(bitmap.getHeight() * scale), true);
+            if (scaled != bitmap)
+                bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
     /**
      * Get the Avatar for a jid. Returns the avatar or null if
      * AvatarManager does not have any information.
@@ -337,6 +454,7 @@ public class AvatarManager extends Manager
                 persistentAvatarCache.purgeItemFor(avatarId);
             }
             cacheAvatar.purgeItemFor(avatarId);
+            cacheThumbnail.purgeItemFor(avatarId);
         }
 
         if (persistentJidToHashIndex != null) {
@@ -451,6 +569,7 @@ public class AvatarManager extends Manager
                             persistentAvatarCache.purgeItemFor(imageHash);
 
                         cacheAvatar.purgeItemFor(imageHash);
+                        cacheThumbnail.purgeItemFor(imageHash);
                         cacheJidToAvatarId.remove(contactJid);
                     }
                 }
@@ -465,6 +584,7 @@ public class AvatarManager extends Manager
                 persistentJidToHashIndex.purgeItemFor(account);
 
                 cacheAvatar.purgeItemFor(imageHash);
+                cacheThumbnail.purgeItemFor(imageHash);
                 cacheJidToAvatarId.remove(account);
             }
         }
@@ -481,6 +601,8 @@ public class AvatarManager extends Manager
             persistentJidToHashIndex.emptyCache();
         if (persistentAvatarCache != null)
             persistentAvatarCache.emptyCache();
+        cacheAvatar.emptyCache();
+        cacheThumbnail.emptyCache();
     }
 
     /**
@@ -18,21 +18,40 @@
 package org.jivesoftware.smackx.avatar.cache;
 
 import java.io.*;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.*;
 
-import static org.jivesoftware.smackx.privacy.packet.PrivacyItem.Type.jid;
-
 /**
  * An implementation of an AvatarCache which stores the data of the filesystem.
  * The stored item is retrieve using an id usually the image Hash value
  *
+ * The names of the stored items are indexed in memory from a single listing of the store directory
+ * on creation, so that a lookup of a missing avatar never touches the filesystem; the items are
+ * read in a single exact-size read and written via a temporary file so that a partial write is
+ * never taken for an avatar.
+ *
+ * There is no separate index file: the directory, whose entries are named by the item hashes, is
+ * the on-disk index, and it is listed once. An index file would duplicate the directory entries
+ * and would have to be rewritten atomically on every add and purge to stay consistent after a
+ * crash, while the store directory is shared with {@link JidToHashCacheFile}, which writes its own
+ * files there. The memory caches are byte-budgeted and keep scaled thumbnails, so the size of the
+ * roster does not drive the memory used.
+ *
  * @author Eng Chong Meng
  */
 public class AvatarCacheFile implements AvatarCache
 {
 	private static final Logger LOGGER = Logger.getLogger(AvatarCacheFile.class.getName());
+	private static final String TMP_SUFFIX = ".tmp";
 	private File mStoreDir;
 
+	/**
+	 * The index of the names of the items in the store directory.
+	 */
+	private final Set<String> mIndex = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
 	/**
 	 * Create a FileVCardAvatarCache.
 	 *
@@ -45,6 +64,16 @@ public class AvatarCacheFile implements AvatarCache
 			throw new IllegalArgumentException("The store directory must be a directory");
 		mStoreDir = storeDir;
 		mStoreDir.mkdirs();
+
+		String[] names = mStoreDir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(TMP_SUFFIX))
+					new File(mStoreDir, name).delete();
+				else
+					mIndex.add(name);
+			}
+		}
 	}
 
 	/**
@@ -58,103 +87,84 @@ public class AvatarCacheFile implements AvatarCache
 	@Override
 	public void addAvatarByHash(String id, byte[] data)
 	{
-		File file = new File(mStoreDir, id);
+		// data == null if storage permission in not granted
+		if (data == null)
+			return;
+
+		File tmpFile = new File(mStoreDir, id + TMP_SUFFIX);
 		OutputStream os = null;
 		try {
-			os = new BufferedOutputStream(new FileOutputStream(file));
-			// os == null if storage permission in not granted
-			if ((os != null) && (data != null))
-    			os.write(data);
+			os = new FileOutputStream(tmpFile);
+			os.write(data);
+			os.close();
+			os = null;
+			commit(tmpFile, id);
 		}
 		catch (IOException e) {
 			LOGGER.log(Level.SEVERE, "Failed to write photo avatar to file", e);
-		}
-		try {
 		} finally {
-			if (os != null) {
-				try {
-					os.close();
-				}
-				catch (IOException e) {
-					LOGGER.log(Level.WARNING, "Error while closing stream: " + jid, e);
-				}
-			}
+			close(os, id);
 		}
 	}
 
 	@Override
 	public void addAvatarByHash(String id, final InputStream in)
 	{
-		File file = new File(mStoreDir, id);
-
+		File tmpFile = new File(mStoreDir, id + TMP_SUFFIX);
 		OutputStream os = null;
 		try {
-			byte[] data = new byte[1024];
+			byte[] data = new byte[8192];
 			int nBread;
-			try {
-				os = new BufferedOutputStream(new FileOutputStream(file));
-				while ((nBread = in.read(data)) != -1) {
-					os.write(data, 0, nBread);
-				}
-			}
-			catch (IOException e) {
-				LOGGER.log(Level.SEVERE, "Failed to write photo avatar to file", e);
+			os = new FileOutputStream(tmpFile);
+			while ((nBread = in.read(data)) != -1) {
+				os.write(data, 0, nBread);
 			}
+			os.close();
+			os = null;
+			commit(tmpFile, id);
+		}
+		catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Failed to write photo avatar to file", e);
 		} finally {
-			try {
-				in.close();
-				if (os != null)
-					os.close();
-			}
-			catch (IOException e) {
-				LOGGER.log(Level.WARNING, "Error while closing stream: " + jid, e);
-			}
+			close(os, id);
+			close(in, id);
 		}
 	}
 
 	@Override
 	public byte[] getAvatarForHash(String id)
 	{
-		byte[] avatarImage = null;
-		File file = new File(mStoreDir, id);
-		if (!file.exists())
+		if (!mIndex.contains(id))
 			return null;
 
-		InputStream is = null;
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		File file = new File(mStoreDir, id);
+		DataInputStream is = null;
 		try {
+			is = new DataInputStream(new FileInputStream(file));
 			byte[] data = new byte[(int) file.length()];
-			try {
-				is = new BufferedInputStream(new FileInputStream(file));
-				is.read(data);
-				bos.write(data);
-			}
-			catch (IOException e) {
-				LOGGER.log(Level.WARNING, "Could not restore photo avatar from file", e);
-			}
+			is.readFully(data);
+			return data;
+		}
+		catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not restore photo avatar from file", e);
+			if (!file.exists())
+				mIndex.remove(id);
+			return null;
 		} finally {
-			try {
-				if (is != null)
-					is.close();
-			}
-			catch (IOException ioe) {
-				System.out.println("Error while closing stream: " + ioe);
-			}
+			close(is, id);
 		}
-		avatarImage = bos.toByteArray();
-		return avatarImage;
 	}
 
 	@Override
 	public boolean contains(String photoHash)
 	{
-		File file = new File(mStoreDir, photoHash);
-		return file.exists();
+		return mIndex.contains(photoHash);
 	}
 
 	@Override
 	public boolean purgeItemFor(String photoHash)
 	{
+		mIndex.remove(photoHash);
 		File file = new File(mStoreDir, photoHash);
 		return file.exists() && file.delete();
 	}
@@ -162,11 +172,44 @@ public class AvatarCacheFile implements AvatarCache
 	@Override
 	public boolean emptyCache()
 	{
+		mIndex.clear();
 		File[] files = mStoreDir.listFiles();
 		boolean status = true;
-		for (File file : files) {
-			status = file.delete();
+		if (files != null) {
+			for (File file : files) {
+				status = file.delete();
+			}
 		}
 		return status;
 	}
+
+	/**
+	 * Move the fully written temporary file in place of the item and index it.
+	 *
+	 * @param tmpFile the temporary file
+	 * @param id the key id of the item
+	 * @throws IOException if the temporary file cannot be renamed
+	 */
+	private void commit(File tmpFile, String id)
+			throws IOException
+	{
+		File file = new File(mStoreDir, id);
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Failed to rename " + tmpFile + " to " + file);
+		}
+		mIndex.add(id);
+	}
+
+	private static void close(Closeable stream, String id)
+	{
+		if (stream != null) {
+			try {
+				stream.close();
+			}
+			catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Error while closing stream: " + id, e);
+			}
+		}
+	}
 }
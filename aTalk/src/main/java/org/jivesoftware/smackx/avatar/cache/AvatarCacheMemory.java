@@ -17,40 +17,45 @@
 
 package org.jivesoftware.smackx.avatar.cache;
 
-import org.jxmpp.util.cache.LruCache;
+import android.util.LruCache;
 
 import java.io.*;
 
 /**
- * An avatar cache which store the avatars in memory.
+ * An avatar cache which store the avatars in memory, bounded by the total size in bytes of the
+ * avatars rather than by their number, so that a few large images cannot exhaust the heap.
  *
  * @author Eng Chong Meng
  *
  */
 public class AvatarCacheMemory implements AvatarCache
 {
-	private static final int BUFFER_SIZE = 1024;
-	private LruCache<String, byte[]> mCache;
+	private static final int BUFFER_SIZE = 8192;
+	private final LruCache<String, byte[]> mCache;
 
 	/**
 	 * Create a MemoryVCardAvatarCache.
 	 *
-	 * @param maxSize
-	 * 		the maximum number of objects the cache will hold. -1 means the cache has no max size.
-	 * @param maxLifeTime
-	 * 		the maximum amount of time (in ms) objects can exist in cache before being deleted.
-	 * 		-1 means objects never expire.
+	 * @param maxBytes
+	 * 		the maximum total size in bytes of the avatars the cache will hold.
 	 */
-	public AvatarCacheMemory(final int maxSize, final long maxLifeTime)
+	public AvatarCacheMemory(final int maxBytes)
 	{
-		// mCache = new LruCache<String, byte[]>(maxSize, maxLifeTime);
-		mCache = new LruCache<String, byte[]>(maxSize);
+		mCache = new LruCache<String, byte[]>(maxBytes)
+		{
+			@Override
+			protected int sizeOf(String photoHash, byte[] data)
+			{
+				return Math.max(1, data.length);
+			}
+		};
 	}
 
 	@Override
 	public void addAvatarByHash(String photoHash, byte[] data)
 	{
-		mCache.put(photoHash, data);
+		if (data != null)
+			mCache.put(photoHash, data);
 	}
 
 	@Override
@@ -89,7 +94,7 @@ public class AvatarCacheMemory implements AvatarCache
 	@Override
 	public boolean contains(String photoHash)
 	{
-		return mCache.containsKey(photoHash);
+		return (mCache.get(photoHash) != null);
 	}
 
 	@Override
@@ -100,7 +105,7 @@ public class AvatarCacheMemory implements AvatarCache
 
 	@Override
 	public boolean emptyCache() {
-		mCache.clear();
+		mCache.evictAll();
 		return true;
 	}
 }
@@ -174,18 +174,20 @@ public class VCardAvatarManager extends AvatarManager
         if (userId == null)
             userId = mAccount;
 
+        // Use a local copy as downloads for different contacts may run concurrently
+        VCard vCard = null;
         try {
-            mVCard = vCardMgr.loadVCard(userId.asEntityBareJidIfPossible());
+            vCard = vCardMgr.loadVCard(userId.asEntityBareJidIfPossible());
         } catch (SmackException.NoResponseException | XMPPException.XMPPErrorException
                 | SmackException.NotConnectedException | InterruptedException e) {
             LOGGER.log(Level.WARNING, "Error while downloading VCard for: '" + userId + "'. " + e.getMessage());
         }
 
-        if (mVCard != null) {
+        if (vCard != null) {
             String currentAvatarHash = getAvatarHashByJid(userId);
 
             String avatarHash = "";  // default to no photo specified
-            byte[] avatarImage = mVCard.getAvatar();
+            byte[] avatarImage = vCard.getAvatar();
             // Proceed only if vCard has photo specified. XEP-0084 will handle later on
             if ((avatarImage != null) && (avatarImage.length > 0)) {
                 // save if new image to persistent cache and get its avatarHash
@@ -217,7 +219,7 @@ public class VCardAvatarManager extends AvatarManager
             }
             LOGGER.log(Level.INFO, "Downloaded vcard info for: " + userId + "; Hash = " + avatarHash);
         }
-        return mVCard;
+        return vCard;
     }
 
     /**
@@ -98,12 +98,13 @@ public class ColibriBuilder
     private static boolean copyDescription(RtpDescription description, ColibriConferenceIQ.Channel channel)
     {
         boolean added = false;
+        // Shared rather than cloned per channel; the XML of each is then serialized only once
         for (PayloadType payloadType : description.getChildElements(PayloadType.class)) {
-            channel.addPayloadType(PayloadType.clone(payloadType));
+            channel.addPayloadType(payloadType);
             added = true;
         }
         for (RtpHeader rtpHdrExt : description.getChildElements(RtpHeader.class)) {
-            channel.addRtpHeaderExtension(RtpHeader.clone(rtpHdrExt));
+            channel.addRtpHeaderExtension(rtpHdrExt);
             added = true;
         }
         return added;
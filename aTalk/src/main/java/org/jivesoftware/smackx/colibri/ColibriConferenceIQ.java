@@ -680,23 +680,21 @@ public class ColibriConferenceIQ extends IQ
         {
             Objects.requireNonNull(ext, "ext");
 
-            // Create a new instance, because we are going to modify the NS
-            // Make sure that the parent namespace (COLIBRI) is used.
-            RtpHeader newExt = RtpHeader.clone(ext);
-
+            // The element is kept as is, not cloned, so that the same header extensions shared by
+            // the channels are serialized only once; see AbstractXmlElement#toXML().
             int id = -1;
             try {
-                id = Integer.parseInt(newExt.getId());
+                id = Integer.parseInt(ext.getId());
             } catch (NumberFormatException ex) {
                 ex.printStackTrace();
             }
 
             // Only accept valid extension IDs (4-bits, 0xF reserved)
             if (id < 0 || id > 14) {
-                Timber.w("Failed to add an RTP header extension element with an invalid ID: %s", newExt.getId());
+                Timber.w("Failed to add an RTP header extension element with an invalid ID: %s", ext.getId());
                 return;
             }
-            rtpHeaders.put(id, newExt);
+            rtpHeaders.put(id, ext);
         }
 
         /**
@@ -1013,6 +1011,7 @@ public class ColibriConferenceIQ extends IQ
             for (int ssrc : ssrcs) {
                 xml.openElement(SSRC_ELEMENT);
                 xml.append(Long.toString(ssrc & 0xFFFFFFFFL));
+                xml.closeElement(SSRC_ELEMENT);
             }
             return xml;
         }
@@ -1731,9 +1730,10 @@ public class ColibriConferenceIQ extends IQ
 
             IceUdpTransport transport = getTransport();
             boolean hasTransport = (transport != null);
-            if (hasTransport || hasContent()) {
+            boolean hasContent = hasContent();
+            if (hasTransport || hasContent) {
                 xml.rightAngleBracket();
-                if (hasContent()) {
+                if (hasContent) {
                     printContent(xml);
                 }
                 if (hasTransport) {
@@ -16,7 +16,6 @@
  */
 package org.jivesoftware.smackx.httpfileupload;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -34,17 +33,20 @@ import java.util.Objects;
 import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import javax.crypto.NoSuchPaddingException;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.XMPPException.XMPPErrorException;
 
 import org.jivesoftware.smack.proxy.ProxyInfo;
+import org.jivesoftware.smack.util.Async;
 import org.jivesoftware.smackx.disco.ServiceDiscoveryManager;
 import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
 import org.jivesoftware.smackx.httpfileupload.UploadService.Version;
@@ -86,6 +88,21 @@ public final class HttpFileUploadManager extends Manager {
 
     private static final Logger LOGGER = Logger.getLogger(HttpFileUploadManager.class.getName());
 
+    /**
+     * Size of each chunk handed from the reader/encryptor stage to the network writer.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Number of chunks in flight between the two upload stages; bounds the memory used per upload.
+     */
+    private static final int CHUNK_COUNT = 4;
+
+    /**
+     * Minimum interval between two upload progress callbacks, so the UI is not flooded on fast links.
+     */
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
     static {
         XMPPConnectionRegistry.addConnectionCreationListener(connection -> getInstanceFor(connection));
     }
@@ -363,7 +380,7 @@ public final class HttpFileUploadManager extends Manager {
         }
 
         // The encrypted file will contain an extra block with the AEAD MAC.
-        long cipherFileLength = file.length() + 16;
+        long cipherFileLength = file.length() + OmemoMediaSharingUtils.LEN_TAG;
 
         final Slot slot = requestSlot(file.getName(), cipherFileLength, "application/octet-stream");
         URL slotUrl = slot.getGetUrl();
@@ -371,13 +388,11 @@ public final class HttpFileUploadManager extends Manager {
         // fresh AES key + iv
         byte[] key = OmemoMediaSharingUtils.generateRandomKey();
         byte[] iv = OmemoMediaSharingUtils.generateRandomIV();
-        Cipher cipher = OmemoMediaSharingUtils.encryptionCipherFrom(key, iv);
+        GCMBlockCipher gcm = OmemoMediaSharingUtils.encryptionEngineFrom(key, iv);
 
+        // encrypt the file on the fly while it is being uploaded; no cipher text copy is kept in memory or on disk
         FileInputStream fis = new FileInputStream(file);
-        // encrypt the file on the fly - encryption actually happens below in uploadFile()
-        CipherInputStream cis = new CipherInputStream(fis, cipher);
-
-        upload(cis, cipherFileLength, slot, listener);
+        upload(fis, gcm, cipherFileLength, slot, listener);
         return new AesgcmUrl(slotUrl, key, iv);
     }
 
@@ -495,6 +510,45 @@ public final class HttpFileUploadManager extends Manager {
     }
 
     private void upload(InputStream iStream, long fileSize, Slot slot, UploadProgressListener listener) throws IOException {
+        upload(iStream, null, fileSize, slot, listener);
+    }
+
+    /**
+     * Upload the given stream to the slot PUT URL. Reading (and encrypting if gcm is given) of the source runs on
+     * a separate thread, concurrently with the network write, and hands over the data in a small bounded set of
+     * reusable chunks; so the upload neither waits for the encryption nor needs extra storage for the cipher text.
+     *
+     * @param iStream the source stream, always closed on return
+     * @param gcm the AES-GCM engine in encryption mode, or null for a plain upload
+     * @param contentLength the number of bytes to be PUT i.e. including the GCM tag for encrypted upload
+     * @param slot the upload slot
+     * @param listener upload progress listener or null
+     * @throws IOException if an I/O error occurred in either of the stages
+     */
+    private void upload(InputStream iStream, GCMBlockCipher gcm, long contentLength, Slot slot,
+            UploadProgressListener listener) throws IOException {
+        // The reader stage closes the source once started; until then it is closed here.
+        final ChunkPipeline pipeline = new ChunkPipeline(iStream, gcm);
+        try {
+            upload(pipeline, contentLength, slot, listener);
+        }
+        finally {
+            if (!pipeline.isStarted()) {
+                try {
+                    iStream.close();
+                }
+                catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Exception while closing input stream", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * PUT the data of the given pipeline to the slot, starting the pipeline once the connection is open.
+     */
+    private void upload(ChunkPipeline pipeline, long contentLength, Slot slot, UploadProgressListener listener)
+            throws IOException {
         final URL putUrl = slot.getPutUrl();
         final XMPPConnection connection = connection();
         final HttpURLConnection urlConnection = createURLConnection(connection, putUrl);
@@ -502,7 +556,7 @@ public final class HttpFileUploadManager extends Manager {
         urlConnection.setRequestMethod("PUT");
         urlConnection.setUseCaches(false);
         urlConnection.setDoOutput(true);
-        urlConnection.setFixedLengthStreamingMode(fileSize);
+        urlConnection.setFixedLengthStreamingMode(contentLength);
         urlConnection.setRequestProperty("Content-Type", "application/octet-stream");
         for (Map.Entry<String, String> header : slot.getHeaders().entrySet()) {
             urlConnection.setRequestProperty(header.getKey(), header.getValue());
@@ -518,34 +572,35 @@ public final class HttpFileUploadManager extends Manager {
             OutputStream outputStream = urlConnection.getOutputStream();
 
             long bytesSend = 0;
+            long lastProgress = 0;
 
             if (listener != null) {
-                listener.onUploadProgress(0, fileSize);
+                listener.onUploadProgress(0, contentLength);
             }
 
-            BufferedInputStream inputStream = new BufferedInputStream(iStream);
-
-            // TODO Factor in extra static method (and re-use e.g. in bytestream code).
-            byte[] buffer = new byte[4096];
-            int bytesRead;
+            pipeline.start();
             try {
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                    bytesSend += bytesRead;
+                Chunk chunk;
+                while ((chunk = pipeline.take()) != null) {
+                    outputStream.write(chunk.data, 0, chunk.length);
+                    bytesSend += chunk.length;
+                    pipeline.recycle(chunk);
 
                     if (listener != null) {
-                        listener.onUploadProgress(bytesSend, fileSize);
+                        long now = System.currentTimeMillis();
+                        if (now - lastProgress >= PROGRESS_INTERVAL_MS) {
+                            lastProgress = now;
+                            listener.onUploadProgress(bytesSend, contentLength);
+                        }
                     }
                 }
+                outputStream.flush();
+                if (listener != null) {
+                    listener.onUploadProgress(bytesSend, contentLength);
+                }
             }
             finally {
-                try {
-                    inputStream.close();
-                }
-                // Must include IllegalStateException: GCM cipher cannot be reused for encryption (happen on Note-5)
-                catch (IOException | IllegalStateException e) {
-                    LOGGER.log(Level.WARNING, "Exception while closing input stream", e);
-                }
+                pipeline.stop();
                 try {
                     outputStream.close();
                 }
@@ -562,15 +617,148 @@ public final class HttpFileUploadManager extends Manager {
                 break;
             default:
                 throw new IOException("Error response " + status + " from server during file upload: "
-                                + urlConnection.getResponseMessage() + ", file size: " + fileSize + ", put URL: "
+                                + urlConnection.getResponseMessage() + ", file size: " + contentLength + ", put URL: "
                                 + putUrl);
             }
         }
         finally {
+            pipeline.stop();
             urlConnection.disconnect();
         }
     }
 
+    /**
+     * A unit of upload data exchanged between the reader and the writer stage.
+     */
+    private static final class Chunk {
+        // A chunk carries at most CHUNK_SIZE of source data plus a GCM block residue and the tag.
+        private final byte[] data = new byte[CHUNK_SIZE + 2 * OmemoMediaSharingUtils.LEN_TAG];
+        private int length;
+    }
+
+    /**
+     * Two stage upload pipeline: a reader thread fills (and optionally encrypts) chunks taken from a fixed free
+     * list and queues them for the network writer, which returns them to the free list once written.
+     */
+    private static final class ChunkPipeline implements Runnable {
+        private static final Chunk END = new Chunk();
+
+        private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+        private final BlockingQueue<Chunk> filledChunks = new ArrayBlockingQueue<>(CHUNK_COUNT + 1);
+        private final InputStream source;
+        private final GCMBlockCipher gcm;
+
+        private volatile Thread reader;
+        private volatile boolean started = false;
+        private volatile boolean stopped = false;
+        private volatile Exception failure;
+
+        ChunkPipeline(InputStream source, GCMBlockCipher gcm) {
+            this.source = source;
+            this.gcm = gcm;
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                freeChunks.add(new Chunk());
+            }
+        }
+
+        void start() {
+            started = true;
+            reader = Async.go(this, "HttpFileUpload reader");
+        }
+
+        /**
+         * Whether the reader stage has been started, and so owns the source stream.
+         */
+        boolean isStarted() {
+            return started;
+        }
+
+        /**
+         * Retrieves the next chunk to be written.
+         *
+         * @return the next chunk or null at the end of the stream
+         * @throws IOException if the reader stage failed or the wait was interrupted
+         */
+        Chunk take() throws IOException {
+            Chunk chunk;
+            try {
+                chunk = filledChunks.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for upload data", e);
+            }
+            if (chunk == END) {
+                Exception e = failure;
+                if (e instanceof IOException)
+                    throw (IOException) e;
+                else if (e != null)
+                    throw new IOException("Failed to prepare upload data: " + e.getMessage(), e);
+                return null;
+            }
+            return chunk;
+        }
+
+        void recycle(Chunk chunk) {
+            freeChunks.offer(chunk);
+        }
+
+        void stop() {
+            stopped = true;
+            Thread thread = reader;
+            if (thread != null) {
+                thread.interrupt();
+                reader = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] plain = (gcm == null) ? null : new byte[CHUNK_SIZE];
+            try {
+                while (!stopped) {
+                    Chunk chunk = freeChunks.take();
+                    int read;
+                    if (gcm == null) {
+                        read = source.read(chunk.data, 0, CHUNK_SIZE);
+                        chunk.length = Math.max(read, 0);
+                    }
+                    else {
+                        read = source.read(plain, 0, CHUNK_SIZE);
+                        chunk.length = (read > 0) ? gcm.processBytes(plain, 0, read, chunk.data, 0) : 0;
+                        if (read == -1) {
+                            chunk.length += gcm.doFinal(chunk.data, chunk.length);
+                        }
+                    }
+
+                    if (chunk.length > 0)
+                        filledChunks.put(chunk);
+                    else
+                        freeChunks.put(chunk);
+
+                    if (read == -1)
+                        break;
+                }
+            }
+            catch (InterruptedException e) {
+                // stopped by the writer
+            }
+            catch (IOException | InvalidCipherTextException | RuntimeException e) {
+                failure = e;
+            }
+            finally {
+                try {
+                    source.close();
+                }
+                catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Exception while closing input stream", e);
+                }
+                // filledChunks has one extra slot reserved for the end marker
+                filledChunks.offer(END);
+            }
+        }
+    }
+
     private static HttpURLConnection createURLConnection(XMPPConnection connection, URL putUrl) throws IOException {
         Objects.requireNonNull(connection);
         Objects.requireNonNull(putUrl);
@@ -62,7 +62,13 @@ public class AbstractXmlElement implements ExtensionElement
      */
     private final MultiMap<QName, ExtensionElement> elements;
 
-    private XmlStringBuilder xmlCache;
+    /**
+     * The XML of this element last serialized, reused by {@link #toXML(XmlEnvironment)} until this element
+     * is changed; so that an element shared by many stanzas e.g. the payload-types of all the channels of a
+     * colibri conference, is serialized only once.
+     */
+    private volatile XmlCache xmlCache;
+
     private final Builder<?, ?> mBuilder;
 
     /**
@@ -302,6 +308,7 @@ public class AbstractXmlElement implements ExtensionElement
         StringUtils.requireNotNullNorEmpty(name, "Attribute name must be set");
         if (value != null) {
             attributes.put(name, value);
+            xmlCache = null;
         }
     }
 
@@ -314,6 +321,7 @@ public class AbstractXmlElement implements ExtensionElement
     public void removeAttribute(String name)
     {
         attributes.remove(name);
+        xmlCache = null;
     }
 
     public void addChildElement(ExtensionElement element)
@@ -321,6 +329,7 @@ public class AbstractXmlElement implements ExtensionElement
         QName key = element.getQName();
         if (elements != null) {
             elements.put(key, element);
+            xmlCache = null;
         }
         else {
             LOGGER.log(Level.SEVERE, "Element Name: " + element.getElementName());
@@ -330,6 +339,7 @@ public class AbstractXmlElement implements ExtensionElement
     public Boolean removeChildElement(ExtensionElement element)
     {
         QName key = element.getQName();
+        xmlCache = null;
         return (elements != null) && (elements.remove(key) != null);
     }
 
@@ -339,12 +349,25 @@ public class AbstractXmlElement implements ExtensionElement
     {
     }
 
+    /**
+     * Returns the XML of this element. The XML is cached per enclosing namespace, as the xmlns attribute
+     * is omitted when it is the same; and the cache is dropped when an attribute or a child element of
+     * this element is changed. Note a change made within a child element is not seen by a parent
+     * element already serialized, so build a new parent instead.
+     *
+     * @param enclosingNamespace the XML environment this element is serialized in
+     * @return the XML of this element
+     */
     @Override
     public XmlStringBuilder toXML(XmlEnvironment enclosingNamespace)
     {
-        if (xmlCache != null) {
-            return xmlCache;
+        String enclosingNs = (enclosingNamespace == null) ? null : enclosingNamespace.getEffectiveNamespace();
+        XmlCache cache = xmlCache;
+        if ((cache != null) && ((enclosingNs == null) ? (cache.enclosingNamespace == null)
+                : enclosingNs.equals(cache.enclosingNamespace))) {
+            return cache.xml;
         }
+
         XmlStringBuilder xml = new XmlStringBuilder(this, enclosingNamespace);
         addExtraAttributes(xml);
 
@@ -370,10 +393,25 @@ public class AbstractXmlElement implements ExtensionElement
             xml.closeEmptyElement();
         }
 
-        xmlCache = xml;
+        xmlCache = new XmlCache(enclosingNs, xml);
         return xml;
     }
 
+    /**
+     * The XML of an element serialized within an enclosing namespace.
+     */
+    private static final class XmlCache
+    {
+        final String enclosingNamespace;
+        final XmlStringBuilder xml;
+
+        XmlCache(String enclosingNamespace, XmlStringBuilder xml)
+        {
+            this.enclosingNamespace = enclosingNamespace;
+            this.xml = xml;
+        }
+    }
+
     public abstract static class Builder<B extends Builder<B, C>, C extends AbstractXmlElement>
     {
         private final String element;
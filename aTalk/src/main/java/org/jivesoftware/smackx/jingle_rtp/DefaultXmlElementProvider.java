@@ -26,6 +26,7 @@ import org.jivesoftware.smack.xml.XmlPullParserException;
 import org.jivesoftware.smackx.AbstractExtensionElement;
 
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,6 +46,12 @@ public class DefaultXmlElementProvider<EE extends AbstractXmlElement> extends Ex
      */
     private final Class<EE> stanzaClass;
 
+    /**
+     * The no-arg constructor of {@link #stanzaClass}, looked up once rather than for every element parsed;
+     * <code>null</code> if there is none.
+     */
+    private final Constructor<EE> stanzaConstructor;
+
     private final String nameSpace;
 
     private static final Logger LOGGER = Logger.getLogger(DefaultXmlElementProvider.class.getName());
@@ -59,12 +66,19 @@ public class DefaultXmlElementProvider<EE extends AbstractXmlElement> extends Ex
     {
         stanzaClass = c;
         this.nameSpace = nameSpace;
+
+        Constructor<EE> constructor = null;
+        try {
+            constructor = c.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            LOGGER.log(Level.WARNING, "No default constructor for stanza class: " + c.getName());
+        }
+        stanzaConstructor = constructor;
     }
 
     public DefaultXmlElementProvider(Class<EE> c)
     {
-        stanzaClass = c;
-        nameSpace = null;
+        this(c, null);
     }
 
     /**
@@ -80,10 +94,14 @@ public class DefaultXmlElementProvider<EE extends AbstractXmlElement> extends Ex
     public EE parse(XmlPullParser parser, int depth, XmlEnvironment xmlEnvironment)
             throws IOException, XmlPullParserException, SmackParsingException
     {
-        EE stanzaExtension;
-        try {
-            stanzaExtension = stanzaClass.getDeclaredConstructor().newInstance();
-        } catch (IllegalAccessException | InstantiationException | NoSuchMethodException | InvocationTargetException ignore) {
+        EE stanzaExtension = null;
+        if (stanzaConstructor != null) {
+            try {
+                stanzaExtension = stanzaConstructor.newInstance();
+            } catch (IllegalAccessException | InstantiationException | InvocationTargetException ignore) {
+            }
+        }
+        if (stanzaExtension == null) {
             LOGGER.log(Level.WARNING, "Unknown stanza class: " + parser.getName());
             return null;
         }
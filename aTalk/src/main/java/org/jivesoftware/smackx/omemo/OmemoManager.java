@@ -25,19 +25,29 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.atalk.util.concurrent.ExecutorFactory;
+import org.atalk.util.concurrent.KeyedSerialExecutor;
 import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.Manager;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.StanzaFilter;
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.MessageBuilder;
@@ -76,7 +86,10 @@ import org.jivesoftware.smackx.omemo.util.MessageOrOmemoMessage;
 import org.jivesoftware.smackx.omemo.util.OmemoConstants;
 import org.jivesoftware.smackx.pep.PepEventListener;
 import org.jivesoftware.smackx.pep.PepManager;
+import org.jivesoftware.smackx.pubsub.LeafNode;
+import org.jivesoftware.smackx.pubsub.PayloadItem;
 import org.jivesoftware.smackx.pubsub.PubSubException;
+import org.jivesoftware.smackx.pubsub.PubSubManager;
 import org.jivesoftware.smackx.pubsub.packet.PubSub;
 
 import org.jxmpp.jid.BareJid;
@@ -84,6 +97,7 @@ import org.jxmpp.jid.DomainBareJid;
 import org.jxmpp.jid.EntityBareJid;
 import org.jxmpp.jid.EntityFullJid;
 import org.jxmpp.jid.FullJid;
+import org.jxmpp.jid.Jid;
 
 /**
  * Manager that allows sending messages encrypted with OMEMO.
@@ -99,8 +113,36 @@ public final class OmemoManager extends Manager implements JingleEnvelopeManager
     private static final Integer UNKNOWN_DEVICE_ID = -1;
 
     private static final WeakHashMap<XMPPConnection, TreeMap<Integer, OmemoManager>> INSTANCES = new WeakHashMap<>();
+
+    /**
+     * The maximum number of bundle and deviceList fetches run concurrently when encrypting.
+     */
+    private static final int MAX_CONCURRENT_FETCHES = 8;
+
+    /**
+     * The minimum interval at which the empty deviceList of a recipient is fetched again when encrypting.
+     */
+    private static final long DEVICE_LIST_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The pool which fetches the bundles and deviceLists of the recipients of a message concurrently.
+     */
+    private static final ExecutorService FETCH_EXECUTOR
+            = ExecutorFactory.createFixedThreadPool(MAX_CONCURRENT_FETCHES, "OmemoFetch-");
+
     private final OmemoService<?, ?, ?, ?, ?, ?, ?, ?, ?> service;
 
+    /**
+     * The fetches in progress, by the device whose session is being built or by the contact whose deviceList is
+     * being refreshed, so that concurrent messages to the same recipients share them.
+     */
+    private final HashMap<Object, Future<?>> pendingFetches = new HashMap<>();
+
+    /**
+     * The times the empty deviceLists of recipients have last been fetched.
+     */
+    private final HashMap<BareJid, Long> deviceListRefreshTimes = new HashMap<>();
+
     private final HashSet<OmemoMessageListener> omemoMessageListeners = new HashSet<>();
     private final HashSet<OmemoMucMessageListener> omemoMucMessageListeners = new HashSet<>();
 
@@ -108,6 +150,12 @@ public final class OmemoManager extends Manager implements JingleEnvelopeManager
 
     private OmemoTrustCallback trustCallback;
 
+    /**
+     * Accepts the received OMEMO messages which are not to be decrypted, e.g. already retrieved from the message
+     * archive; null to decrypt them all.
+     */
+    private volatile StanzaFilter receivedMessageFilter;
+
     private BareJid ownJid;
     private Integer deviceId;
 
@@ -321,6 +369,10 @@ public final class OmemoManager extends Manager implements JingleEnvelopeManager
 
     /**
      * OMEMO encrypt a cleartext message for multiple recipients.
+     * The unknown deviceLists and the bundles of the recipient devices without a session are fetched concurrently;
+     * the sessions are built and the message key is encrypted for each device with the lock of this manager held, so
+     * that the ratchets of the sessions advance in the order the messages are sent. The devices with which no
+     * session could be built are reported as skipped by the returned message.
      *
      * @param recipients recipients barejids
      * @param message text to encrypt
@@ -334,16 +386,214 @@ public final class OmemoManager extends Manager implements JingleEnvelopeManager
      * @throws SmackException.NotLoggedInException if the XMPP connection is not authenticated.
      * @throws IOException if an I/O error occurred.
      */
-    public synchronized OmemoMessage.Sent encrypt(Set<BareJid> recipients, String message)
+    public OmemoMessage.Sent encrypt(Set<BareJid> recipients, String message)
             throws CryptoFailedException, UndecidedOmemoIdentityException,
             InterruptedException, SmackException.NotConnectedException,
             SmackException.NoResponseException, SmackException.NotLoggedInException, IOException {
         LoggedInOmemoManager guard = new LoggedInOmemoManager(this);
+        refreshEmptyDeviceLists(recipients);
+
         Set<OmemoDevice> devices = getDevicesOf(getOwnJid());
         for (BareJid recipient : recipients) {
             devices.addAll(getDevicesOf(recipient));
         }
-        return service.createOmemoMessage(guard, devices, message);
+        // Leave out the devices we could not build a session with, rather than have the service retry them one by one
+        Map<OmemoDevice, Throwable> failed = buildMissingSessions(devices);
+        devices.removeAll(failed.keySet());
+
+        OmemoMessage.Sent sent;
+        synchronized (this) {
+            sent = service.createOmemoMessage(guard, devices, message);
+        }
+        sent.getSkippedDevices().putAll(failed);
+        return sent;
+    }
+
+    /**
+     * Fetches concurrently the deviceLists of the recipients of whom none is known, at most once every
+     * {@link #DEVICE_LIST_REFRESH_INTERVAL} per recipient.
+     *
+     * @param recipients the recipients of a message
+     *
+     * @throws InterruptedException if the calling thread was interrupted.
+     * @throws IOException if an I/O error occurred.
+     */
+    private void refreshEmptyDeviceLists(Set<BareJid> recipients)
+            throws InterruptedException, IOException {
+        final XMPPConnection connection = connection();
+        final OmemoDevice ownDevice = getOwnDevice();
+        long now = System.currentTimeMillis();
+
+        HashMap<Object, Future<?>> fetches = new HashMap<>();
+        for (final BareJid recipient : recipients) {
+            if (recipient.equals(getOwnJid()) || !getDevicesOf(recipient).isEmpty()) {
+                continue;
+            }
+            synchronized (deviceListRefreshTimes) {
+                Long refreshTime = deviceListRefreshTimes.get(recipient);
+                if (refreshTime != null && now - refreshTime < DEVICE_LIST_REFRESH_INTERVAL) {
+                    continue;
+                }
+                deviceListRefreshTimes.put(recipient, now);
+            }
+            fetches.put(recipient, fetchOnce(recipient, new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return getOmemoService().refreshDeviceList(connection, ownDevice, recipient);
+                }
+            }));
+        }
+        awaitFetches(fetches);
+    }
+
+    /**
+     * Builds the sessions with the devices which have none. Their bundles are fetched concurrently, and processed
+     * with the lock of this manager held, as are the other changes of the sessions in the store.
+     *
+     * @param devices the recipient devices of a message
+     * @return the devices with which no session could be built, with the reason
+     *
+     * @throws InterruptedException if the calling thread was interrupted.
+     * @throws IOException if an I/O error occurred.
+     */
+    private Map<OmemoDevice, Throwable> buildMissingSessions(Set<OmemoDevice> devices)
+            throws InterruptedException, IOException {
+        final XMPPConnection connection = connection();
+        final OmemoDevice ownDevice = getOwnDevice();
+        OmemoStore<?, ?, ?, ?, ?, ?, ?, ?, ?> store = getOmemoService().getOmemoStoreBackend();
+
+        HashMap<OmemoDevice, Future<?>> fetches = new HashMap<>();
+        for (final OmemoDevice device : devices) {
+            if (device.equals(ownDevice) || store.loadRawSession(ownDevice, device) != null) {
+                continue;
+            }
+            fetches.put(device, fetchOnce(device, new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return fetchBundle(connection, device);
+                }
+            }));
+        }
+
+        HashMap<OmemoDevice, Throwable> failed = new HashMap<>();
+        HashMap<OmemoDevice, OmemoBundleElement> bundles = new HashMap<>();
+        for (Map.Entry<OmemoDevice, Future<?>> fetch : fetches.entrySet()) {
+            OmemoDevice device = fetch.getKey();
+            try {
+                bundles.put(device, (OmemoBundleElement) fetch.getValue().get());
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.WARNING, "Could not fetch the bundle of " + device, e.getCause());
+                failed.put(device, new CannotEstablishOmemoSessionException(device, e.getCause()));
+            }
+        }
+
+        synchronized (this) {
+            for (Map.Entry<OmemoDevice, OmemoBundleElement> bundle : bundles.entrySet()) {
+                OmemoDevice device = bundle.getKey();
+                // Another message may have built the session meanwhile.
+                if (store.loadRawSession(ownDevice, device) != null) {
+                    continue;
+                }
+                try {
+                    processBundle(getOmemoService(), bundle.getValue(), device);
+                } catch (CorruptedOmemoKeyException | CannotEstablishOmemoSessionException e) {
+                    LOGGER.log(Level.WARNING, "Could not build session with " + device, e);
+                    failed.put(device, e);
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Fetches the last bundle published by a device.
+     *
+     * @param connection our connection
+     * @param device the device to fetch the bundle of
+     * @return the bundle of the device
+     *
+     * @throws Exception if the bundle could not be fetched, or the device has published none.
+     */
+    private static OmemoBundleElement fetchBundle(XMPPConnection connection, OmemoDevice device)
+            throws Exception {
+        LeafNode node = PubSubManager.getInstanceFor(connection, device.getJid()).getLeafNode(device.getBundleNodeName());
+        List<PayloadItem<OmemoBundleElement>> items = node.getItems();
+        if (items.isEmpty()) {
+            throw new CannotEstablishOmemoSessionException(device, new IllegalStateException("No bundle published"));
+        }
+        return items.get(items.size() - 1).getPayload();
+    }
+
+    /**
+     * Builds a session with a device from a random preKey bundle of those it has published.
+     * Must be called with the lock of this manager held.
+     *
+     * @param service the OMEMO service of this manager
+     * @param bundleElement the bundle of the device
+     * @param device the device to build a session with
+     *
+     * @throws CorruptedOmemoKeyException if a key of the bundle is corrupted.
+     * @throws CannotEstablishOmemoSessionException if the bundle has no preKeys.
+     */
+    private <T_Bundle> void processBundle(OmemoService<?, ?, ?, ?, ?, ?, ?, T_Bundle, ?> service,
+            OmemoBundleElement bundleElement, OmemoDevice device)
+            throws CorruptedOmemoKeyException, CannotEstablishOmemoSessionException {
+        HashMap<Integer, T_Bundle> bundles = service.getOmemoStoreBackend().keyUtil().BUNDLE.bundles(bundleElement, device);
+        if (bundles.isEmpty()) {
+            throw new CannotEstablishOmemoSessionException(device, new IllegalStateException("No preKey in bundle"));
+        }
+        List<T_Bundle> preKeyBundles = new ArrayList<>(bundles.values());
+        service.processBundle(this, preKeyBundles.get(new Random().nextInt(preKeyBundles.size())), device);
+    }
+
+    /**
+     * Runs a fetch on {@link #FETCH_EXECUTOR}, unless a fetch with the same key is already in progress.
+     *
+     * @param key the device or contact the fetch is for
+     * @param fetch the fetch
+     * @return the future of the fetch in progress for <code>key</code>
+     */
+    private Future<?> fetchOnce(final Object key, Callable<Object> fetch) {
+        synchronized (pendingFetches) {
+            Future<?> pending = pendingFetches.get(key);
+            if (pending != null) {
+                return pending;
+            }
+
+            FutureTask<Object> task = new FutureTask<Object>(fetch) {
+                @Override
+                protected void done() {
+                    synchronized (pendingFetches) {
+                        if (pendingFetches.get(key) == this) {
+                            pendingFetches.remove(key);
+                        }
+                    }
+                }
+            };
+            pendingFetches.put(key, task);
+            FETCH_EXECUTOR.execute(task);
+            return task;
+        }
+    }
+
+    /**
+     * Waits for fetches to complete. A failed fetch is only logged: its key is not fetched again before
+     * its refresh interval has elapsed, so that a recipient without a deviceList is not queried for
+     * every message.
+     *
+     * @param fetches the fetches by their key
+     *
+     * @throws InterruptedException if the calling thread was interrupted.
+     */
+    private static void awaitFetches(Map<Object, Future<?>> fetches)
+            throws InterruptedException {
+        for (Map.Entry<Object, Future<?>> fetch : fetches.entrySet()) {
+            try {
+                fetch.getValue().get();
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.FINE, "OMEMO fetch failed for " + fetch.getKey(), e.getCause());
+            }
+        }
     }
 
     /**
@@ -363,7 +613,7 @@ public final class OmemoManager extends Manager implements JingleEnvelopeManager
      * @throws SmackException.NotLoggedInException if the XMPP connection is not authenticated.
      * @throws IOException if an I/O error occurred.
      */
-    public synchronized OmemoMessage.Sent encrypt(MultiUserChat muc, String message)
+    public OmemoMessage.Sent encrypt(MultiUserChat muc, String message)
             throws UndecidedOmemoIdentityException, CryptoFailedException,
             XMPPException.XMPPErrorException, SmackException.NotConnectedException, InterruptedException,
             SmackException.NoResponseException, NoOmemoSupportException,
@@ -661,6 +911,32 @@ public final class OmemoManager extends Manager implements JingleEnvelopeManager
         return fingerprints;
     }
 
+    /**
+     * Set the filter of the received OMEMO messages which are not to be decrypted, e.g. because they have already been
+     * retrieved from the message archive. The filter is applied with the lock of this manager held, as the decryption.
+     *
+     * @param filter the filter accepting the messages to skip, or null to decrypt all messages
+     */
+    public void setReceivedMessageFilter(StanzaFilter filter) {
+        receivedMessageFilter = filter;
+    }
+
+    /**
+     * Determines whether a received OMEMO message is to be skipped rather than decrypted.
+     * Must be called with the lock of this manager held.
+     *
+     * @param message the received message, or the carbon copy
+     * @return true if the {@link #setReceivedMessageFilter(StanzaFilter) filter} accepts the message
+     */
+    private boolean isReceivedMessageSkipped(Stanza message) {
+        StanzaFilter filter = receivedMessageFilter;
+        if (filter != null && filter.accept(message)) {
+            LOGGER.log(Level.FINE, "Skip OMEMO message already received: " + message.getStanzaId());
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Add an OmemoMessageListener. This listener will be informed about incoming OMEMO messages
      * (as well as KeyTransportMessages) and OMEMO encrypted message carbons.
@@ -961,16 +1237,22 @@ public final class OmemoManager extends Manager implements JingleEnvelopeManager
 
     /**
      * StanzaListener that listens for incoming Stanzas which contain OMEMO elements.
+     * The decryption is done off the delivery thread, in order per conversation.
      */
     private void internalOmemoMessageStanzaListener(final Stanza packet) {
-        Async.go(new Runnable() {
+        KeyedSerialExecutor.getInstance().execute(getConversationJid(packet.getFrom()), new Runnable() {
             @Override
             public void run() {
-                try {
-                    getOmemoService().onOmemoMessageStanzaReceived(packet,
-                            new LoggedInOmemoManager(OmemoManager.this));
-                } catch (SmackException.NotLoggedInException | IOException e) {
-                    LOGGER.log(Level.SEVERE, "Exception while processing OMEMO stanza", e);
+                synchronized (OmemoManager.this) {
+                    if (isReceivedMessageSkipped(packet)) {
+                        return;
+                    }
+                    try {
+                        getOmemoService().onOmemoMessageStanzaReceived(packet,
+                                new LoggedInOmemoManager(OmemoManager.this));
+                    } catch (SmackException.NotLoggedInException | IOException e) {
+                        LOGGER.log(Level.SEVERE, "Exception while processing OMEMO stanza", e);
+                    }
                 }
             }
         });
@@ -978,25 +1260,43 @@ public final class OmemoManager extends Manager implements JingleEnvelopeManager
 
     /**
      * CarbonCopyListener that listens for incoming carbon copies which contain OMEMO elements.
+     * Ordered with the other messages of the conversation, keyed by the contact of the carbon copy.
      */
     private void internalOmemoCarbonCopyListener(final CarbonExtension.Direction direction,
                     final Message carbonCopy,
                     final Message wrappingMessage) {
-        Async.go(new Runnable() {
+        Jid peer = (direction == CarbonExtension.Direction.sent) ? carbonCopy.getTo() : carbonCopy.getFrom();
+        KeyedSerialExecutor.getInstance().execute(getConversationJid(peer), new Runnable() {
             @Override
             public void run() {
                 if (isOmemoMessage(carbonCopy)) {
-                    try {
-                        getOmemoService().onOmemoCarbonCopyReceived(direction, carbonCopy, wrappingMessage,
-                                new LoggedInOmemoManager(OmemoManager.this));
-                    } catch (SmackException.NotLoggedInException | IOException e) {
-                        LOGGER.log(Level.SEVERE, "Exception while processing OMEMO stanza", e);
+                    synchronized (OmemoManager.this) {
+                        if (isReceivedMessageSkipped(carbonCopy)) {
+                            return;
+                        }
+                        try {
+                            getOmemoService().onOmemoCarbonCopyReceived(direction, carbonCopy, wrappingMessage,
+                                    new LoggedInOmemoManager(OmemoManager.this));
+                        } catch (SmackException.NotLoggedInException | IOException e) {
+                            LOGGER.log(Level.SEVERE, "Exception while processing OMEMO stanza", e);
+                        }
                     }
                 }
             }
         });
     }
 
+    /**
+     * Get the key which orders the processing of the OMEMO messages of a conversation, i.e. the bare JID
+     * of the contact or of the MUC room.
+     *
+     * @param jid the peer jid of the message, may be null
+     * @return the bare jid, or null if jid is null
+     */
+    private static BareJid getConversationJid(Jid jid) {
+        return (jid == null) ? null : jid.asBareJid();
+    }
+
     @SuppressWarnings("UnnecessaryLambda")
     private final PepEventListener<OmemoDeviceListElement> pepOmemoDeviceListEventListener =
                     (from, receivedDeviceList, id, message) -> {
@@ -26,6 +26,10 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.jivesoftware.smack.util.RandomUtil;
 
 /**
@@ -37,6 +41,8 @@ public class OmemoMediaSharingUtils {
 
     private static final String KEYTYPE = "AES";
     private static final String CIPHERMODE = "AES/GCM/NoPadding";
+    // 128 bit authentication tag appended to the cipher text
+    public static final int LEN_TAG = 16;
     // 256 bit = 32 byte
     private static final int LEN_KEY = 32;
     private static final int LEN_KEY_BITS = LEN_KEY * 8;
@@ -93,6 +99,23 @@ public class OmemoMediaSharingUtils {
         return cipher;
     }
 
+    /**
+     * Create a streaming AES-GCM engine from a given key and iv which is in encryption mode.
+     * Unlike the JCE {@link Cipher} on Android, which may hold back the whole cipher text until doFinal(),
+     * the engine emits cipher text as soon as each block is processed, so large files can be encrypted
+     * while they are being uploaded without buffering the result in memory or in a temporary file.
+     *
+     * @param key aes encryption key
+     * @param iv initialization vector
+     *
+     * @return AES-GCM engine in encryption mode; the final {@link #LEN_TAG} bytes are emitted on doFinal()
+     */
+    public static GCMBlockCipher encryptionEngineFrom(byte[] key, byte[] iv) {
+        GCMBlockCipher gcm = new GCMBlockCipher(new AESEngine());
+        gcm.init(true, new AEADParameters(new KeyParameter(key), LEN_TAG * 8, iv));
+        return gcm;
+    }
+
     /**
      * Create a {@link Cipher} from a given key and iv which is in decryption mode.
      *
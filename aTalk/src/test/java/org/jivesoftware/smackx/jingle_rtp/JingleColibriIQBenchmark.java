@@ -0,0 +1,403 @@
+/*
+ * aTalk, android VoIP and Instant Messaging client
+ * Copyright 2014 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.jingle_rtp;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.XmlEnvironment;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smack.util.PacketParserUtils;
+import org.jivesoftware.smack.xml.XmlPullParser;
+import org.jivesoftware.smack.xml.stax.StaxXmlPullParserFactory;
+import org.jivesoftware.smackx.colibri.ColibriConferenceIQ;
+import org.jivesoftware.smackx.colibri.ColibriIQProvider;
+import org.jivesoftware.smackx.jingle.element.Jingle;
+import org.jivesoftware.smackx.jingle.element.JingleContent;
+import org.jivesoftware.smackx.jingle.provider.JingleContentProviderManager;
+import org.jivesoftware.smackx.jingle.provider.JingleProvider;
+import org.jivesoftware.smackx.jingle_rtp.element.Grouping;
+import org.jivesoftware.smackx.jingle_rtp.element.IceUdpTransport;
+import org.jivesoftware.smackx.jingle_rtp.element.IceUdpTransportCandidate;
+import org.jivesoftware.smackx.jingle_rtp.element.ParameterElement;
+import org.jivesoftware.smackx.jingle_rtp.element.PayloadType;
+import org.jivesoftware.smackx.jingle_rtp.element.RtcpFb;
+import org.jivesoftware.smackx.jingle_rtp.element.RtcpMux;
+import org.jivesoftware.smackx.jingle_rtp.element.RtpDescription;
+import org.jivesoftware.smackx.jingle_rtp.element.RtpHeader;
+import org.jivesoftware.smackx.jingle_rtp.element.SdpSource;
+import org.jivesoftware.smackx.jingle_rtp.element.SdpSourceGroup;
+import org.jivesoftware.smackx.jingle_rtp.element.SrtpFingerprint;
+import org.jivesoftware.smackx.jingle_rtp.provider.JingleRTPDescriptionProvider;
+import org.jivesoftware.smackx.jingle_rtp.provider.JingleRTPTransportProvider;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Timing harness for the Colibri and Jingle IQ providers and <code>toXML()</code> paths, run over IQs
+ * captured from a Jitsi-Meet conference (focus allocating bridge channels, and the session-initiate
+ * sent to a participant). Each IQ is first checked for a stable round trip, then parsed and serialized
+ * in a loop; the average cost per IQ is printed to stdout.
+ *
+ * The timing loops are skipped unless the <code>benchmark</code> system property is set, e.g.
+ * <code>./gradlew testDebugUnitTest -Dbenchmark=true</code>; the round trip checks always run. The
+ * iteration count defaults to 2000 and can be set with the <code>benchmark.iterations</code> system
+ * property, e.g. <code>-Dbenchmark.iterations=20000</code>.
+ *
+ * @author Eng Chong Meng
+ */
+public class JingleColibriIQBenchmark
+{
+    private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 2000);
+
+    /**
+     * Colibri conference result from the bridge: one audio and one video channel of a bundled
+     * endpoint, each with its payload-types, header extensions and sources.
+     */
+    private static final String COLIBRI_CONFERENCE_IQ
+            = "<iq xmlns='jabber:client' type='result' id='Xc9pB-41' from='jvb.meet.example.org'"
+            + " to='focus@auth.meet.example.org/focus'>"
+            + "<conference xmlns='http://jitsi.org/protocol/colibri' id='2f3a44b1c6e2d1a0' gid='ff0001'"
+            + " name='testroom@conference.meet.example.org'>"
+            + "<content name='audio'>"
+            + "<channel id='6b1e2c7a9d0f4e13' endpoint='5a7c9e1b' channel-bundle-id='5a7c9e1b'"
+            + " initiator='true' expire='180' direction='sendrecv' rtp-level-relay-type='translator'>"
+            + "<payload-type id='111' name='opus' clockrate='48000' channels='2'>"
+            + "<parameter name='minptime' value='10'/>"
+            + "<parameter name='useinbandfec' value='1'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='transport-cc'/>"
+            + "</payload-type>"
+            + "<payload-type id='103' name='ISAC' clockrate='16000' channels='1'/>"
+            + "<payload-type id='126' name='telephone-event' clockrate='8000' channels='1'/>"
+            + "<rtp-hdrext id='1' uri='urn:ietf:params:rtp-hdrext:ssrc-audio-level'/>"
+            + "<rtp-hdrext id='5' uri='http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01'/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0' ssrc='1843220817'>"
+            + "<parameter name='msid' value='5a7c9e1b-audio-1 a1b2c3d4-e5f6-4711-9abc-def012345678'/>"
+            + "</source>"
+            + "<ssrc>1843220817</ssrc>"
+            + "</channel>"
+            + "</content>"
+            + "<content name='video'>"
+            + "<channel id='9f3d2a1c7b6e5d40' endpoint='5a7c9e1b' channel-bundle-id='5a7c9e1b'"
+            + " initiator='true' expire='180' direction='sendrecv' rtp-level-relay-type='translator'"
+            + " last-n='20'>"
+            + "<payload-type id='100' name='VP8' clockrate='90000' channels='1'>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='ccm' subtype='fir'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='nack'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='nack' subtype='pli'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='goog-remb'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='transport-cc'/>"
+            + "</payload-type>"
+            + "<payload-type id='96' name='rtx' clockrate='90000' channels='1'>"
+            + "<parameter name='apt' value='100'/>"
+            + "</payload-type>"
+            + "<rtp-hdrext id='3' uri='http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time'/>"
+            + "<rtp-hdrext id='5' uri='http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01'/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0' ssrc='2417063551'/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0' ssrc='3362190126'/>"
+            + "<ssrc-group xmlns='urn:xmpp:jingle:apps:rtp:ssma:0' semantics='FID'>"
+            + "<source ssrc='2417063551'/>"
+            + "<source ssrc='3362190126'/>"
+            + "</ssrc-group>"
+            + "</channel>"
+            + "</content>"
+            + "<channel-bundle id='5a7c9e1b'/>"
+            + "<endpoint id='5a7c9e1b' stats-id='Wilford-3Yq'/>"
+            + "</conference>"
+            + "</iq>";
+
+    /**
+     * Jingle session-initiate from the focus: bundled audio and video contents, each with an
+     * ice-udp transport carrying the DTLS fingerprint and the bridge candidates.
+     */
+    private static final String JINGLE_SESSION_INITIATE_IQ
+            = "<iq xmlns='jabber:client' type='set' id='Xc9pB-57' from='testroom@conference.meet.example.org/focus'"
+            + " to='alice@meet.example.org/atalk-3f1c'>"
+            + "<jingle xmlns='urn:xmpp:jingle:1' action='session-initiate'"
+            + " initiator='focus@auth.meet.example.org/focus' sid='8g5r2ln3uq0be'>"
+            + "<content creator='initiator' name='audio' senders='both'>"
+            + "<description xmlns='urn:xmpp:jingle:apps:rtp:1' media='audio' maxptime='60'>"
+            + "<payload-type id='111' name='opus' clockrate='48000' channels='2'>"
+            + "<parameter name='minptime' value='10'/>"
+            + "<parameter name='useinbandfec' value='1'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='transport-cc'/>"
+            + "</payload-type>"
+            + "<payload-type id='103' name='ISAC' clockrate='16000' channels='1'/>"
+            + "<payload-type id='126' name='telephone-event' clockrate='8000' channels='1'/>"
+            + "<rtp-hdrext xmlns='urn:xmpp:jingle:apps:rtp:rtp-hdrext:0' id='1'"
+            + " uri='urn:ietf:params:rtp-hdrext:ssrc-audio-level'/>"
+            + "<rtp-hdrext xmlns='urn:xmpp:jingle:apps:rtp:rtp-hdrext:0' id='5'"
+            + " uri='http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01'/>"
+            + "<rtcp-mux/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0' ssrc='1843220817'>"
+            + "<parameter name='msid' value='5a7c9e1b-audio-1 a1b2c3d4-e5f6-4711-9abc-def012345678'/>"
+            + "</source>"
+            + "</description>"
+            + "<transport xmlns='urn:xmpp:jingle:transports:ice-udp:1' ufrag='2k8rc1fr2mbmpk' pwd='5ufv5hfu3jd0b1vq0ce1bc3ghu'>"
+            + "<fingerprint xmlns='urn:xmpp:jingle:apps:dtls:0' hash='sha-256' setup='actpass'>"
+            + "4A:D0:1B:33:C5:9E:71:0F:62:8A:27:D4:BE:11:90:5C:E3:48:AF:06:7D:12:C9:3B:55:80:EE:21:6F:94:A7:0C"
+            + "</fingerprint>"
+            + "<candidate component='1' foundation='1' generation='0' id='6b1e2c7a9d0f4e13a' network='0'"
+            + " ip='198.51.100.7' port='10000' priority='2130706431' protocol='udp' type='host'/>"
+            + "<candidate component='1' foundation='2' generation='0' id='6b1e2c7a9d0f4e13b' network='0'"
+            + " ip='203.0.113.25' port='10000' priority='1694498815' protocol='udp' type='srflx'"
+            + " rel-addr='198.51.100.7' rel-port='10000'/>"
+            + "</transport>"
+            + "</content>"
+            + "<content creator='initiator' name='video' senders='both'>"
+            + "<description xmlns='urn:xmpp:jingle:apps:rtp:1' media='video'>"
+            + "<payload-type id='100' name='VP8' clockrate='90000' channels='1'>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='ccm' subtype='fir'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='nack'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='nack' subtype='pli'/>"
+            + "<rtcp-fb xmlns='urn:xmpp:jingle:apps:rtp:rtcp-fb:0' type='transport-cc'/>"
+            + "</payload-type>"
+            + "<payload-type id='96' name='rtx' clockrate='90000' channels='1'>"
+            + "<parameter name='apt' value='100'/>"
+            + "</payload-type>"
+            + "<rtp-hdrext xmlns='urn:xmpp:jingle:apps:rtp:rtp-hdrext:0' id='3'"
+            + " uri='http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time'/>"
+            + "<rtp-hdrext xmlns='urn:xmpp:jingle:apps:rtp:rtp-hdrext:0' id='5'"
+            + " uri='http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01'/>"
+            + "<rtcp-mux/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0' ssrc='2417063551'/>"
+            + "<source xmlns='urn:xmpp:jingle:apps:rtp:ssma:0' ssrc='3362190126'/>"
+            + "<ssrc-group xmlns='urn:xmpp:jingle:apps:rtp:ssma:0' semantics='FID'>"
+            + "<source ssrc='2417063551'/>"
+            + "<source ssrc='3362190126'/>"
+            + "</ssrc-group>"
+            + "</description>"
+            + "<transport xmlns='urn:xmpp:jingle:transports:ice-udp:1' ufrag='2k8rc1fr2mbmpk' pwd='5ufv5hfu3jd0b1vq0ce1bc3ghu'>"
+            + "<fingerprint xmlns='urn:xmpp:jingle:apps:dtls:0' hash='sha-256' setup='actpass'>"
+            + "4A:D0:1B:33:C5:9E:71:0F:62:8A:27:D4:BE:11:90:5C:E3:48:AF:06:7D:12:C9:3B:55:80:EE:21:6F:94:A7:0C"
+            + "</fingerprint>"
+            + "<candidate component='1' foundation='1' generation='0' id='9f3d2a1c7b6e5d40a' network='0'"
+            + " ip='198.51.100.7' port='10000' priority='2130706431' protocol='udp' type='host'/>"
+            + "</transport>"
+            + "</content>"
+            + "<group xmlns='urn:xmpp:jingle:apps:grouping:0' semantics='BUNDLE'>"
+            + "<content name='audio'/>"
+            + "<content name='video'/>"
+            + "</group>"
+            + "</jingle>"
+            + "</iq>";
+
+    private static final StaxXmlPullParserFactory PARSER_FACTORY = new StaxXmlPullParserFactory();
+
+    /**
+     * Registers the same providers as <code>ProtocolProviderServiceJabberImpl</code> and
+     * <code>JingleCallManager</code> do for the elements used in the captured IQs; the latter
+     * needs a live connection so its registration cannot be reused here.
+     */
+    @BeforeClass
+    public static void registerProviders()
+    {
+        ProviderManager.addIQProvider(ColibriConferenceIQ.ELEMENT, ColibriConferenceIQ.NAMESPACE,
+                new ColibriIQProvider());
+        ProviderManager.addIQProvider(Jingle.ELEMENT, Jingle.NAMESPACE, new JingleProvider());
+
+        JingleContentProviderManager.addJingleContentDescriptionProvider(RtpDescription.NAMESPACE,
+                new JingleRTPDescriptionProvider());
+        JingleContentProviderManager.addJingleContentTransportProvider(IceUdpTransport.NAMESPACE,
+                new JingleRTPTransportProvider());
+
+        ProviderManager.addExtensionProvider(
+                PayloadType.ELEMENT, RtpDescription.NAMESPACE,
+                new DefaultXmlElementProvider<>(PayloadType.class, RtpDescription.NAMESPACE));
+        ProviderManager.addExtensionProvider(
+                ParameterElement.ELEMENT, RtpDescription.NAMESPACE,
+                new DefaultXmlElementProvider<>(ParameterElement.class, RtpDescription.NAMESPACE));
+        ProviderManager.addExtensionProvider(
+                ParameterElement.ELEMENT, SdpSource.NAMESPACE,
+                new DefaultXmlElementProvider<>(ParameterElement.class, SdpSource.NAMESPACE));
+        ProviderManager.addExtensionProvider(
+                RtpHeader.ELEMENT, RtpHeader.NAMESPACE,
+                new DefaultXmlElementProvider<>(RtpHeader.class));
+        ProviderManager.addExtensionProvider(
+                RtcpFb.ELEMENT, RtcpFb.NAMESPACE,
+                new DefaultXmlElementProvider<>(RtcpFb.class));
+        ProviderManager.addExtensionProvider(
+                RtcpMux.ELEMENT, RtpDescription.NAMESPACE,
+                new DefaultXmlElementProvider<>(RtcpMux.class, RtpDescription.NAMESPACE));
+        ProviderManager.addExtensionProvider(
+                IceUdpTransportCandidate.ELEMENT, IceUdpTransportCandidate.NAMESPACE,
+                new DefaultXmlElementProvider<>(IceUdpTransportCandidate.class));
+        ProviderManager.addExtensionProvider(
+                SrtpFingerprint.ELEMENT, SrtpFingerprint.NAMESPACE,
+                new DefaultXmlElementProvider<>(SrtpFingerprint.class));
+        ProviderManager.addExtensionProvider(
+                SdpSourceGroup.ELEMENT, SdpSourceGroup.NAMESPACE,
+                new DefaultXmlElementProvider<>(SdpSourceGroup.class));
+        ProviderManager.addExtensionProvider(
+                Grouping.ELEMENT, Grouping.NAMESPACE,
+                new DefaultXmlElementProvider<>(Grouping.class));
+        ProviderManager.addExtensionProvider(
+                JingleContent.ELEMENT, Grouping.NAMESPACE,
+                new DefaultXmlElementProvider<>(JingleContent.class));
+    }
+
+    @Test
+    public void colibriConferenceRoundTrip()
+            throws Exception
+    {
+        IQ iq = parse(COLIBRI_CONFERENCE_IQ);
+        assertTrue(iq instanceof ColibriConferenceIQ);
+
+        String xml = iq.toXML().toString();
+        assertTrue(xml, xml.contains("name='opus'") || xml.contains("name=\"opus\""));
+        assertTrue(xml, xml.contains("2417063551"));
+        assertTrue(xml, xml.contains("<ssrc>1843220817</ssrc>"));
+        assertEquals(xml, parse(xml).toXML().toString());
+    }
+
+    @Test
+    public void jingleSessionInitiateRoundTrip()
+            throws Exception
+    {
+        IQ iq = parse(JINGLE_SESSION_INITIATE_IQ);
+        assertTrue(iq instanceof Jingle);
+        assertEquals(2, ((Jingle) iq).getContents().size());
+
+        String xml = iq.toXML().toString();
+        assertTrue(xml, xml.contains("transport-cc"));
+        assertTrue(xml, xml.contains("198.51.100.7"));
+        assertEquals(xml, parse(xml).toXML().toString());
+    }
+
+    /**
+     * Shares one <code>payload-type</code> between a Jingle description, within which it inherits its
+     * namespace, and a Colibri channel, within which it must declare it; the XML cached for one
+     * enclosing namespace must not be reused for the other.
+     */
+    @Test
+    public void sharedElementUnderTwoNamespaces()
+    {
+        PayloadType opus = PayloadType.builder(RtpDescription.NAMESPACE)
+                .setId(111)
+                .setName("opus")
+                .setClockrate(48000)
+                .setChannels(2)
+                .build();
+
+        String colibriXml = createColibriConference(opus).toXML().toString();
+        assertTrue(colibriXml, colibriXml.contains("<payload-type xmlns='" + RtpDescription.NAMESPACE + "'"));
+
+        String jingleXml = RtpDescription.getBuilder()
+                .setMedia("audio")
+                .addPayloadType(opus)
+                .build()
+                .toXML(XmlEnvironment.EMPTY)
+                .toString();
+        assertTrue(jingleXml, jingleXml.contains("<payload-type id="));
+        assertFalse(jingleXml, jingleXml.contains("<payload-type xmlns="));
+
+        assertEquals(colibriXml, createColibriConference(opus).toXML().toString());
+    }
+
+    /**
+     * Creates a Colibri conference with an audio channel carrying a specific <code>payload-type</code>.
+     *
+     * @param payloadType the <code>payload-type</code> of the channel
+     * @return the Colibri conference
+     */
+    private static ColibriConferenceIQ createColibriConference(PayloadType payloadType)
+    {
+        ColibriConferenceIQ conference = new ColibriConferenceIQ();
+        ColibriConferenceIQ.Channel channel = new ColibriConferenceIQ.Channel();
+        channel.setID("6b1e2c7a9d0f4e13");
+        channel.addPayloadType(payloadType);
+        conference.getOrCreateContent("audio").addChannel(channel);
+        return conference;
+    }
+
+    @Test
+    public void benchmarkColibriConference()
+            throws Exception
+    {
+        benchmark("colibri conference", COLIBRI_CONFERENCE_IQ);
+    }
+
+    @Test
+    public void benchmarkJingleSessionInitiate()
+            throws Exception
+    {
+        benchmark("jingle session-initiate", JINGLE_SESSION_INITIATE_IQ);
+    }
+
+    /**
+     * Times <code>ITERATIONS</code> parses and <code>ITERATIONS</code> serializations of the given IQ,
+     * after an equal number of warm-up rounds, and prints the average time per IQ.
+     *
+     * @param label the name of the captured IQ for the printed result
+     * @param xml the captured IQ stanza
+     */
+    private static void benchmark(String label, String xml)
+            throws Exception
+    {
+        Assume.assumeTrue("Set -Dbenchmark=true to run the timing loops", BENCHMARK);
+
+        // Keep the results reachable so that the JIT cannot drop the work being timed.
+        int sink = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += parse(xml).toXML().length();
+        }
+
+        long start = System.nanoTime();
+        IQ iq = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            iq = parse(xml);
+        }
+        long parseNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += iq.toXML().length();
+        }
+        long toXmlNanos = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US,
+                "%s (%d chars, %d iterations): parse %.1f us/iq, toXML %.1f us/iq [%d]",
+                label, xml.length(), ITERATIONS, parseNanos / 1000.0 / ITERATIONS,
+                toXmlNanos / 1000.0 / ITERATIONS, sink));
+        assertTrue(sink > 0);
+    }
+
+    /**
+     * Parses the given IQ stanza with the registered IQ provider, the same way the connection's
+     * reader does for an incoming stanza.
+     *
+     * @param xml the IQ stanza
+     * @return the parsed <code>IQ</code>
+     */
+    private static IQ parse(String xml)
+            throws Exception
+    {
+        XmlPullParser parser = PARSER_FACTORY.newXmlPullParser(new StringReader(xml));
+        while (parser.getEventType() != XmlPullParser.Event.START_ELEMENT) {
+            parser.next();
+        }
+        return PacketParserUtils.parseIQ(parser);
+    }
+}